@@ -0,0 +1,115 @@
+/**
+ *
+ */
+package web30;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+
+import web30.model.TwitterStream;
+
+/**
+ * verify the planning and matching of batch scans
+ */
+public class TestBatchScan
+{
+   /**
+    * @param north
+    * @param south
+    * @param east
+    * @param west
+    * @return a query for the box, at any time
+    */
+   private static TweetQuery box(final double north, final double south, final double east, final double west)
+   {
+      return new TweetQuery(Double.valueOf(north), Double.valueOf(south), Double.valueOf(east), Double.valueOf(west),
+            null, null);
+   }
+
+   /**
+    * @param id
+    *           the tweet id
+    * @param north
+    *           the lon column
+    * @param east
+    *           the lat column
+    * @return a tweet
+    */
+   private static TwitterStream tweet(final String id, final double north, final double east)
+   {
+      final TwitterStream tweet = new TwitterStream();
+      tweet.setTweetid(id);
+      tweet.setTime(new Date(1000));
+      // NOTE the db has lat and lon backwards
+      tweet.setLon(Double.valueOf(north));
+      tweet.setLat(Double.valueOf(east));
+      return tweet;
+   }
+
+   /**
+    * windows that overlap share a scan as long as it covers little more than they do, and others do not
+    */
+   @Test
+   public void testPlan()
+   {
+      final List<BatchScan> scans = BatchScan.plan(
+            Arrays.asList(box(10, 0, 10, 0), box(50, 40, 50, 40), box(15, 5, 15, 5), box(25, 14, 25, 14)),
+            TweetProjection.ALL);
+      assertEquals(3, scans.size());
+      assertEquals(2, scans.get(0).getSize());
+      assertEquals(0, scans.get(0).getPosition(0));
+      assertEquals(2, scans.get(0).getPosition(1));
+      assertEquals(1, scans.get(1).getPosition(0));
+      // joining the corner box would cover 625 square degrees for the 321 its windows cover
+      assertEquals(3, scans.get(2).getPosition(0));
+
+      final TweetQuery query = scans.get(0).getQuery();
+      assertEquals(15, query.getNorth(), 0);
+      assertEquals(0, query.getSouth(), 0);
+      assertFalse(query.hasTimeRange());
+
+      // a window that covers another takes it into its scan, which reads no more than the big one alone
+      assertEquals(1, BatchScan.plan(Arrays.asList(box(10, 0, 10, 0), new TweetQuery(null, null, null, null, null,
+            null)), TweetProjection.ALL).size());
+
+      final TweetQuery early = new TweetQuery(null, null, null, null, new Date(0), new Date(100));
+      final TweetQuery late = new TweetQuery(null, null, null, null, new Date(200), new Date(300));
+      assertFalse(BatchScan.overlaps(early, late));
+      assertTrue(BatchScan.overlaps(early, box(10, 0, 10, 0)));
+   }
+
+   /**
+    * a scan hands each tweet to the windows it matches, which keep a page and count the rest
+    * 
+    * @throws Exception
+    *            on error
+    */
+   @Test
+   public void testVisit() throws Exception
+   {
+      final TweetQuery small = box(10, 0, 10, 0);
+      small.setMaxResults(1);
+      final List<BatchScan> scans = BatchScan.plan(Arrays.asList(small, box(15, 5, 15, 5)), TweetProjection.LITE);
+      assertEquals(1, scans.size());
+
+      final BatchScan scan = scans.get(0);
+      scan.visit(tweet("1", 2, 2));
+      scan.visit(tweet("2", 7, 7));
+      scan.visit(tweet("3", 12, 12));
+      scan.visit(tweet("4", 20, 20));
+
+      assertEquals(2, scan.getCount(0));
+      assertEquals(1, scan.getPage(0).size());
+      assertEquals("1", scan.getPage(0).get(0).getTweetid());
+      assertEquals(2, scan.getCount(1));
+      assertEquals(2, scan.getPage(1).size());
+      assertEquals("3", scan.getPage(1).get(1).getTweetid());
+   }
+}
@@ -0,0 +1,151 @@
+/**
+ *
+ */
+package web30;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.persistence.Query;
+import javax.ws.rs.core.Response;
+
+import org.apache.log4j.Logger;
+import org.junit.Before;
+import org.junit.Test;
+
+import web30.index.TweetIndexLoader;
+import web30.model.TwitterStream;
+import web30.persistence.EntityManagerPool;
+import web30.persistence.PooledEntityManager;
+
+/**
+ * verify that a page read from the database, with its count run alongside the fetch, is the page the count and then
+ * the fetch on one entity manager would give
+ */
+public class TestDatabaseTweets
+{
+   /** the logger */
+   private static Logger log = Logger.getLogger(TestDatabaseTweets.class);
+
+   /** the end of the time range of the requests, so the tweets that arrive during the test are not counted */
+   private final Date maxDate = new Date();
+
+   /** the start of the time range of the requests */
+   private final Date minDate = new Date(maxDate.getTime() - 400 * 24 * 60 * 60 * 1000L);
+
+   /**
+    * read from the database, and not from the index or the cache
+    */
+   @Before
+   public void before()
+   {
+      TweetIndexLoader.setIndex(null);
+      TweetCache.getInstance().clear();
+   }
+
+   /**
+    * @param count
+    *           how to count the total
+    * @param countLimit
+    *           the count limit of the request
+    * @return the page the request answers
+    */
+   private Tweets request(final CountMode count, final long countLimit)
+   {
+      final Response response = new TweetHandler().getTweets(Double.valueOf(37.0), Double.valueOf(32.0),
+            Double.valueOf(0.0), Double.valueOf(-122.0), minDate, maxDate, null, false, count, countLimit, null, null,
+            null, false, false);
+      assertEquals(200, response.getStatus());
+      final Tweets page = (Tweets) response.getEntity();
+      log.debug("received: " + page.getTotal() + " " + page.getTotalMode() + ", " + page.getTweet().size());
+      return page;
+   }
+
+   /**
+    * @param countLimit
+    *           the count limit, or 0 for an exact count
+    * @param page
+    *           where the total and the ids of the tweets of the page are put
+    */
+   private void sequential(final long countLimit, final Tweets page)
+   {
+      final TweetQuery query = new TweetQuery(Double.valueOf(37.0), Double.valueOf(32.0), Double.valueOf(0.0),
+            Double.valueOf(-122.0), minDate, maxDate);
+      final TweetProjection projection = TweetProjection.parse(null, null);
+      try (PooledEntityManager em = EntityManagerPool.borrowEntityManager())
+      {
+         if (countLimit > 0)
+         {
+            query.setCountLimit(countLimit);
+            page.setTotal(((Number) TweetQueries.createBoundedCount(em, query).uniqueResult()).longValue());
+         }
+         else
+         {
+            page.setTotal(TweetQueries.createCount(em, query).getSingleResult().longValue());
+         }
+         final Query qRetrieve = TweetQueries.createPage(em, query, projection);
+         qRetrieve.setMaxResults(query.getMaxResults());
+         for (final Object row : qRetrieve.getResultList())
+         {
+            page.getTweet().add(projection.toTweet(row));
+         }
+      }
+   }
+
+   /**
+    * @param tweets
+    *           some tweets
+    * @return their ids, in order
+    */
+   private static List<String> idsOf(final List<TwitterStream> tweets)
+   {
+      final List<String> ids = new ArrayList<>(tweets.size());
+      for (final TwitterStream tweet : tweets)
+      {
+         ids.add(tweet.getTweetid());
+      }
+      return ids;
+   }
+
+   /**
+    * an exact count is the count of every matching tweet, and the page is the first page of them
+    *
+    * @throws Exception
+    *            on error
+    */
+   @Test
+   public void testExact() throws Exception
+   {
+      log.debug("testExact");
+      final Tweets page = request(CountMode.EXACT, 10000);
+      final Tweets expected = new Tweets();
+      sequential(0, expected);
+
+      assertEquals(expected.getTotal(), page.getTotal());
+      assertEquals(CountMode.EXACT.getLabel(), page.getTotalMode());
+      assertEquals(idsOf(expected.getTweet()), idsOf(page.getTweet()));
+   }
+
+   /**
+    * a count that stops at a limit is the same bounded count, and is exact when it stops short of the limit
+    *
+    * @throws Exception
+    *            on error
+    */
+   @Test
+   public void testAtLeast() throws Exception
+   {
+      log.debug("testAtLeast");
+      final Tweets page = request(CountMode.AT_LEAST, 10);
+      final Tweets expected = new Tweets();
+      sequential(10, expected);
+
+      assertEquals(expected.getTotal(), page.getTotal());
+      assertEquals(expected.getTotal() < 10 ? CountMode.EXACT.getLabel() : CountMode.AT_LEAST.getLabel(),
+            page.getTotalMode());
+      assertEquals(idsOf(expected.getTweet()), idsOf(page.getTweet()));
+   }
+}
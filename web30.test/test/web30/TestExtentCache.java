@@ -0,0 +1,143 @@
+/**
+ *
+ */
+package web30;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.Collections;
+import java.util.Date;
+
+import javax.ws.rs.core.Response;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import web30.index.TweetIndexLoader;
+import web30.model.TwitterStream;
+import web30.persistence.EntityManagerPool;
+import web30.persistence.PooledEntityManager;
+
+/**
+ * verify that the map range and time range requests answer what a scan of the database would, and follow added tweets
+ */
+public class TestExtentCache
+{
+   /** the logger */
+   private static Logger log = Logger.getLogger(TestExtentCache.class);
+
+   /** the handler whose range requests are checked */
+   private final TweetHandler handler = new TweetHandler();
+
+   /**
+    * read the extents the index would not widen
+    */
+   @Before
+   public void before()
+   {
+      TweetIndexLoader.setIndex(null);
+      ExtentCache.refresh();
+   }
+
+   /**
+    * read the extents again, dropping the ones widened by tweets that are not in the database
+    */
+   @After
+   public void after()
+   {
+      ExtentCache.refresh();
+   }
+
+   /**
+    * @return the box around all the tweets, as the map range request answers it
+    */
+   private BoundingBox getMapRange()
+   {
+      final Response response = handler.getMapRange();
+      assertEquals(200, response.getStatus());
+      return (BoundingBox) response.getEntity();
+   }
+
+   /**
+    * @return the range of the tweet times, as the time range request answers it
+    */
+   private TimeRange getTimeRange()
+   {
+      final Response response = handler.getTimeRange();
+      assertEquals(200, response.getStatus());
+      return (TimeRange) response.getEntity();
+   }
+
+   /**
+    * the extents are the ones a scan of the whole table finds
+    *
+    * @throws Exception
+    *            on error
+    */
+   @Test
+   public void testMatchesDatabase() throws Exception
+   {
+      log.debug("testMatchesDatabase");
+      final Object[] row;
+      try (PooledEntityManager em = EntityManagerPool.borrowEntityManager())
+      {
+         row = (Object[]) em.createQuery(
+               "select max(t.lon), max(t.lat), min(t.lat), min(t.lon), min(t.time), max(t.time) from TwitterStream t")
+               .getSingleResult();
+      }
+
+      // NOTE the db has lat and lon backwards
+      final BoundingBox box = getMapRange();
+      log.debug("received: " + box);
+      assertEquals(((Number) row[0]).doubleValue(), box.getNorth(), 0.0);
+      assertEquals(((Number) row[1]).doubleValue(), box.getEast(), 0.0);
+      assertEquals(((Number) row[2]).doubleValue(), box.getWest(), 0.0);
+      assertEquals(((Number) row[3]).doubleValue(), box.getSouth(), 0.0);
+
+      final TimeRange range = getTimeRange();
+      log.debug("received: " + range);
+      assertEquals(((Date) row[4]).getTime(), range.getMinTime().getTime());
+      assertEquals(((Date) row[5]).getTime(), range.getMaxTime().getTime());
+   }
+
+   /**
+    * a tweet added outside the extents widens them on its side only, without reading the database again
+    *
+    * @throws Exception
+    *            on error
+    */
+   @Test
+   public void testTweetAdded() throws Exception
+   {
+      log.debug("testTweetAdded");
+      final BoundingBox before = getMapRange();
+      final TimeRange beforeRange = getTimeRange();
+      assertNotNull(before);
+      assertNotNull(beforeRange);
+
+      final TwitterStream tweet = new TwitterStream();
+      tweet.setTweetid("testextentcache");
+      tweet.setTime(new Date(beforeRange.getMaxTime().getTime() + 1000));
+      // NOTE the db has lat and lon backwards
+      tweet.setLon(Double.valueOf(before.getNorth() + 1.0));
+      tweet.setLat(Double.valueOf(before.getEast() + 1.0));
+      TweetIndexLoader.tweetsAdded(Collections.singletonList(tweet));
+
+      final BoundingBox box = getMapRange();
+      assertEquals(before.getNorth() + 1.0, box.getNorth(), 0.0);
+      assertEquals(before.getEast() + 1.0, box.getEast(), 0.0);
+      assertEquals(before.getWest(), box.getWest(), 0.0);
+      assertEquals(before.getSouth(), box.getSouth(), 0.0);
+
+      final TimeRange range = getTimeRange();
+      assertEquals(beforeRange.getMinTime(), range.getMinTime());
+      assertEquals(tweet.getTime(), range.getMaxTime());
+
+      // the extents handed out before are replaced, not changed
+      assertEquals(tweet.getLon().doubleValue() - 1.0, before.getNorth(), 0.0);
+      assertEquals(tweet.getTime().getTime() - 1000, beforeRange.getMaxTime().getTime());
+   }
+}
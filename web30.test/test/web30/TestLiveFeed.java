@@ -0,0 +1,163 @@
+/**
+ *
+ */
+package web30;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+
+import web30.model.TwitterStream;
+
+/**
+ * verify the matching, backlog and timeouts of the live feed
+ */
+public class TestLiveFeed
+{
+   /**
+    * A subscriber that remembers what it was sent.
+    */
+   private static class Recorder extends LiveFeed.Subscriber
+   {
+      /** the tweets sent, or null until they are */
+      private List<TwitterStream> tweets;
+      /** the sequence number sent */
+      private long next;
+
+      /**
+       * @param query
+       *           the box and words of the tweets wanted
+       * @param since
+       *           the sequence number from the last answer
+       */
+      Recorder(final TweetQuery query, final long since)
+      {
+         super(query, since);
+      }
+
+      /*
+       * (non-Javadoc)
+       * @see web30.LiveFeed.Subscriber#deliver(java.util.List, long)
+       */
+      @Override
+      protected void deliver(final List<TwitterStream> sent, final long sentNext)
+      {
+         tweets = sent;
+         next = sentNext;
+      }
+   }
+
+   /**
+    * @param north
+    * @param south
+    * @param east
+    * @param west
+    * @return a query for the box
+    */
+   private static TweetQuery box(final double north, final double south, final double east, final double west)
+   {
+      return new TweetQuery(Double.valueOf(north), Double.valueOf(south), Double.valueOf(east), Double.valueOf(west),
+            null, null);
+   }
+
+   /**
+    * @param id
+    *           the tweet id
+    * @param north
+    *           the lon column
+    * @param east
+    *           the lat column
+    * @param text
+    *           the text
+    * @return a tweet
+    */
+   private static TwitterStream tweet(final String id, final double north, final double east, final String text)
+   {
+      final TwitterStream tweet = new TwitterStream();
+      tweet.setTweetid(id);
+      tweet.setTime(new Date());
+      // NOTE the db has lat and lon backwards
+      tweet.setLon(Double.valueOf(north));
+      tweet.setLat(Double.valueOf(east));
+      tweet.setText(text);
+      return tweet;
+   }
+
+   /**
+    * a poll that comes back with its token gets the tweets added between polls
+    */
+   @Test
+   public void testBacklog()
+   {
+      final LiveFeed feed = new LiveFeed(100);
+      feed.tweetsAdded(Arrays.asList(tweet("1", 39.75, -84.2, "early")));
+      final long since = feed.getSequence();
+      feed.tweetsAdded(Arrays.asList(tweet("2", 39.75, -84.2, "missed"), tweet("3", 10, 10, "elsewhere")));
+
+      final Recorder recorder = new Recorder(box(39.8, 39.7, -84.1, -84.3), since);
+      feed.subscribe(recorder);
+      assertEquals(1, recorder.tweets.size());
+      assertEquals("2", recorder.tweets.get(0).getTweetid());
+      assertEquals(3, recorder.next);
+      assertEquals(0, feed.getWaiting());
+
+      final Recorder fresh = new Recorder(box(39.8, 39.7, -84.1, -84.3), -1);
+      feed.subscribe(fresh);
+      assertNull(fresh.tweets);
+      assertEquals(1, feed.getWaiting());
+   }
+
+   /**
+    * a tweet goes to the waiting subscribers whose box and words it matches, small boxes and large ones
+    */
+   @Test
+   public void testMatch()
+   {
+      final LiveFeed feed = new LiveFeed(100);
+      final Recorder dayton = new Recorder(box(39.8, 39.7, -84.1, -84.3), -1);
+      final Recorder world = new Recorder(box(90, -90, 180, -180), -1);
+      final TweetQuery storms = box(39.8, 39.7, -84.1, -84.3);
+      storms.setText("storm");
+      final Recorder storm = new Recorder(storms, -1);
+      feed.subscribe(dayton);
+      feed.subscribe(world);
+      feed.subscribe(storm);
+      assertEquals(3, feed.getWaiting());
+
+      feed.tweetsAdded(Arrays.asList(tweet("1", 10, 10, "far away")));
+      assertNull(dayton.tweets);
+      assertEquals(1, world.tweets.size());
+      assertEquals(2, feed.getWaiting());
+
+      feed.tweetsAdded(Arrays.asList(tweet("2", 39.75, -84.2, "sunny"), tweet("3", 39.76, -84.2, "a #storm")));
+      assertEquals(2, dayton.tweets.size());
+      assertEquals(1, storm.tweets.size());
+      assertEquals("3", storm.tweets.get(0).getTweetid());
+      assertEquals(0, feed.getWaiting());
+   }
+
+   /**
+    * a poll that times out gets no tweets and the current token, and only ever one answer
+    */
+   @Test
+   public void testTimeout()
+   {
+      final LiveFeed feed = new LiveFeed(100);
+      feed.tweetsAdded(Arrays.asList(tweet("1", 10, 10, "before")));
+      final Recorder recorder = new Recorder(box(39.8, 39.7, -84.1, -84.3), -1);
+      feed.subscribe(recorder);
+      feed.unsubscribe(recorder);
+
+      assertEquals(0, recorder.tweets.size());
+      assertEquals(1, recorder.next);
+      assertEquals(0, feed.getWaiting());
+
+      feed.tweetsAdded(Arrays.asList(tweet("2", 39.75, -84.2, "after")));
+      assertEquals(0, recorder.tweets.size());
+   }
+}
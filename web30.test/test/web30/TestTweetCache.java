@@ -0,0 +1,207 @@
+/**
+ *
+ */
+package web30;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+
+import web30.model.TwitterStream;
+
+/**
+ * verify the quantizing, sharing, eviction, expiry and invalidation of the tweet cache
+ */
+public class TestTweetCache
+{
+   /** an hour, in milliseconds */
+   private static final long HOUR = 60 * 60 * 1000L;
+
+   /**
+    * @param tweets
+    *           the number of tweets on the page
+    * @return a page of tweets
+    */
+   private static Tweets page(final int tweets)
+   {
+      final List<TwitterStream> list = new ArrayList<>();
+      for (int i = 0; i < tweets; i++)
+      {
+         final TwitterStream tweet = new TwitterStream();
+         tweet.setTweetid(String.valueOf(i));
+         tweet.setText("tweet " + i);
+         list.add(tweet);
+      }
+      final Tweets page = new Tweets();
+      page.setTweet(list);
+      return page;
+   }
+
+   /**
+    * @param north
+    * @param south
+    * @param east
+    * @param west
+    * @return a query for the box, with no time window
+    */
+   private static TweetQuery query(final double north, final double south, final double east, final double west)
+   {
+      return new TweetQuery(Double.valueOf(north), Double.valueOf(south), Double.valueOf(east), Double.valueOf(west),
+            null, null);
+   }
+
+   /**
+    * the least recently used pages are dropped to stay within the size
+    */
+   @Test
+   public void testEviction()
+   {
+      final TweetCache cache = new TweetCache(0.01, HOUR, HOUR, 6000);
+      final TweetQuery query = query(1, 0, 1, 0);
+      cache.put("a", query, page(20));
+      cache.put("b", query, page(20));
+      assertNotNull(cache.get("a"));
+      cache.put("c", query, page(20));
+
+      assertNotNull(cache.get("a"));
+      assertNull(cache.get("b"));
+      // a miss is counted once no superset answers it either
+      assertEquals(-1, cache.share(query, new ArrayList<TwitterStream>()));
+      assertNotNull(cache.get("c"));
+      assertTrue(cache.getStats().getBytes() <= 6000);
+      assertEquals(1, cache.getStats().getEvictions());
+      assertEquals(3, cache.getStats().getHits());
+      assertEquals(1, cache.getStats().getMisses());
+   }
+
+   /**
+    * a page is gone once its time to live has passed
+    *
+    * @throws Exception
+    *            on error
+    */
+   @Test
+   public void testExpiry() throws Exception
+   {
+      final TweetCache cache = new TweetCache(0.01, HOUR, 10, TweetCache.DEFAULT_MAX_BYTES);
+      cache.put("a", query(1, 0, 1, 0), page(1));
+      Thread.sleep(20);
+
+      assertNull(cache.get("a"));
+      assertEquals(0, cache.getStats().getEntries());
+   }
+
+   /**
+    * a tweet added inside a page drops it, and one added outside does not
+    */
+   @Test
+   public void testInvalidation()
+   {
+      final TweetCache cache = new TweetCache(0.01, HOUR, HOUR, TweetCache.DEFAULT_MAX_BYTES);
+      cache.put("inside", query(39.8, 39.7, -84.1, -84.3), page(1));
+      cache.put("outside", query(10, 0, 10, 0), page(1));
+
+      final TwitterStream tweet = new TwitterStream();
+      // NOTE the db has lat and lon backwards
+      tweet.setLon(Double.valueOf(39.75));
+      tweet.setLat(Double.valueOf(-84.2));
+      tweet.setTime(new Date());
+      cache.tweetsAdded(Collections.singletonList(tweet));
+
+      assertNull(cache.get("inside"));
+      assertNotNull(cache.get("outside"));
+      assertEquals(1, cache.getStats().getInvalidations());
+   }
+
+   /**
+    * nearby boxes and windows round out to the same query, which covers both of them, but only the same query has the
+    * same key
+    */
+   @Test
+   public void testQuantize()
+   {
+      final TweetCache cache = new TweetCache(0.01, HOUR, HOUR, TweetCache.DEFAULT_MAX_BYTES);
+      final long start = 1400000000000L;
+      final TweetQuery a = new TweetQuery(Double.valueOf(39.8012), Double.valueOf(39.7034), Double.valueOf(-84.1011),
+            Double.valueOf(-84.2987), new Date(start + 60000), new Date(start + 2 * HOUR));
+      final TweetQuery b = new TweetQuery(Double.valueOf(39.8049), Double.valueOf(39.7001), Double.valueOf(-84.1099),
+            Double.valueOf(-84.2921), new Date(start + 120000), new Date(start + 2 * HOUR + 60000));
+      final TweetQuery qa = cache.quantize(a);
+      final TweetQuery qb = cache.quantize(b);
+
+      final String key = cache.key(qa, CountMode.EXACT, 0, TweetProjection.ALL);
+      assertEquals(key, cache.key(qb, CountMode.EXACT, 0, TweetProjection.ALL));
+      assertFalse(cache.key(a, CountMode.EXACT, 0, TweetProjection.ALL).equals(
+            cache.key(b, CountMode.EXACT, 0, TweetProjection.ALL)));
+      assertFalse(key.equals(cache.key(qa, CountMode.AT_LEAST, 10, TweetProjection.ALL)));
+      assertFalse(key.equals(cache.key(qa, CountMode.EXACT, 0, TweetProjection.LITE)));
+      assertFalse(key.equals(cache.key(cache.quantize(query(39.9, 39.7, -84.1, -84.3)), CountMode.EXACT, 0,
+            TweetProjection.ALL)));
+
+      assertTrue(qa.getNorth() >= a.getNorth() && qa.getSouth() <= a.getSouth());
+      assertTrue(qa.getEast() >= a.getEast() && qa.getWest() <= a.getWest());
+      assertTrue(!qa.getMinTime().after(a.getMinTime()) && !qa.getMaxTime().before(a.getMaxTime()));
+      assertTrue(!qa.getMinTime().after(b.getMinTime()) && !qa.getMaxTime().before(b.getMaxTime()));
+   }
+
+   /**
+    * a superset is only read on the second miss inside it, a request inside a cached superset is answered with only
+    * its own tweets, an exact total and its own next page, and a superset with too many tweets is not shared
+    */
+   @Test
+   public void testShare()
+   {
+      final TweetCache cache = new TweetCache(0.1, HOUR, HOUR, TweetCache.DEFAULT_MAX_BYTES);
+      final TweetQuery query = query(39.78, 39.72, -84.12, -84.28);
+      assertEquals(-1, cache.share(query, new ArrayList<TwitterStream>()));
+      assertNull(cache.superset(query));
+      assertEquals(-1, cache.share(query, new ArrayList<TwitterStream>()));
+      final TweetQuery superset = cache.superset(query);
+      assertNotNull(superset);
+
+      final long start = 1400000000000L;
+      final List<TwitterStream> tweets = new ArrayList<>();
+      for (int i = 0; i < 10; i++)
+      {
+         final TwitterStream tweet = new TwitterStream();
+         tweet.setTweetid(String.valueOf(i));
+         tweet.setTime(new Date(start + i * 1000));
+         // NOTE the db has lat and lon backwards; the odd tweets are in the superset but not the box
+         tweet.setLon(Double.valueOf(i % 2 == 0 ? 39.75 : 39.71));
+         tweet.setLat(Double.valueOf(-84.2));
+         tweets.add(tweet);
+      }
+      assertTrue(superset.matches(tweets.get(1)));
+      query.setMaxResults(3);
+      final List<TwitterStream> first = new ArrayList<>();
+      assertEquals(5, cache.putSuperset(superset, tweets, query, first));
+      assertNull(cache.superset(query));
+      assertEquals(3, first.size());
+      assertEquals("4", first.get(2).getTweetid());
+
+      query.setCursor(TweetCursor.fromToken(TweetCursor.after(first.get(2), 3)));
+      final List<TwitterStream> second = new ArrayList<>();
+      assertEquals(5, cache.share(query, second));
+      assertEquals(2, second.size());
+      assertEquals("6", second.get(0).getTweetid());
+      assertEquals(1, cache.getStats().getHits());
+      assertEquals(2, cache.getStats().getMisses());
+
+      final TweetQuery crowded = query(10, 0, 10, 0);
+      assertNull(cache.superset(crowded));
+      final TweetQuery big = cache.superset(crowded);
+      assertEquals(-1, cache.putSuperset(big, Collections.nCopies(TweetCache.SHARE_LIMIT + 1, tweets.get(0)), crowded,
+            new ArrayList<TwitterStream>()));
+      assertNull(cache.superset(crowded));
+      assertEquals(-1, cache.share(crowded, new ArrayList<TwitterStream>()));
+   }
+}
@@ -0,0 +1,188 @@
+/**
+ *
+ */
+package web30;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+
+import web30.model.TwitterStream;
+
+/**
+ * decode pages written in the binary form and compare them to what was written
+ */
+public class TestTweetColumnsWriter
+{
+   /**
+    * @param in
+    *           the page
+    * @return the next string with an int32 length, or null for -1
+    */
+   private static String readString(final ByteBuffer in)
+   {
+      final int length = in.getInt();
+      if (length < 0)
+      {
+         return null;
+      }
+      final byte[] bytes = new byte[length];
+      in.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+   }
+
+   /**
+    * @param in
+    *           the page
+    * @return the next unsigned varint
+    */
+   private static long readVarint(final ByteBuffer in)
+   {
+      long value = 0;
+      int shift = 0;
+      byte b;
+      do
+      {
+         b = in.get();
+         value |= (long) (b & 0x7f) << shift;
+         shift += 7;
+      }
+      while ((b & 0x80) != 0);
+      return value;
+   }
+
+   /**
+    * a lite page only has the columns that are set
+    *
+    * @throws Exception
+    *            on error
+    */
+   @Test
+   public void testLite() throws Exception
+   {
+      final TwitterStream tweet = new TwitterStream();
+      tweet.setTweetid("1");
+      tweet.setTime(new Date(0));
+      tweet.setLat(Double.valueOf(1));
+      tweet.setLon(Double.valueOf(2));
+      final Tweets page = new Tweets();
+      page.getTweet().add(tweet);
+
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      new TweetColumnsWriter().write(page, bytes);
+      final ByteBuffer in = ByteBuffer.wrap(bytes.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+      in.position(4 + 4 + 8 + 8 + 1);
+
+      assertEquals(TweetColumnsWriter.LAT | TweetColumnsWriter.LON | TweetColumnsWriter.TIME
+            | TweetColumnsWriter.TWEETID, in.get());
+      assertNull(readString(in));
+   }
+
+   /**
+    * a page of whole tweets comes back the same, with repeated strings in the dictionary once
+    *
+    * @throws Exception
+    *            on error
+    */
+   @Test
+   public void testRoundTrip() throws Exception
+   {
+      final List<TwitterStream> list = new ArrayList<>();
+      for (int i = 0; i < 100; i++)
+      {
+         final TwitterStream tweet = new TwitterStream();
+         tweet.setTweetid(String.valueOf(500 + i));
+         tweet.setTime(new Date(1400000000000L + i * 61000L));
+         tweet.setLat(Double.valueOf(-84.2 + i * 0.001));
+         tweet.setLon(Double.valueOf(39.75 - i * 0.001));
+         tweet.setUserid("user" + i % 3);
+         tweet.setText(i == 7 ? null : "caf\u00e9 \ud83d\ude00 " + i);
+         list.add(tweet);
+      }
+      final Tweets page = new Tweets();
+      page.setTweet(list);
+      page.setOffset(1000);
+      page.setTotal(5000);
+      page.setTotalMode(CountMode.AT_LEAST.getLabel());
+      page.setNext("abc");
+
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      new TweetColumnsWriter().write(page, bytes);
+      final ByteBuffer in = ByteBuffer.wrap(bytes.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+
+      assertEquals('T', in.get());
+      assertEquals('W', in.get());
+      assertEquals('C', in.get());
+      assertEquals('1', in.get());
+      final int n = in.getInt();
+      assertEquals(100, n);
+      assertEquals(1000, in.getLong());
+      assertEquals(5000, in.getLong());
+      assertEquals(CountMode.AT_LEAST.ordinal(), in.get());
+      assertEquals(0x3f, in.get());
+      assertEquals("abc", readString(in));
+
+      final List<String> dictionary = new ArrayList<>();
+      final int strings = in.getInt();
+      for (int i = 0; i < strings; i++)
+      {
+         dictionary.add(readString(in));
+      }
+      // 100 ids, 3 users and 99 texts
+      assertEquals(202, dictionary.size());
+
+      assertEquals(4 * n, in.getInt());
+      for (final TwitterStream tweet : list)
+      {
+         assertEquals(tweet.getLat().doubleValue(), in.getInt() / TweetColumnsWriter.SCALE, 1e-7);
+      }
+      assertEquals(4 * n, in.getInt());
+      for (final TwitterStream tweet : list)
+      {
+         assertEquals(tweet.getLon().doubleValue(), in.getInt() / TweetColumnsWriter.SCALE, 1e-7);
+      }
+
+      final int timeEnd = in.getInt() + in.position();
+      long time = 0;
+      for (final TwitterStream tweet : list)
+      {
+         final long zigzag = readVarint(in);
+         time += zigzag >>> 1 ^ -(zigzag & 1);
+         assertEquals(tweet.getTime().getTime(), time);
+      }
+      assertEquals(timeEnd, in.position());
+
+      for (int column = 0; column < 3; column++)
+      {
+         final int end = in.getInt() + in.position();
+         for (final TwitterStream tweet : list)
+         {
+            final int position = (int) readVarint(in);
+            final String value = position == 0 ? null : dictionary.get(position - 1);
+            if (column == 0)
+            {
+               assertEquals(tweet.getTweetid(), value);
+            }
+            else if (column == 1)
+            {
+               assertEquals(tweet.getUserid(), value);
+            }
+            else
+            {
+               assertEquals(tweet.getText(), value);
+            }
+         }
+         assertEquals(end, in.position());
+      }
+      assertEquals(0, in.remaining());
+   }
+}
@@ -0,0 +1,217 @@
+/**
+ *
+ */
+package web30;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.WebApplicationException;
+
+import org.junit.Test;
+
+import web30.index.TweetIndex;
+import web30.index.TweetIndexBuilder;
+import web30.model.TwitterStream;
+
+/**
+ * export tweets from an index and read the dumps back the way they would be ingested
+ */
+public class TestTweetExport
+{
+   /** the number of tweets in the test data */
+   private static final int COUNT = 3000;
+
+   /**
+    * @return an index of tweets, some with text that needs quoting
+    */
+   private static TweetIndex createIndex()
+   {
+      final TweetIndexBuilder builder = new TweetIndexBuilder();
+      for (int i = 0; i < COUNT; i++)
+      {
+         final TwitterStream tweet = new TwitterStream();
+         tweet.setTweetid(String.valueOf(100000 + i));
+         tweet.setTime(new Date(1400000000000L + i * 1000L));
+         tweet.setUserid("user" + i % 7);
+         // NOTE the db has lat and lon backwards
+         tweet.setLon(Double.valueOf(39.6 + i % 100 * 0.004));
+         tweet.setLat(Double.valueOf(-84.4 + i % 50 * 0.012));
+         tweet.setText(i % 2 == 0 ? "tweet, \"quoted\"\nover two lines" : "tweet " + i);
+         builder.add(tweet);
+      }
+      return builder.build();
+   }
+
+   /**
+    * @param index
+    *           the index
+    * @param format
+    *           the format of the dump
+    * @param projection
+    *           the fields to export
+    * @return the tweets read back from an export of the box
+    * @throws Exception
+    *            on error
+    */
+   private static List<TwitterStream> roundTrip(final TweetIndex index, final DumpFormat format,
+         final TweetProjection projection) throws Exception
+   {
+      final TweetQuery query = new TweetQuery(Double.valueOf(39.8), Double.valueOf(39.6), Double.valueOf(-84.0),
+            Double.valueOf(-84.4), null, null);
+      final TweetStreamer export = TweetStreamer.export(query, index, projection, format);
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      export.write(bytes);
+
+      final BufferedReader in = new BufferedReader(new StringReader(new String(bytes.toByteArray(),
+            StandardCharsets.UTF_8)));
+      final TweetParser parser = new TweetParser(format, format == DumpFormat.CSV ? TweetParser.readRecord(in,
+            format) : null);
+      final List<TwitterStream> tweets = new ArrayList<>();
+      String record;
+      while ((record = TweetParser.readRecord(in, format)) != null)
+      {
+         tweets.add(parser.parse(record));
+      }
+
+      final List<TwitterStream> expected = new ArrayList<>();
+      query.setMaxResults(Integer.MAX_VALUE);
+      index.find(query, expected);
+      assertEquals(expected.size(), tweets.size());
+      for (int i = 0; i < expected.size(); i++)
+      {
+         assertEquals(expected.get(i).getTweetid(), tweets.get(i).getTweetid());
+         assertEquals(expected.get(i).getTime(), tweets.get(i).getTime());
+         assertEquals(expected.get(i).getLat(), tweets.get(i).getLat());
+         assertEquals(expected.get(i).getLon(), tweets.get(i).getLon());
+      }
+      return tweets;
+   }
+
+   /**
+    * a CSV export quotes the text, and only has the fields asked for
+    *
+    * @throws Exception
+    *            on error
+    */
+   @Test
+   public void testCsv() throws Exception
+   {
+      final List<TwitterStream> tweets = roundTrip(createIndex(), DumpFormat.CSV, TweetProjection.parse(
+            "tweetid,time,lat,lon,text", null));
+      assertEquals("tweet, \"quoted\"\nover two lines", tweets.get(0).getText());
+      assertNull(tweets.get(0).getUserid());
+   }
+
+   /**
+    * an NDJSON export has every field
+    *
+    * @throws Exception
+    *            on error
+    */
+   @Test
+   public void testNdjson() throws Exception
+   {
+      final List<TwitterStream> tweets = roundTrip(createIndex(), DumpFormat.NDJSON, TweetProjection.ALL);
+      assertEquals("tweet, \"quoted\"\nover two lines", tweets.get(0).getText());
+      assertEquals("user0", tweets.get(0).getUserid());
+   }
+
+   /**
+    * only as many exports as there are buffers can be written at once, the others answer 503 without writing anything,
+    * and an export that is never written holds no buffer
+    *
+    * @throws Exception
+    *            on error
+    */
+   @Test
+   public void testPool() throws Exception
+   {
+      final TweetIndex index = createIndex();
+      for (int i = 0; i <= TweetStreamer.EXPORT_BUFFERS; i++)
+      {
+         assertNotNull(TweetStreamer.export(new TweetQuery(null, null, null, null, null, null), index,
+               TweetProjection.LITE, DumpFormat.NDJSON));
+      }
+
+      // each running export blocks on the start of its response until it is let go
+      final CountDownLatch started = new CountDownLatch(TweetStreamer.EXPORT_BUFFERS);
+      final CountDownLatch release = new CountDownLatch(1);
+      final List<Thread> running = new ArrayList<>();
+      for (int i = 0; i < TweetStreamer.EXPORT_BUFFERS; i++)
+      {
+         final TweetStreamer export = TweetStreamer.export(new TweetQuery(null, null, null, null, null, null), index,
+               TweetProjection.LITE, DumpFormat.NDJSON);
+         final Thread thread = new Thread(new Runnable()
+         {
+            @Override
+            public void run()
+            {
+               try
+               {
+                  export.write(new ByteArrayOutputStream()
+                  {
+                     @Override
+                     public void flush()
+                     {
+                        started.countDown();
+                        try
+                        {
+                           release.await();
+                        }
+                        catch (final InterruptedException e)
+                        {
+                           Thread.currentThread().interrupt();
+                        }
+                     }
+                  });
+               }
+               catch (final IOException e)
+               {
+                  throw new IllegalStateException(e);
+               }
+            }
+         });
+         thread.start();
+         running.add(thread);
+      }
+      assertTrue(started.await(10, TimeUnit.SECONDS));
+
+      final ByteArrayOutputStream refused = new ByteArrayOutputStream();
+      try
+      {
+         TweetStreamer.export(new TweetQuery(null, null, null, null, null, null), index, TweetProjection.LITE,
+               DumpFormat.NDJSON).write(refused);
+         fail("an export ran with no buffer free");
+      }
+      catch (final WebApplicationException e)
+      {
+         assertEquals(503, e.getResponse().getStatus());
+         assertEquals(0, refused.size());
+      }
+
+      release.countDown();
+      for (final Thread thread : running)
+      {
+         thread.join();
+      }
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      TweetStreamer.export(new TweetQuery(null, null, null, null, null, null), index, TweetProjection.LITE,
+            DumpFormat.NDJSON).write(bytes);
+      assertTrue(bytes.size() > 0);
+   }
+}
@@ -4,6 +4,7 @@
 package web30;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
@@ -59,6 +60,81 @@ public class TestTweetHandler
       }
    }
 
+   /**
+    * @throws Exception
+    *            on error
+    */
+   @Test
+   public void testGetDelta() throws Exception
+   {
+      log.debug("testGetDelta");
+      try (final PooledClient client = ClientConnectionPool.borrowClient("web3"))
+      {
+         final Date now = new Date();
+         final long day = 24 * 60 * 60 * 1000L;
+         final WebTarget target = client.target(service.getUri()).path("tweet").path("delta")
+               .queryParam("east", "0").queryParam("west", "-122.0").queryParam("north", "37.0")
+               .queryParam("south", "32.0").queryParam("frommindate", new Date(now.getTime() - 400 * day))
+               .queryParam("frommaxdate", new Date(now.getTime() - 100 * day))
+               .queryParam("mindate", new Date(now.getTime() - 300 * day)).queryParam("maxdate", now);
+         log.debug("calling " + target.getUri());
+         final Response response = target.request().get();
+
+         assertNotNull(response);
+         if (response.getStatus() != 200)
+         {
+            log.debug("received: " + response);
+         }
+         assertEquals(200, response.getStatus());
+
+         final TweetDelta delta = response.readEntity(TweetDelta.class);
+         log.debug("received: " + delta);
+         assertNotNull(delta);
+         if (delta.isComplete())
+         {
+            assertNotNull(delta.getEntered());
+            assertNotNull(delta.getLeft());
+            assertTrue(delta.getEntered().size() <= 10000);
+         }
+
+         final Response missing = client.target(service.getUri()).path("tweet").path("delta")
+               .queryParam("mindate", now).queryParam("maxdate", now).request().get();
+         assertEquals(400, missing.getStatus());
+      }
+   }
+
+   /**
+    * @throws Exception
+    *            on error
+    */
+   @Test
+   public void testGetGrid() throws Exception
+   {
+      log.debug("testGetGrid");
+      try (final PooledClient client = ClientConnectionPool.borrowClient("web3"))
+      {
+         final WebTarget target = client.target(service.getUri()).path("tweet").path("grid").queryParam("east", "0")
+               .queryParam("west", "-122.0").queryParam("north", "37.0").queryParam("south", "32.0")
+               .queryParam("zoom", "10");
+         log.debug("calling " + target.getUri());
+         final Response response = target.request().get();
+
+         assertNotNull(response);
+         if (response.getStatus() != 200)
+         {
+            log.debug("received: " + response);
+         }
+         assertEquals(200, response.getStatus());
+
+         final TweetGrid grid = response.readEntity(TweetGrid.class);
+         log.debug("received: " + grid);
+         assertNotNull(grid);
+         assertTrue(grid.getTotal() > 0);
+         assertTrue(grid.getCellSize() > 0);
+         assertTrue(grid.getCell().size() > 0);
+      }
+   }
+
    /**
     * @throws Exception
     *            on error
@@ -94,6 +170,39 @@ public class TestTweetHandler
       }
    }
 
+   /**
+    * @throws Exception
+    *            on error
+    */
+   @Test
+   public void testGetTweetsExplain() throws Exception
+   {
+      log.debug("testGetTweetsExplain");
+      try (final PooledClient client = ClientConnectionPool.borrowClient("web3"))
+      {
+         final WebTarget target = client.target(service.getUri()).path("tweet").queryParam("east", "0")
+               .queryParam("west", "-122.0").queryParam("north", "37.0").queryParam("south", "32.0")
+               .queryParam("explain", "true");
+         log.debug("calling " + target.getUri());
+         final Response response = target.request().get();
+
+         assertNotNull(response);
+         assertEquals(200, response.getStatus());
+
+         final TweetExplain explain = response.readEntity(TweetExplain.class);
+         log.debug("received: " + explain);
+         assertNotNull(explain.getSource());
+         assertFalse(explain.getPhase().isEmpty());
+         assertEquals(1000, explain.getReturned());
+         assertTrue(explain.getBytes() > 0);
+         if ("database".equals(explain.getSource()))
+         {
+            assertEquals(2, explain.getSql().size());
+            assertFalse(explain.getPlan().isEmpty());
+         }
+      }
+   }
+
    /**
     * @throws Exception
     *            on error
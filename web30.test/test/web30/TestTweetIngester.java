@@ -0,0 +1,114 @@
+/**
+ *
+ */
+package web30;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Test;
+
+import web30.index.TweetIndex;
+import web30.index.TweetIndexBuilder;
+import web30.index.TweetIndexLoader;
+import web30.model.TwitterStream;
+import web30.persistence.EntityManagerPool;
+import web30.persistence.PooledEntityManager;
+
+/**
+ * verify that ingested tweets reach the database and the index
+ */
+public class TestTweetIngester
+{
+   /** the logger */
+   private static Logger log = Logger.getLogger(TestTweetIngester.class);
+
+   /** the prefix of the tweet ids of the test, which are removed afterwards */
+   private static final String PREFIX = "testingester";
+
+   /** the time of the test tweets */
+   private static final long TIME = 1400000000000L;
+
+   /**
+    * remove the test tweets and the test index
+    */
+   @After
+   public void after()
+   {
+      TweetIndexLoader.setIndex(null);
+      try (PooledEntityManager em = EntityManagerPool.borrowEntityManager())
+      {
+         em.getTransaction().begin();
+         final int deleted = em.createNativeQuery("delete from TwitterStream where tweetid like :prefix")
+               .setParameter("prefix", PREFIX + "%").executeUpdate();
+         em.getTransaction().commit();
+         log.debug("deleted " + deleted);
+      }
+   }
+
+   /**
+    * @param ids
+    *           the numbers of the tweets
+    * @return a JSON lines dump of the tweets
+    */
+   private static ByteArrayInputStream dump(final int... ids)
+   {
+      final StringBuilder dump = new StringBuilder();
+      for (final int id : ids)
+      {
+         dump.append("{\"tweetid\":\"").append(PREFIX).append(id).append("\",\"time\":\"").append(TIME + id)
+               .append("\",\"userid\":\"u\",\"lat\":-84.2,\"lon\":39.7,\"text\":\"ingested\"}\n");
+      }
+      return new ByteArrayInputStream(dump.toString().getBytes(StandardCharsets.UTF_8));
+   }
+
+   /**
+    * @param id
+    *           the number of the tweet
+    * @return the tweet, as it is in the dump
+    */
+   private static TwitterStream tweet(final int id)
+   {
+      final TwitterStream tweet = new TwitterStream();
+      tweet.setTweetid(PREFIX + id);
+      tweet.setTime(new Date(TIME + id));
+      return tweet;
+   }
+
+   /**
+    * a dump that is half made of tweets already in the database adds its new tweets to the index
+    *
+    * @throws Exception
+    *            on error
+    */
+   @Test
+   public void testHalfDuplicate() throws Exception
+   {
+      log.debug("testHalfDuplicate");
+      final TweetIndexBuilder builder = new TweetIndexBuilder();
+      builder.add(tweet(0));
+      TweetIndexLoader.setIndex(builder.build());
+      // one batch holds the whole dump, so the second batch is partly new
+      final TweetIngester ingester = new TweetIngester(10, 10, 1);
+
+      final IngestReport first = ingester.ingest(dump(1, 2), DumpFormat.NDJSON);
+      assertEquals(2, first.getInserted());
+      assertEquals(3, TweetIndexLoader.getIndex().getSize());
+
+      final IngestReport second = ingester.ingest(dump(1, 2, 3, 4), DumpFormat.NDJSON);
+      assertEquals(2, second.getInserted());
+      assertEquals(2, second.getDuplicates());
+      final TweetIndex index = TweetIndexLoader.getIndex();
+      assertEquals(5, index.getSize());
+      for (int id = 0; id <= 4; id++)
+      {
+         assertTrue(index.contains(tweet(id)));
+      }
+   }
+}
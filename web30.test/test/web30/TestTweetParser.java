@@ -0,0 +1,110 @@
+/**
+ *
+ */
+package web30;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.Date;
+
+import org.junit.Test;
+
+import web30.model.TwitterStream;
+import web30.util.GeoHash;
+
+/**
+ * verify that the records of tweet dumps are read the way they are written
+ */
+public class TestTweetParser
+{
+   /**
+    * CSV values can be quoted, with commas, quotes and line ends inside them
+    *
+    * @throws Exception
+    *            on error
+    */
+   @Test
+   public void testCsv() throws Exception
+   {
+      final String dump = "tweetid,time,lat,lon,text,extra\n" + "1,2014-05-13 16:53:20,-84.2,39.7,plain,x\n"
+            + "2,1400000000000,,,\"said \"\"hi\"\", then\nleft\",y\n";
+      final BufferedReader in = new BufferedReader(new StringReader(dump));
+      final TweetParser parser = new TweetParser(DumpFormat.CSV, TweetParser.readRecord(in, DumpFormat.CSV));
+
+      final TwitterStream first = parser.parse(TweetParser.readRecord(in, DumpFormat.CSV));
+      assertEquals("1", first.getTweetid());
+      assertEquals(new Date(1400000000000L), first.getTime());
+      assertEquals(Double.valueOf(-84.2), first.getLat());
+      assertEquals(Double.valueOf(39.7), first.getLon());
+      assertEquals("plain", first.getText());
+      assertNull(first.getUserid());
+      // NOTE the db has lat and lon backwards
+      assertEquals(Long.valueOf(GeoHash.encode(39.7, -84.2)), first.getGeohash());
+
+      final TwitterStream second = parser.parse(TweetParser.readRecord(in, DumpFormat.CSV));
+      assertEquals("said \"hi\", then\nleft", second.getText());
+      assertNull(second.getLat());
+      assertNull(second.getGeohash());
+      assertNull(TweetParser.readRecord(in, DumpFormat.CSV));
+   }
+
+   /**
+    * a line of JSON in the form of the responses, with fields that are not used
+    */
+   @Test
+   public void testJson()
+   {
+      final TweetParser parser = new TweetParser(DumpFormat.NDJSON, null);
+      final TwitterStream tweet = parser.parse("{\"tweetid\":\"42\", \"time\":\"2014-05-13T16:53:20.000Z\", "
+            + "\"userid\":\"u\",\"lat\":-84.2,\"lon\":39.7,\"text\":\"a \\\"b\\\"\\n\\u00e9\","
+            + "\"boundingbox\":null,\"entities\":{\"tags\":[\"x\",\"}\"]},\"retweeted\":false}");
+      assertEquals("42", tweet.getTweetid());
+      assertEquals(new Date(1400000000000L), tweet.getTime());
+      assertEquals("u", tweet.getUserid());
+      assertEquals("a \"b\"\n\u00e9", tweet.getText());
+      assertNull(tweet.getBoundingbox());
+      assertEquals(Double.valueOf(39.7), tweet.getLon());
+      assertNull(parser.parse("  "));
+   }
+
+   /**
+    * records that are not tweets are rejected
+    */
+   @Test
+   public void testRejected()
+   {
+      final TweetParser parser = new TweetParser(DumpFormat.NDJSON, null);
+      final String[] records =
+      { "{\"time\":\"2014-05-13T16:53:20.000Z\"}", "{\"tweetid\":\"1\",\"time\":\"yesterday\"}",
+            "{\"tweetid\":\"1\",\"time\":0,\"lat\":\"north\"}", "{\"tweetid\":\"1\"", "[1]" };
+      for (final String record : records)
+      {
+         try
+         {
+            parser.parse(record);
+            fail(record);
+         }
+         catch (final IllegalArgumentException e)
+         {
+            // expected
+         }
+      }
+   }
+
+   /**
+    * the format of a dump comes from its name
+    */
+   @Test
+   public void testFormat()
+   {
+      assertEquals(DumpFormat.NDJSON, DumpFormat.forFile("tweets.ndjson.gz"));
+      assertEquals(DumpFormat.NDJSON, DumpFormat.forFile("tweets.json"));
+      assertEquals(DumpFormat.CSV, DumpFormat.forFile("TWEETS.CSV"));
+      assertNull(DumpFormat.forFile("tweets.txt"));
+      assertEquals(DumpFormat.CSV, DumpFormat.forMediaType("text/csv; charset=UTF-8"));
+   }
+}
@@ -0,0 +1,106 @@
+/**
+ *
+ */
+package web30;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+
+import org.junit.Test;
+
+import web30.TweetProjection.Field;
+import web30.model.TwitterStream;
+
+/**
+ * verify the parsing and applying of tweet projections
+ */
+public class TestTweetProjection
+{
+   /**
+    * a list of fields always includes the key, and every field is the same as no fields
+    */
+   @Test
+   public void testFields()
+   {
+      final TweetProjection text = TweetProjection.parse(" text ", null);
+      assertEquals("select t.tweetid, t.time, t.text", text.getSelect());
+
+      final TwitterStream tweet = text.toTweet(new Object[] { "2", new Date(0), "hi" });
+      assertEquals("2", tweet.getTweetid());
+      assertEquals("hi", tweet.getText());
+      assertNull(tweet.getLat());
+
+      assertSame(TweetProjection.ALL, TweetProjection.parse("boundingbox,lat,lon,text,time,tweetid,userid", null));
+      assertSame(TweetProjection.ALL, TweetProjection.parse(null, null));
+      assertTrue(TweetProjection.ALL.isAll());
+   }
+
+   /**
+    * the same fields give the same index, whatever their order, and different fields a different one
+    */
+   @Test
+   public void testIndex()
+   {
+      final TweetProjection text = TweetProjection.parse("text", null);
+      assertEquals(text.getIndex(), TweetProjection.parse("time,text,tweetid", null).getIndex());
+      assertFalse(text.getIndex() == TweetProjection.LITE.getIndex());
+      assertFalse(text.getIndex() == TweetProjection.ALL.getIndex());
+      assertTrue(TweetProjection.ALL.getIndex() < TweetProjection.COUNT);
+   }
+
+   /**
+    * the lite mode selects the map columns, and a projected tweet only has those
+    */
+   @Test
+   public void testLite()
+   {
+      final TweetProjection lite = TweetProjection.parse(null, "lite");
+      assertSame(TweetProjection.LITE, lite);
+      assertEquals("select t.tweetid, t.time, t.lat, t.lon", lite.getSelect());
+
+      final TwitterStream tweet = new TwitterStream();
+      tweet.setTweetid("1");
+      tweet.setTime(new Date(1400000000000L));
+      tweet.setLat(Double.valueOf(-84.2));
+      tweet.setLon(Double.valueOf(39.75));
+      tweet.setText("hello");
+      tweet.setUserid("someone");
+
+      final TwitterStream projected = lite.project(tweet);
+      assertEquals("1", projected.getTweetid());
+      assertEquals(tweet.getTime(), projected.getTime());
+      assertEquals(tweet.getLat(), projected.getLat());
+      assertEquals(tweet.getLon(), projected.getLon());
+      assertNull(projected.getText());
+      assertNull(projected.getUserid());
+      assertNull(projected.getBoundingbox());
+   }
+
+   /**
+    * columns are only added to a projection that does not have them
+    */
+   @Test
+   public void testWith()
+   {
+      final TweetProjection text = TweetProjection.parse("text", null);
+      final TweetProjection located = text.with(Field.LAT, Field.LON);
+      assertEquals("select t.tweetid, t.time, t.lat, t.lon, t.text", located.getSelect());
+      assertSame(located, located.with(Field.LAT));
+      assertSame(TweetProjection.LITE, TweetProjection.LITE.with(Field.LON));
+      assertSame(TweetProjection.ALL, located.with(Field.USERID, Field.BOUNDINGBOX));
+   }
+
+   /**
+    * unknown fields and modes are refused
+    */
+   @Test(expected = IllegalArgumentException.class)
+   public void testUnknownField()
+   {
+      TweetProjection.parse("lat,password", null);
+   }
+}
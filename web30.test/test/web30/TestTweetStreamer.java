@@ -0,0 +1,205 @@
+/**
+ *
+ */
+package web30;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedHashMap;
+
+import org.eclipse.persistence.jaxb.rs.MOXyJsonProvider;
+import org.junit.Test;
+
+import web30.index.TweetIndex;
+import web30.index.TweetIndexBuilder;
+import web30.model.TwitterStream;
+
+/**
+ * stream tweets the way a stream=true request does, and compare them with the way MOXy writes a page of them
+ */
+public class TestTweetStreamer
+{
+   /**
+    * @return tweets on whole seconds and between them, some with text that needs escaping, in time order
+    */
+   private static List<TwitterStream> createTweets()
+   {
+      final List<TwitterStream> tweets = new ArrayList<>();
+      for (int i = 0; i < 20; i++)
+      {
+         final TwitterStream tweet = new TwitterStream();
+         tweet.setTweetid(String.valueOf(100000 + i));
+         tweet.setTime(new Date(1400000000000L + i * 1000L + (i % 2 == 0 ? 0 : 123)));
+         tweet.setUserid(i % 3 == 0 ? null : "user" + i);
+         // NOTE the db has lat and lon backwards
+         tweet.setLon(Double.valueOf(39.6 + i * 0.01));
+         tweet.setLat(Double.valueOf(-84.4 + i * 0.01));
+         tweet.setText(i % 4 == 0 ? "said \"hi\"\n\ttwice \\ \u00e9" : "tweet " + i);
+         tweets.add(tweet);
+      }
+      return tweets;
+   }
+
+   /**
+    * @param json
+    *           a page of tweets as JSON
+    * @return the array of tweets of the page
+    */
+   private static String tweetArray(final String json)
+   {
+      final int start = json.indexOf("\"tweet\":[");
+      assertTrue(json, start >= 0);
+      return json.substring(start, json.indexOf(']', start) + 1);
+   }
+
+   /**
+    * a stream of every field writes each tweet the same as MOXy does in a page, dates included
+    *
+    * @throws Exception
+    *            on error
+    */
+   @Test
+   public void testMoxy() throws Exception
+   {
+      final List<TwitterStream> tweets = createTweets();
+      final TweetIndexBuilder builder = new TweetIndexBuilder();
+      for (final TwitterStream tweet : tweets)
+      {
+         builder.add(tweet);
+      }
+      final TweetQuery query = new TweetQuery(null, null, null, null, null, null);
+      query.setMaxResults(Integer.MAX_VALUE);
+      final ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+      new TweetStreamer(query, builder.build(), TweetProjection.ALL).write(streamed);
+
+      final Tweets page = new Tweets();
+      page.getTweet().addAll(tweets);
+      page.setTotal(tweets.size());
+      final ByteArrayOutputStream marshalled = new ByteArrayOutputStream();
+      new MOXyJsonProvider().writeTo(page, Tweets.class, Tweets.class, new Annotation[0],
+            MediaType.APPLICATION_JSON_TYPE, new MultivaluedHashMap<String, Object>(), marshalled);
+
+      final String json = new String(streamed.toByteArray(), StandardCharsets.UTF_8);
+      assertEquals(tweetArray(new String(marshalled.toByteArray(), StandardCharsets.UTF_8)), tweetArray(json));
+      assertTrue(json, json.endsWith("\"offset\":0,\"total\":" + tweets.size() + "}"));
+   }
+
+   /**
+    * only so many streams from the database can be written at once, the others answer 503 without writing anything,
+    * and a stream from the index is not limited. Each stream from the database is stopped by its response before it
+    * reads anything.
+    *
+    * @throws Exception
+    *            on error
+    */
+   @Test
+   public void testDatabaseStreams() throws Exception
+   {
+      final CountDownLatch started = new CountDownLatch(TweetStreamer.DATABASE_STREAMS);
+      final CountDownLatch release = new CountDownLatch(1);
+      final List<Thread> running = new ArrayList<>();
+      for (int i = 0; i < TweetStreamer.DATABASE_STREAMS; i++)
+      {
+         final TweetStreamer stream = new TweetStreamer(new TweetQuery(null, null, null, null, null, null), null,
+               TweetProjection.LITE);
+         final Thread thread = new Thread(new Runnable()
+         {
+            @Override
+            public void run()
+            {
+               try
+               {
+                  stream.write(new ByteArrayOutputStream()
+                  {
+                     @Override
+                     public void flush() throws IOException
+                     {
+                        started.countDown();
+                        try
+                        {
+                           release.await();
+                        }
+                        catch (final InterruptedException e)
+                        {
+                           Thread.currentThread().interrupt();
+                        }
+                        throw new IOException("client went away");
+                     }
+                  });
+                  fail("the stream was not cut short");
+               }
+               catch (final IOException e)
+               {
+                  // expected
+               }
+            }
+         });
+         thread.start();
+         running.add(thread);
+      }
+      assertTrue(started.await(10, TimeUnit.SECONDS));
+
+      final ByteArrayOutputStream refused = new ByteArrayOutputStream();
+      try
+      {
+         new TweetStreamer(new TweetQuery(null, null, null, null, null, null), null, TweetProjection.LITE)
+               .write(refused);
+         fail("a stream from the database ran with no permit free");
+      }
+      catch (final WebApplicationException e)
+      {
+         assertEquals(503, e.getResponse().getStatus());
+         assertEquals("60", e.getResponse().getHeaderString("Retry-After"));
+         assertEquals(0, refused.size());
+      }
+
+      final TweetIndexBuilder builder = new TweetIndexBuilder();
+      for (final TwitterStream tweet : createTweets())
+      {
+         builder.add(tweet);
+      }
+      final TweetIndex index = builder.build();
+      final TweetQuery query = new TweetQuery(null, null, null, null, null, null);
+      query.setMaxResults(Integer.MAX_VALUE);
+      final ByteArrayOutputStream fromIndex = new ByteArrayOutputStream();
+      new TweetStreamer(query, index, TweetProjection.LITE).write(fromIndex);
+      assertTrue(fromIndex.size() > 0);
+
+      release.countDown();
+      for (final Thread thread : running)
+      {
+         thread.join();
+      }
+      try
+      {
+         new TweetStreamer(new TweetQuery(null, null, null, null, null, null), null, TweetProjection.LITE)
+               .write(new ByteArrayOutputStream()
+               {
+                  @Override
+                  public void flush() throws IOException
+                  {
+                     throw new IOException("client went away");
+                  }
+               });
+         fail("the stream was not cut short");
+      }
+      catch (final IOException e)
+      {
+         // the permits were given back, so this one got to write
+      }
+   }
+}
@@ -0,0 +1,597 @@
+/**
+ *
+ */
+package web30.index;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import web30.GridCell;
+import web30.TimeHistogram;
+import web30.TweetCursor;
+import web30.TweetGrid;
+import web30.TweetQuery;
+import web30.TweetTile;
+import web30.model.TwitterStream;
+
+/**
+ * verify the in-memory index against a brute force search of the same tweets
+ */
+public class TestTweetIndex
+{
+   /** the number of tweets in the test data */
+   private static final int COUNT = 20000;
+
+   /** the tweets, in the order they were created */
+   private static List<TwitterStream> tweets = new ArrayList<>();
+
+   /** the index under test */
+   private static TweetIndex index;
+
+   /** the histogram under test */
+   private static TweetHistogram histogram = new TweetHistogram();
+
+   /** the time rollups under test */
+   private static TimeRollup rollup = new TimeRollup();
+
+   /** the time rollups of each grid cell under test */
+   private static CellRollup cells = new CellRollup();
+
+   /**
+    * create a shuffled set of tweets around Dayton and index them
+    */
+   @BeforeClass
+   public static void beforeClass()
+   {
+      final Random random = new Random(42);
+      final long start = 1400000000000L;
+      final TweetIndexBuilder builder = new TweetIndexBuilder();
+      for (int i = 0; i < COUNT; i++)
+      {
+         final TwitterStream tweet = new TwitterStream();
+         tweet.setTweetid(String.valueOf(100000 + i));
+         tweet.setTime(new Date(start + random.nextInt(30 * 24 * 3600) * 1000L));
+         // NOTE the db has lat and lon backwards
+         tweet.setLon(Double.valueOf(39.6 + random.nextDouble() * 0.4));
+         tweet.setLat(Double.valueOf(-84.4 + random.nextDouble() * 0.6));
+         tweet.setText("tweet " + i + (i % 3 == 0 ? " #storm" : "") + (i % 7 == 0 ? " Flood!" : ""));
+         tweets.add(tweet);
+         builder.add(tweet);
+         histogram.add(tweet);
+         rollup.visit(tweet);
+         cells.add(tweet);
+      }
+      index = builder.build();
+   }
+
+   /**
+    * @param query
+    *           the filter
+    * @return the number of tweets that match the filter, the slow way
+    */
+   private static long bruteForce(final TweetQuery query)
+   {
+      long total = 0;
+      for (final TwitterStream tweet : tweets)
+      {
+         if (query.hasNorthSouth() && (tweet.getLon().doubleValue() < query.getSouth()
+               || tweet.getLon().doubleValue() > query.getNorth()))
+         {
+            continue;
+         }
+         if (query.hasEastWest() && (tweet.getLat().doubleValue() < query.getWest()
+               || tweet.getLat().doubleValue() > query.getEast()))
+         {
+            continue;
+         }
+         if (query.hasTimeRange() && (tweet.getTime().before(query.getMinTime())
+               || tweet.getTime().after(query.getMaxTime())))
+         {
+            continue;
+         }
+         total++;
+      }
+      return total;
+   }
+
+   /**
+    * @param list
+    *           some tweets
+    * @return their ids, in order. The index makes a new tweet each time one is found, so tweets are compared by id.
+    */
+   private static List<String> ids(final List<TwitterStream> list)
+   {
+      final List<String> ids = new ArrayList<>();
+      for (final TwitterStream tweet : list)
+      {
+         ids.add(tweet.getTweetid());
+      }
+      return ids;
+   }
+
+   /**
+    * tweets appended in batches are found with the tweets the index was built with, the same as if they had all been
+    * built together
+    *
+    * @throws Exception
+    *            on error
+    */
+   @Test
+   public void testAppend() throws Exception
+   {
+      final TweetIndexBuilder builder = new TweetIndexBuilder();
+      for (final TwitterStream tweet : tweets.subList(0, COUNT / 2))
+      {
+         builder.add(tweet);
+      }
+      TweetIndex appended = builder.build();
+      for (int from = COUNT / 2; from < COUNT; from += 1000)
+      {
+         assertTrue(!appended.contains(tweets.get(from)));
+         appended = appended.append(tweets.subList(from, from + 1000));
+         assertTrue(appended.contains(tweets.get(from)));
+      }
+      assertEquals(COUNT, appended.getSize());
+
+      final TweetQuery query = new TweetQuery(Double.valueOf(39.8), Double.valueOf(39.7), Double.valueOf(-84.1),
+            Double.valueOf(-84.3), new Date(1400500000000L), new Date(1401000000000L));
+      query.setCursor(TweetCursor.fromToken(TweetCursor.after(tweets.get(0), 0)));
+      final List<TwitterStream> expected = new ArrayList<>();
+      final List<TwitterStream> actual = new ArrayList<>();
+      assertEquals(index.find(query, expected), appended.find(query, actual));
+      assertEquals(ids(expected), ids(actual));
+
+      query.setMaxResults(Integer.MAX_VALUE);
+      final List<TwitterStream> scanned = new ArrayList<>();
+      appended.scan(query, new TweetVisitor()
+      {
+         @Override
+         public void visit(final TwitterStream tweet)
+         {
+            scanned.add(tweet);
+         }
+      });
+      expected.clear();
+      index.find(query, expected);
+      assertEquals(ids(expected), ids(scanned));
+   }
+
+   /**
+    * the histogram of a box added up from the cells it covers and the tweets along its edges is the same as the
+    * histogram of every tweet in the box, over the range widened to whole buckets
+    *
+    * @throws Exception
+    *            on error
+    */
+   @Test
+   public void testCellRollup() throws Exception
+   {
+      final long from = 1400123456789L;
+      final long to = 1401234567890L;
+      for (final String bucket : new String[] { "hour", "6h", "day" })
+      {
+         final long size = TimeRollup.parseBucket(bucket);
+         final TweetQuery box = new TweetQuery(Double.valueOf(39.853), Double.valueOf(39.6571), Double.valueOf(-84.01),
+               Double.valueOf(-84.2549), null, null);
+         final TimeRollup boxed = new TimeRollup();
+         assertTrue(bucket, cells.rollup(box, from, to, size, boxed, index));
+         final TimeHistogram result = boxed.histogram(from, to, size);
+
+         final long start = result.getStart().getTime();
+         final long[] expected = new long[result.getCount().length];
+         for (final TwitterStream tweet : tweets)
+         {
+            final long time = tweet.getTime().getTime();
+            if (box.matches(tweet) && time >= start && time < start + expected.length * size)
+            {
+               expected[(int) ((time - start) / size)]++;
+            }
+         }
+         for (int i = 0; i < expected.length; i++)
+         {
+            assertEquals(bucket + " bucket " + i, expected[i], result.getCount()[i]);
+         }
+      }
+
+      // a box smaller than a cell, or minute buckets, are not helped
+      final TweetQuery small = new TweetQuery(Double.valueOf(39.805), Double.valueOf(39.8), Double.valueOf(-84.1),
+            Double.valueOf(-84.105), null, null);
+      assertTrue(!cells.rollup(small, from, to, TimeRollup.HOUR, new TimeRollup(), index));
+      final TweetQuery large = new TweetQuery(Double.valueOf(39.9), Double.valueOf(39.7), Double.valueOf(-84.1),
+            Double.valueOf(-84.3), null, null);
+      assertTrue(!cells.rollup(large, from, to, TimeRollup.MINUTE * 15, new TimeRollup(), index));
+   }
+
+   /**
+    * tweets before the epoch are counted in the hours and days they were in, and a tweet with no time is not counted
+    */
+   @Test
+   public void testBeforeEpoch()
+   {
+      final TweetHistogram early = new TweetHistogram();
+      final TimeRollup earlyRollup = new TimeRollup();
+      for (final long time : new long[] { -TimeRollup.DAY - 1, -TimeRollup.HOUR + 1, -1 })
+      {
+         final TwitterStream tweet = new TwitterStream();
+         tweet.setTime(new Date(time));
+         early.add(tweet);
+         earlyRollup.visit(tweet);
+      }
+      final TwitterStream timeless = new TwitterStream();
+      early.add(timeless);
+      earlyRollup.visit(timeless);
+      assertEquals(3, early.getTotal());
+      assertEquals(3, earlyRollup.getTotal());
+
+      assertEquals(2, early.estimate(new TweetQuery(null, null, null, null, new Date(-TimeRollup.HOUR), new Date(-1))));
+      final TimeHistogram days = earlyRollup.histogram(-2 * TimeRollup.DAY, 0, TimeRollup.DAY);
+      assertEquals(-2 * TimeRollup.DAY, days.getStart().getTime());
+      assertArrayEquals(new long[] { 1, 2 }, days.getCount());
+      assertArrayEquals(new long[] { 2 }, earlyRollup.histogram(-TimeRollup.HOUR, 0, TimeRollup.HOUR).getCount());
+   }
+
+   /**
+    * a box and a time window
+    */
+   @Test
+   public void testBoxAndTime()
+   {
+      final TweetQuery query = new TweetQuery(Double.valueOf(39.8), Double.valueOf(39.7), Double.valueOf(-84.1),
+            Double.valueOf(-84.3), new Date(1400500000000L), new Date(1401000000000L));
+      final List<TwitterStream> results = new ArrayList<>();
+      final long total = index.find(query, results);
+
+      assertEquals(bruteForce(query), total);
+      assertEquals(Math.min(total, query.getMaxResults()), results.size());
+      for (int i = 1; i < results.size(); i++)
+      {
+         assertTrue("out of order", !results.get(i).getTime().before(results.get(i - 1).getTime()));
+      }
+   }
+
+   /**
+    * a count limit stops the count early, but never before the limit
+    */
+   @Test
+   public void testCountLimit()
+   {
+      final TweetQuery query = new TweetQuery(Double.valueOf(39.9), Double.valueOf(39.7), null, null, null, null);
+      query.setCountLimit(5000);
+      final List<TwitterStream> results = new ArrayList<>();
+      final long total = index.find(query, results);
+
+      assertTrue("counted " + total, total >= 5000);
+      assertTrue("counted " + total, total < bruteForce(query));
+      assertEquals(query.getMaxResults(), results.size());
+   }
+
+   /**
+    * the histogram estimate is close to the real count for evenly spread tweets
+    */
+   @Test
+   public void testEstimate()
+   {
+      final TweetQuery query = new TweetQuery(Double.valueOf(39.8), Double.valueOf(39.7), Double.valueOf(-84.1),
+            Double.valueOf(-84.3), new Date(1400500000000L), new Date(1401500000000L));
+      final long actual = bruteForce(query);
+      final long estimate = histogram.estimate(query);
+
+      assertEquals(COUNT, histogram.getTotal());
+      assertTrue("estimated " + estimate + " for " + actual, Math.abs(estimate - actual) < actual / 10);
+   }
+
+   /**
+    * a box that holds everything counts without looking at the tweets, and still gets the right total
+    */
+   @Test
+   public void testEverything()
+   {
+      final TweetQuery query = new TweetQuery(Double.valueOf(90), Double.valueOf(-90), null, null, null, null);
+      final List<TwitterStream> results = new ArrayList<>();
+
+      assertEquals(COUNT, index.find(query, results));
+      assertEquals(TweetQuery.DEFAULT_MAX_RESULTS, results.size());
+   }
+
+   /**
+    * following the cursor from page to page visits every match exactly once, in order
+    */
+   @Test
+   public void testPaging()
+   {
+      final TweetQuery first = new TweetQuery(Double.valueOf(39.9), Double.valueOf(39.7), null, null, null, null);
+      final long expected = bruteForce(first);
+
+      final Set<String> seen = new HashSet<>();
+      String token = null;
+      long offset = 0;
+      do
+      {
+         final TweetQuery query = new TweetQuery(Double.valueOf(39.9), Double.valueOf(39.7), null, null, null, null);
+         if (token != null)
+         {
+            final TweetCursor cursor = TweetCursor.fromToken(token);
+            assertEquals(offset, cursor.getOffset());
+            query.setCursor(cursor);
+         }
+         final List<TwitterStream> results = new ArrayList<>();
+         assertEquals(expected, index.find(query, results));
+
+         for (final TwitterStream tweet : results)
+         {
+            assertTrue("duplicate " + tweet.getTweetid(), seen.add(tweet.getTweetid()));
+         }
+         offset += results.size();
+         token = results.isEmpty() ? null : TweetCursor.after(results.get(results.size() - 1), offset);
+      }
+      while (offset < expected);
+
+      assertEquals(expected, seen.size());
+   }
+
+   /**
+    * the grid counts every match once, in cells that hold the tweets
+    *
+    * @throws Exception
+    *            on error
+    */
+   @Test
+   public void testGrid() throws Exception
+   {
+      final TweetQuery query = new TweetQuery(Double.valueOf(39.8), Double.valueOf(39.7), Double.valueOf(-84.1),
+            Double.valueOf(-84.3), null, null);
+      query.setMaxResults(Integer.MAX_VALUE);
+      final GridCounter counter = new GridCounter(0.01);
+      index.scan(query, counter);
+      final TweetGrid grid = counter.toGrid();
+
+      assertEquals(bruteForce(query), grid.getTotal());
+      long total = 0;
+      for (final GridCell cell : grid.getCell())
+      {
+         total += cell.getCount();
+         assertTrue("cell " + cell, cell.getLon() > 39.69 && cell.getLon() < 39.81);
+         assertTrue("cell " + cell, cell.getLat() > -84.31 && cell.getLat() < -84.09);
+      }
+      assertEquals(grid.getTotal(), total);
+   }
+
+   /**
+    * a small box over all of time, which is found by geohash, pages through the same tweets in the same order
+    *
+    * @throws Exception
+    *            on error
+    */
+   @Test
+   public void testSmallBox() throws Exception
+   {
+      final TweetQuery all = new TweetQuery(Double.valueOf(39.75), Double.valueOf(39.72), Double.valueOf(-84.18),
+            Double.valueOf(-84.22), null, null);
+      final long expected = bruteForce(all);
+      assertTrue(expected > 10);
+
+      final List<TwitterStream> everything = new ArrayList<>();
+      all.setMaxResults(Integer.MAX_VALUE);
+      assertEquals(expected, index.scan(all, new TweetVisitor()
+      {
+         @Override
+         public void visit(final TwitterStream tweet)
+         {
+            everything.add(tweet);
+         }
+      }));
+      for (int i = 1; i < everything.size(); i++)
+      {
+         assertTrue(TweetIndexBuilder.TIME_ORDER.compare(everything.get(i - 1), everything.get(i)) < 0);
+      }
+
+      final TweetQuery page = new TweetQuery(Double.valueOf(39.75), Double.valueOf(39.72), Double.valueOf(-84.18),
+            Double.valueOf(-84.22), null, null);
+      page.setMaxResults(5);
+      page.setCursor(TweetCursor.fromToken(TweetCursor.after(everything.get(4), 5)));
+      final List<TwitterStream> results = new ArrayList<>();
+      assertEquals(expected, index.find(page, results));
+      assertEquals(ids(everything.subList(5, 10)), ids(results));
+   }
+
+   /**
+    * a box with nothing in it
+    */
+   @Test
+   public void testNothing()
+   {
+      final TweetQuery query = new TweetQuery(Double.valueOf(10), Double.valueOf(0), Double.valueOf(10),
+            Double.valueOf(0), null, null);
+      final List<TwitterStream> results = new ArrayList<>();
+
+      assertEquals(0, index.find(query, results));
+      assertEquals(0, results.size());
+   }
+
+   /**
+    * only one side of the time range
+    */
+   @Test
+   public void testOpenTime()
+   {
+      final TweetQuery query = new TweetQuery(null, null, null, null, new Date(1401000000000L), null);
+      final List<TwitterStream> results = new ArrayList<>();
+
+      assertEquals(bruteForce(query), index.find(query, results));
+   }
+
+   /**
+    * histograms of several bucket sizes, read from the rollups, match counting the tweets in each bucket
+    */
+   @Test
+   public void testRollup()
+   {
+      assertEquals(TimeRollup.MINUTE * 15, TimeRollup.parseBucket("15m"));
+      assertEquals(TimeRollup.DAY, TimeRollup.parseBucket("day"));
+
+      final long from = 1400123456789L;
+      final long to = 1401234567890L;
+      for (final String bucket : new String[] { "minute", "7m", "hour", "90m", "day", "2d" })
+      {
+         final long size = TimeRollup.parseBucket(bucket);
+         final TimeHistogram result = rollup.histogram(from, to, size);
+         final long start = result.getStart().getTime();
+         assertTrue(bucket, start <= from && start + size > from && start % size == 0);
+         assertTrue(bucket, start + result.getCount().length * size >= to);
+
+         final long[] expected = new long[result.getCount().length];
+         for (final TwitterStream tweet : tweets)
+         {
+            final long time = tweet.getTime().getTime();
+            if (time >= start && time < start + expected.length * size)
+            {
+               expected[(int) ((time - start) / size)]++;
+            }
+         }
+         for (int i = 0; i < expected.length; i++)
+         {
+            assertEquals(bucket + " bucket " + i, expected[i], result.getCount()[i]);
+         }
+      }
+   }
+
+   /**
+    * a sample is full, counts every match, is the same every time, and has a tweet from every cell that has any
+    *
+    * @throws Exception
+    *            on error
+    */
+   @Test
+   public void testSample() throws Exception
+   {
+      final TweetQuery query = new TweetQuery(Double.valueOf(39.9), Double.valueOf(39.7), Double.valueOf(-84.1),
+            Double.valueOf(-84.3), null, null);
+      query.setMaxResults(Integer.MAX_VALUE);
+      final SpatialSampler sampler = new SpatialSampler(query, 500);
+      index.scan(query, sampler);
+      final List<TwitterStream> sample = sampler.toList();
+
+      assertEquals(bruteForce(query), sampler.getTotal());
+      assertEquals(500, sample.size());
+      for (int i = 1; i < sample.size(); i++)
+      {
+         assertTrue("out of order", !sample.get(i).getTime().before(sample.get(i - 1).getTime()));
+      }
+
+      final SpatialSampler again = new SpatialSampler(query, 500);
+      index.scan(query, again);
+      assertEquals(ids(sample), ids(again.toList()));
+
+      // NOTE the db has lat and lon backwards
+      final double height = (query.getNorth() - query.getSouth()) / SpatialSampler.GRID;
+      final double width = (query.getEast() - query.getWest()) / SpatialSampler.GRID;
+      final Set<Long> cells = new HashSet<>();
+      final Set<Long> sampled = new HashSet<>();
+      for (final TwitterStream tweet : tweets)
+      {
+         if (query.matches(tweet))
+         {
+            cells.add(Long.valueOf((long) Math.floor((tweet.getLon().doubleValue() - query.getSouth()) / height) * 100
+                  + (long) Math.floor((tweet.getLat().doubleValue() - query.getWest()) / width)));
+         }
+      }
+      for (final TwitterStream tweet : sample)
+      {
+         sampled.add(Long.valueOf((long) Math.floor((tweet.getLon().doubleValue() - query.getSouth()) / height) * 100
+               + (long) Math.floor((tweet.getLat().doubleValue() - query.getWest()) / width)));
+      }
+      assertEquals(cells, sampled);
+   }
+
+   /**
+    * words narrow the box and window to the tweets that use every one of them, page after page
+    */
+   @Test
+   public void testText()
+   {
+      assertEquals(Arrays.asList("storm", "flood", "at_home"), TextIndex.tokenize("#Storm, flood at_home STORM a"));
+
+      final TweetQuery query = new TweetQuery(Double.valueOf(39.9), Double.valueOf(39.7), Double.valueOf(-84.1),
+            Double.valueOf(-84.3), new Date(1400500000000L), new Date(1402000000000L));
+      query.setText("flood #storm");
+      long expected = 0;
+      for (final TwitterStream tweet : tweets)
+      {
+         if (query.matches(tweet))
+         {
+            expected++;
+         }
+      }
+      assertTrue("expected " + expected, expected > 0 && expected < bruteForce(query) / 10);
+
+      query.setMaxResults(20);
+      final Set<String> seen = new HashSet<>();
+      final List<TwitterStream> results = new ArrayList<>();
+      assertEquals(expected, index.find(query, results));
+      while (!results.isEmpty())
+      {
+         for (final TwitterStream tweet : results)
+         {
+            assertTrue("wrong tweet " + tweet.getText(), query.matches(tweet));
+            assertTrue("duplicate " + tweet.getTweetid(), seen.add(tweet.getTweetid()));
+         }
+         query.setCursor(TweetCursor.fromToken(TweetCursor.after(results.get(results.size() - 1), seen.size())));
+         results.clear();
+         index.find(query, results);
+      }
+      assertEquals(expected, seen.size());
+
+      query.setText("storm nowhere");
+      assertEquals(0, index.find(query, results));
+   }
+
+   /**
+    * a tile counts every tweet in it once, thinned into fewer points than tweets, all inside the tile
+    *
+    * @throws Exception
+    *            on error
+    */
+   @Test
+   public void testTile() throws Exception
+   {
+      for (final int z : new int[] { 8, 12 })
+      {
+         // the tile that holds -84.1, 39.8
+         final int x = (int) Math.floor((-84.1 + 180) / 360 * (1 << z));
+         final double latitude = Math.toRadians(39.8);
+         final int y = (int) Math.floor((1 - Math.log(Math.tan(latitude) + 1 / Math.cos(latitude)) / Math.PI) / 2
+               * (1 << z));
+         final TileBuilder builder = new TileBuilder(z, x, y);
+         final TweetQuery query = builder.createQuery(null, null);
+         index.scan(query, builder);
+         final TweetTile tile = builder.toTile();
+
+         final long expected = bruteForce(query);
+         assertTrue("no tweets in " + tile, expected > 0);
+         assertEquals(expected, tile.getTotal());
+
+         final int[] point = tile.getPoint();
+         assertTrue("not thinned " + tile, point.length / 3 < expected);
+         long total = 0;
+         for (int i = 0; i < point.length; i += 3)
+         {
+            assertTrue("point " + point[i] + "," + point[i + 1], point[i] >= 0 && point[i] < TileBuilder.EXTENT
+                  && point[i + 1] >= 0 && point[i + 1] < TileBuilder.EXTENT);
+            total += point[i + 2];
+         }
+         assertEquals(expected, total);
+      }
+   }
+}
@@ -0,0 +1,158 @@
+/**
+ *
+ */
+package web30.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import web30.TweetQuery;
+import web30.model.TwitterStream;
+
+/**
+ * verify that a snapshot gives back the tweets written to it, and that an index built from a snapshot and the tweets
+ * added since finds the same tweets as one built from every tweet
+ */
+public class TestTweetSnapshot
+{
+   /** the number of tweets in the test data */
+   private static final int COUNT = 5000;
+
+   /** the directory of the snapshot */
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   /**
+    * @param random
+    *           the source of the tweets
+    * @param i
+    *           the number of the tweet
+    * @param time
+    *           the time of the tweet
+    * @return a tweet around Dayton
+    */
+   private static TwitterStream tweet(final Random random, final int i, final long time)
+   {
+      final TwitterStream tweet = new TwitterStream();
+      tweet.setTweetid(String.valueOf(100000 + i));
+      tweet.setUserid(i % 5 == 0 ? null : "user" + i % 40);
+      tweet.setTime(new Date(time));
+      // NOTE the db has lat and lon backwards
+      tweet.setLon(i % 11 == 0 ? null : Double.valueOf(39.6 + random.nextDouble() * 0.4));
+      tweet.setLat(i % 11 == 0 ? null : Double.valueOf(-84.4 + random.nextDouble() * 0.6));
+      tweet.setText("tweet " + i + (i % 3 == 0 ? " #storm \u00e9t\u00e9" : ""));
+      tweet.setBoundingbox(i % 2 == 0 ? null : "box" + i % 4);
+      return tweet;
+   }
+
+   /**
+    * @param expected
+    *           a tweet
+    * @param actual
+    *           the same tweet, read back
+    */
+   private static void assertSameTweet(final TwitterStream expected, final TwitterStream actual)
+   {
+      assertEquals(expected.getTweetid(), actual.getTweetid());
+      assertEquals(expected.getUserid(), actual.getUserid());
+      assertEquals(expected.getTime(), actual.getTime());
+      assertEquals(expected.getLat(), actual.getLat());
+      assertEquals(expected.getLon(), actual.getLon());
+      assertEquals(expected.getText(), actual.getText());
+      assertEquals(expected.getBoundingbox(), actual.getBoundingbox());
+   }
+
+   /**
+    * write a snapshot of ten days of tweets, read it back, and add the tweets of the next day to it
+    *
+    * @throws Exception
+    *            if the snapshot cannot be written or read
+    */
+   @Test
+   public void testSnapshot() throws Exception
+   {
+      final Random random = new Random(42);
+      final long start = 1399939200000L;
+      final TweetIndexBuilder everything = new TweetIndexBuilder();
+      final TweetIndexBuilder before = new TweetIndexBuilder();
+      final List<TwitterStream> after = new ArrayList<>();
+      for (int i = 0; i < COUNT; i++)
+      {
+         final TwitterStream tweet = tweet(random, i, start + random.nextInt(11 * 24 * 3600) * 1000L);
+         everything.add(tweet);
+         if (tweet.getTime().getTime() < start + 10 * 24 * 3600 * 1000L)
+         {
+            before.add(tweet);
+         }
+         else
+         {
+            after.add(tweet);
+         }
+      }
+      final TweetIndex all = everything.build();
+      final File directory = new File(folder.getRoot(), "snapshot");
+
+      assertEquals(0, TweetSnapshot.open(directory).getSize());
+      final TweetIndex first = before.build();
+      final int days = TweetSnapshot.write(directory, first);
+      assertEquals(10, days);
+      assertEquals(0, TweetSnapshot.write(directory, first));
+
+      final TweetSnapshot snapshot = TweetSnapshot.open(directory);
+      assertEquals(first.getSize(), snapshot.getSize());
+      assertEquals(10, snapshot.getDays());
+      int size = 0;
+      for (int day = 0; day < snapshot.getDays(); day++)
+      {
+         assertEquals(start + day * 24 * 3600 * 1000L, snapshot.getDayStart(day));
+         size += snapshot.getDaySize(day);
+      }
+      assertEquals(snapshot.getSize(), size);
+      for (int i = 0; i < snapshot.getSize(); i++)
+      {
+         assertSameTweet(first.getRow(i), snapshot.get(i));
+      }
+
+      // the tweets after the snapshot, which are all on a day of their own, come from the database
+      final TweetIndexBuilder tail = new TweetIndexBuilder();
+      for (final TwitterStream tweet : after)
+      {
+         tail.add(tweet);
+      }
+      final TweetIndex index = tail.build(snapshot);
+      assertEquals(all.getSize(), index.getSize());
+      for (int i = 0; i < index.getSize(); i++)
+      {
+         assertSameTweet(all.getRow(i), index.getRow(i));
+      }
+
+      final TweetQuery query = new TweetQuery(Double.valueOf(39.9), Double.valueOf(39.7), Double.valueOf(-84.0),
+            Double.valueOf(-84.3), new Date(start + 2 * 24 * 3600 * 1000L), new Date(start + 10 * 24 * 3600 * 1000L
+                  + 12 * 3600 * 1000L));
+      query.setText("storm");
+      final List<TwitterStream> expected = new ArrayList<>();
+      final List<TwitterStream> actual = new ArrayList<>();
+      assertEquals(all.find(query, expected), index.find(query, actual));
+      assertEquals(expected.size(), actual.size());
+      for (int i = 0; i < expected.size(); i++)
+      {
+         assertSameTweet(expected.get(i), actual.get(i));
+      }
+
+      // only the new day is written
+      assertEquals(1, TweetSnapshot.write(directory, index));
+      assertEquals(days + 1, directory.listFiles().length);
+      assertEquals(all.getSize(), TweetSnapshot.open(directory).getSize());
+      assertNull(TweetSnapshot.open(new File(folder.getRoot(), "none")).getLast());
+   }
+}
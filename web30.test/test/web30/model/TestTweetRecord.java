@@ -0,0 +1,124 @@
+/**
+ *
+ */
+package web30.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+
+import org.junit.Test;
+
+/**
+ * verify that tweets survive the trip through a record, and the parsing and sharing of the bounding boxes
+ */
+public class TestTweetRecord
+{
+   /**
+    * @param tweetid
+    *           the id of the tweet
+    * @return a tweet with every field
+    */
+   private static TwitterStream tweet(final String tweetid)
+   {
+      final TwitterStream tweet = new TwitterStream();
+      tweet.setTweetid(tweetid);
+      tweet.setTime(new Date(1400000000123L));
+      tweet.setLat(Double.valueOf(-84.19));
+      tweet.setLon(Double.valueOf(39.76));
+      tweet.setUserid("user");
+      tweet.setText("hello");
+      tweet.setBoundingbox("[[-84.3,39.6],[-84.3,39.9],[-84.0,39.9],[-84.0,39.6]]");
+      return tweet;
+   }
+
+   /**
+    * @param expected
+    *           a tweet
+    * @param actual
+    *           the tweet after a trip through a record
+    */
+   private static void assertSameTweet(final TwitterStream expected, final TwitterStream actual)
+   {
+      assertEquals(expected.getTweetid(), actual.getTweetid());
+      assertEquals(expected.getTime(), actual.getTime());
+      assertEquals(expected.getLat(), actual.getLat());
+      assertEquals(expected.getLon(), actual.getLon());
+      assertEquals(expected.getUserid(), actual.getUserid());
+      assertEquals(expected.getText(), actual.getText());
+      assertEquals(expected.getBoundingbox(), actual.getBoundingbox());
+   }
+
+   /**
+    * numeric ids are held as numbers, and any other id as it is
+    */
+   @Test
+   public void testIds()
+   {
+      assertEquals(466259089577480192L, TweetRecord.of(tweet("466259089577480192")).getId());
+      assertEquals(0, TweetRecord.of(tweet("0")).getId());
+      for (final String tweetid : new String[] { "007", "-5", "abc", "", "12345678901234567890", null })
+      {
+         final TweetRecord record = TweetRecord.of(tweet(tweetid));
+         assertEquals(TweetRecord.NO_ID, record.getId());
+         assertEquals(tweetid, record.getTweetid());
+      }
+   }
+
+   /**
+    * the ids compare the same way their strings do
+    */
+   @Test
+   public void testCompareTweetid()
+   {
+      final String[] ids = { "10", "9", "0099", "100", "abc", "11", null };
+      for (final String a : ids)
+      {
+         for (final String b : ids)
+         {
+            final int expected = a == null ? b == null ? 0 : -1 : b == null ? 1 : a.compareTo(b);
+            final int actual = TweetRecord.of(tweet(a)).compareTweetid(TweetRecord.of(tweet(b)));
+            assertEquals(a + " " + b, Integer.signum(expected), Integer.signum(actual));
+         }
+      }
+   }
+
+   /**
+    * a bounding box is parsed into its sides and shared by every tweet with the same text
+    */
+   @Test
+   public void testPlace()
+   {
+      final TweetRecord a = TweetRecord.of(tweet("1"));
+      final TweetRecord b = TweetRecord.of(tweet("2"));
+      assertSame(a.getPlace(), b.getPlace());
+      assertEquals(-84.3, a.getPlace().getWest(), 0);
+      assertEquals(39.6, a.getPlace().getSouth(), 0);
+      assertEquals(-84.0, a.getPlace().getEast(), 0);
+      assertEquals(39.9, a.getPlace().getNorth(), 0);
+
+      final TweetPlace odd = TweetPlace.of("somewhere");
+      assertEquals("somewhere", odd.getText());
+      assertTrue(Double.isNaN(odd.getWest()) && Double.isNaN(odd.getNorth()));
+      assertNull(TweetPlace.of(null));
+   }
+
+   /**
+    * a tweet made from a record is the same as the tweet the record was made from, even with fields missing
+    */
+   @Test
+   public void testRoundTrip()
+   {
+      final TwitterStream full = tweet("466259089577480192");
+      assertSameTweet(full, TweetRecord.of(full).toTweet());
+
+      final TwitterStream empty = new TwitterStream();
+      final TweetRecord record = TweetRecord.of(empty);
+      assertEquals(TweetRecord.NO_TIME, record.getTime());
+      assertTrue(Double.isNaN(record.getLat()) && Double.isNaN(record.getLon()));
+      assertSameTweet(empty, record.toTweet());
+   }
+}
@@ -0,0 +1,129 @@
+/**
+ *
+ */
+package web30.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * verify that queries run alongside the thread that submits them, and on it once the pool is full
+ */
+public class TestQueryExecutor
+{
+   /**
+    * @param started
+    *           counted down when the query starts
+    * @param release
+    *           waited on before the query ends
+    * @return a query that waits to be released, and answers whether it was released in time
+    */
+   private static Callable<Boolean> blocked(final CountDownLatch started, final CountDownLatch release)
+   {
+      return new Callable<Boolean>()
+      {
+         @Override
+         public Boolean call() throws Exception
+         {
+            started.countDown();
+            return Boolean.valueOf(release.await(10, TimeUnit.SECONDS));
+         }
+      };
+   }
+
+   /**
+    * two queries run at the same time, each on a query thread, as the count and the fetch of a page do
+    *
+    * @throws Exception
+    *            on error
+    */
+   @Test
+   public void testConcurrent() throws Exception
+   {
+      final CountDownLatch both = new CountDownLatch(2);
+      final List<Future<String>> queries = new ArrayList<>();
+      for (int i = 0; i < 2; i++)
+      {
+         queries.add(QueryExecutor.submit(new Callable<String>()
+         {
+            @Override
+            public String call() throws Exception
+            {
+               both.countDown();
+               // neither query can end before the other has started
+               assertTrue(both.await(10, TimeUnit.SECONDS));
+               return Thread.currentThread().getName();
+            }
+         }));
+      }
+      for (final Future<String> query : queries)
+      {
+         final String thread = query.get(10, TimeUnit.SECONDS);
+         assertTrue(thread, thread.startsWith("QueryExecutor-"));
+      }
+   }
+
+   /**
+    * when every query thread is busy and the queue is full, a query runs on the thread that submits it, and the
+    * queued queries still run once the threads are free
+    *
+    * @throws Exception
+    *            on error
+    */
+   @Test
+   public void testSaturated() throws Exception
+   {
+      final CountDownLatch started = new CountDownLatch(QueryExecutor.THREADS);
+      final CountDownLatch release = new CountDownLatch(1);
+      final List<Future<Boolean>> queries = new ArrayList<>();
+      try
+      {
+         for (int i = 0; i < QueryExecutor.THREADS; i++)
+         {
+            queries.add(QueryExecutor.submit(blocked(started, release)));
+         }
+         // wait for every thread to hold a query, so the next ones stay in the queue
+         assertTrue(started.await(10, TimeUnit.SECONDS));
+         final CountDownLatch queued = new CountDownLatch(QueryExecutor.QUEUE_SIZE);
+         for (int i = 0; i < QueryExecutor.QUEUE_SIZE; i++)
+         {
+            queries.add(QueryExecutor.submit(blocked(queued, release)));
+         }
+         assertEquals(QueryExecutor.QUEUE_SIZE, queued.getCount());
+
+         final Thread caller = Thread.currentThread();
+         final Future<Boolean> overflow = QueryExecutor.submit(new Callable<Boolean>()
+         {
+            @Override
+            public Boolean call() throws Exception
+            {
+               return Boolean.valueOf(Thread.currentThread() == caller);
+            }
+         });
+         assertTrue(overflow.isDone());
+         assertTrue(overflow.get().booleanValue());
+         for (final Future<Boolean> query : queries)
+         {
+            assertFalse(query.isDone());
+         }
+      }
+      finally
+      {
+         release.countDown();
+      }
+      for (final Future<Boolean> query : queries)
+      {
+         assertTrue(query.get(10, TimeUnit.SECONDS).booleanValue());
+      }
+   }
+}
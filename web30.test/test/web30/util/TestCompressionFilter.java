@@ -0,0 +1,34 @@
+/**
+ *
+ */
+package web30.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ * verify the negotiation of the response compression
+ */
+public class TestCompressionFilter
+{
+   /**
+    * the q values pick the encoding, and gzip wins a tie
+    */
+   @Test
+   public void testNegotiate()
+   {
+      assertNull(CompressionFilter.negotiate(null));
+      assertNull(CompressionFilter.negotiate("identity"));
+      assertNull(CompressionFilter.negotiate("gzip;q=0, deflate;q=0"));
+      assertNull(CompressionFilter.negotiate("*;q=0"));
+
+      assertEquals(CompressionFilter.GZIP, CompressionFilter.negotiate("gzip, deflate"));
+      assertEquals(CompressionFilter.GZIP, CompressionFilter.negotiate("x-gzip"));
+      assertEquals(CompressionFilter.GZIP, CompressionFilter.negotiate("*"));
+      assertEquals(CompressionFilter.DEFLATE, CompressionFilter.negotiate("deflate"));
+      assertEquals(CompressionFilter.DEFLATE, CompressionFilter.negotiate("gzip;q=0.5, deflate;q=0.8"));
+      assertEquals(CompressionFilter.DEFLATE, CompressionFilter.negotiate("gzip;q=0, *"));
+   }
+}
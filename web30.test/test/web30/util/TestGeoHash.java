@@ -0,0 +1,76 @@
+/**
+ *
+ */
+package web30.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * verify the geohashes and the ranges that cover boxes
+ */
+public class TestGeoHash
+{
+   /**
+    * @param ranges
+    *           pairs of first and last
+    * @param hash
+    *           a geohash
+    * @return true if one of the ranges holds the geohash
+    */
+   private static boolean covers(final long[] ranges, final long hash)
+   {
+      for (int i = 0; i < ranges.length; i += 2)
+      {
+         if (hash >= ranges[i] && hash <= ranges[i + 1])
+         {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * the text form matches the usual geohash strings
+    */
+   @Test
+   public void testEncode()
+   {
+      assertEquals("u4pruy", GeoHash.toString(GeoHash.encode(57.64911, 10.40744), 6));
+      assertEquals("dph", GeoHash.toString(GeoHash.encode(39.76, -84.19), 3));
+      assertEquals(0, GeoHash.encode(-90, -180));
+      assertEquals((1L << GeoHash.BITS) - 1, GeoHash.encode(90, 180));
+   }
+
+   /**
+    * the ranges are few, in order, and cover every point in the box but not much else
+    */
+   @Test
+   public void testRanges()
+   {
+      final long[] ranges = GeoHash.ranges(39.72, 39.75, -84.22, -84.18, 8);
+      assertTrue(ranges.length > 0 && ranges.length <= 16);
+      for (int i = 1; i < ranges.length; i++)
+      {
+         assertTrue(ranges[i - 1] < ranges[i]);
+      }
+
+      final Random random = new Random(42);
+      for (int i = 0; i < 10000; i++)
+      {
+         final double latitude = 39.72 + random.nextDouble() * 0.03;
+         final double longitude = -84.22 + random.nextDouble() * 0.04;
+         assertTrue(latitude + ", " + longitude, covers(ranges, GeoHash.encode(latitude, longitude)));
+      }
+      assertFalse(covers(ranges, GeoHash.encode(39.9, -84.2)));
+      assertFalse(covers(ranges, GeoHash.encode(39.73, -84.0)));
+
+      assertEquals(2, GeoHash.ranges(-90, 90, -180, 180, 8).length);
+      assertEquals(0, GeoHash.ranges(10, 0, 0, 10, 8).length);
+   }
+}
@@ -0,0 +1,15 @@
+-- Adds the geohash column of TwitterStream and its index, for looking up boxes by geohash.
+--
+-- REQUIRED UPGRADE STEP. The schema is not changed by the service, so apply this once, by hand, before starting a
+-- version that maps the column: reading a whole tweet and ingesting tweets both use it, and the service does not
+-- start without it. On a large table it rebuilds the table, so run it when the table can be locked for a while.
+--
+-- The service only looks for boxes by geohash, and only fills in the geohashes of the existing tweets, when it is
+-- started with -geohashFill and finds the index below. Until a tweet is filled in, its geohash is null and it is
+-- still found by its coordinates.
+--
+--    mysql -u twitter -p twitter < twitterstream-geohash.sql
+
+ALTER TABLE TwitterStream
+   ADD geohash BIGINT NULL,
+   ADD INDEX twitterstream_geohash (geohash);
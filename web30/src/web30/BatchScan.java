@@ -0,0 +1,271 @@
+/**
+ *
+ */
+package web30;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import web30.index.TweetVisitor;
+import web30.model.TwitterStream;
+
+/**
+ * One scan for the windows of a batch that overlap. The scan reads the tweets in a box and time range that covers all
+ * of its windows, once, and hands each tweet to the windows it matches, each of which keeps its first page and counts
+ * the rest. Windows only share a scan if they overlap and the box and time range that covers them is not much bigger
+ * than the windows put together, so a scan never reads much more than its windows would on their own.
+ */
+public class BatchScan implements TweetVisitor
+{
+   /** the most a joined scan can cover, as a multiple of what the windows of the two scans cover on their own */
+   static final double JOIN_SLACK = 1.25;
+
+   /** the windows read by the scan */
+   private final List<TweetQuery> windows = new ArrayList<>();
+   /** the first page of tweets of each window */
+   private final List<List<TwitterStream>> pages = new ArrayList<>();
+   /** the number of tweets that match each window */
+   private final List<long[]> counts = new ArrayList<>();
+   /** the position of each window in the batch */
+   private final List<Integer> positions = new ArrayList<>();
+   /** the columns of the tweets kept */
+   private final TweetProjection projection;
+
+   /**
+    * @param projection
+    *           the columns of the tweets kept
+    */
+   BatchScan(final TweetProjection projection)
+   {
+      this.projection = projection;
+   }
+
+   /**
+    * @param a
+    *           a query
+    * @param b
+    *           another query
+    * @return true if the boxes and time ranges of the queries overlap
+    */
+   static boolean overlaps(final TweetQuery a, final TweetQuery b)
+   {
+      return a.getSouth() <= b.getNorth() && b.getSouth() <= a.getNorth() && a.getWest() <= b.getEast()
+            && b.getWest() <= a.getEast() && !a.getMinTime().after(b.getMaxTime())
+            && !b.getMinTime().after(a.getMaxTime());
+   }
+
+   /**
+    * @param query
+    *           a query
+    * @return the size of the box and time range of the query, in square degrees times milliseconds, with the open
+    *         sides at the edges of the world, the epoch and now
+    */
+   static double volume(final TweetQuery query)
+   {
+      final double time = query.getMaxTime().getTime() - query.getMinTime().getTime() + 1;
+      return (query.getNorth() - query.getSouth()) * (query.getEast() - query.getWest()) * time;
+   }
+
+   /**
+    * plan the scans for the windows of a batch, so that windows which overlap, directly or through other windows,
+    * share a scan as long as the joined scan covers little more than its windows
+    *
+    * @param queries
+    *           the windows of the batch
+    * @param projection
+    *           the columns of the tweets kept
+    * @return the scans, which together read every window once
+    */
+   static List<BatchScan> plan(final List<TweetQuery> queries, final TweetProjection projection)
+   {
+      final List<BatchScan> scans = new ArrayList<>();
+      for (int i = 0; i < queries.size(); i++)
+      {
+         final BatchScan scan = new BatchScan(projection);
+         scan.add(queries.get(i), i);
+         scans.add(scan);
+      }
+
+      // joining two scans grows the box of the joined one, which may then overlap another
+      boolean joined = true;
+      while (joined)
+      {
+         joined = false;
+         for (int i = 0; i < scans.size() && !joined; i++)
+         {
+            for (int j = i + 1; j < scans.size() && !joined; j++)
+            {
+               if (scans.get(i).joins(scans.get(j)))
+               {
+                  scans.get(i).join(scans.remove(j));
+                  joined = true;
+               }
+            }
+         }
+      }
+      return scans;
+   }
+
+   /**
+    * @param query
+    *           a window
+    * @param position
+    *           the position of the window in the batch
+    */
+   private void add(final TweetQuery query, final int position)
+   {
+      windows.add(query);
+      pages.add(new ArrayList<TwitterStream>());
+      counts.add(new long[1]);
+      positions.add(Integer.valueOf(position));
+   }
+
+   /**
+    * @param index
+    *           the number of a window in the scan
+    * @return the number of tweets that match the window
+    */
+   long getCount(final int index)
+   {
+      return counts.get(index)[0];
+   }
+
+   /**
+    * @param index
+    *           the number of a window in the scan
+    * @return the first page of tweets of the window, in time order
+    */
+   List<TwitterStream> getPage(final int index)
+   {
+      return pages.get(index);
+   }
+
+   /**
+    * @param index
+    *           the number of a window in the scan
+    * @return the position of the window in the batch
+    */
+   int getPosition(final int index)
+   {
+      return positions.get(index).intValue();
+   }
+
+   /**
+    * @return a query for the box and time range that covers every window, which has their words only if they all have
+    *         the same ones
+    */
+   TweetQuery getQuery()
+   {
+      Double north = null;
+      Double south = null;
+      Double east = null;
+      Double west = null;
+      Date minDate = null;
+      Date maxDate = null;
+      boolean northSouth = true;
+      boolean eastWest = true;
+      boolean timeRange = true;
+      for (final TweetQuery window : windows)
+      {
+         northSouth &= window.hasNorthSouth();
+         eastWest &= window.hasEastWest();
+         timeRange &= window.hasTimeRange();
+         north = north == null || window.getNorth() > north.doubleValue() ? Double.valueOf(window.getNorth()) : north;
+         south = south == null || window.getSouth() < south.doubleValue() ? Double.valueOf(window.getSouth()) : south;
+         east = east == null || window.getEast() > east.doubleValue() ? Double.valueOf(window.getEast()) : east;
+         west = west == null || window.getWest() < west.doubleValue() ? Double.valueOf(window.getWest()) : west;
+         minDate = minDate == null || window.getMinTime().before(minDate) ? window.getMinTime() : minDate;
+         maxDate = maxDate == null || window.getMaxTime().after(maxDate) ? window.getMaxTime() : maxDate;
+      }
+
+      // a side that one window leaves open is open for the scan
+      final TweetQuery query = new TweetQuery(northSouth ? north : null, northSouth ? south : null,
+            eastWest ? east : null, eastWest ? west : null, timeRange ? minDate : null, timeRange ? maxDate : null);
+      final TweetQuery first = windows.get(0);
+      boolean sameText = true;
+      for (final TweetQuery window : windows)
+      {
+         sameText &= window.getTerms().equals(first.getTerms());
+      }
+      if (sameText)
+      {
+         query.setText(first.getText());
+      }
+      query.setMaxResults(Integer.MAX_VALUE);
+      return query;
+   }
+
+   /**
+    * @return the number of windows read by the scan
+    */
+   int getSize()
+   {
+      return windows.size();
+   }
+
+   /**
+    * take over the windows of another scan
+    *
+    * @param other
+    *           the other scan
+    */
+   private void join(final BatchScan other)
+   {
+      for (int i = 0; i < other.getSize(); i++)
+      {
+         add(other.windows.get(i), other.getPosition(i));
+      }
+   }
+
+   /**
+    * @param other
+    *           another scan
+    * @return true if the box and time range of this scan overlap those of the other, and the box and time range that
+    *         covers both is at most {@link #JOIN_SLACK} times what their windows cover on their own
+    */
+   private boolean joins(final BatchScan other)
+   {
+      final TweetQuery query = getQuery();
+      final TweetQuery otherQuery = other.getQuery();
+      if (!overlaps(query, otherQuery))
+      {
+         return false;
+      }
+      double alone = 0;
+      for (final TweetQuery window : windows)
+      {
+         alone += volume(window);
+      }
+      for (final TweetQuery window : other.windows)
+      {
+         alone += volume(window);
+      }
+      final BatchScan joined = new BatchScan(projection);
+      joined.join(this);
+      joined.join(other);
+      return volume(joined.getQuery()) <= JOIN_SLACK * alone;
+   }
+
+   /*
+    * (non-Javadoc)
+    * @see web30.index.TweetVisitor#visit(web30.model.TwitterStream)
+    */
+   @Override
+   public void visit(final TwitterStream tweet)
+   {
+      for (int i = 0; i < windows.size(); i++)
+      {
+         final TweetQuery window = windows.get(i);
+         if (window.matches(tweet))
+         {
+            counts.get(i)[0]++;
+            final List<TwitterStream> page = pages.get(i);
+            if (page.size() < window.getMaxResults())
+            {
+               page.add(projection.project(tweet));
+            }
+         }
+      }
+   }
+}
@@ -0,0 +1,157 @@
+/**
+ *
+ */
+package web30;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * The counters and the size of the {@link TweetCache}.
+ */
+@XmlRootElement
+public class CacheStats
+{
+   /** the estimated number of bytes used by the cached pages */
+   private long bytes;
+   /** the number of cached pages */
+   private int entries;
+   /** the number of pages dropped to make room */
+   private long evictions;
+   /** the number of requests answered from the cache */
+   private long hits;
+   /** the number of pages dropped because tweets were added inside them */
+   private long invalidations;
+   /** the estimated number of bytes the cached pages can use */
+   private long maxBytes;
+   /** the number of requests that were not in the cache */
+   private long misses;
+
+   /**
+    * @return the estimated number of bytes used by the cached pages
+    */
+   public long getBytes()
+   {
+      return bytes;
+   }
+
+   /**
+    * @return the number of cached pages
+    */
+   public int getEntries()
+   {
+      return entries;
+   }
+
+   /**
+    * @return the number of pages dropped to make room
+    */
+   public long getEvictions()
+   {
+      return evictions;
+   }
+
+   /**
+    * @return the number of requests answered from the cache
+    */
+   public long getHits()
+   {
+      return hits;
+   }
+
+   /**
+    * @return the number of pages dropped because tweets were added inside them
+    */
+   public long getInvalidations()
+   {
+      return invalidations;
+   }
+
+   /**
+    * @return the estimated number of bytes the cached pages can use
+    */
+   public long getMaxBytes()
+   {
+      return maxBytes;
+   }
+
+   /**
+    * @return the number of requests that were not in the cache
+    */
+   public long getMisses()
+   {
+      return misses;
+   }
+
+   /**
+    * @param bytes
+    *           the estimated number of bytes used by the cached pages
+    */
+   public void setBytes(final long bytes)
+   {
+      this.bytes = bytes;
+   }
+
+   /**
+    * @param entries
+    *           the number of cached pages
+    */
+   public void setEntries(final int entries)
+   {
+      this.entries = entries;
+   }
+
+   /**
+    * @param evictions
+    *           the number of pages dropped to make room
+    */
+   public void setEvictions(final long evictions)
+   {
+      this.evictions = evictions;
+   }
+
+   /**
+    * @param hits
+    *           the number of requests answered from the cache
+    */
+   public void setHits(final long hits)
+   {
+      this.hits = hits;
+   }
+
+   /**
+    * @param invalidations
+    *           the number of pages dropped because tweets were added inside them
+    */
+   public void setInvalidations(final long invalidations)
+   {
+      this.invalidations = invalidations;
+   }
+
+   /**
+    * @param maxBytes
+    *           the estimated number of bytes the cached pages can use
+    */
+   public void setMaxBytes(final long maxBytes)
+   {
+      this.maxBytes = maxBytes;
+   }
+
+   /**
+    * @param misses
+    *           the number of requests that were not in the cache
+    */
+   public void setMisses(final long misses)
+   {
+      this.misses = misses;
+   }
+
+   /*
+    * (non-Javadoc)
+    * @see java.lang.Object#toString()
+    */
+   @Override
+   public String toString()
+   {
+      return "CacheStats [entries=" + entries + ", bytes=" + bytes + ", hits=" + hits + ", misses=" + misses + "]";
+   }
+}
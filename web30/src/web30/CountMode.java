@@ -0,0 +1,68 @@
+/**
+ *
+ */
+package web30;
+
+/**
+ * How the total number of matching tweets is counted.
+ */
+public enum CountMode
+{
+   /** count every matching tweet */
+   EXACT("exact"),
+   /** stop counting at a limit, so the total is a lower bound once the limit is reached */
+   AT_LEAST("atleast"),
+   /** estimate the total from the tweet histogram, without counting */
+   ESTIMATE("estimate");
+
+   /** the name used in requests and responses */
+   private final String label;
+
+   /**
+    * @param label
+    *           the name used in requests and responses
+    */
+   private CountMode(final String label)
+   {
+      this.label = label;
+   }
+
+   /**
+    * used by Jersey to convert the query parameter
+    *
+    * @param value
+    *           the name used in requests
+    * @return the mode
+    * @throws IllegalArgumentException
+    *            if the name is unknown
+    */
+   public static CountMode fromString(final String value)
+   {
+      for (final CountMode mode : values())
+      {
+         if (mode.label.equalsIgnoreCase(value))
+         {
+            return mode;
+         }
+      }
+      throw new IllegalArgumentException("unknown count mode " + value);
+   }
+
+   /**
+    * @return the name used in requests and responses
+    */
+   public String getLabel()
+   {
+      return label;
+   }
+
+   /*
+    * (non-Javadoc)
+    * @see java.lang.Enum#toString()
+    */
+   @Override
+   public String toString()
+   {
+      return label;
+   }
+}
@@ -0,0 +1,115 @@
+/**
+ *
+ */
+package web30;
+
+/**
+ * The formats of the tweet dumps that can be ingested.
+ */
+public enum DumpFormat
+{
+   /** one JSON object per line, with the fields of the tweets in the JSON responses */
+   NDJSON("ndjson", "application/x-ndjson"),
+   /** comma separated values with a header line naming the fields of the tweets */
+   CSV("csv", "text/csv");
+
+   /** the name used in requests and on the command line */
+   private final String label;
+
+   /** the media type of the format */
+   private final String mediaType;
+
+   /**
+    * @param label
+    *           the name used in requests and on the command line
+    * @param mediaType
+    *           the media type of the format
+    */
+   private DumpFormat(final String label, final String mediaType)
+   {
+      this.label = label;
+      this.mediaType = mediaType;
+   }
+
+   /**
+    * @param name
+    *           the name of a dump file, which may be compressed
+    * @return the format of the file, from its extension, or null if the extension is not known
+    */
+   public static DumpFormat forFile(final String name)
+   {
+      final String lower = name.toLowerCase().replaceAll("\\.gz$", "");
+      for (final DumpFormat format : values())
+      {
+         if (lower.endsWith("." + format.label))
+         {
+            return format;
+         }
+      }
+      return lower.endsWith(".json") ? NDJSON : null;
+   }
+
+   /**
+    * @param mediaType
+    *           a media type, possibly with parameters
+    * @return the format of the media type, or null if it is not known
+    */
+   public static DumpFormat forMediaType(final String mediaType)
+   {
+      for (final DumpFormat format : values())
+      {
+         if (mediaType != null && mediaType.toLowerCase().startsWith(format.mediaType))
+         {
+            return format;
+         }
+      }
+      return null;
+   }
+
+   /**
+    * used by Jersey to convert the query parameter
+    *
+    * @param value
+    *           the name used in requests
+    * @return the format
+    * @throws IllegalArgumentException
+    *            if the name is unknown
+    */
+   public static DumpFormat fromString(final String value)
+   {
+      for (final DumpFormat format : values())
+      {
+         if (format.label.equalsIgnoreCase(value))
+         {
+            return format;
+         }
+      }
+      throw new IllegalArgumentException("unknown dump format " + value);
+   }
+
+   /**
+    * @return the name used in requests and on the command line
+    */
+   public String getLabel()
+   {
+      return label;
+   }
+
+   /**
+    * @return the media type of the format
+    */
+   public String getMediaType()
+   {
+      return mediaType;
+   }
+
+   /*
+    * (non-Javadoc)
+    * @see java.lang.Enum#toString()
+    */
+   @Override
+   public String toString()
+   {
+      return label;
+   }
+}
@@ -0,0 +1,190 @@
+/**
+ *
+ */
+package web30;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.TypedQuery;
+
+import org.apache.log4j.Logger;
+
+import web30.index.TweetIndexLoader;
+import web30.index.TweetListener;
+import web30.model.TwitterStream;
+import web30.persistence.EntityManagerPool;
+import web30.persistence.PooledEntityManager;
+
+/**
+ * Keeps the extents of the tweets, the box around all of them and the range of their times, so that the map range and
+ * time range requests do not each scan the whole table. The extents are read from the database once, widened as tweets
+ * are added through the service, and, since tweets can also be added to the database by other programs, read again
+ * every so often if a refresh interval is set.
+ */
+public class ExtentCache
+{
+   /** the query for the box around all the tweets. Remember, the ctor takes North, East, West, South */
+   private static final String MAP_RANGE = "select new web30.BoundingBox( max(t.lon), max(t.lat), min(t.lat), "
+         + "min(t.lon)) from TwitterStream t";
+
+   /** the query for the range of the tweet times */
+   private static final String TIME_RANGE = "select new web30.TimeRange( min(t.time), max(t.time)) "
+         + "from TwitterStream t";
+
+   /** the logger */
+   private static Logger log = Logger.getLogger(ExtentCache.class);
+
+   /** the box around all the tweets, or null if it has not been read */
+   private static BoundingBox mapRange;
+
+   /** the range of the tweet times, or null if it has not been read */
+   private static TimeRange timeRange;
+
+   /** true once the refresh has been started */
+   private static boolean started;
+
+   static
+   {
+      TweetIndexLoader.addListener(new TweetListener()
+      {
+         @Override
+         public void tweetsAdded(final List<TwitterStream> tweets)
+         {
+            extend(tweets);
+         }
+      });
+   }
+
+   /**
+    * widen the extents to hold added tweets
+    *
+    * @param tweets
+    *           the tweets that were added
+    */
+   static synchronized void extend(final List<TwitterStream> tweets)
+   {
+      for (final TwitterStream tweet : tweets)
+      {
+         // NOTE the db has lat and lon backwards
+         if (mapRange != null && tweet.getLat() != null && tweet.getLon() != null)
+         {
+            final double lat = tweet.getLat().doubleValue();
+            final double lon = tweet.getLon().doubleValue();
+            mapRange = new BoundingBox(Math.max(mapRange.getNorth(), lon), Math.max(mapRange.getEast(), lat),
+                  Math.min(mapRange.getWest(), lat), Math.min(mapRange.getSouth(), lon));
+         }
+         if (timeRange != null && tweet.getTime() != null)
+         {
+            final Date time = tweet.getTime();
+            timeRange = new TimeRange(time.before(timeRange.getMinTime()) ? time : timeRange.getMinTime(),
+                  time.after(timeRange.getMaxTime()) ? time : timeRange.getMaxTime());
+         }
+      }
+   }
+
+   /**
+    * @return the box around all the tweets, read from the database if it has not been yet
+    */
+   public static synchronized BoundingBox getMapRange()
+   {
+      if (mapRange == null)
+      {
+         refresh();
+      }
+      return mapRange;
+   }
+
+   /**
+    * @return the range of the tweet times, read from the database if it has not been yet
+    */
+   public static synchronized TimeRange getTimeRange()
+   {
+      if (timeRange == null)
+      {
+         refresh();
+      }
+      return timeRange;
+   }
+
+   /**
+    * read the extents from the database. The extents are replaced, not copied into, so ones already handed out do not
+    * change.
+    */
+   public static void refresh()
+   {
+      final BoundingBox newMapRange;
+      final TimeRange newTimeRange;
+      try (PooledEntityManager em = EntityManagerPool.borrowEntityManager())
+      {
+         final TypedQuery<BoundingBox> qMap = em.createQuery(MAP_RANGE, BoundingBox.class);
+         newMapRange = qMap.getSingleResult();
+         final TypedQuery<TimeRange> qTime = em.createQuery(TIME_RANGE, TimeRange.class);
+         newTimeRange = qTime.getSingleResult();
+      }
+
+      synchronized (ExtentCache.class)
+      {
+         mapRange = newMapRange;
+         timeRange = newTimeRange;
+      }
+      log.debug("extents are " + newMapRange + ", " + newTimeRange);
+   }
+
+   /**
+    * read the extents in the background now and, if there is an interval, again after every interval. This only starts
+    * the refresh once.
+    *
+    * @param interval
+    *           the number of seconds between reading the extents again, or 0 to only read them once
+    */
+   public static synchronized void start(final long interval)
+   {
+      if (started)
+      {
+         return;
+      }
+      started = true;
+
+      final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+      {
+         @Override
+         public Thread newThread(final Runnable r)
+         {
+            final Thread t = new Thread(r);
+            t.setName("ExtentCache");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      final Runnable task = new Runnable()
+      {
+         @Override
+         public void run()
+         {
+            try
+            {
+               refresh();
+            }
+            catch (final Throwable t)
+            {
+               // keep the extents there are, and try again next time
+               log.error("Cannot read the tweet extents", t);
+            }
+         }
+      };
+      if (interval > 0)
+      {
+         executor.scheduleWithFixedDelay(task, 0, interval, TimeUnit.SECONDS);
+      }
+      else
+      {
+         executor.execute(task);
+         executor.shutdown();
+      }
+   }
+}
@@ -0,0 +1,223 @@
+/**
+ *
+ */
+package web30;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.Query;
+import javax.persistence.TemporalType;
+import javax.persistence.TypedQuery;
+
+import org.apache.log4j.Logger;
+import org.hibernate.Session;
+import org.hibernate.jdbc.Work;
+
+import web30.persistence.EntityManagerPool;
+import web30.persistence.PooledEntityManager;
+import web30.util.GeoHash;
+
+/**
+ * Fills in the geohash column of the tweets that have coordinates but no geohash, which are the tweets from before the
+ * column was added and the tweets that other programs add to the database. The tweets are filled in batches, each in a
+ * transaction of its own, so the table is never locked for long. Until a tweet is filled in, the queries that look for
+ * boxes by geohash read it anyway, so filling in only makes them faster.
+ * <p>
+ * The column and its index are added by the migration in {@value #MIGRATION}, which is applied by hand before the
+ * upgrade, since the tweets are read with their geohash; the service does not start without the column. Nothing is
+ * filled in, and boxes are not looked for by geohash, until the index is found in the database.
+ */
+public class GeohashFiller
+{
+   /** the number of tweets filled in each transaction */
+   static final int BATCH_SIZE = 1000;
+
+   /** the migration that adds the geohash column and its index */
+   static final String MIGRATION = "web30/sql/twitterstream-geohash.sql";
+
+   /** the name of the index on the geohash column */
+   static final String INDEX = "twitterstream_geohash";
+
+   /** the query for a batch of tweets to fill in */
+   private static final String UNFILLED = "select t.tweetid, t.time, t.lat, t.lon from TwitterStream t "
+         + "where t.geohash is null and t.lat is not null and t.lon is not null";
+
+   /** the update of the geohash of one tweet */
+   private static final String FILL = "update TwitterStream t set t.geohash = :geohash "
+         + "where t.tweetid = :tweetid and t.time = :time";
+
+   /** the logger */
+   private static Logger log = Logger.getLogger(GeohashFiller.class);
+
+   /** true once the filling has been started */
+   private static boolean started;
+
+   /** true once the index on the geohash column has been found, which is only looked at by the filling thread */
+   private static boolean migrated;
+
+   /**
+    * fill in every tweet that needs it, a batch at a time
+    *
+    * @return the number of tweets filled in
+    */
+   static long fill()
+   {
+      long filled = 0;
+      try (PooledEntityManager em = EntityManagerPool.borrowEntityManager())
+      {
+         int count;
+         do
+         {
+            count = 0;
+            em.getTransaction().begin();
+            final TypedQuery<Object[]> q = em.createQuery(UNFILLED, Object[].class);
+            q.setMaxResults(BATCH_SIZE);
+            final List<Object[]> rows = q.getResultList();
+            final Query update = em.createQuery(FILL);
+            for (final Object[] row : rows)
+            {
+               // NOTE the db has lat and lon backwards, so the lon column is the latitude
+               update.setParameter("geohash", Long.valueOf(GeoHash.encode(((Double) row[3]).doubleValue(),
+                     ((Double) row[2]).doubleValue())));
+               update.setParameter("tweetid", row[0]);
+               update.setParameter("time", (Date) row[1], TemporalType.TIMESTAMP);
+               count += update.executeUpdate();
+            }
+            em.getTransaction().commit();
+            em.clear();
+            filled += count;
+
+            // a short batch was the last, and a batch that changed nothing would only be read again
+         }
+         while (count == BATCH_SIZE);
+      }
+      return filled;
+   }
+
+   /**
+    * @return true if the tweet table has the geohash column, which every read of a whole tweet needs
+    */
+   static boolean hasColumn()
+   {
+      final boolean[] found = new boolean[1];
+      try (PooledEntityManager em = EntityManagerPool.borrowEntityManager())
+      {
+         em.unwrap(Session.class).doWork(new Work()
+         {
+            @Override
+            public void execute(final Connection connection) throws SQLException
+            {
+               try (ResultSet columns = connection.getMetaData().getColumns(connection.getCatalog(), null,
+                     TweetQueries.TABLE, "geohash"))
+               {
+                  found[0] = columns.next();
+               }
+            }
+         });
+      }
+      return found[0];
+   }
+
+   /**
+    * @return true if the tweet table has the index on the geohash column, so {@link #MIGRATION} has been applied
+    */
+   static boolean isMigrated()
+   {
+      final boolean[] found = new boolean[1];
+      try (PooledEntityManager em = EntityManagerPool.borrowEntityManager())
+      {
+         em.unwrap(Session.class).doWork(new Work()
+         {
+            @Override
+            public void execute(final Connection connection) throws SQLException
+            {
+               try (ResultSet indexes = connection.getMetaData().getIndexInfo(connection.getCatalog(), null,
+                     TweetQueries.TABLE, false, true))
+               {
+                  while (indexes.next() && !found[0])
+                  {
+                     found[0] = INDEX.equalsIgnoreCase(indexes.getString("INDEX_NAME"))
+                           && "geohash".equalsIgnoreCase(indexes.getString("COLUMN_NAME"));
+                  }
+               }
+            }
+         });
+      }
+      return found[0];
+   }
+
+   /**
+    * in the background, once {@link #MIGRATION} has been applied, look for boxes by geohash, and fill in the
+    * geohashes now and, if there is an interval, again after every interval. If the migration has not been applied,
+    * nothing changes and the filling stops. This only starts the filling once.
+    *
+    * @param interval
+    *           the number of seconds between filling in the tweets added since, or 0 to only fill them in once
+    */
+   public static synchronized void start(final long interval)
+   {
+      if (started)
+      {
+         return;
+      }
+      started = true;
+
+      final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+      {
+         @Override
+         public Thread newThread(final Runnable r)
+         {
+            final Thread t = new Thread(r);
+            t.setName("GeohashFiller");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      final Runnable task = new Runnable()
+      {
+         @Override
+         public void run()
+         {
+            try
+            {
+               if (!migrated)
+               {
+                  if (!isMigrated())
+                  {
+                     log.error("The geohash column is not in the database, so boxes are not looked for by geohash; "
+                           + "apply " + MIGRATION + " and restart to use it");
+                     executor.shutdown();
+                     return;
+                  }
+                  migrated = true;
+                  TweetQueries.setGeohash(true);
+               }
+               final long filled = fill();
+               log.debug("filled in " + filled + " geohashes");
+            }
+            catch (final Throwable t)
+            {
+               // the tweets that are left are still found, just more slowly; try again next time
+               log.error("Cannot fill in the geohashes", t);
+            }
+         }
+      };
+      if (interval > 0)
+      {
+         executor.scheduleWithFixedDelay(task, 0, interval, TimeUnit.SECONDS);
+      }
+      else
+      {
+         executor.execute(task);
+         executor.shutdown();
+      }
+   }
+}
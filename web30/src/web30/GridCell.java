@@ -0,0 +1,104 @@
+/**
+ *
+ */
+package web30;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * The number of tweets in one cell of a {@link TweetGrid}. The coordinates are the center of the cell and use the same
+ * lat and lon as the tweets do.
+ */
+@XmlRootElement
+public class GridCell
+{
+   /** the lat of the center of the cell */
+   private double lat;
+   /** the lon of the center of the cell */
+   private double lon;
+   /** the number of tweets in the cell */
+   private long count;
+
+   /**
+    * create an empty cell
+    */
+   public GridCell()
+   {
+   }
+
+   /**
+    * @param lat
+    *           the lat of the center of the cell
+    * @param lon
+    *           the lon of the center of the cell
+    * @param count
+    *           the number of tweets in the cell
+    */
+   public GridCell(final double lat, final double lon, final long count)
+   {
+      this.lat = lat;
+      this.lon = lon;
+      this.count = count;
+   }
+
+   /**
+    * @return the number of tweets in the cell
+    */
+   public long getCount()
+   {
+      return count;
+   }
+
+   /**
+    * @return the lat of the center of the cell
+    */
+   public double getLat()
+   {
+      return lat;
+   }
+
+   /**
+    * @return the lon of the center of the cell
+    */
+   public double getLon()
+   {
+      return lon;
+   }
+
+   /**
+    * @param count
+    *           the number of tweets in the cell
+    */
+   public void setCount(final long count)
+   {
+      this.count = count;
+   }
+
+   /**
+    * @param lat
+    *           the lat of the center of the cell
+    */
+   public void setLat(final double lat)
+   {
+      this.lat = lat;
+   }
+
+   /**
+    * @param lon
+    *           the lon of the center of the cell
+    */
+   public void setLon(final double lon)
+   {
+      this.lon = lon;
+   }
+
+   /*
+    * (non-Javadoc)
+    * @see java.lang.Object#toString()
+    */
+   @Override
+   public String toString()
+   {
+      return "GridCell [lat=" + lat + ", lon=" + lon + ", count=" + count + "]";
+   }
+}
@@ -0,0 +1,242 @@
+/**
+ *
+ */
+package web30;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.log4j.Logger;
+
+import web30.persistence.EntityManagerPool;
+import web30.util.IConfiguration;
+import web30.util.ServiceConfigurator;
+
+/**
+ * Loads tweet dumps into the database from the command line, with the same properties file as the service for the
+ * database settings. Each dump is loaded by a {@link TweetIngester}, and what it did is printed when it is done.
+ */
+public class IngestCommand implements IConfiguration
+{
+   /** the number of rows in each insert statement */
+   private int batchSize = TweetIngester.DEFAULT_BATCH_SIZE;
+
+   /** the number of rows in each transaction */
+   private int commitInterval = TweetIngester.DEFAULT_COMMIT_INTERVAL;
+
+   /** the format of the dumps, or null to tell from their names */
+   private String format;
+
+   /** the dumps, separated by commas, with - for the standard input */
+   private String input;
+
+   /** the command line options */
+   private Options options;
+
+   /** the option for the properties file */
+   private Option propertiesOption;
+
+   /** the number of threads that parse the dumps */
+   private int threads = Runtime.getRuntime().availableProcessors();
+
+   /**
+    * @param args
+    *           the command line arguments
+    * @throws Exception
+    *            on error
+    */
+   public static void main(final String[] args) throws Exception
+   {
+      final IngestCommand command = new IngestCommand();
+      final ServiceConfigurator configurator = new ServiceConfigurator("web30-ingest", command);
+      configurator.parseCommandLine(args);
+      try
+      {
+         command.run();
+      }
+      finally
+      {
+         EntityManagerPool.closeEntityManagerPool();
+      }
+   }
+
+   /**
+    * @return the number of rows in each insert statement
+    */
+   public int getBatchSize()
+   {
+      return batchSize;
+   }
+
+   /**
+    * @return the number of rows in each transaction
+    */
+   public int getCommitInterval()
+   {
+      return commitInterval;
+   }
+
+   /**
+    * @return the format of the dumps, or null to tell from their names
+    */
+   public String getFormat()
+   {
+      return format;
+   }
+
+   /**
+    * @return the dumps, separated by commas, with - for the standard input
+    */
+   public String getInput()
+   {
+      return input;
+   }
+
+   /*
+    * (non-Javadoc)
+    * @see web30.util.IConfiguration#getOptions()
+    */
+   @Override
+   public Options getOptions()
+   {
+      if (options == null)
+      {
+         options = new Options();
+         options.addOption(getPropertiesOption());
+
+         Option option = new Option("input", true, "The tweet dumps to load, separated by commas, or - for the "
+               + "standard input. Dumps ending in .gz are uncompressed");
+         option.setArgName("files");
+         option.setRequired(true);
+         options.addOption(option);
+
+         option = new Option("format", true, "The format of the dumps (ndjson or csv). Defaults to the extension of "
+               + "each dump");
+         option.setArgName("format");
+         options.addOption(option);
+
+         option = new Option("batchSize", true, "The number of rows in each insert statement. Defaults to "
+               + getBatchSize());
+         option.setArgName("rows");
+         options.addOption(option);
+
+         option = new Option("commitInterval", true, "The number of rows in each transaction. Defaults to "
+               + getCommitInterval());
+         option.setArgName("rows");
+         options.addOption(option);
+
+         option = new Option("threads", true, "The number of threads that parse the dumps. Defaults to "
+               + getThreads());
+         option.setArgName("threads");
+         options.addOption(option);
+      }
+      return options;
+   }
+
+   /*
+    * (non-Javadoc)
+    * @see web30.util.IConfiguration#getPropertiesOption()
+    */
+   @Override
+   public Option getPropertiesOption()
+   {
+      if (propertiesOption == null)
+      {
+         propertiesOption = new Option("properties", true, "The configuration properties file of the service, for "
+               + "the database settings");
+         propertiesOption.setArgName("file");
+      }
+      return propertiesOption;
+   }
+
+   /**
+    * @return the number of threads that parse the dumps
+    */
+   public int getThreads()
+   {
+      return threads;
+   }
+
+   /**
+    * load every dump, one after the other
+    *
+    * @throws IOException
+    *            if a dump cannot be read
+    */
+   public void run() throws IOException
+   {
+      final Logger log = Logger.getLogger(IngestCommand.class);
+      final TweetIngester ingester = new TweetIngester(batchSize, commitInterval, threads);
+      for (final String name : input.split(","))
+      {
+         final String file = name.trim();
+         final DumpFormat dumpFormat = format != null ? DumpFormat.fromString(format) : DumpFormat.forFile(file);
+         if (dumpFormat == null)
+         {
+            throw new IllegalArgumentException("Cannot tell the format of " + file + "; give it with -format");
+         }
+
+         log.info("ingesting " + file);
+         final boolean stdin = "-".equals(file);
+         final InputStream raw = stdin ? System.in : new FileInputStream(file);
+         try (InputStream in = file.endsWith(".gz") ? new GZIPInputStream(raw, 1 << 16) : raw)
+         {
+            final IngestReport report = ingester.ingest(in, dumpFormat);
+            System.out.println(file + ": " + report);
+            for (final String error : report.getError())
+            {
+               System.out.println("   " + error);
+            }
+         }
+      }
+   }
+
+   /**
+    * @param batchSize
+    *           the number of rows in each insert statement
+    */
+   public void setBatchSize(final int batchSize)
+   {
+      this.batchSize = batchSize;
+   }
+
+   /**
+    * @param commitInterval
+    *           the number of rows in each transaction
+    */
+   public void setCommitInterval(final int commitInterval)
+   {
+      this.commitInterval = commitInterval;
+   }
+
+   /**
+    * @param format
+    *           the format of the dumps, or null to tell from their names
+    */
+   public void setFormat(final String format)
+   {
+      this.format = format;
+   }
+
+   /**
+    * @param input
+    *           the dumps, separated by commas, with - for the standard input
+    */
+   public void setInput(final String input)
+   {
+      this.input = input;
+   }
+
+   /**
+    * @param threads
+    *           the number of threads that parse the dumps
+    */
+   public void setThreads(final int threads)
+   {
+      this.threads = threads;
+   }
+}
@@ -0,0 +1,170 @@
+/**
+ *
+ */
+package web30;
+
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.SecurityContext;
+
+import org.apache.log4j.Logger;
+import org.glassfish.grizzly.http.server.Request;
+
+/**
+ * Loads a tweet dump posted to the service into the database. This writes to the database, so it is turned off unless
+ * the service is started with ingestion on, it is only allowed from the local host or for a user in the admin role,
+ * and only one dump is loaded at a time. The batch size and the threads asked for are cut down to what the database
+ * and the machine can take.
+ */
+@Path("admin")
+public class IngestHandler
+{
+   /** the role of the users that can post dumps from other hosts */
+   static final String ADMIN_ROLE = "admin";
+
+   /** true if dumps can be posted */
+   private static volatile boolean enabled;
+
+   /** true while a dump is being loaded */
+   private static final AtomicBoolean busy = new AtomicBoolean();
+
+   /** the logger */
+   private static Logger log = Logger.getLogger(IngestHandler.class);
+
+   /**
+    * @param security
+    *           the security of the request
+    * @param remoteAddress
+    *           the address of the host the request came from, or null if it is not known
+    * @return true if the request came from the local host or from a user in the admin role
+    */
+   static boolean isAllowed(final SecurityContext security, final String remoteAddress)
+   {
+      if (security != null && security.isUserInRole(ADMIN_ROLE))
+      {
+         return true;
+      }
+      if (remoteAddress == null)
+      {
+         return false;
+      }
+      try
+      {
+         // the address is a literal, so this never looks up a name
+         return InetAddress.getByName(remoteAddress).isLoopbackAddress();
+      }
+      catch (final UnknownHostException e)
+      {
+         return false;
+      }
+   }
+
+   /**
+    * @param enabled
+    *           true if dumps can be posted
+    */
+   public static void setEnabled(final boolean enabled)
+   {
+      IngestHandler.enabled = enabled;
+   }
+
+   /**
+    * load a tweet dump into the database
+    *
+    * @param in
+    *           the dump, in UTF-8
+    * @param contentType
+    *           the media type of the dump, which gives its format if no format is asked for
+    * @param format
+    *           the format of the dump, ndjson or csv
+    * @param batchSize
+    *           the number of rows in each insert statement, at most {@value TweetIngester#MAX_BATCH_SIZE}
+    * @param commitInterval
+    *           the number of rows in each transaction
+    * @param threads
+    *           the number of threads that parse the dump, at most one for each core, or 0 for one for each core
+    * @param security
+    *           the security of the request
+    * @param request
+    *           the request, for the address of the host it came from
+    * @return the {@link IngestReport} of the load
+    */
+   @Path("ingest")
+   @POST
+   @Consumes(
+   { "application/x-ndjson", "text/csv", MediaType.TEXT_PLAIN, MediaType.APPLICATION_OCTET_STREAM })
+   @Produces(MediaType.APPLICATION_JSON)
+   public Response ingest(final InputStream in, @HeaderParam(HttpHeaders.CONTENT_TYPE) final String contentType,
+         @QueryParam("format") final DumpFormat format,
+         @DefaultValue("" + TweetIngester.DEFAULT_BATCH_SIZE) @QueryParam("batchSize") final int batchSize,
+         @DefaultValue("" + TweetIngester.DEFAULT_COMMIT_INTERVAL) @QueryParam("commitInterval")
+         final int commitInterval,
+         @DefaultValue("0") @QueryParam("threads") final int threads, @Context final SecurityContext security,
+         @Context final Request request)
+   {
+      log.debug("ingest");
+      if (!enabled)
+      {
+         return Response.status(Response.Status.FORBIDDEN).entity("Ingestion is not enabled").build();
+      }
+      if (!isAllowed(security, request == null ? null : request.getRemoteAddr()))
+      {
+         return Response.status(Response.Status.FORBIDDEN)
+               .entity("Ingestion is only allowed from the local host or for an admin").build();
+      }
+      final DumpFormat dumpFormat = format != null ? format : DumpFormat.forMediaType(contentType);
+      if (dumpFormat == null)
+      {
+         return Response.status(Response.Status.BAD_REQUEST).entity("The format must be ndjson or csv").build();
+      }
+
+      // more rows than the database takes parameters for would fail, and more threads than cores only contend
+      final int cores = Runtime.getRuntime().availableProcessors();
+      final TweetIngester ingester;
+      try
+      {
+         ingester = new TweetIngester(Math.min(batchSize, TweetIngester.MAX_BATCH_SIZE), commitInterval,
+               threads > 0 ? Math.min(threads, cores) : cores);
+      }
+      catch (final IllegalArgumentException e)
+      {
+         return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
+      }
+
+      if (!busy.compareAndSet(false, true))
+      {
+         return Response.status(Response.Status.CONFLICT).entity("A dump is already being loaded").build();
+      }
+      try
+      {
+         return Response.ok(ingester.ingest(in, dumpFormat)).build();
+      }
+      catch (final IllegalArgumentException e)
+      {
+         return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
+      }
+      catch (final Throwable t)
+      {
+         log.error("Cannot ingest the tweets", t);
+         return Response.serverError().entity("Ingestion is currently unavailable").build();
+      }
+      finally
+      {
+         busy.set(false);
+      }
+   }
+}
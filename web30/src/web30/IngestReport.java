@@ -0,0 +1,199 @@
+/**
+ *
+ */
+package web30;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * What an ingestion of a tweet dump did: how many records it read, how many tweets it added, how long it took, and
+ * why the records it could not use were rejected.
+ */
+@XmlRootElement
+public class IngestReport
+{
+   /** the number of batches written */
+   private long batches;
+   /** the number of transactions committed */
+   private long commits;
+   /** the number of tweets that were already in the database */
+   private long duplicates;
+   /** the reasons for the first records that were rejected */
+   private List<String> error = new ArrayList<>();
+   /** the number of tweets added to the database */
+   private long inserted;
+   /** the milliseconds the ingestion took */
+   private long millis;
+   /** the number of records read, not counting blank lines and the CSV header */
+   private long records;
+   /** the number of records that were not tweets */
+   private long rejected;
+
+   /**
+    * @return the number of batches written
+    */
+   public long getBatches()
+   {
+      return batches;
+   }
+
+   /**
+    * @return the number of transactions committed
+    */
+   public long getCommits()
+   {
+      return commits;
+   }
+
+   /**
+    * @return the number of tweets that were already in the database
+    */
+   public long getDuplicates()
+   {
+      return duplicates;
+   }
+
+   /**
+    * @return the reasons for the first records that were rejected
+    */
+   public List<String> getError()
+   {
+      return error;
+   }
+
+   /**
+    * @return the number of tweets added to the database
+    */
+   public long getInserted()
+   {
+      return inserted;
+   }
+
+   /**
+    * @return the milliseconds the ingestion took
+    */
+   public long getMillis()
+   {
+      return millis;
+   }
+
+   /**
+    * @return the number of records read, not counting blank lines and the CSV header
+    */
+   public long getRecords()
+   {
+      return records;
+   }
+
+   /**
+    * @return the number of records that were not tweets
+    */
+   public long getRejected()
+   {
+      return rejected;
+   }
+
+   /**
+    * @return the number of records read each second
+    */
+   public double getRowsPerSecond()
+   {
+      return millis == 0 ? records : records * 1000.0 / millis;
+   }
+
+   /**
+    * @param batches
+    *           the number of batches written
+    */
+   public void setBatches(final long batches)
+   {
+      this.batches = batches;
+   }
+
+   /**
+    * @param commits
+    *           the number of transactions committed
+    */
+   public void setCommits(final long commits)
+   {
+      this.commits = commits;
+   }
+
+   /**
+    * @param duplicates
+    *           the number of tweets that were already in the database
+    */
+   public void setDuplicates(final long duplicates)
+   {
+      this.duplicates = duplicates;
+   }
+
+   /**
+    * @param error
+    *           the reasons for the first records that were rejected
+    */
+   public void setError(final List<String> error)
+   {
+      this.error = error;
+   }
+
+   /**
+    * @param inserted
+    *           the number of tweets added to the database
+    */
+   public void setInserted(final long inserted)
+   {
+      this.inserted = inserted;
+   }
+
+   /**
+    * @param millis
+    *           the milliseconds the ingestion took
+    */
+   public void setMillis(final long millis)
+   {
+      this.millis = millis;
+   }
+
+   /**
+    * @param records
+    *           the number of records read, not counting blank lines and the CSV header
+    */
+   public void setRecords(final long records)
+   {
+      this.records = records;
+   }
+
+   /**
+    * @param rejected
+    *           the number of records that were not tweets
+    */
+   public void setRejected(final long rejected)
+   {
+      this.rejected = rejected;
+   }
+
+   /**
+    * @param rowsPerSecond
+    *           ignored, since the rate is worked out from the records and the time; this lets MOXy read a report
+    */
+   public void setRowsPerSecond(final double rowsPerSecond)
+   {
+      // worked out
+   }
+
+   /*
+    * (non-Javadoc)
+    * @see java.lang.Object#toString()
+    */
+   @Override
+   public String toString()
+   {
+      return String.format("%,d records, %,d inserted, %,d duplicates, %,d rejected in %.2f seconds (%,.0f rows/s)",
+            Long.valueOf(records), Long.valueOf(inserted), Long.valueOf(duplicates), Long.valueOf(rejected),
+            Double.valueOf(millis / 1000.0), Double.valueOf(getRowsPerSecond()));
+   }
+}
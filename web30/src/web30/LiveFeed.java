@@ -0,0 +1,360 @@
+/**
+ *
+ */
+package web30;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import web30.index.TweetIndexLoader;
+import web30.index.TweetListener;
+import web30.model.TwitterStream;
+
+/**
+ * Pushes tweets that are added through the service to the subscribers whose box and words they match. A subscriber is
+ * a waiting long poll, which holds no thread while it waits. The subscribers are kept in a grid of
+ * {@link #CELL_SIZE} degree cells by their boxes, so a new tweet is only matched against the subscribers of its own
+ * cell, plus the few whose boxes are too big for the grid, however many subscribers there are.
+ * <p>
+ * Every tweet gets the next sequence number, and the last {@link #BACKLOG} tweets are kept, so a subscriber that
+ * polls again with the sequence number it was last given gets the tweets it missed in between.
+ */
+public class LiveFeed implements TweetListener
+{
+   /** the number of recent tweets kept for subscribers that were between polls */
+   public static final int BACKLOG = 10000;
+
+   /** the size of the grid cells, in degrees */
+   static final double CELL_SIZE = 1.0;
+
+   /** the most cells a subscriber is kept in, after which it is matched against every tweet */
+   static final int MAX_CELLS = 64;
+
+   /**
+    * A waiting poll.
+    */
+   public abstract static class Subscriber
+   {
+      /** the box and words of the tweets wanted */
+      private final TweetQuery query;
+      /** the sequence number after which tweets are wanted */
+      private final long since;
+      /** the cells the subscriber is kept in, or null if it is matched against every tweet */
+      private long[] cells;
+      /** true once the subscriber has been answered */
+      private final AtomicBoolean answered = new AtomicBoolean();
+
+      /**
+       * @param query
+       *           the box and words of the tweets wanted; the time range is ignored
+       * @param since
+       *           the sequence number from the last answer, or a negative number for only tweets added from now on
+       */
+      public Subscriber(final TweetQuery query, final long since)
+      {
+         this.query = query;
+         this.since = since;
+      }
+
+      /**
+       * answer the subscriber, only once
+       *
+       * @param tweets
+       *           the matching tweets
+       * @param next
+       *           the sequence number to poll with next time
+       */
+      void answer(final List<TwitterStream> tweets, final long next)
+      {
+         if (answered.compareAndSet(false, true))
+         {
+            deliver(tweets, next);
+         }
+      }
+
+      /**
+       * send tweets to the subscriber. This is called once, and never while the feed is locked.
+       *
+       * @param tweets
+       *           the matching tweets, possibly none if the poll timed out
+       * @param next
+       *           the sequence number to poll with next time
+       */
+      protected abstract void deliver(List<TwitterStream> tweets, long next);
+
+      /**
+       * @param tweet
+       *           a new tweet
+       * @return true if the subscriber wants the tweet
+       */
+      boolean wants(final TwitterStream tweet)
+      {
+         return query.matches(tweet);
+      }
+   }
+
+   /** the feed in use */
+   private static final LiveFeed instance = new LiveFeed(BACKLOG);
+
+   static
+   {
+      TweetIndexLoader.addListener(instance);
+   }
+
+   /** the recent tweets, by sequence number modulo the length */
+   private final TwitterStream[] recent;
+   /** the sequence number of the next tweet */
+   private long sequence;
+   /** the subscribers with small boxes, by cell */
+   private final Map<Long, List<Subscriber>> cells = new HashMap<>();
+   /** the subscribers with large boxes or no box */
+   private final List<Subscriber> wide = new ArrayList<>();
+   /** the number of waiting subscribers */
+   private int waiting;
+
+   /**
+    * @param backlog
+    *           the number of recent tweets kept for subscribers that were between polls
+    */
+   LiveFeed(final int backlog)
+   {
+      recent = new TwitterStream[Math.max(1, backlog)];
+   }
+
+   /**
+    * @param lat
+    *           the lat column
+    * @param lon
+    *           the lon column
+    * @return the key of the cell that holds the point
+    */
+   private static long cellOf(final double lat, final double lon)
+   {
+      final long latCell = (long) Math.floor(lat / CELL_SIZE);
+      final long lonCell = (long) Math.floor(lon / CELL_SIZE);
+      return latCell << 32 | lonCell & 0xffffffffL;
+   }
+
+   /**
+    * @return the feed in use
+    */
+   public static LiveFeed getInstance()
+   {
+      return instance;
+   }
+
+   /**
+    * keep a subscriber in the cells its box covers, or with the wide ones if it covers too many
+    *
+    * @param subscriber
+    *           the subscriber
+    */
+   private void add(final Subscriber subscriber)
+   {
+      final TweetQuery query = subscriber.query;
+      waiting++;
+      // NOTE the db has lat and lon backwards
+      final long minLat = (long) Math.floor(query.getWest() / CELL_SIZE);
+      final long maxLat = (long) Math.floor(query.getEast() / CELL_SIZE);
+      final long minLon = (long) Math.floor(query.getSouth() / CELL_SIZE);
+      final long maxLon = (long) Math.floor(query.getNorth() / CELL_SIZE);
+      final long count = (maxLat - minLat + 1) * (maxLon - minLon + 1);
+      if (!query.hasEastWest() || !query.hasNorthSouth() || count <= 0 || count > MAX_CELLS)
+      {
+         wide.add(subscriber);
+         return;
+      }
+
+      subscriber.cells = new long[(int) count];
+      int i = 0;
+      for (long latCell = minLat; latCell <= maxLat; latCell++)
+      {
+         for (long lonCell = minLon; lonCell <= maxLon; lonCell++)
+         {
+            final Long key = Long.valueOf(latCell << 32 | lonCell & 0xffffffffL);
+            List<Subscriber> list = cells.get(key);
+            if (list == null)
+            {
+               list = new ArrayList<>(2);
+               cells.put(key, list);
+            }
+            list.add(subscriber);
+            subscriber.cells[i++] = key.longValue();
+         }
+      }
+   }
+
+   /**
+    * @return the sequence number of the next tweet
+    */
+   public synchronized long getSequence()
+   {
+      return sequence;
+   }
+
+   /**
+    * @return the number of subscribers waiting for tweets
+    */
+   public synchronized int getWaiting()
+   {
+      return waiting;
+   }
+
+   /**
+    * @param tweet
+    *           a new tweet
+    * @param candidates
+    *           the subscribers that might want it
+    * @param matched
+    *           the tweets for each subscriber that wants any, to which the tweet is added
+    */
+   private static void match(final TwitterStream tweet, final List<Subscriber> candidates,
+         final Map<Subscriber, List<TwitterStream>> matched)
+   {
+      for (final Subscriber subscriber : candidates)
+      {
+         if (subscriber.wants(tweet))
+         {
+            List<TwitterStream> list = matched.get(subscriber);
+            if (list == null)
+            {
+               list = new ArrayList<>();
+               matched.put(subscriber, list);
+            }
+            list.add(tweet);
+         }
+      }
+   }
+
+   /**
+    * stop keeping a subscriber
+    *
+    * @param subscriber
+    *           the subscriber
+    * @return true if the subscriber was waiting
+    */
+   private boolean remove(final Subscriber subscriber)
+   {
+      boolean removed = false;
+      if (subscriber.cells == null)
+      {
+         removed = wide.remove(subscriber);
+      }
+      else
+      {
+         for (final long cell : subscriber.cells)
+         {
+            final Long key = Long.valueOf(cell);
+            final List<Subscriber> list = cells.get(key);
+            if (list != null && list.remove(subscriber))
+            {
+               removed = true;
+               if (list.isEmpty())
+               {
+                  cells.remove(key);
+               }
+            }
+         }
+      }
+      if (removed)
+      {
+         waiting--;
+      }
+      return removed;
+   }
+
+   /**
+    * answer a subscriber at once with the tweets it missed since its last poll, if there are any, or keep it until a
+    * tweet it wants is added
+    *
+    * @param subscriber
+    *           the subscriber
+    */
+   public void subscribe(final Subscriber subscriber)
+   {
+      final List<TwitterStream> missed = new ArrayList<>();
+      final long next;
+      synchronized (this)
+      {
+         next = sequence;
+         for (long s = Math.max(subscriber.since, sequence - recent.length); subscriber.since >= 0 && s < sequence;
+               s++)
+         {
+            final TwitterStream tweet = recent[(int) (s % recent.length)];
+            if (subscriber.wants(tweet))
+            {
+               missed.add(tweet);
+            }
+         }
+         if (missed.isEmpty())
+         {
+            add(subscriber);
+            return;
+         }
+      }
+      subscriber.answer(missed, next);
+   }
+
+   /**
+    * match the added tweets to the subscribers, and answer the ones that want any of them
+    *
+    * @see web30.index.TweetListener#tweetsAdded(java.util.List)
+    */
+   @Override
+   public void tweetsAdded(final List<TwitterStream> tweets)
+   {
+      final Map<Subscriber, List<TwitterStream>> matched = new LinkedHashMap<>();
+      final long next;
+      synchronized (this)
+      {
+         for (final TwitterStream tweet : tweets)
+         {
+            recent[(int) (sequence % recent.length)] = tweet;
+            sequence++;
+
+            // NOTE the db has lat and lon backwards
+            List<Subscriber> candidates = Collections.emptyList();
+            if (tweet.getLat() != null && tweet.getLon() != null)
+            {
+               final List<Subscriber> list = cells.get(Long.valueOf(cellOf(tweet.getLat().doubleValue(),
+                     tweet.getLon().doubleValue())));
+               candidates = list == null ? candidates : list;
+            }
+            match(tweet, candidates, matched);
+            match(tweet, wide, matched);
+         }
+         for (final Subscriber subscriber : matched.keySet())
+         {
+            remove(subscriber);
+         }
+         next = sequence;
+      }
+
+      for (final Map.Entry<Subscriber, List<TwitterStream>> entry : matched.entrySet())
+      {
+         entry.getKey().answer(entry.getValue(), next);
+      }
+   }
+
+   /**
+    * answer a subscriber with no tweets, if it is still waiting, because its poll timed out
+    *
+    * @param subscriber
+    *           the subscriber
+    */
+   public void unsubscribe(final Subscriber subscriber)
+   {
+      final long next;
+      synchronized (this)
+      {
+         remove(subscriber);
+         next = sequence;
+      }
+      subscriber.answer(new ArrayList<TwitterStream>(0), next);
+   }
+}
@@ -0,0 +1,108 @@
+/**
+ *
+ */
+package web30;
+
+import java.util.Date;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * The number of tweets in each bucket of a time range, for drawing the tweet density along the time slider. Bucket i
+ * starts at start + i * bucket.
+ */
+@XmlRootElement
+public class TimeHistogram
+{
+   /** the start of the first bucket */
+   private Date start;
+   /** the size of each bucket, in milliseconds */
+   private long bucket;
+   /** the number of tweets in each bucket */
+   private long[] count;
+   /** the total number of tweets in all the buckets */
+   private long total;
+
+   /**
+    * @return the size of each bucket, in milliseconds
+    */
+   public long getBucket()
+   {
+      return bucket;
+   }
+
+   /**
+    * @return the number of tweets in each bucket
+    */
+   public long[] getCount()
+   {
+      if (count == null)
+      {
+         count = new long[0];
+      }
+      return count;
+   }
+
+   /**
+    * @return the start of the first bucket
+    */
+   public Date getStart()
+   {
+      return start;
+   }
+
+   /**
+    * @return the total number of tweets in all the buckets
+    */
+   public long getTotal()
+   {
+      return total;
+   }
+
+   /**
+    * @param bucket
+    *           the size of each bucket, in milliseconds
+    */
+   public void setBucket(final long bucket)
+   {
+      this.bucket = bucket;
+   }
+
+   /**
+    * @param count
+    *           the number of tweets in each bucket
+    */
+   public void setCount(final long[] count)
+   {
+      this.count = count;
+   }
+
+   /**
+    * @param start
+    *           the start of the first bucket
+    */
+   public void setStart(final Date start)
+   {
+      this.start = start;
+   }
+
+   /**
+    * @param total
+    *           the total number of tweets in all the buckets
+    */
+   public void setTotal(final long total)
+   {
+      this.total = total;
+   }
+
+   /*
+    * (non-Javadoc)
+    * @see java.lang.Object#toString()
+    */
+   @Override
+   public String toString()
+   {
+      return "TimeHistogram [start=" + start + ", bucket=" + bucket + ", buckets=" + getCount().length + ", total="
+            + total + "]";
+   }
+}
@@ -0,0 +1,50 @@
+/**
+ *
+ */
+package web30;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * The windows of a batch request for tweets, posted as one body so that a page with many panels makes one request.
+ */
+@XmlRootElement
+public class TweetBatch
+{
+   /** the windows, in the order their results are returned */
+   private List<TweetWindow> window;
+
+   /**
+    * @return the windows, in the order their results are returned
+    */
+   public List<TweetWindow> getWindow()
+   {
+      if (window == null)
+      {
+         window = new ArrayList<>();
+      }
+      return window;
+   }
+
+   /**
+    * @param window
+    *           the windows, in the order their results are returned
+    */
+   public void setWindow(final List<TweetWindow> window)
+   {
+      this.window = window;
+   }
+
+   /*
+    * (non-Javadoc)
+    * @see java.lang.Object#toString()
+    */
+   @Override
+   public String toString()
+   {
+      return "TweetBatch [window=" + window + "]";
+   }
+}
@@ -0,0 +1,69 @@
+/**
+ *
+ */
+package web30;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * The answer to a {@link TweetBatch}: a page of tweets for each window, in the order of the windows.
+ */
+@XmlRootElement
+public class TweetBatchResult
+{
+   /** the page for each window */
+   private List<Tweets> page;
+   /** the number of scans the windows were read with */
+   private int scans;
+
+   /**
+    * @return the page for each window, in the order of the windows
+    */
+   public List<Tweets> getPage()
+   {
+      if (page == null)
+      {
+         page = new ArrayList<>();
+      }
+      return page;
+   }
+
+   /**
+    * @return the number of scans the windows were read with, fewer than the windows if some of them overlapped
+    */
+   public int getScans()
+   {
+      return scans;
+   }
+
+   /**
+    * @param page
+    *           the page for each window, in the order of the windows
+    */
+   public void setPage(final List<Tweets> page)
+   {
+      this.page = page;
+   }
+
+   /**
+    * @param scans
+    *           the number of scans the windows were read with
+    */
+   public void setScans(final int scans)
+   {
+      this.scans = scans;
+   }
+
+   /*
+    * (non-Javadoc)
+    * @see java.lang.Object#toString()
+    */
+   @Override
+   public String toString()
+   {
+      return "TweetBatchResult [page=" + (page == null ? 0 : page.size()) + ", scans=" + scans + "]";
+   }
+}
@@ -0,0 +1,664 @@
+/**
+ *
+ */
+package web30;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import web30.index.TweetIndexLoader;
+import web30.index.TweetListener;
+import web30.model.TweetRecord;
+import web30.model.TwitterStream;
+
+/**
+ * A cache of pages of tweets, in front of the tweet queries. A page is cached under its exact query, and is only ever
+ * the answer to that query. Nearby requests share a superset instead: the box is rounded out to a grid and the time
+ * window is rounded out to whole buckets, so that requests for nearby boxes and windows have the same quantized query,
+ * and if that query matches no more than {@link #SHARE_LIMIT} tweets, all of them are cached once. Any request inside
+ * it is then answered by filtering those tweets with the request's own query, with an exact total and its own next
+ * page. A quantized query that matches more is remembered as too big to share, so it is not read again. A quantized
+ * query is only read the second time a request inside it misses within the time to live, so that a request nobody
+ * repeats costs no more than its own query.
+ * <p>
+ * The cache holds as many pages as fit in an estimated number of bytes, dropping the least recently used first, and
+ * pages expire after a time to live. A page is dropped as soon as the {@link TweetIndexLoader} tells of a tweet added
+ * inside its box and window, which it does for the tweets ingested by this service and, once the index is loaded, for
+ * the tweets its refresh finds. Without the index, tweets added to the database by other programs are only seen once
+ * the pages expire, so the time to live is kept short. The tweets of a page are held as {@link TweetRecord}s, and each
+ * hit is answered with a new page made from them.
+ */
+public class TweetCache implements TweetListener
+{
+   /** the default size of the grid that boxes are rounded out to, in degrees */
+   public static final double DEFAULT_GRID = 0.01;
+
+   /** the default size of the buckets that time windows are rounded out to, in milliseconds */
+   public static final long DEFAULT_BUCKET = 60 * 60 * 1000L;
+
+   /** the default time a page stays in the cache, in milliseconds */
+   public static final long DEFAULT_TTL = 5 * 60 * 1000L;
+
+   /** the default estimated number of bytes the pages in the cache can use */
+   public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+   /** the most tweets a quantized query can match for them to be cached and shared by the requests inside it */
+   public static final int SHARE_LIMIT = 5000;
+
+   /** the most quantized queries remembered as having missed once */
+   private static final int MISSED_LIMIT = 1000;
+
+   /** the estimated size of a page without its tweets, in bytes */
+   private static final long PAGE_BYTES = 256;
+
+   /** the estimated size of a tweet without its strings, in bytes. The bounding boxes are shared, so not counted. */
+   private static final long TWEET_BYTES = 64;
+
+   /** the estimated size of a string without its characters, in bytes */
+   private static final long STRING_BYTES = 40;
+
+   /**
+    * A cached page and what is needed to decide when it is no longer good.
+    */
+   private static class Entry
+   {
+      /** the query that found the page */
+      private final TweetQuery query;
+      /** the tweets on the page */
+      private final TweetRecord[] tweets;
+      /** the offset of the first tweet on the page */
+      private final long offset;
+      /** the total number of tweets that could be returned */
+      private final long total;
+      /** how the total was counted */
+      private final String totalMode;
+      /** the token for the next page, or null */
+      private final String next;
+      /** the time the page expires, in milliseconds since the epoch */
+      private final long expires;
+      /** the estimated size of the page, in bytes */
+      private final long bytes;
+
+      /**
+       * @param query
+       *           the query that found the page
+       * @param tweets
+       *           the tweets on the page
+       * @param page
+       *           the page, for everything but its tweets
+       * @param expires
+       *           the time the page expires, in milliseconds since the epoch
+       * @param bytes
+       *           the estimated size of the page, in bytes
+       */
+      Entry(final TweetQuery query, final TweetRecord[] tweets, final Tweets page, final long expires,
+            final long bytes)
+      {
+         this.query = query;
+         this.tweets = tweets;
+         this.offset = page.getOffset();
+         this.total = page.getTotal();
+         this.totalMode = page.getTotalMode();
+         this.next = page.getNext();
+         this.expires = expires;
+         this.bytes = bytes;
+      }
+
+      /**
+       * @return a new page with the cached tweets
+       */
+      Tweets toPage()
+      {
+         final List<TwitterStream> list = new ArrayList<>(tweets.length);
+         for (final TweetRecord tweet : tweets)
+         {
+            list.add(tweet.toTweet());
+         }
+         final Tweets page = new Tweets();
+         page.setTweet(list);
+         page.setOffset(offset);
+         page.setTotal(total);
+         page.setTotalMode(totalMode);
+         page.setNext(next);
+         return page;
+      }
+   }
+
+   /** the cache in use */
+   private static volatile TweetCache instance = new TweetCache(DEFAULT_GRID, DEFAULT_BUCKET, DEFAULT_TTL,
+         DEFAULT_MAX_BYTES);
+
+   static
+   {
+      // whichever cache is in use hears about new tweets
+      TweetIndexLoader.addListener(new TweetListener()
+      {
+         @Override
+         public void tweetsAdded(final List<TwitterStream> tweets)
+         {
+            instance.tweetsAdded(tweets);
+         }
+      });
+   }
+
+   /** the size of the grid that boxes are rounded out to, in degrees */
+   private final double grid;
+   /** the size of the buckets that time windows are rounded out to, in milliseconds */
+   private final long bucket;
+   /** the time a page stays in the cache, in milliseconds */
+   private final long ttl;
+   /** the estimated number of bytes the pages can use, or 0 to cache nothing */
+   private final long maxBytes;
+   /** the cached pages, from least to most recently used */
+   private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+   /** the time of the first miss of each quantized query that has missed once, by its key, oldest first */
+   private final LinkedHashMap<String, Long> missed = new LinkedHashMap<>();
+   /** the estimated number of bytes used by the pages */
+   private long bytes;
+   /** the number of requests answered from the cache */
+   private long hits;
+   /** the number of requests that were neither in the cache nor answered from a cached superset */
+   private long misses;
+   /** the number of pages dropped to make room */
+   private long evictions;
+   /** the number of pages dropped because tweets were added inside them */
+   private long invalidations;
+
+   /**
+    * @param grid
+    *           the size of the grid that boxes are rounded out to, in degrees
+    * @param bucket
+    *           the size of the buckets that time windows are rounded out to, in milliseconds
+    * @param ttl
+    *           the time a page stays in the cache, in milliseconds
+    * @param maxBytes
+    *           the estimated number of bytes the pages can use, or 0 to cache nothing
+    */
+   public TweetCache(final double grid, final long bucket, final long ttl, final long maxBytes)
+   {
+      if (!(grid > 0) || bucket <= 0)
+      {
+         throw new IllegalArgumentException("The cache grid and bucket must be positive");
+      }
+      this.grid = grid;
+      this.bucket = bucket;
+      this.ttl = ttl;
+      this.maxBytes = maxBytes;
+   }
+
+   /**
+    * replace the cache in use with an empty one
+    *
+    * @param grid
+    *           the size of the grid that boxes are rounded out to, in degrees
+    * @param bucket
+    *           the size of the buckets that time windows are rounded out to, in milliseconds
+    * @param ttl
+    *           the time a page stays in the cache, in milliseconds
+    * @param maxBytes
+    *           the estimated number of bytes the pages can use, or 0 to cache nothing
+    */
+   public static void configure(final double grid, final long bucket, final long ttl, final long maxBytes)
+   {
+      instance = new TweetCache(grid, bucket, ttl, maxBytes);
+   }
+
+   /**
+    * @param time
+    *           milliseconds since the epoch
+    * @param size
+    *           the size of a bucket, in milliseconds
+    * @return the number of the bucket that holds the time, rounded down even before the epoch
+    */
+   private static long bucketOf(final long time, final long size)
+   {
+      final long number = time / size;
+      return time % size < 0 ? number - 1 : number;
+   }
+
+   /**
+    * @return the cache in use
+    */
+   public static TweetCache getInstance()
+   {
+      return instance;
+   }
+
+   /**
+    * @param tweet
+    *           a tweet
+    * @param cursor
+    *           the last tweet of the previous page
+    * @return true if the tweet comes after the cursor, in (time, tweetid) order
+    */
+   private static boolean isAfter(final TweetRecord tweet, final TweetCursor cursor)
+   {
+      final long time = cursor.getTime().getTime();
+      if (tweet.getTime() != time)
+      {
+         return tweet.getTime() > time;
+      }
+      return tweet.getTweetid() != null && tweet.getTweetid().compareTo(cursor.getTweetid()) > 0;
+   }
+
+   /**
+    * @param tweets
+    *           the tweets of a page
+    * @return the estimated number of bytes the page uses
+    */
+   private static long sizeOf(final TweetRecord[] tweets)
+   {
+      long size = PAGE_BYTES;
+      for (final TweetRecord tweet : tweets)
+      {
+         size += TWEET_BYTES + sizeOf(tweet.getText()) + sizeOf(tweet.getUserid());
+         if (tweet.getId() == TweetRecord.NO_ID)
+         {
+            size += sizeOf(tweet.getTweetid());
+         }
+      }
+      return size;
+   }
+
+   /**
+    * @param value
+    *           a string, or null
+    * @return the estimated number of bytes the string uses, or 0 if it is null
+    */
+   private static long sizeOf(final String value)
+   {
+      return value == null ? 0 : STRING_BYTES + 2 * value.length();
+   }
+
+   /**
+    * drop every page
+    */
+   public synchronized void clear()
+   {
+      entries.clear();
+      missed.clear();
+      bytes = 0;
+   }
+
+   /**
+    * @param key
+    *           the key of a query, from {@link #key(TweetQuery, CountMode, long, TweetProjection)}
+    * @return the cached page, or null if there is none or it has expired. A hit is counted here, and a miss by
+    *         {@link #share(TweetQuery, List)}, which is asked next and may still answer the request.
+    */
+   public synchronized Tweets get(final String key)
+   {
+      final Entry entry = entries.get(key);
+      if (entry == null)
+      {
+         return null;
+      }
+      if (entry.expires <= System.currentTimeMillis())
+      {
+         entries.remove(key);
+         bytes -= entry.bytes;
+         return null;
+      }
+      hits++;
+      return entry.toPage();
+   }
+
+   /**
+    * @return the counters and the size of the cache
+    */
+   public synchronized CacheStats getStats()
+   {
+      final CacheStats stats = new CacheStats();
+      stats.setEntries(entries.size());
+      stats.setBytes(bytes);
+      stats.setMaxBytes(maxBytes);
+      stats.setHits(hits);
+      stats.setMisses(misses);
+      stats.setEvictions(evictions);
+      stats.setInvalidations(invalidations);
+      return stats;
+   }
+
+   /**
+    * @param query
+    *           a query
+    * @param mode
+    *           how the total is counted
+    * @param countLimit
+    *           the number of tweets after which an atleast count stops
+    * @param projection
+    *           the fields of the tweets on the page
+    * @return the key of the page for the query, which only the same query has
+    */
+   public String key(final TweetQuery query, final CountMode mode, final long countLimit,
+         final TweetProjection projection)
+   {
+      final StringBuilder key = new StringBuilder();
+      if (query.hasNorthSouth())
+      {
+         key.append(query.getNorth()).append(',').append(query.getSouth());
+      }
+      key.append('/');
+      if (query.hasEastWest())
+      {
+         key.append(query.getEast()).append(',').append(query.getWest());
+      }
+      key.append('/');
+      if (query.hasTimeRange())
+      {
+         key.append(query.getMinTime().getTime()).append(',').append(query.getMaxTime().getTime());
+      }
+      key.append('/').append(query.getMaxResults());
+      key.append('/').append(query.getCursor() == null ? "" : query.getCursor().toToken());
+      key.append('/').append(mode.getLabel());
+      if (mode == CountMode.AT_LEAST)
+      {
+         key.append(',').append(countLimit);
+      }
+      key.append('/').append(projection);
+      key.append('/').append(query.getTerms());
+      key.append(query.isSample() ? "/sample" : "");
+      return key.toString();
+   }
+
+   /**
+    * cache a page
+    *
+    * @param key
+    *           the key of the query, from {@link #key(TweetQuery, CountMode, long, TweetProjection)}
+    * @param query
+    *           the query that found the page
+    * @param page
+    *           the page
+    */
+   public synchronized void put(final String key, final TweetQuery query, final Tweets page)
+   {
+      put(key, query, page, records(page.getTweet()));
+   }
+
+   /**
+    * cache a page of records
+    *
+    * @param key
+    *           the key of the query
+    * @param query
+    *           the query that found the page
+    * @param page
+    *           the page, for everything but its tweets
+    * @param tweets
+    *           the tweets of the page
+    */
+   private void put(final String key, final TweetQuery query, final Tweets page, final TweetRecord[] tweets)
+   {
+      final long size = sizeOf(tweets);
+      if (size > maxBytes)
+      {
+         return;
+      }
+
+      final Entry old = entries.put(key, new Entry(query, tweets, page, System.currentTimeMillis() + ttl, size));
+      if (old != null)
+      {
+         bytes -= old.bytes;
+      }
+      bytes += size;
+
+      final Iterator<Entry> eldest = entries.values().iterator();
+      while (bytes > maxBytes)
+      {
+         bytes -= eldest.next().bytes;
+         eldest.remove();
+         evictions++;
+      }
+   }
+
+   /**
+    * cache every tweet of a superset from {@link #superset(TweetQuery)}, if there are few enough of them to share, or
+    * else remember that there are too many, and answer the query it was read for from it. The query has already been
+    * counted as a miss.
+    *
+    * @param superset
+    *           the superset
+    * @param tweets
+    *           the tweets it found, in (time, tweet id) order, up to its maximum number of results
+    * @param query
+    *           the query from the request
+    * @param results
+    *           the empty list to which the matching tweets are added
+    * @return the total number of matching tweets, or -1 if the superset has too many tweets to answer the query
+    */
+   public synchronized long putSuperset(final TweetQuery superset, final List<TwitterStream> tweets,
+         final TweetQuery query, final List<TwitterStream> results)
+   {
+      final boolean complete = tweets.size() <= SHARE_LIMIT;
+      final TweetRecord[] records = complete ? records(tweets) : new TweetRecord[0];
+      final Tweets page = new Tweets();
+      page.setTotal(complete ? tweets.size() : -1);
+      put(supersetKey(superset), superset, page, records);
+      return complete ? answer(records, query, results) : -1;
+   }
+
+   /**
+    * @param tweets
+    *           tweets
+    * @return their records
+    */
+   private static TweetRecord[] records(final List<TwitterStream> tweets)
+   {
+      final TweetRecord[] records = new TweetRecord[tweets.size()];
+      for (int i = 0; i < records.length; i++)
+      {
+         records[i] = TweetRecord.of(tweets.get(i));
+      }
+      return records;
+   }
+
+   /**
+    * round a query out to the grid and the time buckets. The quantized query finds every tweet the original one does,
+    * and perhaps a few more near the edges, so it is only ever used to read a superset that is then filtered with the
+    * original query.
+    *
+    * @param query
+    *           the query from the request
+    * @return the quantized query, with the same cursor and page size
+    */
+   public TweetQuery quantize(final TweetQuery query)
+   {
+      Double north = null;
+      Double south = null;
+      if (query.hasNorthSouth())
+      {
+         north = Double.valueOf(Math.ceil(query.getNorth() / grid) * grid);
+         south = Double.valueOf(Math.floor(query.getSouth() / grid) * grid);
+      }
+
+      Double east = null;
+      Double west = null;
+      if (query.hasEastWest())
+      {
+         east = Double.valueOf(Math.ceil(query.getEast() / grid) * grid);
+         west = Double.valueOf(Math.floor(query.getWest() / grid) * grid);
+      }
+
+      Date minDate = null;
+      Date maxDate = null;
+      if (query.hasTimeRange())
+      {
+         minDate = new Date(bucketOf(query.getMinTime().getTime(), bucket) * bucket);
+         maxDate = new Date((bucketOf(query.getMaxTime().getTime(), bucket) + 1) * bucket - 1);
+      }
+
+      final TweetQuery quantized = new TweetQuery(north, south, east, west, minDate, maxDate);
+      quantized.setCursor(query.getCursor());
+      quantized.setMaxResults(query.getMaxResults());
+      quantized.setText(query.getText());
+      quantized.setSample(query.isSample());
+      return quantized;
+   }
+
+   /**
+    * answer a query from the cached superset of its quantized query, the way {@link web30.index.TweetIndex#find} would:
+    * the tweets that match the query are filtered from the superset, and the ones after the cursor of the query are
+    * returned, in time order, up to its maximum number of results
+    *
+    * @param query
+    *           the query from the request
+    * @param results
+    *           the empty list to which the matching tweets are added
+    * @return the total number of matching tweets, or -1 if no superset that can answer the query is cached, which
+    *         is counted as a miss
+    */
+   public synchronized long share(final TweetQuery query, final List<TwitterStream> results)
+   {
+      if (query.isSample())
+      {
+         misses++;
+         return -1;
+      }
+      final String key = supersetKey(supersetOf(query));
+      final Entry entry = entries.get(key);
+      if (entry == null || entry.total < 0)
+      {
+         misses++;
+         return -1;
+      }
+      if (entry.expires <= System.currentTimeMillis())
+      {
+         entries.remove(key);
+         bytes -= entry.bytes;
+         misses++;
+         return -1;
+      }
+      hits++;
+      return answer(entry.tweets, query, results);
+   }
+
+   /**
+    * @param tweets
+    *           the tweets of a superset, in (time, tweet id) order
+    * @param query
+    *           the query from the request
+    * @param results
+    *           the empty list to which the matching tweets after the cursor of the query are added, up to its maximum
+    *           number of results
+    * @return the total number of matching tweets
+    */
+   private static long answer(final TweetRecord[] tweets, final TweetQuery query, final List<TwitterStream> results)
+   {
+      final TweetCursor cursor = query.getCursor();
+      long total = 0;
+      for (final TweetRecord tweet : tweets)
+      {
+         if (!query.matches(tweet))
+         {
+            continue;
+         }
+         total++;
+         if (results.size() < query.getMaxResults() && (cursor == null || isAfter(tweet, cursor)))
+         {
+            results.add(tweet.toTweet());
+         }
+      }
+      return total;
+   }
+
+   /**
+    * @param query
+    *           the query from the request
+    * @return the superset to read and cache with {@link #putSuperset(TweetQuery, List, TweetQuery, List)} for the
+    *         requests inside the quantized query of the query to share, or null if it cannot be shared, is already
+    *         cached, or this is the first miss inside it within the time to live
+    */
+   public synchronized TweetQuery superset(final TweetQuery query)
+   {
+      if (maxBytes == 0 || query.isSample())
+      {
+         return null;
+      }
+      final TweetQuery superset = supersetOf(query);
+      final String key = supersetKey(superset);
+      final Entry entry = entries.get(key);
+      final long now = System.currentTimeMillis();
+      if (entry != null && entry.expires > now)
+      {
+         return null;
+      }
+      final Long first = missed.remove(key);
+      if (first == null || now - first.longValue() >= ttl)
+      {
+         missed.put(key, Long.valueOf(now));
+         if (missed.size() > MISSED_LIMIT)
+         {
+            final Iterator<Long> eldest = missed.values().iterator();
+            eldest.next();
+            eldest.remove();
+         }
+         return null;
+      }
+      return superset;
+   }
+
+   /**
+    * @param query
+    *           the query from the request
+    * @return its quantized query, from the first tweet, with room for one more tweet than can be shared
+    */
+   private TweetQuery supersetOf(final TweetQuery query)
+   {
+      final TweetQuery superset = quantize(query);
+      superset.setCursor(null);
+      superset.setMaxResults(SHARE_LIMIT + 1);
+      superset.setSample(false);
+      return superset;
+   }
+
+   /**
+    * @param superset
+    *           a superset
+    * @return the key its tweets are cached under
+    */
+   private String supersetKey(final TweetQuery superset)
+   {
+      return "superset/" + key(superset, CountMode.EXACT, 0, TweetProjection.ALL);
+   }
+
+   /**
+    * drop the pages whose box and time window hold any of the added tweets
+    *
+    * @see web30.index.TweetListener#tweetsAdded(java.util.List)
+    */
+   @Override
+   public synchronized void tweetsAdded(final List<TwitterStream> tweets)
+   {
+      final Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+      while (it.hasNext())
+      {
+         final Entry entry = it.next().getValue();
+         for (final TwitterStream tweet : tweets)
+         {
+            if (entry.query.matches(tweet))
+            {
+               bytes -= entry.bytes;
+               it.remove();
+               invalidations++;
+               break;
+            }
+         }
+      }
+   }
+
+   /*
+    * (non-Javadoc)
+    * @see java.lang.Object#toString()
+    */
+   @Override
+   public synchronized String toString()
+   {
+      return "TweetCache [entries=" + entries.size() + ", bytes=" + bytes + ", hits=" + hits + ", misses=" + misses
+            + "]";
+   }
+}
@@ -0,0 +1,448 @@
+/**
+ *
+ */
+package web30;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+
+import web30.model.TwitterStream;
+
+/**
+ * Writes a page of tweets in a compact binary form, column by column, for clients that ask for {@link #MEDIA_TYPE} in
+ * their Accept header. Every number is little-endian. The page is:
+ * <ol>
+ * <li>the magic bytes TWC1</li>
+ * <li>int32 the number of tweets, n</li>
+ * <li>int64 the offset, int64 the total, and int8 how the total was counted: 0 exact, 1 atleast, 2 estimate</li>
+ * <li>int8 the columns that follow, one bit each: {@link #LAT}, {@link #LON}, {@link #TIME}, {@link #TWEETID},
+ * {@link #USERID}, {@link #TEXT}, {@link #BOUNDINGBOX}. A column is left out when no tweet has a value for it.</li>
+ * <li>the token for the next page: int32 its length in bytes, or -1 if there is none, and its UTF-8 bytes</li>
+ * <li>the string dictionary: int32 the number of strings, then for each, int32 its length in bytes and its UTF-8
+ * bytes</li>
+ * <li>each column, in the order of the bits: int32 its length in bytes, then
+ * <ul>
+ * <li>lat and lon: n int32 values, the degrees times {@link #SCALE}, or {@link Integer#MIN_VALUE} for none</li>
+ * <li>time: n zigzag varints, each the milliseconds since the time before it (the first since the epoch)</li>
+ * <li>strings: n varints, each the position of the string in the dictionary plus one, or 0 for none</li>
+ * </ul>
+ * </li>
+ * </ol>
+ * Everything is encoded into one reused buffer, so apart from the dictionary nothing is allocated for each tweet.
+ */
+@Provider
+@Produces(TweetColumnsWriter.MEDIA_TYPE)
+public class TweetColumnsWriter implements MessageBodyWriter<Tweets>
+{
+   /** the media type of the binary form */
+   public static final String MEDIA_TYPE = "application/x-tweet-columns";
+
+   /** the bit for the lat column */
+   public static final int LAT = 1;
+   /** the bit for the lon column */
+   public static final int LON = 2;
+   /** the bit for the time column */
+   public static final int TIME = 4;
+   /** the bit for the tweet id column */
+   public static final int TWEETID = 8;
+   /** the bit for the user column */
+   public static final int USERID = 16;
+   /** the bit for the text column */
+   public static final int TEXT = 32;
+   /** the bit for the bounding box column */
+   public static final int BOUNDINGBOX = 64;
+
+   /** the number of fixed point units in a degree, which keeps the coordinates to about a centimeter */
+   public static final double SCALE = 1e7;
+
+   /** the magic bytes at the start of a page */
+   private static final byte[] MAGIC = { 'T', 'W', 'C', '1' };
+
+   /** the size of the encoding buffer */
+   private static final int BUFFER_SIZE = 8192;
+
+   /**
+    * An output stream writer with its own buffer, for little-endian numbers and UTF-8 strings.
+    */
+   private static class Encoder
+   {
+      /** where the bytes go */
+      private final OutputStream out;
+      /** the bytes not written yet */
+      private final byte[] buffer = new byte[BUFFER_SIZE];
+      /** the number of bytes in the buffer */
+      private int size;
+
+      /**
+       * @param out
+       *           where the bytes go
+       */
+      Encoder(final OutputStream out)
+      {
+         this.out = out;
+      }
+
+      /**
+       * write the buffer to the stream
+       *
+       * @throws IOException
+       *            if the stream fails
+       */
+      void flush() throws IOException
+      {
+         out.write(buffer, 0, size);
+         size = 0;
+      }
+
+      /**
+       * @param value
+       *           the byte to write
+       * @throws IOException
+       *            if the stream fails
+       */
+      void writeByte(final int value) throws IOException
+      {
+         if (size == buffer.length)
+         {
+            flush();
+         }
+         buffer[size++] = (byte) value;
+      }
+
+      /**
+       * @param value
+       *           the int32 to write
+       * @throws IOException
+       *            if the stream fails
+       */
+      void writeInt(final int value) throws IOException
+      {
+         writeByte(value);
+         writeByte(value >>> 8);
+         writeByte(value >>> 16);
+         writeByte(value >>> 24);
+      }
+
+      /**
+       * @param value
+       *           the int64 to write
+       * @throws IOException
+       *            if the stream fails
+       */
+      void writeLong(final long value) throws IOException
+      {
+         writeInt((int) value);
+         writeInt((int) (value >>> 32));
+      }
+
+      /**
+       * @param value
+       *           the string to write as UTF-8, without its length
+       * @throws IOException
+       *            if the stream fails
+       */
+      void writeUtf8(final String value) throws IOException
+      {
+         for (int i = 0; i < value.length(); i++)
+         {
+            final int c = value.codePointAt(i);
+            if (c < 0x80)
+            {
+               writeByte(c);
+            }
+            else if (c < 0x800)
+            {
+               writeByte(0xc0 | c >> 6);
+               writeByte(0x80 | c & 0x3f);
+            }
+            else if (c < 0x10000)
+            {
+               writeByte(0xe0 | c >> 12);
+               writeByte(0x80 | c >> 6 & 0x3f);
+               writeByte(0x80 | c & 0x3f);
+            }
+            else
+            {
+               writeByte(0xf0 | c >> 18);
+               writeByte(0x80 | c >> 12 & 0x3f);
+               writeByte(0x80 | c >> 6 & 0x3f);
+               writeByte(0x80 | c & 0x3f);
+               i++;
+            }
+         }
+      }
+
+      /**
+       * @param value
+       *           the unsigned varint to write, seven bits at a time, low bits first
+       * @throws IOException
+       *            if the stream fails
+       */
+      void writeVarint(final long value) throws IOException
+      {
+         long rest = value;
+         while ((rest & ~0x7fL) != 0)
+         {
+            writeByte((int) (rest & 0x7f | 0x80));
+            rest >>>= 7;
+         }
+         writeByte((int) rest);
+      }
+   }
+
+   /**
+    * @param tweet
+    *           a tweet
+    * @param column
+    *           the bit of a string column
+    * @return the value of the column for the tweet
+    */
+   private static String stringOf(final TwitterStream tweet, final int column)
+   {
+      switch (column)
+      {
+         case TWEETID:
+            return tweet.getTweetid();
+         case USERID:
+            return tweet.getUserid();
+         case TEXT:
+            return tweet.getText();
+         default:
+            return tweet.getBoundingbox();
+      }
+   }
+
+   /**
+    * @param value
+    *           a string
+    * @return the number of bytes in its UTF-8 form
+    */
+   private static int utf8Length(final String value)
+   {
+      int length = 0;
+      for (int i = 0; i < value.length(); i++)
+      {
+         final int c = value.codePointAt(i);
+         if (c < 0x80)
+         {
+            length += 1;
+         }
+         else if (c < 0x800)
+         {
+            length += 2;
+         }
+         else if (c < 0x10000)
+         {
+            length += 3;
+         }
+         else
+         {
+            length += 4;
+            i++;
+         }
+      }
+      return length;
+   }
+
+   /**
+    * @param value
+    *           an unsigned varint
+    * @return the number of bytes it takes
+    */
+   private static int varintLength(final long value)
+   {
+      int length = 1;
+      long rest = value >>> 7;
+      while (rest != 0)
+      {
+         length++;
+         rest >>>= 7;
+      }
+      return length;
+   }
+
+   /**
+    * @param value
+    *           a signed number
+    * @return the number with its sign in the low bit, so that small negative numbers are small varints
+    */
+   private static long zigzag(final long value)
+   {
+      return value << 1 ^ value >> 63;
+   }
+
+   /*
+    * (non-Javadoc)
+    * @see javax.ws.rs.ext.MessageBodyWriter#getSize(java.lang.Object, java.lang.Class, java.lang.reflect.Type,
+    * java.lang.annotation.Annotation[], javax.ws.rs.core.MediaType)
+    */
+   @Override
+   public long getSize(final Tweets t, final Class<?> type, final Type genericType, final Annotation[] annotations,
+         final MediaType mediaType)
+   {
+      // deprecated by JAX-RS 2.0
+      return -1;
+   }
+
+   /*
+    * (non-Javadoc)
+    * @see javax.ws.rs.ext.MessageBodyWriter#isWriteable(java.lang.Class, java.lang.reflect.Type,
+    * java.lang.annotation.Annotation[], javax.ws.rs.core.MediaType)
+    */
+   @Override
+   public boolean isWriteable(final Class<?> type, final Type genericType, final Annotation[] annotations,
+         final MediaType mediaType)
+   {
+      return Tweets.class.isAssignableFrom(type);
+   }
+
+   /**
+    * write a page in the binary form
+    *
+    * @param page
+    *           the page
+    * @param output
+    *           where to write it
+    * @throws IOException
+    *            if the page cannot be written
+    */
+   public void write(final Tweets page, final OutputStream output) throws IOException
+   {
+      final List<TwitterStream> tweets = page.getTweet();
+      final int n = tweets.size();
+
+      // find the columns that have values, and number the strings
+      int columns = 0;
+      final Map<String, Integer> positions = new HashMap<>();
+      final List<String> dictionary = new ArrayList<>();
+      for (final TwitterStream tweet : tweets)
+      {
+         columns |= tweet.getLat() != null ? LAT : 0;
+         columns |= tweet.getLon() != null ? LON : 0;
+         columns |= tweet.getTime() != null ? TIME : 0;
+         for (int column = TWEETID; column <= BOUNDINGBOX; column <<= 1)
+         {
+            final String value = stringOf(tweet, column);
+            if (value != null)
+            {
+               columns |= column;
+               if (!positions.containsKey(value))
+               {
+                  positions.put(value, Integer.valueOf(dictionary.size()));
+                  dictionary.add(value);
+               }
+            }
+         }
+      }
+
+      final Encoder out = new Encoder(output);
+      for (final byte b : MAGIC)
+      {
+         out.writeByte(b);
+      }
+      out.writeInt(n);
+      out.writeLong(page.getOffset());
+      out.writeLong(page.getTotal());
+      out.writeByte(CountMode.fromString(page.getTotalMode()).ordinal());
+      out.writeByte(columns);
+
+      if (page.getNext() == null)
+      {
+         out.writeInt(-1);
+      }
+      else
+      {
+         out.writeInt(utf8Length(page.getNext()));
+         out.writeUtf8(page.getNext());
+      }
+
+      out.writeInt(dictionary.size());
+      for (final String value : dictionary)
+      {
+         out.writeInt(utf8Length(value));
+         out.writeUtf8(value);
+      }
+
+      for (final int column : new int[] { LAT, LON })
+      {
+         if ((columns & column) != 0)
+         {
+            out.writeInt(4 * n);
+            for (final TwitterStream tweet : tweets)
+            {
+               final Double value = column == LAT ? tweet.getLat() : tweet.getLon();
+               out.writeInt(value == null ? Integer.MIN_VALUE : (int) Math.round(value.doubleValue() * SCALE));
+            }
+         }
+      }
+
+      if ((columns & TIME) != 0)
+      {
+         // once to size the column and once to write it
+         int length = 0;
+         long previous = 0;
+         for (final TwitterStream tweet : tweets)
+         {
+            final long time = tweet.getTime() == null ? previous : tweet.getTime().getTime();
+            length += varintLength(zigzag(time - previous));
+            previous = time;
+         }
+         out.writeInt(length);
+         previous = 0;
+         for (final TwitterStream tweet : tweets)
+         {
+            final long time = tweet.getTime() == null ? previous : tweet.getTime().getTime();
+            out.writeVarint(zigzag(time - previous));
+            previous = time;
+         }
+      }
+
+      for (int column = TWEETID; column <= BOUNDINGBOX; column <<= 1)
+      {
+         if ((columns & column) != 0)
+         {
+            int length = 0;
+            for (final TwitterStream tweet : tweets)
+            {
+               final String value = stringOf(tweet, column);
+               length += value == null ? 1 : varintLength(positions.get(value).intValue() + 1);
+            }
+            out.writeInt(length);
+            for (final TwitterStream tweet : tweets)
+            {
+               final String value = stringOf(tweet, column);
+               out.writeVarint(value == null ? 0 : positions.get(value).intValue() + 1);
+            }
+         }
+      }
+
+      out.flush();
+   }
+
+   /**
+    * write the page in the binary form
+    *
+    * @see javax.ws.rs.ext.MessageBodyWriter#writeTo(java.lang.Object, java.lang.Class, java.lang.reflect.Type,
+    *      java.lang.annotation.Annotation[], javax.ws.rs.core.MediaType, javax.ws.rs.core.MultivaluedMap,
+    *      java.io.OutputStream)
+    */
+   @Override
+   public void writeTo(final Tweets page, final Class<?> type, final Type genericType, final Annotation[] annotations,
+         final MediaType mediaType, final MultivaluedMap<String, Object> httpHeaders, final OutputStream entityStream)
+         throws IOException
+   {
+      write(page, entityStream);
+   }
+}
@@ -0,0 +1,213 @@
+/**
+ *
+ */
+package web30;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+import web30.TweetProjection.Field;
+import web30.model.TweetRecord;
+import web30.model.TwitterStream;
+
+/**
+ * Writes tweets as comma separated values, one line each after a header line that names the fields, which is the form
+ * {@link TweetParser} reads back. Values with commas, quotes or line ends are quoted, and missing values are left
+ * empty. The times are in the form of the JSON responses. This is not thread safe.
+ */
+public class TweetCsvWriter
+{
+   /** where the values go */
+   private final Writer out;
+   /** the fields written, in order */
+   private final List<Field> fields;
+   /** the format of the dates */
+   private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
+   /** the date the times of records are formatted through, so that each one does not need a new one */
+   private final Date date = new Date();
+
+   /**
+    * @param out
+    *           where the values go
+    * @param projection
+    *           the fields to write
+    */
+   public TweetCsvWriter(final Writer out, final TweetProjection projection)
+   {
+      this.out = out;
+      this.fields = new ArrayList<>(projection.getFields());
+      dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+   }
+
+   /**
+    * write the header line
+    *
+    * @throws IOException
+    *            on error
+    */
+   public void header() throws IOException
+   {
+      for (int i = 0; i < fields.size(); i++)
+      {
+         if (i > 0)
+         {
+            out.write(',');
+         }
+         out.write(fields.get(i).getName());
+      }
+      out.write('\n');
+   }
+
+   /**
+    * write one tweet as a line
+    *
+    * @param tweet
+    *           the tweet
+    * @throws IOException
+    *            on error
+    */
+   public void tweet(final TwitterStream tweet) throws IOException
+   {
+      for (int i = 0; i < fields.size(); i++)
+      {
+         if (i > 0)
+         {
+            out.write(',');
+         }
+         switch (fields.get(i))
+         {
+            case TWEETID:
+               value(tweet.getTweetid());
+               break;
+            case TIME:
+               value(tweet.getTime() == null ? null : dateFormat.format(tweet.getTime()));
+               break;
+            case LAT:
+               value(tweet.getLat());
+               break;
+            case LON:
+               value(tweet.getLon());
+               break;
+            case TEXT:
+               value(tweet.getText());
+               break;
+            case USERID:
+               value(tweet.getUserid());
+               break;
+            case BOUNDINGBOX:
+               value(tweet.getBoundingbox());
+               break;
+         }
+      }
+      out.write('\n');
+   }
+
+   /**
+    * write one record as a line
+    *
+    * @param tweet
+    *           the record
+    * @throws IOException
+    *            on error
+    */
+   public void tweet(final TweetRecord tweet) throws IOException
+   {
+      for (int i = 0; i < fields.size(); i++)
+      {
+         if (i > 0)
+         {
+            out.write(',');
+         }
+         switch (fields.get(i))
+         {
+            case TWEETID:
+               value(tweet.getTweetid());
+               break;
+            case TIME:
+               if (tweet.getTime() != TweetRecord.NO_TIME)
+               {
+                  date.setTime(tweet.getTime());
+                  value(dateFormat.format(date));
+               }
+               break;
+            case LAT:
+               value(tweet.getLat());
+               break;
+            case LON:
+               value(tweet.getLon());
+               break;
+            case TEXT:
+               value(tweet.getText());
+               break;
+            case USERID:
+               value(tweet.getUserid());
+               break;
+            case BOUNDINGBOX:
+               value(tweet.getBoundingbox());
+               break;
+         }
+      }
+      out.write('\n');
+   }
+
+   /**
+    * @param value
+    *           a coordinate, or NaN to leave it empty
+    * @throws IOException
+    *            on error
+    */
+   private void value(final double value) throws IOException
+   {
+      if (!Double.isNaN(value) && !Double.isInfinite(value))
+      {
+         out.write(Double.toString(value));
+      }
+   }
+
+   /**
+    * @param value
+    *           a coordinate, or null to leave it empty
+    * @throws IOException
+    *            on error
+    */
+   private void value(final Double value) throws IOException
+   {
+      if (value != null && !value.isNaN() && !value.isInfinite())
+      {
+         out.write(value.toString());
+      }
+   }
+
+   /**
+    * @param value
+    *           a value, or null to leave it empty
+    * @throws IOException
+    *            on error
+    */
+   private void value(final String value) throws IOException
+   {
+      if (value == null)
+      {
+         return;
+      }
+      boolean quote = false;
+      for (int i = 0; i < value.length() && !quote; i++)
+      {
+         final char c = value.charAt(i);
+         quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+      }
+      if (!quote)
+      {
+         out.write(value);
+         return;
+      }
+      out.write('"');
+      out.write(value.replace("\"", "\"\""));
+      out.write('"');
+   }
+}
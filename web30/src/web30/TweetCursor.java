@@ -0,0 +1,155 @@
+/**
+ *
+ */
+package web30;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Date;
+
+import javax.xml.bind.DatatypeConverter;
+
+import web30.model.TwitterStream;
+
+/**
+ * The position of a page of tweets. Tweets are paged in (time, tweetid) order, so a cursor holds the key of the last
+ * tweet on the previous page and the next page starts right after it, no matter how deep the page is. The cursor also
+ * remembers how many tweets came before it so that the offset can still be reported.
+ * <p>
+ * Clients only ever see the cursor as an opaque, URL safe token.
+ */
+public class TweetCursor
+{
+   /** the time of the last tweet on the previous page */
+   private final Date time;
+   /** the id of the last tweet on the previous page */
+   private final String tweetid;
+   /** the number of tweets on all the previous pages */
+   private final long offset;
+
+   /**
+    * @param time
+    *           the time of the last tweet on the previous page
+    * @param tweetid
+    *           the id of the last tweet on the previous page
+    * @param offset
+    *           the number of tweets on all the previous pages
+    */
+   public TweetCursor(final Date time, final String tweetid, final long offset)
+   {
+      this.time = time;
+      this.tweetid = tweetid;
+      this.offset = offset;
+   }
+
+   /**
+    * @param last
+    *           the last tweet on the current page
+    * @param offset
+    *           the number of tweets on the current page and all the pages before it
+    * @return the token for the next page
+    */
+   public static String after(final TwitterStream last, final long offset)
+   {
+      return new TweetCursor(last.getTime(), last.getTweetid(), offset).toToken();
+   }
+
+   /**
+    * @param token
+    *           a token from {@link #toToken()}
+    * @return the cursor
+    * @throws IllegalArgumentException
+    *            if the token is not one of ours
+    */
+   public static TweetCursor fromToken(final String token)
+   {
+      try
+      {
+         final String base64 = token.replace('-', '+').replace('_', '/');
+         final StringBuilder padded = new StringBuilder(base64);
+         while (padded.length() % 4 != 0)
+         {
+            padded.append('=');
+         }
+         final byte[] bytes = DatatypeConverter.parseBase64Binary(padded.toString());
+
+         try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes)))
+         {
+            final long time = input.readLong();
+            final long offset = input.readLong();
+            final String tweetid = input.readUTF();
+            if (offset < 0)
+            {
+               throw new IOException("negative offset");
+            }
+            return new TweetCursor(new Date(time), tweetid, offset);
+         }
+      }
+      catch (final IOException | RuntimeException e)
+      {
+         throw new IllegalArgumentException("Invalid cursor", e);
+      }
+   }
+
+   /**
+    * @return the number of tweets on all the previous pages
+    */
+   public long getOffset()
+   {
+      return offset;
+   }
+
+   /**
+    * @return the time of the last tweet on the previous page
+    */
+   public Date getTime()
+   {
+      return time;
+   }
+
+   /**
+    * @return the id of the last tweet on the previous page
+    */
+   public String getTweetid()
+   {
+      return tweetid;
+   }
+
+   /**
+    * @return the opaque token that identifies this cursor
+    */
+   public String toToken()
+   {
+      try (ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream output = new DataOutputStream(bytes))
+      {
+         output.writeLong(time.getTime());
+         output.writeLong(offset);
+         output.writeUTF(tweetid);
+         output.flush();
+
+         String token = DatatypeConverter.printBase64Binary(bytes.toByteArray());
+         token = token.replace('+', '-').replace('/', '_');
+         final int padding = token.indexOf('=');
+         return padding < 0 ? token : token.substring(0, padding);
+      }
+      catch (final IOException e)
+      {
+         // cannot happen with a byte array
+         throw new IllegalStateException(e);
+      }
+   }
+
+   /*
+    * (non-Javadoc)
+    * @see java.lang.Object#toString()
+    */
+   @Override
+   public String toString()
+   {
+      return "TweetCursor [time=" + time + ", tweetid=" + tweetid + ", offset=" + offset + "]";
+   }
+}
@@ -0,0 +1,88 @@
+/**
+ *
+ */
+package web30;
+
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+import web30.model.TwitterStream;
+
+/**
+ * The change from one time window to another: the tweets that are in the new window but were not in the old one, and
+ * the ids of the tweets that were in the old window but are not in the new one. If either is larger than the limit
+ * of the request, the delta is not complete and has neither, and the new window should be fetched in full instead.
+ */
+@XmlRootElement
+public class TweetDelta
+{
+   /** true if the delta has every change */
+   private boolean complete = true;
+   /** the tweets that entered the window, in time order */
+   private List<TwitterStream> entered;
+   /** the ids of the tweets that left the window */
+   private List<String> left;
+
+   /**
+    * @return the tweets that entered the window, in time order
+    */
+   public List<TwitterStream> getEntered()
+   {
+      return entered;
+   }
+
+   /**
+    * @return the ids of the tweets that left the window
+    */
+   public List<String> getLeft()
+   {
+      return left;
+   }
+
+   /**
+    * @return true if the delta has every change, false if the new window should be fetched in full
+    */
+   public boolean isComplete()
+   {
+      return complete;
+   }
+
+   /**
+    * @param complete
+    *           true if the delta has every change
+    */
+   public void setComplete(final boolean complete)
+   {
+      this.complete = complete;
+   }
+
+   /**
+    * @param entered
+    *           the tweets that entered the window, in time order
+    */
+   public void setEntered(final List<TwitterStream> entered)
+   {
+      this.entered = entered;
+   }
+
+   /**
+    * @param left
+    *           the ids of the tweets that left the window
+    */
+   public void setLeft(final List<String> left)
+   {
+      this.left = left;
+   }
+
+   /*
+    * (non-Javadoc)
+    * @see java.lang.Object#toString()
+    */
+   @Override
+   public String toString()
+   {
+      return "TweetDelta [complete=" + complete + ", entered=" + (entered == null ? 0 : entered.size()) + ", left="
+            + (left == null ? 0 : left.size()) + "]";
+   }
+}
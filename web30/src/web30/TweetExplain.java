@@ -0,0 +1,333 @@
+/**
+ *
+ */
+package web30;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * How a request for tweets was answered, returned instead of the tweets when the request asks to explain itself: what
+ * answered it, the SQL and the plan of the database queries it made, how many rows they read, and how long each phase
+ * took, counted from the start of the request.
+ */
+@XmlRootElement
+public class TweetExplain
+{
+   /**
+    * The time at which a phase of a request ended.
+    */
+   public static class Phase
+   {
+      /** the name of the phase */
+      private String name;
+      /** the milliseconds from the start of the request to the end of the phase */
+      private long millis;
+
+      /**
+       * create an empty phase
+       */
+      public Phase()
+      {
+      }
+
+      /**
+       * @param name
+       *           the name of the phase
+       * @param millis
+       *           the milliseconds from the start of the request to the end of the phase
+       */
+      public Phase(final String name, final long millis)
+      {
+         this.name = name;
+         this.millis = millis;
+      }
+
+      /**
+       * @return the milliseconds from the start of the request to the end of the phase
+       */
+      public long getMillis()
+      {
+         return millis;
+      }
+
+      /**
+       * @return the name of the phase
+       */
+      public String getName()
+      {
+         return name;
+      }
+
+      /**
+       * @param millis
+       *           the milliseconds from the start of the request to the end of the phase
+       */
+      public void setMillis(final long millis)
+      {
+         this.millis = millis;
+      }
+
+      /**
+       * @param name
+       *           the name of the phase
+       */
+      public void setName(final String name)
+      {
+         this.name = name;
+      }
+   }
+
+   /** the number of characters of JSON the tweets take */
+   private long bytes;
+   /** the phases, in the order they ended */
+   private List<Phase> phase = new ArrayList<>();
+   /** the rows of the database plans, in the order of the SQL */
+   private List<String> plan = new ArrayList<>();
+   /** the number of tweets returned */
+   private int returned;
+   /** the number of rows read */
+   private long rowsExamined;
+   /** what answered the request */
+   private String source;
+   /** the SQL of the database queries */
+   private List<String> sql = new ArrayList<>();
+   /** the time the request started */
+   private final long startTime;
+   /** the total number of tweets that match */
+   private long total;
+   /** how the total was counted */
+   private String totalMode;
+
+   /**
+    * create an explanation that starts now
+    */
+   public TweetExplain()
+   {
+      this(System.currentTimeMillis());
+   }
+
+   /**
+    * @param startTime
+    *           the time the request started
+    */
+   public TweetExplain(final long startTime)
+   {
+      this.startTime = startTime;
+   }
+
+   /**
+    * add a database query and its plan, and the rows the plan expects to read
+    *
+    * @param query
+    *           the SQL of the query
+    * @param rows
+    *           the rows of the plan, each a map from the name of a column of the plan to its value
+    */
+   public synchronized void addPlan(final String query, final List<Map<String, Object>> rows)
+   {
+      sql.add(query);
+      for (final Map<String, Object> row : rows)
+      {
+         plan.add(String.valueOf(row));
+         final Object read = row.get("rows");
+         if (read instanceof Number)
+         {
+            rowsExamined += ((Number) read).longValue();
+         }
+      }
+   }
+
+   /**
+    * @return the number of characters of JSON the tweets take
+    */
+   public long getBytes()
+   {
+      return bytes;
+   }
+
+   /**
+    * @return the phases, in the order they ended
+    */
+   public synchronized List<Phase> getPhase()
+   {
+      return phase;
+   }
+
+   /**
+    * @return the rows of the database plans, in the order of the SQL
+    */
+   public synchronized List<String> getPlan()
+   {
+      return plan;
+   }
+
+   /**
+    * @return the number of tweets returned
+    */
+   public int getReturned()
+   {
+      return returned;
+   }
+
+   /**
+    * @return the number of rows read: the tweets a scan of the index visited, or the rows the database plans expect to
+    *         read
+    */
+   public synchronized long getRowsExamined()
+   {
+      return rowsExamined;
+   }
+
+   /**
+    * @return what answered the request: cache, index, text index, database, or a sample from the index or the
+    *         database
+    */
+   public String getSource()
+   {
+      return source;
+   }
+
+   /**
+    * @return the SQL of the database queries
+    */
+   public synchronized List<String> getSql()
+   {
+      return sql;
+   }
+
+   /**
+    * @return the total number of tweets that match
+    */
+   public long getTotal()
+   {
+      return total;
+   }
+
+   /**
+    * @return how the total was counted
+    */
+   public String getTotalMode()
+   {
+      return totalMode;
+   }
+
+   /**
+    * mark the end of a phase, which may be on another thread
+    *
+    * @param name
+    *           the name of the phase
+    */
+   public synchronized void phase(final String name)
+   {
+      phase.add(new Phase(name, System.currentTimeMillis() - startTime));
+   }
+
+   /**
+    * @param bytes
+    *           the number of characters of JSON the tweets take
+    */
+   public void setBytes(final long bytes)
+   {
+      this.bytes = bytes;
+   }
+
+   /**
+    * take the counts of the page that was found
+    *
+    * @param page
+    *           the page
+    */
+   public void setPage(final Tweets page)
+   {
+      returned = page.getTweet().size();
+      total = page.getTotal();
+      totalMode = page.getTotalMode();
+   }
+
+   /**
+    * @param phase
+    *           the phases, in the order they ended
+    */
+   public synchronized void setPhase(final List<Phase> phase)
+   {
+      this.phase = phase;
+   }
+
+   /**
+    * @param plan
+    *           the rows of the database plans, in the order of the SQL
+    */
+   public synchronized void setPlan(final List<String> plan)
+   {
+      this.plan = plan;
+   }
+
+   /**
+    * @param returned
+    *           the number of tweets returned
+    */
+   public void setReturned(final int returned)
+   {
+      this.returned = returned;
+   }
+
+   /**
+    * @param rowsExamined
+    *           the number of rows read
+    */
+   public synchronized void setRowsExamined(final long rowsExamined)
+   {
+      this.rowsExamined = rowsExamined;
+   }
+
+   /**
+    * @param source
+    *           what answered the request
+    */
+   public void setSource(final String source)
+   {
+      this.source = source;
+   }
+
+   /**
+    * @param sql
+    *           the SQL of the database queries
+    */
+   public synchronized void setSql(final List<String> sql)
+   {
+      this.sql = sql;
+   }
+
+   /**
+    * @param total
+    *           the total number of tweets that match
+    */
+   public void setTotal(final long total)
+   {
+      this.total = total;
+   }
+
+   /**
+    * @param totalMode
+    *           how the total was counted
+    */
+   public void setTotalMode(final String totalMode)
+   {
+      this.totalMode = totalMode;
+   }
+
+   /*
+    * (non-Javadoc)
+    * @see java.lang.Object#toString()
+    */
+   @Override
+   public synchronized String toString()
+   {
+      return "TweetExplain [source=" + source + ", returned=" + returned + ", total=" + total + ", rowsExamined="
+            + rowsExamined + ", phases=" + phase.size() + ", sql=" + sql.size() + "]";
+   }
+}
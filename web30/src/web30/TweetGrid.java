@@ -0,0 +1,89 @@
+/**
+ *
+ */
+package web30;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * The number of tweets in each cell of a square grid. The grid is anchored at 0,0 so that the same cells come back no
+ * matter where the box is, and only the cells that have tweets are included.
+ */
+@XmlRootElement
+public class TweetGrid
+{
+   /** the size of each cell, in degrees */
+   private double cellSize;
+   /** the total number of tweets in all the cells */
+   private long total;
+   /** the cells that have tweets */
+   private List<GridCell> cell;
+
+   /**
+    * @return the cells that have tweets
+    */
+   public List<GridCell> getCell()
+   {
+      if (cell == null)
+      {
+         cell = new ArrayList<>();
+      }
+      return cell;
+   }
+
+   /**
+    * @return the size of each cell, in degrees
+    */
+   public double getCellSize()
+   {
+      return cellSize;
+   }
+
+   /**
+    * @return the total number of tweets in all the cells
+    */
+   public long getTotal()
+   {
+      return total;
+   }
+
+   /**
+    * @param cell
+    *           the cells that have tweets
+    */
+   public void setCell(final List<GridCell> cell)
+   {
+      this.cell = cell;
+   }
+
+   /**
+    * @param cellSize
+    *           the size of each cell, in degrees
+    */
+   public void setCellSize(final double cellSize)
+   {
+      this.cellSize = cellSize;
+   }
+
+   /**
+    * @param total
+    *           the total number of tweets in all the cells
+    */
+   public void setTotal(final long total)
+   {
+      this.total = total;
+   }
+
+   /*
+    * (non-Javadoc)
+    * @see java.lang.Object#toString()
+    */
+   @Override
+   public String toString()
+   {
+      return "TweetGrid [cellSize=" + cellSize + ", total=" + total + ", cells=" + getCell().size() + "]";
+   }
+}
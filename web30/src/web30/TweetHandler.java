@@ -3,23 +3,56 @@
  */
 package web30;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
 import javax.persistence.TypedQuery;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.CacheControl;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
 import org.apache.log4j.Logger;
+import org.hibernate.Query;
+import org.hibernate.SQLQuery;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 
+import web30.index.CellRollup;
+import web30.index.GridCounter;
+import web30.index.SpatialSampler;
+import web30.index.TimeRollup;
+import web30.index.TileBuilder;
+import web30.index.TweetHistogram;
+import web30.index.TweetIndex;
+import web30.index.TweetIndexLoader;
+import web30.index.TweetListener;
+import web30.index.TweetSource;
+import web30.index.TweetVisitor;
 import web30.model.TwitterStream;
 import web30.persistence.EntityManagerPool;
 import web30.persistence.PooledEntityManager;
+import web30.persistence.QueryExecutor;
+import web30.util.LruCache;
 
 /**
  * 
@@ -27,13 +60,1015 @@ import web30.persistence.PooledEntityManager;
 @Path("tweet")
 public class TweetHandler
 {
+   /** the largest number of windows in a batch */
+   private static final int BATCH_MAX_WINDOWS = 100;
+
+   /** the largest count limit of an atleast count, which the database may read that many rows for */
+   private static final long COUNT_MAX_LIMIT = 1000000;
+
+   /** the approximate size of a grid cell on the map, in pixels */
+   private static final int GRID_CELL_PIXELS = 16;
+
+   /** the largest number of cells a grid can cover */
+   private static final double GRID_MAX_CELLS = 65536;
+
+   /** the largest number of buckets in a time histogram */
+   private static final long HISTOGRAM_MAX_BUCKETS = 100000;
+
+   /** how long a live poll waits for tweets, in seconds */
+   private static final long LIVE_TIMEOUT = 30;
+
+   /** the number of tiles kept in the tile cache */
+   private static final int TILE_CACHE_SIZE = 1024;
+
+   /** the length of the buckets that the time window of a tile is rounded out to, in milliseconds */
+   private static final long TILE_TIME_BUCKET = 60 * 60 * 1000L;
+
+   /** how long browsers and proxies may keep a tile, in seconds */
+   private static final int TILE_MAX_AGE = 300;
+
    /** the logger */
    private static Logger log = Logger.getLogger(TweetHandler.class);
 
+   /** the tiles built or being built, by tile and time buckets */
+   private static final LruCache<String, Future<TweetTile>> tiles = new LruCache<>(TILE_CACHE_SIZE);
+
+   static
+   {
+      // a tile covers a lot of the map, so new tweets start the tiles over
+      TweetIndexLoader.addListener(new TweetListener()
+      {
+         @Override
+         public void tweetsAdded(final List<TwitterStream> tweets)
+         {
+            tiles.clear();
+         }
+      });
+   }
+
+   /**
+    * @param time
+    *           milliseconds since the epoch
+    * @return the number of the tile time bucket that holds the time, rounded down even before the epoch
+    */
+   private static long bucketOf(final long time)
+   {
+      final long bucket = time / TILE_TIME_BUCKET;
+      return time % TILE_TIME_BUCKET < 0 ? bucket - 1 : bucket;
+   }
+
+   /**
+    * cut the tweets in a tile into points, from the index if it has been loaded and otherwise from the database
+    * 
+    * @param builder
+    *           the tile to fill
+    * @param minDate
+    *           the start of the time window, or null for none
+    * @param maxDate
+    *           the end of the time window, or null for none
+    * @return the tile
+    * @throws IOException
+    *            if the tweets cannot be read
+    */
+   private static TweetTile buildTile(final TileBuilder builder, final Date minDate, final Date maxDate)
+         throws IOException
+   {
+      final TweetQuery query = builder.createQuery(minDate, maxDate);
+      final TweetIndex index = TweetIndexLoader.getIndex();
+      if (index != null)
+      {
+         index.scan(query, builder);
+         return builder.toTile();
+      }
+
+      // a tile zoomed out can cover most of the tweets, so only the coordinates are read, through a forward-only cursor
+      try (PooledEntityManager em = EntityManagerPool.borrowEntityManager())
+      {
+         final Query q = TweetQueries.createScroll(em, TweetQueries.Kind.POINTS, query, null);
+         q.setReadOnly(true);
+         q.setFetchSize(TweetStreamer.STREAMING_FETCH_SIZE);
+
+         final ScrollableResults results = q.scroll(ScrollMode.FORWARD_ONLY);
+         try
+         {
+            while (results.next())
+            {
+               builder.add(((Number) results.get(0)).doubleValue(), ((Number) results.get(1)).doubleValue(), 1);
+            }
+         }
+         finally
+         {
+            results.close();
+         }
+      }
+      return builder.toTile();
+   }
+
+   /**
+    * count the tweets in the database with an entity manager of its own, so that it can run on a query thread
+    * 
+    * @param mode
+    *           exact or atleast
+    * @param query
+    *           the tweets to count, and the count limit at which an atleast count stops, which is only read
+    * @param trace
+    *           where the wait for an entity manager is recorded, or null
+    * @return the number of matching tweets, or the count limit for an atleast count that reached it
+    */
+   private static long countInDatabase(final CountMode mode, final TweetQuery query, final TweetExplain trace)
+   {
+      try (PooledEntityManager em = EntityManagerPool.borrowEntityManager())
+      {
+         if (trace != null)
+         {
+            trace.phase("count borrow");
+         }
+         if (mode == CountMode.AT_LEAST)
+         {
+            // the database stops reading once it has found the limit, and sends back only the count
+            final SQLQuery qBounded = TweetQueries.createBoundedCount(em, query);
+            return ((Number) qBounded.uniqueResult()).longValue();
+         }
+
+         final TypedQuery<Long> qCount = TweetQueries.createCount(em, query);
+         return qCount.getSingleResult().longValue();
+      }
+   }
+
+   /**
+    * put a page of tweets together, with the token for the next page if there are more tweets after this one
+    * 
+    * @param query
+    *           the query that found the tweets
+    * @param total
+    *           the total number of tweets that match the query
+    * @param totalMode
+    *           how the total was counted
+    * @param list
+    *           the tweets on this page
+    * @return the page
+    */
+   private static Tweets createPage(final TweetQuery query, final long total, final CountMode totalMode,
+         final List<TwitterStream> list)
+   {
+      final long offset = query.getCursor() == null ? 0 : query.getCursor().getOffset();
+
+      final Tweets results = new Tweets();
+      results.setOffset(offset);
+      // the tweets on the page are there, whatever the estimate says
+      results.setTotal(Math.max(total, offset + list.size()));
+      results.setTotalMode(totalMode.getLabel());
+      results.setTweet(list);
+
+      // only an exact total can say that a full page is the last one
+      final boolean more = totalMode != CountMode.EXACT || offset + list.size() < total;
+      if (!list.isEmpty() && list.size() >= query.getMaxResults() && more)
+      {
+         results.setNext(TweetCursor.after(list.get(list.size() - 1), offset + list.size()));
+      }
+      return results;
+   }
+
+   /**
+    * ask the database how it runs the queries of a request, and add their SQL and plans to its explanation
+    * 
+    * @param query
+    *           the query
+    * @param projection
+    *           the columns a page reads
+    * @param trace
+    *           the explanation
+    * @param kinds
+    *           the kinds of database query the request made
+    */
+   private static void explainInDatabase(final TweetQuery query, final TweetProjection projection,
+         final TweetExplain trace, final TweetQueries.Kind... kinds)
+   {
+      try (PooledEntityManager em = EntityManagerPool.borrowEntityManager())
+      {
+         for (final TweetQueries.Kind kind : kinds)
+         {
+            final TweetProjection columns = kind == TweetQueries.Kind.PAGE ? projection : null;
+            trace.addPlan(TweetQueries.getSql(em, kind, query, columns),
+                  TweetQueries.explain(em, kind, query, columns));
+         }
+      }
+      trace.phase("explain");
+   }
+
+   /**
+    * fetch a page of tweets from the database with an entity manager of its own
+    * 
+    * @param query
+    *           the query
+    * @param projection
+    *           the columns to read
+    * @param trace
+    *           where the wait for an entity manager is recorded, or null
+    * @return the page of tweets
+    */
+   private static List<TwitterStream> fetchFromDatabase(final TweetQuery query, final TweetProjection projection,
+         final TweetExplain trace)
+   {
+      try (PooledEntityManager em = EntityManagerPool.borrowEntityManager())
+      {
+         if (trace != null)
+         {
+            trace.phase("fetch borrow");
+         }
+         // pages continue after the (time, tweetid) key of the last tweet, so deep pages never scan an offset
+         final javax.persistence.Query qRetrieve = TweetQueries.createPage(em, query, projection);
+         qRetrieve.setMaxResults(query.getMaxResults());
+
+         final List<?> rows = qRetrieve.getResultList();
+         final List<TwitterStream> list = new ArrayList<>(rows.size());
+         for (final Object row : rows)
+         {
+            list.add(projection.toTweet(row));
+         }
+         return list;
+      }
+   }
+
+   /**
+    * read the ids of the tweets that match a query, from the index if it has been loaded and otherwise from the
+    * database, up to the query's maximum number of results
+    * 
+    * @param index
+    *           the index, or null
+    * @param query
+    *           the query
+    * @param ids
+    *           the list to which the ids are added
+    * @throws IOException
+    *            if the index cannot be read
+    */
+   private static void readIds(final TweetIndex index, final TweetQuery query, final List<String> ids)
+         throws IOException
+   {
+      if (index != null)
+      {
+         index.scan(query, new TweetVisitor()
+         {
+            @Override
+            public void visit(final TwitterStream tweet)
+            {
+               ids.add(tweet.getTweetid());
+            }
+         });
+         return;
+      }
+      try (PooledEntityManager em = EntityManagerPool.borrowEntityManager())
+      {
+         final TypedQuery<String> q = TweetQueries.createIds(em, query);
+         q.setMaxResults(query.getMaxResults());
+         ids.addAll(q.getResultList());
+      }
+   }
+
+   /**
+    * read the tweets that match a query, in time order, from the index if it has been loaded and otherwise from the
+    * database, up to the query's maximum number of results
+    * 
+    * @param index
+    *           the index, or null
+    * @param query
+    *           the query
+    * @param projection
+    *           the columns to read
+    * @param tweets
+    *           the list to which the tweets are added
+    * @throws IOException
+    *            if the index cannot be read
+    */
+   private static void readTweets(final TweetIndex index, final TweetQuery query, final TweetProjection projection,
+         final List<TwitterStream> tweets) throws IOException
+   {
+      if (index != null)
+      {
+         index.scan(query, new TweetVisitor()
+         {
+            @Override
+            public void visit(final TwitterStream tweet)
+            {
+               tweets.add(projection.project(tweet));
+            }
+         });
+         return;
+      }
+      tweets.addAll(fetchFromDatabase(query, projection, null));
+   }
+
+   /**
+    * answer a request for tweets with the page that was found or, if the request asked for it, with how the page was
+    * found. The tweets of an explained page are written to JSON and thrown away, to time how long that takes.
+    * 
+    * @param page
+    *           the page
+    * @param trace
+    *           how the page was found
+    * @param explain
+    *           true to answer with how the page was found
+    * @return the response
+    */
+   private static Response respond(final Tweets page, final TweetExplain trace, final boolean explain)
+   {
+      if (!explain)
+      {
+         return Response.ok(page).build();
+      }
+
+      final long[] length = new long[1];
+      final TweetJsonWriter json = new TweetJsonWriter(new Writer()
+      {
+         @Override
+         public void close()
+         {
+            // nothing is kept
+         }
+
+         @Override
+         public void flush()
+         {
+            // nothing is kept
+         }
+
+         @Override
+         public void write(final char[] buffer, final int offset, final int count)
+         {
+            length[0] += count;
+         }
+      });
+      try
+      {
+         json.startArray();
+         boolean first = true;
+         for (final TwitterStream tweet : page.getTweet())
+         {
+            json.separator(first);
+            json.tweet(tweet);
+            first = false;
+         }
+         json.endArray();
+      }
+      catch (final IOException e)
+      {
+         // a writer that only counts cannot fail
+         throw new IllegalStateException(e);
+      }
+      trace.phase("serialize");
+      trace.setBytes(length[0]);
+      trace.setPage(page);
+      return Response.ok(trace).build();
+   }
+
+   /**
+    * roll up the times of the tweets in the database that match a query, reading only the times through a forward-only
+    * cursor
+    * 
+    * @param query
+    *           the query
+    * @param rollup
+    *           the rollup to add the times to
+    */
+   private static void rollupFromDatabase(final TweetQuery query, final TimeRollup rollup)
+   {
+      try (PooledEntityManager em = EntityManagerPool.borrowEntityManager())
+      {
+         final Query q = TweetQueries.createScroll(em, TweetQueries.Kind.TIMES, query, null);
+         q.setReadOnly(true);
+         q.setFetchSize(TweetStreamer.STREAMING_FETCH_SIZE);
+
+         final ScrollableResults results = q.scroll(ScrollMode.FORWARD_ONLY);
+         try
+         {
+            while (results.next())
+            {
+               rollup.add(((Date) results.get(0)).getTime());
+            }
+         }
+         finally
+         {
+            results.close();
+         }
+      }
+   }
+
+   /**
+    * feed every tweet in the database that matches a query to a visitor, through a forward-only cursor. Only the
+    * projected columns are read, so a visitor that needs the coordinates, such as a sampler, must be given a projection
+    * that has them.
+    * 
+    * @param query
+    *           the query
+    * @param projection
+    *           the columns to read
+    * @param visitor
+    *           the visitor, which keeps its own references to the tweets it wants
+    * @return the number of tweets visited
+    * @throws IOException
+    *            if the visitor cannot handle a tweet
+    */
+   private static long scanFromDatabase(final TweetQuery query, final TweetProjection projection,
+         final TweetVisitor visitor) throws IOException
+   {
+      try (PooledEntityManager em = EntityManagerPool.borrowEntityManager())
+      {
+         final Query q = TweetQueries.createScroll(em, TweetQueries.Kind.PAGE, query, projection);
+         q.setReadOnly(true);
+         q.setFetchSize(TweetStreamer.STREAMING_FETCH_SIZE);
+
+         final ScrollableResults results = q.scroll(ScrollMode.FORWARD_ONLY);
+         try
+         {
+            long count = 0;
+            while (results.next())
+            {
+               visitor.visit(projection.toTweet(projection.isAll() ? results.get(0) : results.get()));
+               if (++count % TweetStreamer.CLEAR_INTERVAL == 0)
+               {
+                  em.clear();
+               }
+            }
+            return count;
+         }
+         finally
+         {
+            results.close();
+         }
+      }
+   }
+
+   /**
+    * cut the part of one time window that is not in another out of the tweets in a box. Each part is read with one
+    * range scan of the time ordered tweets.
+    * 
+    * @param north
+    * @param south
+    * @param east
+    * @param west
+    * @param minDate
+    *           the start of the window
+    * @param maxDate
+    *           the end of the window
+    * @param otherMin
+    *           the start of the window to take away
+    * @param otherMax
+    *           the end of the window to take away
+    * @return the queries for the parts of the window outside the other, earliest first
+    */
+   private static List<TweetQuery> subtractWindow(final Double north, final Double south, final Double east,
+         final Double west, final Date minDate, final Date maxDate, final Date otherMin, final Date otherMax)
+   {
+      final List<TweetQuery> parts = new ArrayList<>(2);
+      if (maxDate.before(otherMin) || minDate.after(otherMax))
+      {
+         parts.add(new TweetQuery(north, south, east, west, minDate, maxDate));
+         return parts;
+      }
+      // the windows include both ends, to the millisecond
+      if (minDate.before(otherMin))
+      {
+         parts.add(new TweetQuery(north, south, east, west, minDate, new Date(otherMin.getTime() - 1)));
+      }
+      if (maxDate.after(otherMax))
+      {
+         parts.add(new TweetQuery(north, south, east, west, new Date(otherMax.getTime() + 1), maxDate));
+      }
+      return parts;
+   }
+
+   /**
+    * get the first page of tweets of several windows in one request. Windows that overlap are read together with one
+    * scan of the tweets that cover them all, as long as that covers little more than the windows, so a dashboard of
+    * neighboring panels reads each tweet once, and every total is exact because the scans read every match. Without
+    * the index, a window with a scan of its own is counted by the database and only its first page is read.
+    * 
+    * @param batch
+    *           the windows
+    * @param fields
+    *           the fields of the tweets to return, separated by commas, or null for every field
+    * @param fieldMode
+    *           lite for only the fields needed to draw the map, or full (the default) for every field
+    * @return a {@link TweetBatchResult} with a page for each window, in the order of the windows
+    */
+   @Path("batch")
+   @POST
+   @Consumes(MediaType.APPLICATION_JSON)
+   @Produces(MediaType.APPLICATION_JSON)
+   public Response getBatch(final TweetBatch batch, @QueryParam("fields") final String fields,
+         @QueryParam("mode") final String fieldMode)
+   {
+      log.debug("getBatch");
+      final long startTime = System.currentTimeMillis();
+      if (batch == null || batch.getWindow().isEmpty())
+      {
+         return Response.status(Response.Status.BAD_REQUEST).entity("A batch needs at least one window").build();
+      }
+      if (batch.getWindow().size() > BATCH_MAX_WINDOWS)
+      {
+         return Response.status(Response.Status.BAD_REQUEST)
+               .entity("A batch can have at most " + BATCH_MAX_WINDOWS + " windows").build();
+      }
+
+      final TweetProjection projection;
+      try
+      {
+         projection = TweetProjection.parse(fields, fieldMode);
+      }
+      catch (final IllegalArgumentException e)
+      {
+         return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
+      }
+
+      final TweetIndex index = TweetIndexLoader.getIndex();
+      final List<TweetQuery> queries = new ArrayList<>(batch.getWindow().size());
+      for (final TweetWindow window : batch.getWindow())
+      {
+         final TweetQuery query = window.toQuery();
+         if (query.hasText() && index == null)
+         {
+            return Response.serverError().entity("Keyword search is currently unavailable").build();
+         }
+         queries.add(query);
+      }
+
+      try
+      {
+         final List<BatchScan> scans = BatchScan.plan(queries, projection);
+         final Tweets[] pages = new Tweets[queries.size()];
+         for (final BatchScan scan : scans)
+         {
+            if (index == null && scan.getSize() == 1)
+            {
+               // a window of its own is counted by the database and only its page is read
+               final int position = scan.getPosition(0);
+               final TweetQuery query = queries.get(position);
+               pages[position] = createPage(query, countInDatabase(CountMode.EXACT, query, null), CountMode.EXACT,
+                     fetchFromDatabase(query, projection, null));
+               continue;
+            }
+            if (index != null)
+            {
+               index.scan(scan.getQuery(), scan);
+            }
+            else
+            {
+               // the windows match on the coordinates and times, so those are read as well and projected after
+               scanFromDatabase(scan.getQuery(), projection.with(TweetProjection.Field.LAT, TweetProjection.Field.LON),
+                     scan);
+            }
+            for (int i = 0; i < scan.getSize(); i++)
+            {
+               final int position = scan.getPosition(i);
+               pages[position] = createPage(queries.get(position), scan.getCount(i), CountMode.EXACT,
+                     scan.getPage(i));
+            }
+         }
+
+         final TweetBatchResult result = new TweetBatchResult();
+         result.setPage(Arrays.asList(pages));
+         result.setScans(scans.size());
+         return Response.ok(result).build();
+      }
+      catch (final Throwable t)
+      {
+         log.error("Cannot get the batch", t);
+         return Response.serverError().entity("Tweets are currently unavailable").build();
+      }
+      finally
+      {
+         logTime("batch", startTime);
+      }
+   }
+
+   /**
+    * get the counters of the tweet cache, to see how well it is working
+    * 
+    * @return the {@link CacheStats} of the cache in use
+    */
+   @Path("cache")
+   @GET
+   @Produces(MediaType.APPLICATION_JSON)
+   public Response getCacheStats()
+   {
+      log.debug("getCacheStats");
+      return Response.ok(TweetCache.getInstance().getStats()).build();
+   }
+
+   /**
+    * get the change between two time windows of the tweets in a box, so that moving the time slider only moves the
+    * tweets that entered or left the window. If more tweets changed than the limit, the delta is not complete and the
+    * new window should be fetched in full.
+    * 
+    * @param north
+    * @param south
+    * @param east
+    * @param west
+    * @param fromMinDate
+    *           the start of the old window
+    * @param fromMaxDate
+    *           the end of the old window
+    * @param minDate
+    *           the start of the new window
+    * @param maxDate
+    *           the end of the new window
+    * @param limit
+    *           the largest number of tweets that entered, and of ids that left, to return
+    * @param fields
+    *           the fields of the entered tweets to return, separated by commas, or null for every field
+    * @param fieldMode
+    *           lite for only the fields needed to draw the map, or full (the default) for every field
+    * @return the {@link TweetDelta} from the old window to the new one
+    */
+   @Path("delta")
+   @GET
+   @Produces(MediaType.APPLICATION_JSON)
+   public Response getDelta(@QueryParam("north") final Double north, @QueryParam("south") final Double south,
+         @QueryParam("east") final Double east, @QueryParam("west") final Double west,
+         @QueryParam("frommindate") final Date fromMinDate, @QueryParam("frommaxdate") final Date fromMaxDate,
+         @QueryParam("mindate") final Date minDate, @QueryParam("maxdate") final Date maxDate,
+         @QueryParam("limit") @DefaultValue("10000") final int limit, @QueryParam("fields") final String fields,
+         @QueryParam("mode") final String fieldMode)
+   {
+      log.debug("getDelta");
+      final long startTime = System.currentTimeMillis();
+      if (fromMinDate == null || fromMaxDate == null || minDate == null || maxDate == null)
+      {
+         return Response.status(Response.Status.BAD_REQUEST).entity("Both time windows are needed").build();
+      }
+      if (fromMinDate.after(fromMaxDate) || minDate.after(maxDate))
+      {
+         return Response.status(Response.Status.BAD_REQUEST).entity("A time window ends before it starts").build();
+      }
+      if (limit < 0)
+      {
+         return Response.status(Response.Status.BAD_REQUEST).entity("The limit cannot be negative").build();
+      }
+
+      final TweetProjection projection;
+      try
+      {
+         projection = TweetProjection.parse(fields, fieldMode);
+      }
+      catch (final IllegalArgumentException e)
+      {
+         return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
+      }
+
+      try
+      {
+         // one more than the limit tells that the limit was passed
+         final TweetIndex index = TweetIndexLoader.getIndex();
+         final List<TwitterStream> entered = new ArrayList<>();
+         for (final TweetQuery part : subtractWindow(north, south, east, west, minDate, maxDate, fromMinDate,
+               fromMaxDate))
+         {
+            part.setMaxResults((int) Math.min(Integer.MAX_VALUE, limit + 1L - entered.size()));
+            readTweets(index, part, projection, entered);
+         }
+         final List<String> left = new ArrayList<>();
+         for (final TweetQuery part : subtractWindow(north, south, east, west, fromMinDate, fromMaxDate, minDate,
+               maxDate))
+         {
+            part.setMaxResults((int) Math.min(Integer.MAX_VALUE, limit + 1L - left.size()));
+            readIds(index, part, left);
+         }
+
+         final TweetDelta delta = new TweetDelta();
+         if (entered.size() > limit || left.size() > limit)
+         {
+            delta.setComplete(false);
+         }
+         else
+         {
+            delta.setEntered(entered);
+            delta.setLeft(left);
+         }
+         log.debug(delta);
+         return Response.ok(delta).build();
+      }
+      catch (final Throwable t)
+      {
+         log.error("Cannot get the tweet delta", t);
+         return Response.serverError().entity("Tweets are currently unavailable").build();
+      }
+      finally
+      {
+         logTime("delta", startTime);
+      }
+   }
+
+   /**
+    * export every tweet in a box and time window as a dump, written as the tweets are read, with no limit. Only a few
+    * exports can run at once; the others are turned away until one ends.
+    *
+    * @param north
+    * @param south
+    * @param east
+    * @param west
+    * @param minDate
+    * @param maxDate
+    * @param format
+    *           ndjson (the default) for a JSON object on each line, or csv for comma separated values with a header
+    * @param fields
+    *           the fields of the tweets to export, separated by commas, or null for every field
+    * @param fieldMode
+    *           lite for only the fields needed to draw the map, or full (the default) for every field
+    * @param text
+    *           words every tweet must use, searched in the text index, or null for any tweet
+    * @return the tweets, as an attachment in the format asked for
+    */
+   @Path("export")
+   @GET
+   @Produces({ "application/x-ndjson", "text/csv" })
+   public Response getExport(@QueryParam("north") final Double north, @QueryParam("south") final Double south,
+         @QueryParam("east") final Double east, @QueryParam("west") final Double west,
+         @QueryParam("mindate") final Date minDate, @QueryParam("maxdate") final Date maxDate,
+         @QueryParam("format") @DefaultValue("ndjson") final DumpFormat format,
+         @QueryParam("fields") final String fields, @QueryParam("mode") final String fieldMode,
+         @QueryParam("q") final String text)
+   {
+      log.debug("getExport");
+      final TweetQuery query = new TweetQuery(north, south, east, west, minDate, maxDate);
+      query.setText(text);
+
+      final TweetProjection projection;
+      try
+      {
+         projection = TweetProjection.parse(fields, fieldMode);
+      }
+      catch (final IllegalArgumentException e)
+      {
+         return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
+      }
+
+      final TweetIndex index = TweetIndexLoader.getIndex();
+      if (query.hasText() && index == null)
+      {
+         return Response.serverError().entity("Keyword search is currently unavailable").build();
+      }
+
+      // the export answers 503 itself if as many exports as there are buffers are already running
+      final TweetStreamer export = TweetStreamer.export(query, index, projection, format);
+      return Response.ok(export).type(format.getMediaType() + ";charset=UTF-8")
+            .header("Content-Disposition", "attachment; filename=\"tweets." + format.getLabel() + "\"").build();
+   }
+
    /**
-    * get the range of times for which tweets are available.
+    * count the tweets in each cell of a grid, for a heat map. The payload depends on the number of cells with tweets in
+    * them, not on the number of tweets.
     * 
-    * @return a {@link TimeRange} that contains the min and max date and time for the data
+    * @param north
+    * @param south
+    * @param east
+    * @param west
+    * @param minDate
+    * @param maxDate
+    * @param zoom
+    *           the map zoom level, which sets the cell size to about {@link #GRID_CELL_PIXELS} pixels
+    * @param cellSize
+    *           the size of each cell in degrees, which overrides the zoom
+    * @return the {@link TweetGrid} for the given location and time
+    */
+   @Path("grid")
+   @GET
+   @Produces(MediaType.APPLICATION_JSON)
+   public Response getGrid(@QueryParam("north") final Double north, @QueryParam("south") final Double south,
+         @QueryParam("east") final Double east, @QueryParam("west") final Double west,
+         @QueryParam("mindate") final Date minDate, @QueryParam("maxdate") final Date maxDate,
+         @QueryParam("zoom") @DefaultValue("14") final int zoom, @QueryParam("cellsize") final Double cellSize)
+   {
+      log.debug("getGrid");
+      final long startTime = System.currentTimeMillis();
+      final TweetQuery query = new TweetQuery(north, south, east, west, minDate, maxDate);
+
+      if (cellSize != null && !(cellSize.doubleValue() > 0))
+      {
+         return Response.status(Response.Status.BAD_REQUEST).entity("The cell size must be positive").build();
+      }
+      double size = cellSize == null ? 360.0 / (256 << Math.max(0, Math.min(zoom, 22))) * GRID_CELL_PIXELS
+            : cellSize.doubleValue();
+
+      // keep the number of cells reasonable, whatever the zoom
+      final double width = query.hasEastWest() ? query.getEast() - query.getWest() : 360.0;
+      final double height = query.hasNorthSouth() ? query.getNorth() - query.getSouth() : 180.0;
+      while (width / size * (height / size) > GRID_MAX_CELLS)
+      {
+         size *= 2;
+      }
+
+      try
+      {
+         // one pass over the matching tweets in memory
+         final TweetIndex index = TweetIndexLoader.getIndex();
+         if (index != null)
+         {
+            final GridCounter counter = new GridCounter(size);
+            query.setMaxResults(Integer.MAX_VALUE);
+            index.scan(query, counter);
+            return Response.ok(counter.toGrid()).build();
+         }
+
+         // or one group by in the database. The cell size is a number we computed, so it is safe to put in the query,
+         // and doing so keeps the select and group by expressions identical
+         final String latCell = "floor(t.lat / " + BigDecimal.valueOf(size).toPlainString() + ")";
+         final String lonCell = "floor(t.lon / " + BigDecimal.valueOf(size).toPlainString() + ")";
+         try (PooledEntityManager em = EntityManagerPool.borrowEntityManager())
+         {
+            final TypedQuery<Object[]> q = em.createQuery("select " + latCell + ", " + lonCell
+                  + ", count(t) from TwitterStream t " + TweetQueries.getWhere(query)
+                  + "and t.lat is not null and t.lon is not null group by " + latCell + ", " + lonCell,
+                  Object[].class);
+            TweetQueries.bindWhere(q, query);
+
+            final GridCounter counter = new GridCounter(size);
+            for (final Object[] row : q.getResultList())
+            {
+               counter.add(((Number) row[0]).longValue(), ((Number) row[1]).longValue(), ((Number) row[2]).longValue());
+            }
+            return Response.ok(counter.toGrid()).build();
+         }
+      }
+      catch (final Throwable t)
+      {
+         log.error("Cannot get the tweet grid", t);
+         return Response.serverError().entity("The tweet grid is currently unavailable").build();
+      }
+      finally
+      {
+         logTime("grid", startTime);
+      }
+   }
+
+   /**
+    * count the tweets in each bucket of a time range, for drawing the tweet density along the time slider. Without a
+    * box the counts come from the rollups kept since the tweets were loaded; with one, the counts of the grid cells
+    * inside the box are added up from the {@link CellRollup} and only the tweets in the cells along its edges are read
+    * again, from the index or the database. Like the counts without a box, those cover the range widened to whole
+    * buckets. A box that covers no whole cell, or buckets that are not whole hours, have all of the tweets in the box
+    * rolled up first instead.
+    * 
+    * @param north
+    * @param south
+    * @param east
+    * @param west
+    * @param minDate
+    *           the start of the range, or null for the first tweet
+    * @param maxDate
+    *           the end of the range, or null for the last tweet
+    * @param bucket
+    *           the bucket size: minute, hour or day, or a number of them such as 15m, 6h or 7d
+    * @return the {@link TimeHistogram} for the given location and time
+    */
+   @Path("histogram")
+   @GET
+   @Produces(MediaType.APPLICATION_JSON)
+   public Response getHistogram(@QueryParam("north") final Double north, @QueryParam("south") final Double south,
+         @QueryParam("east") final Double east, @QueryParam("west") final Double west,
+         @QueryParam("mindate") final Date minDate, @QueryParam("maxdate") final Date maxDate,
+         @QueryParam("bucket") @DefaultValue("hour") final String bucket)
+   {
+      log.debug("getHistogram");
+      final long startTime = System.currentTimeMillis();
+      final long size;
+      try
+      {
+         size = TimeRollup.parseBucket(bucket);
+      }
+      catch (final IllegalArgumentException e)
+      {
+         return Response.status(Response.Status.BAD_REQUEST)
+               .entity("The bucket must be minute, hour, day or a number of them, such as 15m").build();
+      }
+      final TweetQuery query = new TweetQuery(north, south, east, west, minDate, maxDate);
+
+      try
+      {
+         TimeRollup rollup = TweetIndexLoader.getRollup();
+         if (rollup == null || query.hasNorthSouth() || query.hasEastWest())
+         {
+            // the rollups cover every tweet, so a box needs its own, which is added up from the rollups of the cells it
+            // covers where it can be, reading only the tweets along its edges again
+            final TimeRollup boxed = new TimeRollup();
+            final TweetIndex index = TweetIndexLoader.getIndex();
+            final CellRollup cells = TweetIndexLoader.getCellRollup();
+            final TweetSource source = index != null ? index : new TweetSource()
+            {
+               @Override
+               public long scan(final TweetQuery strip, final TweetVisitor visitor) throws IOException
+               {
+                  return scanFromDatabase(strip, TweetProjection.LITE, visitor);
+               }
+            };
+            if (rollup != null && cells != null && cells.rollup(query,
+                  minDate == null ? rollup.getFirstTime() : minDate.getTime(),
+                  maxDate == null ? rollup.getLastTime() : maxDate.getTime() + 1, size, boxed, source))
+            {
+               log.debug("histogram from the cell rollups");
+            }
+            else if (index != null)
+            {
+               query.setMaxResults(Integer.MAX_VALUE);
+               index.scan(query, boxed);
+            }
+            else
+            {
+               rollupFromDatabase(query, boxed);
+            }
+            rollup = boxed;
+         }
+
+         final long from = minDate == null ? rollup.getFirstTime() : minDate.getTime();
+         final long to = maxDate == null ? rollup.getLastTime() : maxDate.getTime() + 1;
+         if ((to - from) / size > HISTOGRAM_MAX_BUCKETS)
+         {
+            return Response.status(Response.Status.BAD_REQUEST)
+                  .entity("There are too many buckets in the time range; use a larger bucket").build();
+         }
+         return Response.ok(rollup.histogram(from, to, size)).build();
+      }
+      catch (final Throwable t)
+      {
+         log.error("Cannot get the tweet histogram", t);
+         return Response.serverError().entity("The tweet histogram is currently unavailable").build();
+      }
+      finally
+      {
+         logTime("histogram", startTime);
+      }
+   }
+
+   /**
+    * wait for tweets in a box to be added, as a long poll. The answer comes as soon as there are new tweets that match,
+    * or with no tweets after {@link #LIVE_TIMEOUT} seconds, and its next field is the token to poll with next time, so
+    * that no tweets are missed between polls. A waiting poll holds no thread.
+    * 
+    * @param north
+    * @param south
+    * @param east
+    * @param west
+    * @param text
+    *           words every tweet must use, or null for any tweet
+    * @param since
+    *           the next field of the last answer, or null for only the tweets added from now on
+    * @param response
+    *           the suspended response, answered with {@link Tweets}
+    */
+   @Path("live")
+   @GET
+   @Produces(MediaType.APPLICATION_JSON)
+   public void getLive(@QueryParam("north") final Double north, @QueryParam("south") final Double south,
+         @QueryParam("east") final Double east, @QueryParam("west") final Double west,
+         @QueryParam("q") final String text, @QueryParam("since") final String since,
+         @Suspended final AsyncResponse response)
+   {
+      log.debug("getLive");
+      long after = -1;
+      if (since != null)
+      {
+         try
+         {
+            after = Long.parseLong(since);
+         }
+         catch (final NumberFormatException e)
+         {
+            response.resume(Response.status(Response.Status.BAD_REQUEST).entity("The since token is not valid")
+                  .build());
+            return;
+         }
+      }
+
+      final TweetQuery query = new TweetQuery(north, south, east, west, null, null);
+      query.setText(text);
+      final LiveFeed.Subscriber subscriber = new LiveFeed.Subscriber(query, after)
+      {
+         @Override
+         protected void deliver(final List<TwitterStream> tweets, final long next)
+         {
+            final Tweets page = new Tweets();
+            page.setTotal(tweets.size());
+            page.setTweet(tweets);
+            page.setNext(String.valueOf(next));
+            response.resume(page);
+         }
+      };
+      response.setTimeout(LIVE_TIMEOUT, TimeUnit.SECONDS);
+      response.setTimeoutHandler(new TimeoutHandler()
+      {
+         @Override
+         public void handleTimeout(final AsyncResponse timedOut)
+         {
+            LiveFeed.getInstance().unsubscribe(subscriber);
+         }
+      });
+      LiveFeed.getInstance().subscribe(subscriber);
+   }
+
+   /**
+    * get the box around all the tweets, from the {@link ExtentCache}.
+    * 
+    * @return a {@link BoundingBox} that contains every tweet
     */
    @Path("maprange")
    @GET
@@ -41,15 +1076,9 @@ public class TweetHandler
    public Response getMapRange()
    {
       log.debug("getMapRange");
-      try (PooledEntityManager em = EntityManagerPool.borrowEntityManager())
+      try
       {
-         // remember, the ctor takes North, East, West, South
-         final TypedQuery<BoundingBox> q = em.createQuery(
-               "select new web30.BoundingBox( max(t.lon), max(t.lat), min(t.lat), min(t.lon)) from TwitterStream t",
-               BoundingBox.class);
-         final BoundingBox range = q.getSingleResult();
-
-         return Response.ok(range).build();
+         return Response.ok(ExtentCache.getMapRange()).build();
       }
       catch (final Throwable t)
       {
@@ -59,7 +1088,79 @@ public class TweetHandler
    }
 
    /**
-    * get the range of times for which tweets are available.
+    * get the tweets in one XYZ tile of the Web Mercator map, as thinned points. The time window is rounded out to whole
+    * {@link #TILE_TIME_BUCKET buckets}, and tiles are kept in a cache by tile and bucket, so that pans, zooms back and
+    * other users of the same window share the work of building them.
+    * 
+    * @param z
+    *           the zoom level
+    * @param x
+    *           the column of the tile
+    * @param y
+    *           the row of the tile, counted down from the north
+    * @param minDate
+    * @param maxDate
+    * @return the {@link TweetTile} for the given tile and time
+    */
+   @Path("tiles/{z}/{x}/{y}")
+   @GET
+   @Produces(MediaType.APPLICATION_JSON)
+   public Response getTile(@PathParam("z") final int z, @PathParam("x") final int x, @PathParam("y") final int y,
+         @QueryParam("mindate") final Date minDate, @QueryParam("maxdate") final Date maxDate)
+   {
+      log.debug("getTile");
+      final long startTime = System.currentTimeMillis();
+      if (!TileBuilder.isTile(z, x, y))
+      {
+         return Response.status(Response.Status.BAD_REQUEST).entity("There is no such tile").build();
+      }
+
+      // round the time window out to whole buckets, so that nearby windows share a tile
+      final long minBucket = minDate == null ? 0 : bucketOf(minDate.getTime());
+      final long maxBucket = maxDate == null ? 0 : bucketOf(maxDate.getTime());
+      final Date from = minDate == null ? null : new Date(minBucket * TILE_TIME_BUCKET);
+      final Date to = maxDate == null ? null : new Date((maxBucket + 1) * TILE_TIME_BUCKET - 1);
+      final String key = z + "/" + x + "/" + y + "/" + (minDate == null ? "" : minBucket) + "-"
+            + (maxDate == null ? "" : maxBucket);
+
+      // the first request for a tile builds it, and any others for it at the same time wait for that one
+      final TileBuilder builder = new TileBuilder(z, x, y);
+      final FutureTask<TweetTile> task = new FutureTask<>(new Callable<TweetTile>()
+      {
+         @Override
+         public TweetTile call() throws Exception
+         {
+            return buildTile(builder, from, to);
+         }
+      });
+      Future<TweetTile> tile = tiles.putIfAbsent(key, task);
+      if (tile == null)
+      {
+         tile = task;
+         task.run();
+      }
+
+      try
+      {
+         final CacheControl cacheControl = new CacheControl();
+         cacheControl.setMaxAge(TILE_MAX_AGE);
+         return Response.ok(tile.get()).cacheControl(cacheControl).build();
+      }
+      catch (final Throwable t)
+      {
+         // do not keep the failure, so the next request tries again
+         tiles.remove(key, tile);
+         log.error("Cannot get the tweet tile " + key, t);
+         return Response.serverError().entity("The tweet tile is currently unavailable").build();
+      }
+      finally
+      {
+         logTime("tile", startTime);
+      }
+   }
+
+   /**
+    * get the range of times for which tweets are available, from the {@link ExtentCache}.
     * 
     * @return a {@link TimeRange} that contains the min and max date and time for the data
     */
@@ -69,13 +1170,9 @@ public class TweetHandler
    public Response getTimeRange()
    {
       log.debug("getTimeRange");
-      try (PooledEntityManager em = EntityManagerPool.borrowEntityManager())
+      try
       {
-         final TypedQuery<TimeRange> q = em.createQuery(
-               "select new web30.TimeRange( min(t.time), max(t.time)) from TwitterStream t", TimeRange.class);
-         final TimeRange range = q.getSingleResult();
-
-         return Response.ok(range).build();
+         return Response.ok(ExtentCache.getTimeRange()).build();
       }
       catch (final Throwable t)
       {
@@ -91,95 +1188,448 @@ public class TweetHandler
     * @param west
     * @param minDate
     * @param maxDate
-    * @return the tweets for the given location and time
+    * @param cursor
+    *           the token for the page to get, from the next field of the previous page, or null for the first page
+    * @param stream
+    *           true to write every matching tweet to the response as it is read, instead of a page of them; without
+    *           the index only a few streams can run at once, and the others answer 503
+    * @param count
+    *           how to count the total: exact (the default), atleast to stop counting at the count limit, or estimate
+    *           to use the tweet histogram
+    * @param countLimit
+    *           the number of tweets after which an atleast count stops, which must be positive and is capped at
+    *           {@value #COUNT_MAX_LIMIT}
+    * @param fields
+    *           the fields of the tweets to return, separated by commas, or null for every field
+    * @param fieldMode
+    *           lite for only the fields needed to draw the map, or full (the default) for every field
+    * @param text
+    *           words every tweet must use, searched in the text index, or null for any tweet
+    * @param sample
+    *           true for a sample of the matching tweets spread over the box, from {@link SpatialSampler}, instead of
+    *           the first page of them; a sample counts exactly and has no next page
+    * @param explain
+    *           true for a {@link TweetExplain} of how the tweets were found instead of the tweets; a stream is
+    *           explained as its first page
+    * @return the tweets for the given location and time, as JSON or, if the Accept header asks for it, in the
+    *         binary form of {@link TweetColumnsWriter}
     */
    @GET
-   @Produces(MediaType.APPLICATION_JSON)
+   @Produces({ MediaType.APPLICATION_JSON, TweetColumnsWriter.MEDIA_TYPE })
    public Response getTweets(@QueryParam("north") final Double north, @QueryParam("south") final Double south,
          @QueryParam("east") final Double east, @QueryParam("west") final Double west,
-         @QueryParam("mindate") final Date minDate, @QueryParam("maxdate") final Date maxDate)
+         @QueryParam("mindate") final Date minDate, @QueryParam("maxdate") final Date maxDate,
+         @QueryParam("cursor") final String cursor, @QueryParam("stream") final boolean stream,
+         @QueryParam("count") final CountMode count,
+         @QueryParam("countlimit") @DefaultValue("10000") final long countLimit,
+         @QueryParam("fields") final String fields, @QueryParam("mode") final String fieldMode,
+         @QueryParam("q") final String text, @QueryParam("sample") final boolean sample,
+         @QueryParam("explain") final boolean explain)
    {
       log.debug("getTweets");
       final long startTime = System.currentTimeMillis();
-      final HashMap<String, Object> params = new HashMap<>();
-
-      String where = "where 1=1 ";
+      final TweetExplain trace = new TweetExplain(startTime);
+      final TweetQuery query = new TweetQuery(north, south, east, west, minDate, maxDate);
+      query.setText(text);
+      query.setSample(sample);
+      if (cursor != null)
+      {
+         try
+         {
+            query.setCursor(TweetCursor.fromToken(cursor));
+         }
+         catch (final IllegalArgumentException e)
+         {
+            log.debug("bad cursor " + cursor, e);
+            return Response.status(Response.Status.BAD_REQUEST).entity("The cursor is not valid").build();
+         }
+      }
 
-      // make sure all the parameters are set to something useful.
-      // NOTE the db has lat and lon backwards
-      if (north != null || south != null)
+      final TweetProjection projection;
+      try
       {
-         log.debug("t.lon between " + south + " and " + north);
-         where += "and t.lon between :south and :north ";
-         params.put("south", south == null ? Double.valueOf(-90.0) : south);
-         params.put("north", north == null ? Double.valueOf(90.0) : north);
+         projection = TweetProjection.parse(fields, fieldMode);
       }
+      catch (final IllegalArgumentException e)
+      {
+         return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
+      }
+      if (countLimit <= 0)
+      {
+         return Response.status(Response.Status.BAD_REQUEST).entity("The count limit must be positive").build();
+      }
+      final long limit = Math.min(countLimit, COUNT_MAX_LIMIT);
 
-      if (east != null || west != null)
+      final TweetIndex index = TweetIndexLoader.getIndex();
+
+      // a LIKE on the database would read every tweet, so words are only searched in the index
+      if (query.hasText() && index == null)
       {
-         where += "and t.lat between :west and :east ";
-         params.put("east", east == null ? Double.valueOf(180.0) : east);
-         params.put("west", west == null ? Double.valueOf(-180.0) : west);
+         return Response.serverError().entity("Keyword search is currently unavailable").build();
       }
 
-      if (minDate != null || maxDate != null)
+      // a stream has no limit, and is written as the tweets are read, always as JSON
+      if (stream && !explain)
       {
-         where += "and t.time between :minTime and  :maxTime ";
-         params.put("minTime", minDate == null ? new Date(0) : minDate);
-         params.put("maxTime", maxDate == null ? new Date() : maxDate);
+         return streamTweets(query, index, projection);
       }
 
-      try (PooledEntityManager em = EntityManagerPool.borrowEntityManager())
+      // an estimate needs the histogram, which knows nothing of words; without one the count is exact
+      final TweetHistogram histogram = TweetIndexLoader.getHistogram();
+      CountMode mode = count == null ? CountMode.EXACT : count;
+      if (mode == CountMode.ESTIMATE && (histogram == null || query.hasText()))
       {
-         // NOTE lat and lon are backward in this silly db
-         final String countQuery = "select count(1) from TwitterStream t ";
+         mode = CountMode.EXACT;
+      }
 
-         // first find out how many records we are going to get
-         final TypedQuery<Long> qCount = em.createQuery(countQuery + where, Long.class);
-         for (final String param : params.keySet())
+      final TweetCache cache = TweetCache.getInstance();
+      final String key = cache.key(query, mode, limit, projection);
+      try
+      {
+         final Tweets cached = cachedTweets(cache, key, trace, startTime);
+         if (cached != null)
          {
-            qCount.setParameter(param, params.get(param));
+            return respond(cached, trace, explain);
          }
 
-         if (log.isDebugEnabled())
+         Tweets page = sharedTweets(cache, index, query, projection, trace, startTime);
+         if (page == null && query.isSample())
          {
-            log.debug("count query = " + countQuery + where);
-            log.debug("minLon = " + west + ", maxLon = " + east);
-            log.debug("minLat = " + south + ", maxLat = " + north);
-            log.debug("minTime = " + minDate + ", maxTime = " + maxDate);
+            page = sampleTweets(index, query, projection, trace, explain, startTime);
          }
-         final Long total = qCount.getSingleResult();
+         else if (page == null)
+         {
+            if (mode == CountMode.AT_LEAST)
+            {
+               query.setCountLimit(limit);
+            }
+            else if (mode == CountMode.ESTIMATE)
+            {
+               query.setCountLimit(0);
+            }
+            // answer from memory if the index has been loaded
+            page = index != null ? indexTweets(index, histogram, query, projection, mode, trace, startTime)
+                  : databaseTweets(histogram, query, projection, mode, limit, trace, explain, startTime);
+         }
+         cache.put(key, query, page);
+         return respond(page, trace, explain);
+      }
+      catch (final Throwable t)
+      {
+         log.error("Cannot get the tweets", t);
+         return Response.serverError().entity("Tweets are currently unavailable").build();
+      }
+      finally
+      {
+         logTime("total", startTime);
+      }
+   }
+
+   /**
+    * @param cache
+    *           the cache
+    * @param key
+    *           the key of the request
+    * @param trace
+    *           where the source is recorded
+    * @param startTime
+    *           the time the request started
+    * @return the cached page for the request, or null if there is none
+    */
+   private static Tweets cachedTweets(final TweetCache cache, final String key, final TweetExplain trace,
+         final long startTime)
+   {
+      final Tweets cached = cache.get(key);
+      if (cached != null)
+      {
+         logTime("cache", startTime);
+         trace.phase("cache");
+         trace.setSource("cache");
+      }
+      return cached;
+   }
+
+   /**
+    * count in the database on a query thread while this thread fetches the page, each with its own entity manager
+    *
+    * @param histogram
+    *           the histogram an estimate is made from
+    * @param query
+    *           the tweets to find, with the count limit of the count mode
+    * @param projection
+    *           the fields of the tweets to return
+    * @param mode
+    *           how to count the total
+    * @param limit
+    *           the number of tweets after which an atleast count stops
+    * @param trace
+    *           where the phases, the source and any plans are recorded
+    * @param explain
+    *           true to explain the queries in the database
+    * @param startTime
+    *           the time the request started
+    * @return the page
+    * @throws Exception
+    *            if the page or the count cannot be read
+    */
+   private static Tweets databaseTweets(final TweetHistogram histogram, final TweetQuery query,
+         final TweetProjection projection, final CountMode mode, final long limit, final TweetExplain trace,
+         final boolean explain, final long startTime) throws Exception
+   {
+      // NOTE lat and lon are backward in this silly db
+      if (log.isDebugEnabled())
+      {
+         log.debug("where = " + TweetQueries.getWhere(query));
+         log.debug("minLon = " + query.getWest() + ", maxLon = " + query.getEast());
+         log.debug("minLat = " + query.getSouth() + ", maxLat = " + query.getNorth());
+         log.debug("minTime = " + query.getMinTime() + ", maxTime = " + query.getMaxTime());
+      }
+
+      Future<Long> counted = null;
+      if (mode != CountMode.ESTIMATE)
+      {
+         counted = QueryExecutor.submit(new Callable<Long>()
+         {
+            @Override
+            public Long call() throws Exception
+            {
+               final long total = countInDatabase(mode, query, trace);
+               logTime("count", startTime);
+               trace.phase("count");
+               return Long.valueOf(total);
+            }
+         });
+      }
 
-         logTime("count", startTime);
-         log.debug(String.format("found %,d records", total));
+      try
+      {
+         final List<TwitterStream> list = fetchFromDatabase(query, projection, trace);
+         logTime("fetch", startTime);
+         trace.phase("fetch");
 
-         final String selectQuery = "select t from TwitterStream t ";
-         final TypedQuery<TwitterStream> qRetrieve = em.createQuery(selectQuery + where, TwitterStream.class);
-         for (final String param : params.keySet())
+         long total;
+         CountMode totalMode = mode;
+         if (counted == null)
+         {
+            total = histogram.estimate(query);
+         }
+         else
          {
-            qRetrieve.setParameter(param, params.get(param));
+            total = counted.get().longValue();
+            if (mode == CountMode.AT_LEAST && total < limit)
+            {
+               totalMode = CountMode.EXACT;
+            }
          }
-         qRetrieve.setMaxResults(1000);
+         log.debug(String.format("found %s %,d records", totalMode, Long.valueOf(total)));
 
-         final List<TwitterStream> list = qRetrieve.getResultList();
+         final Tweets page = createPage(query, total, totalMode, list);
+         trace.phase("page");
+         trace.setSource("database");
+         if (explain)
+         {
+            if (mode == CountMode.EXACT)
+            {
+               explainInDatabase(query, projection, trace, TweetQueries.Kind.COUNT, TweetQueries.Kind.PAGE);
+            }
+            else if (mode == CountMode.AT_LEAST)
+            {
+               explainInDatabase(query, projection, trace, TweetQueries.Kind.BOUNDED_COUNT, TweetQueries.Kind.PAGE);
+            }
+            else
+            {
+               explainInDatabase(query, projection, trace, TweetQueries.Kind.PAGE);
+            }
+         }
+         return page;
+      }
+      finally
+      {
+         // if the fetch failed, the count is no longer needed
+         if (counted != null)
+         {
+            counted.cancel(true);
+         }
+      }
+   }
 
-         final Tweets results = new Tweets();
-         results.setOffset(0);
-         results.setTotal(total.longValue());
-         results.setTweet(list);
+   /**
+    * @param index
+    *           the index
+    * @param histogram
+    *           the histogram an estimate is made from
+    * @param query
+    *           the tweets to find, with the count limit of the count mode
+    * @param projection
+    *           the fields of the tweets to return
+    * @param mode
+    *           how to count the total
+    * @param trace
+    *           where the phase, the source and the tweets examined are recorded
+    * @param startTime
+    *           the time the request started
+    * @return the page, found in memory
+    */
+   private static Tweets indexTweets(final TweetIndex index, final TweetHistogram histogram, final TweetQuery query,
+         final TweetProjection projection, final CountMode mode, final TweetExplain trace, final long startTime)
+   {
+      try
+      {
+         final List<TwitterStream> list = new ArrayList<>();
+         long total = index.find(query, list);
+         trace.setRowsExamined(total);
+         for (int i = 0; i < list.size(); i++)
+         {
+            list.set(i, projection.project(list.get(i)));
+         }
+         CountMode totalMode = mode;
+         if (mode == CountMode.ESTIMATE)
+         {
+            total = histogram.estimate(query);
+         }
+         else if (total < query.getCountLimit())
+         {
+            // the count ran to the end, so it is exact
+            totalMode = CountMode.EXACT;
+         }
 
-         return Response.ok(results).build();
+         final Tweets page = createPage(query, total, totalMode, list);
+         trace.phase("index");
+         trace.setSource(query.hasText() ? "text index" : "index");
+         return page;
       }
-      catch (final Throwable t)
+      finally
       {
-         log.error("Cannot get the time range", t);
-         return Response.serverError().entity("Times are currently unavailable").build();
+         logTime("index", startTime);
+      }
+   }
+
+   /**
+    * a sample reads every match once, keeping the ones it wants, so its total is exact
+    *
+    * @param index
+    *           the index, or null to read from the database
+    * @param query
+    *           the tweets to sample, and the number of tweets in the sample
+    * @param projection
+    *           the fields of the tweets to return
+    * @param trace
+    *           where the phase, the source and the tweets examined are recorded
+    * @param explain
+    *           true to explain the query in the database
+    * @param startTime
+    *           the time the request started
+    * @return the page of the sample
+    * @throws IOException
+    *            if the tweets cannot be read
+    */
+   private static Tweets sampleTweets(final TweetIndex index, final TweetQuery query,
+         final TweetProjection projection, final TweetExplain trace, final boolean explain, final long startTime)
+         throws IOException
+   {
+      try
+      {
+         final SpatialSampler sampler = new SpatialSampler(query, query.getMaxResults());
+         query.setMaxResults(Integer.MAX_VALUE);
+         if (index != null)
+         {
+            index.scan(query, sampler);
+         }
+         else
+         {
+            // the sampler needs the coordinates to place each tweet, whatever the request wants
+            scanFromDatabase(query, projection.with(TweetProjection.Field.LAT, TweetProjection.Field.LON), sampler);
+         }
+
+         final List<TwitterStream> list = sampler.toList();
+         for (int i = 0; i < list.size(); i++)
+         {
+            list.set(i, projection.project(list.get(i)));
+         }
+         final Tweets page = createPage(query, sampler.getTotal(), CountMode.EXACT, list);
+         trace.phase("sample");
+         trace.setSource(index != null ? "index sample" : "database sample");
+         trace.setRowsExamined(sampler.getTotal());
+         if (explain && index == null)
+         {
+            explainInDatabase(query, projection, trace, TweetQueries.Kind.PAGE);
+         }
+         return page;
       }
       finally
       {
-         logTime("total", startTime);
+         logTime("sample", startTime);
+      }
+   }
 
+   /**
+    * nearby requests share the tweets of the same rounded out query, filtered with their own
+    *
+    * @param cache
+    *           the cache
+    * @param index
+    *           the index, or null to read a superset from the database
+    * @param query
+    *           the tweets to find
+    * @param projection
+    *           the fields of the tweets to return
+    * @param trace
+    *           where the phase, the source and the tweets examined are recorded
+    * @param startTime
+    *           the time the request started
+    * @return the page, or null if no shared superset answers the request, which is then answered the usual way
+    */
+   private static Tweets sharedTweets(final TweetCache cache, final TweetIndex index, final TweetQuery query,
+         final TweetProjection projection, final TweetExplain trace, final long startTime)
+   {
+      try
+      {
+         final List<TwitterStream> list = new ArrayList<>();
+         long total = cache.share(query, list);
+         final TweetQuery superset = total < 0 ? cache.superset(query) : null;
+         if (superset != null)
+         {
+            final List<TwitterStream> tweets = new ArrayList<>();
+            readTweets(index, superset, TweetProjection.ALL, tweets);
+            total = cache.putSuperset(superset, tweets, query, list);
+         }
+         if (total < 0)
+         {
+            return null;
+         }
+         for (int i = 0; i < list.size(); i++)
+         {
+            list.set(i, projection.project(list.get(i)));
+         }
+         final Tweets page = createPage(query, total, CountMode.EXACT, list);
+         logTime("share", startTime);
+         trace.phase("share");
+         trace.setSource("shared cache");
+         trace.setRowsExamined(total);
+         return page;
       }
+      catch (final Throwable t)
+      {
+         // the request is still answered the usual way
+         log.error("Cannot share the tweets", t);
+         return null;
+      }
+   }
+
+   /**
+    * @param query
+    *           the tweets to stream, with no limit
+    * @param index
+    *           the index, or null to read from the database
+    * @param projection
+    *           the fields of the tweets to write
+    * @return the response that writes the tweets as they are read
+    */
+   private static Response streamTweets(final TweetQuery query, final TweetIndex index,
+         final TweetProjection projection)
+   {
+      query.setMaxResults(Integer.MAX_VALUE);
+      return Response.ok(new TweetStreamer(query, index, projection)).type(MediaType.APPLICATION_JSON).build();
    }
 
    /**
@@ -187,7 +1637,7 @@ public class TweetHandler
     *           TODO
     * @param startTime
     */
-   private void logTime(final String label, final long startTime)
+   private static void logTime(final String label, final long startTime)
    {
       final long endTime = System.currentTimeMillis();
       final double d = (endTime - startTime) / 1000.0;
@@ -0,0 +1,431 @@
+/**
+ *
+ */
+package web30;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.hibernate.Session;
+import org.hibernate.jdbc.Work;
+
+import web30.index.TweetIndexLoader;
+import web30.model.TwitterStream;
+import web30.persistence.EntityManagerPool;
+import web30.persistence.PooledEntityManager;
+
+/**
+ * Loads a dump of tweets into the database. The dump is read on one thread and cut into chunks of records, which are
+ * parsed on as many threads as there are cores, and the tweets are written, in the order of the dump, a batch at a
+ * time: each batch is one insert statement of many rows, and the transaction is committed every so many rows. Tweets
+ * that are already in the database are skipped, so a dump that was partly loaded can be loaded again.
+ * <p>
+ * The histogram, the rollups and the live feed are told about the tweets of every batch that was all new once it is
+ * committed. A batch with some tweets that were already there is not, since the insert does not say which were new,
+ * and counting them twice would be worse than not counting them until the next start.
+ */
+public class TweetIngester
+{
+   /**
+    * The tweets parsed from a chunk of the dump.
+    */
+   private static class Chunk
+   {
+      /** the reasons for the first records that were rejected */
+      private final List<String> errors = new ArrayList<>();
+      /** the number of records that were not blank */
+      private long records;
+      /** the number of records that were not tweets */
+      private long rejected;
+      /** the tweets, in the order of the dump */
+      private final List<TwitterStream> tweets = new ArrayList<>();
+   }
+
+   /** the number of rows in each insert statement, unless another is asked for */
+   public static final int DEFAULT_BATCH_SIZE = 500;
+
+   /** the most rows in an insert statement, since MySQL takes at most 65535 parameters and a row has 8 */
+   public static final int MAX_BATCH_SIZE = 65535 / 8;
+
+   /** the number of rows in each transaction, unless another is asked for */
+   public static final int DEFAULT_COMMIT_INTERVAL = 10000;
+
+   /** the number of records parsed together */
+   private static final int CHUNK_SIZE = 1000;
+
+   /** the number of rejected records whose reasons are reported */
+   private static final int MAX_ERRORS = 10;
+
+   /** the start of the insert statement, which skips tweets that are already there */
+   private static final String INSERT = "insert ignore into " + TweetQueries.TABLE
+         + " (tweetid, time, userid, lat, lon, text, boundingbox, geohash) values ";
+
+   /** the values of one row of the insert statement */
+   private static final String ROW = "(?, ?, ?, ?, ?, ?, ?, ?)";
+
+   /** the encoding of the dumps */
+   private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+   /** the logger */
+   private static Logger log = Logger.getLogger(TweetIngester.class);
+
+   /** the number of rows in each insert statement */
+   private final int batchSize;
+
+   /** the number of rows in each transaction, rounded up to whole batches */
+   private final int commitInterval;
+
+   /** the number of threads that parse the dump */
+   private final int threads;
+
+   /**
+    * create an ingester with the default sizes and a parsing thread for each core
+    */
+   public TweetIngester()
+   {
+      this(DEFAULT_BATCH_SIZE, DEFAULT_COMMIT_INTERVAL, Runtime.getRuntime().availableProcessors());
+   }
+
+   /**
+    * @param batchSize
+    *           the number of rows in each insert statement
+    * @param commitInterval
+    *           the number of rows in each transaction, rounded up to whole batches
+    * @param threads
+    *           the number of threads that parse the dump
+    * @throws IllegalArgumentException
+    *            if a size is not positive
+    */
+   public TweetIngester(final int batchSize, final int commitInterval, final int threads)
+   {
+      if (batchSize <= 0 || commitInterval <= 0 || threads <= 0)
+      {
+         throw new IllegalArgumentException("The batch size, commit interval and threads must be positive");
+      }
+      this.batchSize = batchSize;
+      this.commitInterval = commitInterval;
+      this.threads = threads;
+   }
+
+   /**
+    * commit the rows written since the last commit and start the next transaction
+    *
+    * @param em
+    *           the entity manager
+    * @param added
+    *           the tweets written since the last commit, which are announced and then cleared
+    * @param report
+    *           the report to count the commit in
+    */
+   private static void commit(final PooledEntityManager em, final List<TwitterStream> added, final IngestReport report)
+   {
+      em.getTransaction().commit();
+      report.setCommits(report.getCommits() + 1);
+      if (!added.isEmpty())
+      {
+         TweetIndexLoader.tweetsAdded(new ArrayList<>(added));
+         added.clear();
+      }
+      log.debug("ingested " + report);
+      em.getTransaction().begin();
+   }
+
+   /**
+    * @param records
+    *           records of the dump
+    * @param first
+    *           the number of the first record in the dump, from 1
+    * @param parser
+    *           the parser for this thread
+    * @return the tweets of the records
+    */
+   private static Chunk parse(final List<String> records, final long first, final TweetParser parser)
+   {
+      final Chunk chunk = new Chunk();
+      for (int i = 0; i < records.size(); i++)
+      {
+         try
+         {
+            final TwitterStream tweet = parser.parse(records.get(i));
+            if (tweet != null)
+            {
+               chunk.records++;
+               chunk.tweets.add(tweet);
+            }
+         }
+         catch (final IllegalArgumentException e)
+         {
+            chunk.records++;
+            chunk.rejected++;
+            if (chunk.errors.size() < MAX_ERRORS)
+            {
+               chunk.errors.add("record " + (first + i) + ": " + e.getMessage());
+            }
+         }
+      }
+      return chunk;
+   }
+
+   /**
+    * @param statement
+    *           the insert statement
+    * @param position
+    *           the position of the parameter
+    * @param value
+    *           the value of the parameter, or null
+    * @throws SQLException
+    *            on error
+    */
+   private static void setDouble(final PreparedStatement statement, final int position, final Double value)
+         throws SQLException
+   {
+      if (value == null)
+      {
+         statement.setNull(position, Types.DOUBLE);
+      }
+      else
+      {
+         statement.setDouble(position, value.doubleValue());
+      }
+   }
+
+   /**
+    * write a batch of tweets, count it in the report, and clear it
+    *
+    * @param em
+    *           the entity manager, in a transaction
+    * @param batch
+    *           the tweets
+    * @param added
+    *           the tweets written since the last commit, to add the batch to. A batch that was only partly new is
+    *           added whole, since the rows the database skipped cannot be told apart, and the index leaves out the
+    *           tweets it already holds
+    * @param report
+    *           the report to count the batch in
+    * @return the number of tweets written
+    */
+   private static int write(final PooledEntityManager em, final List<TwitterStream> batch,
+         final List<TwitterStream> added, final IngestReport report)
+   {
+      final int size = batch.size();
+      final int inserted = insert(em, batch);
+      report.setBatches(report.getBatches() + 1);
+      report.setInserted(report.getInserted() + inserted);
+      report.setDuplicates(report.getDuplicates() + size - inserted);
+      added.addAll(batch);
+      batch.clear();
+      return size;
+   }
+
+   /**
+    * write a batch of tweets with one insert statement
+    *
+    * @param em
+    *           the entity manager, in a transaction
+    * @param batch
+    *           the tweets
+    * @return the number of tweets that were not already in the database
+    */
+   private static int insert(final PooledEntityManager em, final List<TwitterStream> batch)
+   {
+      final StringBuilder sql = new StringBuilder(INSERT.length() + batch.size() * (ROW.length() + 2));
+      sql.append(INSERT);
+      for (int i = 0; i < batch.size(); i++)
+      {
+         sql.append(i == 0 ? "" : ", ").append(ROW);
+      }
+
+      final int[] inserted = new int[1];
+      em.unwrap(Session.class).doWork(new Work()
+      {
+         @Override
+         public void execute(final Connection connection) throws SQLException
+         {
+            try (PreparedStatement statement = connection.prepareStatement(sql.toString()))
+            {
+               int position = 1;
+               for (final TwitterStream tweet : batch)
+               {
+                  statement.setString(position++, tweet.getTweetid());
+                  statement.setTimestamp(position++, new Timestamp(tweet.getTime().getTime()));
+                  statement.setString(position++, tweet.getUserid());
+                  setDouble(statement, position++, tweet.getLat());
+                  setDouble(statement, position++, tweet.getLon());
+                  statement.setString(position++, tweet.getText());
+                  statement.setString(position++, tweet.getBoundingbox());
+                  if (tweet.getGeohash() == null)
+                  {
+                     statement.setNull(position++, Types.BIGINT);
+                  }
+                  else
+                  {
+                     statement.setLong(position++, tweet.getGeohash().longValue());
+                  }
+               }
+               inserted[0] = statement.executeUpdate();
+            }
+         }
+      });
+      return inserted[0];
+   }
+
+   /**
+    * load a dump into the database
+    *
+    * @param in
+    *           the dump, in UTF-8, which is not closed
+    * @param format
+    *           the format of the dump
+    * @return what was loaded
+    * @throws IOException
+    *            if the dump cannot be read
+    * @throws IllegalArgumentException
+    *            if a CSV dump has no header
+    */
+   public IngestReport ingest(final InputStream in, final DumpFormat format) throws IOException
+   {
+      final long startTime = System.currentTimeMillis();
+      final IngestReport report = new IngestReport();
+      final BufferedReader reader = new BufferedReader(new InputStreamReader(in, UTF_8), 1 << 16);
+      final String header = format == DumpFormat.CSV ? TweetParser.readRecord(reader, format) : null;
+      // check the header before any thread needs it
+      new TweetParser(format, header);
+
+      final AtomicInteger count = new AtomicInteger();
+      final ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory()
+      {
+         @Override
+         public Thread newThread(final Runnable r)
+         {
+            final Thread t = new Thread(r);
+            t.setName("TweetIngester-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      final ThreadLocal<TweetParser> parsers = new ThreadLocal<TweetParser>()
+      {
+         @Override
+         protected TweetParser initialValue()
+         {
+            return new TweetParser(format, header);
+         }
+      };
+
+      try (PooledEntityManager em = EntityManagerPool.borrowEntityManager())
+      {
+         final Deque<Future<Chunk>> pending = new ArrayDeque<>();
+         final List<TwitterStream> batch = new ArrayList<>(batchSize);
+         final List<TwitterStream> added = new ArrayList<>();
+         long uncommitted = 0;
+         long number = header == null ? 1 : 2;
+         em.getTransaction().begin();
+         try
+         {
+            boolean done = false;
+            while (!done || !pending.isEmpty())
+            {
+               // keep every thread busy, with a chunk waiting for each, but no more in memory than that
+               while (!done && pending.size() < 2 * threads)
+               {
+                  final List<String> records = new ArrayList<>(CHUNK_SIZE);
+                  String record;
+                  while (records.size() < CHUNK_SIZE && (record = TweetParser.readRecord(reader, format)) != null)
+                  {
+                     records.add(record);
+                  }
+                  done = records.size() < CHUNK_SIZE;
+                  final long first = number;
+                  number += records.size();
+                  pending.add(executor.submit(new Callable<Chunk>()
+                  {
+                     @Override
+                     public Chunk call() throws Exception
+                     {
+                        return parse(records, first, parsers.get());
+                     }
+                  }));
+               }
+
+               final Chunk chunk = pending.removeFirst().get();
+               report.setRecords(report.getRecords() + chunk.records);
+               report.setRejected(report.getRejected() + chunk.rejected);
+               for (final String error : chunk.errors)
+               {
+                  if (report.getError().size() < MAX_ERRORS)
+                  {
+                     report.getError().add(error);
+                  }
+               }
+               for (final TwitterStream tweet : chunk.tweets)
+               {
+                  batch.add(tweet);
+                  if (batch.size() == batchSize)
+                  {
+                     uncommitted += write(em, batch, added, report);
+                     if (uncommitted >= commitInterval)
+                     {
+                        commit(em, added, report);
+                        uncommitted = 0;
+                     }
+                  }
+               }
+            }
+            if (!batch.isEmpty())
+            {
+               write(em, batch, added, report);
+            }
+            em.getTransaction().commit();
+            report.setCommits(report.getCommits() + 1);
+            if (!added.isEmpty())
+            {
+               TweetIndexLoader.tweetsAdded(added);
+            }
+         }
+         catch (final InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while ingesting tweets", e);
+         }
+         catch (final ExecutionException e)
+         {
+            throw new IOException("Cannot parse the tweets", e.getCause());
+         }
+         finally
+         {
+            if (em.getTransaction().isActive())
+            {
+               em.getTransaction().rollback();
+            }
+         }
+      }
+      finally
+      {
+         executor.shutdownNow();
+      }
+
+      report.setMillis(System.currentTimeMillis() - startTime);
+      log.info("ingested " + report);
+      return report;
+   }
+}
@@ -0,0 +1,330 @@
+/**
+ *
+ */
+package web30;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import web30.TweetProjection.Field;
+import web30.model.TweetRecord;
+import web30.model.TwitterStream;
+
+/**
+ * Writes tweets as JSON one at a time, in the same form MOXy uses for {@link Tweets}, so that a response can be sent
+ * while the tweets are still being read. Missing fields are left out, just like MOXy does. This is not thread safe.
+ */
+public class TweetJsonWriter
+{
+   /** where the JSON goes */
+   private final Writer out;
+   /** the format of the dates with milliseconds */
+   private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX", Locale.US);
+   /** the format of the dates on a whole second, which MOXy writes without milliseconds */
+   private final SimpleDateFormat secondFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssXXX", Locale.US);
+   /** the date the times of records are formatted through, so that each one does not need a new one */
+   private final Date date = new Date();
+   /** true until the first field of the current object is written */
+   private boolean firstField;
+
+   /**
+    * @param out
+    *           where the JSON goes
+    */
+   public TweetJsonWriter(final Writer out)
+   {
+      this.out = out;
+      // MOXy writes dates in the time zone of the service, so these do too
+      dateFormat.setTimeZone(TimeZone.getDefault());
+      secondFormat.setTimeZone(dateFormat.getTimeZone());
+   }
+
+   /**
+    * @param value
+    *           a date
+    * @return the date the way MOXy writes it
+    */
+   private String format(final Date value)
+   {
+      return value.getTime() % 1000 == 0 ? secondFormat.format(value) : dateFormat.format(value);
+   }
+
+   /**
+    * @param name
+    *           the field name
+    * @param value
+    *           the value, or null to leave the field out
+    * @throws IOException
+    *            on error
+    */
+   private void field(final String name, final Date value) throws IOException
+   {
+      if (value != null)
+      {
+         field(name, format(value));
+      }
+   }
+
+   /**
+    * @param name
+    *           the field name
+    * @param value
+    *           the value, or NaN to leave the field out
+    * @throws IOException
+    *            on error
+    */
+   private void field(final String name, final double value) throws IOException
+   {
+      if (!Double.isNaN(value) && !Double.isInfinite(value))
+      {
+         name(name);
+         out.write(Double.toString(value));
+      }
+   }
+
+   /**
+    * @param name
+    *           the field name
+    * @param value
+    *           the value, or null to leave the field out
+    * @throws IOException
+    *            on error
+    */
+   private void field(final String name, final Double value) throws IOException
+   {
+      if (value != null && !value.isNaN() && !value.isInfinite())
+      {
+         name(name);
+         out.write(value.toString());
+      }
+   }
+
+   /**
+    * @param name
+    *           the field name
+    * @param value
+    *           the value
+    * @throws IOException
+    *            on error
+    */
+   public void field(final String name, final long value) throws IOException
+   {
+      name(name);
+      out.write(Long.toString(value));
+   }
+
+   /**
+    * @param name
+    *           the field name
+    * @param value
+    *           the value, or null to leave the field out
+    * @throws IOException
+    *            on error
+    */
+   public void field(final String name, final String value) throws IOException
+   {
+      if (value != null)
+      {
+         name(name);
+         string(value);
+      }
+   }
+
+   /**
+    * @param name
+    *           the name of the next field
+    * @throws IOException
+    *            on error
+    */
+   public void name(final String name) throws IOException
+   {
+      if (!firstField)
+      {
+         out.write(',');
+      }
+      firstField = false;
+      string(name);
+      out.write(':');
+   }
+
+   /**
+    * end the current array
+    *
+    * @throws IOException
+    *            on error
+    */
+   public void endArray() throws IOException
+   {
+      out.write(']');
+      firstField = false;
+   }
+
+   /**
+    * end the current object
+    *
+    * @throws IOException
+    *            on error
+    */
+   public void endObject() throws IOException
+   {
+      out.write('}');
+      firstField = false;
+   }
+
+   /**
+    * start an array
+    *
+    * @throws IOException
+    *            on error
+    */
+   public void startArray() throws IOException
+   {
+      out.write('[');
+   }
+
+   /**
+    * start an object
+    *
+    * @throws IOException
+    *            on error
+    */
+   public void startObject() throws IOException
+   {
+      out.write('{');
+      firstField = true;
+   }
+
+   /**
+    * write a quoted, escaped string
+    *
+    * @param value
+    *           the string
+    * @throws IOException
+    *            on error
+    */
+   private void string(final String value) throws IOException
+   {
+      out.write('"');
+      final int length = value.length();
+      for (int i = 0; i < length; i++)
+      {
+         final char c = value.charAt(i);
+         switch (c)
+         {
+            case '"':
+               out.write("\\\"");
+               break;
+            case '\\':
+               out.write("\\\\");
+               break;
+            case '\n':
+               out.write("\\n");
+               break;
+            case '\r':
+               out.write("\\r");
+               break;
+            case '\t':
+               out.write("\\t");
+               break;
+            default:
+               if (c < 0x20 || c == '\u2028' || c == '\u2029')
+               {
+                  out.write(String.format("\\u%04x", Integer.valueOf(c)));
+               }
+               else
+               {
+                  out.write(c);
+               }
+         }
+      }
+      out.write('"');
+   }
+
+   /**
+    * write one tweet as an object. Separate tweets in an array with {@link #separator(boolean)}.
+    *
+    * @param tweet
+    *           the tweet
+    * @throws IOException
+    *            on error
+    */
+   public void tweet(final TwitterStream tweet) throws IOException
+   {
+      startObject();
+      field("boundingbox", tweet.getBoundingbox());
+      field("lat", tweet.getLat());
+      field("lon", tweet.getLon());
+      field("text", tweet.getText());
+      field("time", tweet.getTime());
+      field("tweetid", tweet.getTweetid());
+      field("userid", tweet.getUserid());
+      endObject();
+   }
+
+   /**
+    * write one record as an object, with only the fields of a projection, the same as
+    * {@link #tweet(TwitterStream)} would write the tweet of the record after it was projected
+    *
+    * @param tweet
+    *           the record
+    * @param projection
+    *           the fields to write
+    * @throws IOException
+    *            on error
+    */
+   public void tweet(final TweetRecord tweet, final TweetProjection projection) throws IOException
+   {
+      final boolean all = projection.isAll();
+      startObject();
+      if (all || projection.getFields().contains(Field.BOUNDINGBOX))
+      {
+         field("boundingbox", tweet.getBoundingbox());
+      }
+      if (all || projection.getFields().contains(Field.LAT))
+      {
+         field("lat", tweet.getLat());
+      }
+      if (all || projection.getFields().contains(Field.LON))
+      {
+         field("lon", tweet.getLon());
+      }
+      if (all || projection.getFields().contains(Field.TEXT))
+      {
+         field("text", tweet.getText());
+      }
+      if ((all || projection.getFields().contains(Field.TIME)) && tweet.getTime() != TweetRecord.NO_TIME)
+      {
+         date.setTime(tweet.getTime());
+         field("time", format(date));
+      }
+      if (all || projection.getFields().contains(Field.TWEETID))
+      {
+         field("tweetid", tweet.getTweetid());
+      }
+      if (all || projection.getFields().contains(Field.USERID))
+      {
+         field("userid", tweet.getUserid());
+      }
+      endObject();
+   }
+
+   /**
+    * write the comma between the elements of an array
+    *
+    * @param first
+    *           true for the first element, which has no comma before it
+    * @throws IOException
+    *            on error
+    */
+   public void separator(final boolean first) throws IOException
+   {
+      if (!first)
+      {
+         out.write(',');
+      }
+   }
+}
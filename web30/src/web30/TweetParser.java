@@ -0,0 +1,471 @@
+/**
+ *
+ */
+package web30;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import web30.model.TwitterStream;
+import web30.util.GeoHash;
+
+/**
+ * Turns the records of a tweet dump into tweets. The fields have the names of the JSON responses, which are the names
+ * of the database columns: tweetid, userid, time, lat, lon, text and boundingbox. NOTE the db has lat and lon
+ * backwards, and so do the dumps. Other fields are ignored, and the geohash is worked out from the coordinates. A time
+ * can be in the form of the JSON responses, in the form MySQL exports, in UTC, or in milliseconds since the epoch.
+ * <p>
+ * A parser is not thread safe, so each thread should have its own.
+ */
+public class TweetParser
+{
+   /** the fields of a record, for CSV, or null for JSON, which names its fields */
+   private final List<String> columns;
+
+   /** the format of the dumps */
+   private final DumpFormat format;
+
+   /** the formats of the times that are not milliseconds */
+   private final SimpleDateFormat[] timeFormats =
+   { new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX", Locale.US),
+         new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssXXX", Locale.US),
+         new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US),
+         new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US) };
+
+   /**
+    * @param format
+    *           the format of the dumps
+    * @param header
+    *           the header record, for CSV, which names the fields, or null for JSON
+    */
+   public TweetParser(final DumpFormat format, final String header)
+   {
+      this.format = format;
+      if (format == DumpFormat.CSV)
+      {
+         if (header == null)
+         {
+            throw new IllegalArgumentException("A CSV dump needs a header naming its fields");
+         }
+         columns = new ArrayList<>();
+         for (final String name : splitCsv(header))
+         {
+            columns.add(name.trim().toLowerCase());
+         }
+      }
+      else
+      {
+         columns = null;
+      }
+      for (final SimpleDateFormat timeFormat : timeFormats)
+      {
+         timeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+         timeFormat.setLenient(false);
+      }
+   }
+
+   /**
+    * @param text
+    *           a coordinate, or null
+    * @param name
+    *           the name of the field
+    * @return the coordinate, or null
+    */
+   private static Double coordinate(final String text, final String name)
+   {
+      if (text == null || text.isEmpty())
+      {
+         return null;
+      }
+      try
+      {
+         return Double.valueOf(text);
+      }
+      catch (final NumberFormatException e)
+      {
+         throw new IllegalArgumentException("The " + name + " is not a number: " + text);
+      }
+   }
+
+   /**
+    * @param c
+    *           a character
+    * @return true if the character is white space in JSON
+    */
+   private static boolean isSpace(final char c)
+   {
+      return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+   }
+
+   /**
+    * read the next record of a dump. A record of JSON is a line, and a record of CSV is a line unless a quoted value
+    * goes on to the next line.
+    *
+    * @param in
+    *           the dump
+    * @param format
+    *           the format of the dump
+    * @return the record, without the line end, or null at the end of the dump
+    * @throws IOException
+    *            if the dump cannot be read
+    */
+   public static String readRecord(final BufferedReader in, final DumpFormat format) throws IOException
+   {
+      String line = in.readLine();
+      if (line == null || format != DumpFormat.CSV)
+      {
+         return line;
+      }
+
+      // an odd number of quotes leaves a value open
+      final StringBuilder record = new StringBuilder(line);
+      int quotes = 0;
+      while (true)
+      {
+         for (int i = 0; i < line.length(); i++)
+         {
+            if (line.charAt(i) == '"')
+            {
+               quotes++;
+            }
+         }
+         if (quotes % 2 == 0 || (line = in.readLine()) == null)
+         {
+            return record.toString();
+         }
+         record.append('\n').append(line);
+      }
+   }
+
+   /**
+    * @param record
+    *           a record of CSV
+    * @return the values of the record, with the quotes taken off
+    */
+   static List<String> splitCsv(final String record)
+   {
+      final List<String> values = new ArrayList<>();
+      final StringBuilder value = new StringBuilder();
+      boolean quoted = false;
+      for (int i = 0; i < record.length(); i++)
+      {
+         final char c = record.charAt(i);
+         if (quoted)
+         {
+            if (c != '"')
+            {
+               value.append(c);
+            }
+            else if (i + 1 < record.length() && record.charAt(i + 1) == '"')
+            {
+               value.append('"');
+               i++;
+            }
+            else
+            {
+               quoted = false;
+            }
+         }
+         else if (c == '"')
+         {
+            quoted = true;
+         }
+         else if (c == ',')
+         {
+            values.add(value.toString());
+            value.setLength(0);
+         }
+         else
+         {
+            value.append(c);
+         }
+      }
+      values.add(value.toString());
+      return values;
+   }
+
+   /**
+    * @param record
+    *           a record of the dump
+    * @return the tweet, or null if the record is blank
+    * @throws IllegalArgumentException
+    *            if the record is not a tweet
+    */
+   public TwitterStream parse(final String record)
+   {
+      if (record.trim().isEmpty())
+      {
+         return null;
+      }
+
+      final Map<String, String> fields;
+      if (format == DumpFormat.CSV)
+      {
+         final List<String> values = splitCsv(record);
+         fields = new HashMap<>();
+         for (int i = 0; i < columns.size() && i < values.size(); i++)
+         {
+            // an empty value is a null, since CSV cannot tell them apart
+            fields.put(columns.get(i), values.get(i).isEmpty() ? null : values.get(i));
+         }
+      }
+      else
+      {
+         fields = parseJson(record);
+      }
+
+      final TwitterStream tweet = new TwitterStream();
+      tweet.setTweetid(fields.get("tweetid"));
+      tweet.setTime(parseTime(fields.get("time")));
+      if (tweet.getTweetid() == null || tweet.getTweetid().isEmpty() || tweet.getTime() == null)
+      {
+         throw new IllegalArgumentException("A tweet needs a tweetid and a time");
+      }
+      tweet.setUserid(fields.get("userid"));
+      tweet.setText(fields.get("text"));
+      tweet.setBoundingbox(fields.get("boundingbox"));
+      tweet.setLat(coordinate(fields.get("lat"), "lat"));
+      tweet.setLon(coordinate(fields.get("lon"), "lon"));
+      if (tweet.getLat() != null && tweet.getLon() != null)
+      {
+         // NOTE the db has lat and lon backwards, so the lon column is the latitude
+         tweet.setGeohash(Long.valueOf(GeoHash.encode(tweet.getLon().doubleValue(), tweet.getLat().doubleValue())));
+      }
+      return tweet;
+   }
+
+   /**
+    * @param record
+    *           a JSON object
+    * @return the fields of the object that are strings, numbers or booleans, as text, and null for the fields that
+    *         are null. Fields that are objects or arrays are skipped.
+    * @throws IllegalArgumentException
+    *            if the record is not a JSON object
+    */
+   private static Map<String, String> parseJson(final String record)
+   {
+      final Map<String, String> fields = new HashMap<>();
+      final int[] at = { skipSpace(record, 0) };
+      expect(record, at, '{');
+      if (peek(record, at) == '}')
+      {
+         return fields;
+      }
+      while (true)
+      {
+         final String name = readString(record, at);
+         expect(record, at, ':');
+         final char c = peek(record, at);
+         if (c == '"')
+         {
+            fields.put(name, readString(record, at));
+         }
+         else if (c == '{' || c == '[')
+         {
+            skipNested(record, at);
+         }
+         else
+         {
+            final int start = at[0];
+            while (at[0] < record.length() && ",}".indexOf(record.charAt(at[0])) < 0
+                  && !isSpace(record.charAt(at[0])))
+            {
+               at[0]++;
+            }
+            final String value = record.substring(start, at[0]);
+            fields.put(name, "null".equals(value) ? null : value);
+         }
+         if (peek(record, at) == '}')
+         {
+            return fields;
+         }
+         expect(record, at, ',');
+      }
+   }
+
+   /**
+    * @param text
+    *           a time, or null
+    * @return the time, or null
+    * @throws IllegalArgumentException
+    *            if the time is not in a known form
+    */
+   private Date parseTime(final String text)
+   {
+      if (text == null || text.isEmpty())
+      {
+         return null;
+      }
+      if (text.matches("-?\\d+"))
+      {
+         return new Date(Long.parseLong(text));
+      }
+      for (final SimpleDateFormat timeFormat : timeFormats)
+      {
+         final ParsePosition position = new ParsePosition(0);
+         final Date time = timeFormat.parse(text, position);
+         if (time != null && position.getIndex() == text.length())
+         {
+            return time;
+         }
+      }
+      throw new IllegalArgumentException("The time is not in a known form: " + text);
+   }
+
+   /**
+    * @param record
+    *           a JSON object
+    * @param at
+    *           the position in the object, which is moved past any space
+    * @return the next character that is not space
+    */
+   private static char peek(final String record, final int[] at)
+   {
+      at[0] = skipSpace(record, at[0]);
+      if (at[0] >= record.length())
+      {
+         throw new IllegalArgumentException("The JSON object ends early");
+      }
+      return record.charAt(at[0]);
+   }
+
+   /**
+    * @param record
+    *           a JSON object
+    * @param at
+    *           the position in the object, which is moved past the character
+    * @param c
+    *           the character that must come next
+    */
+   private static void expect(final String record, final int[] at, final char c)
+   {
+      if (peek(record, at) != c)
+      {
+         throw new IllegalArgumentException("Expected '" + c + "' at " + at[0] + " of the JSON object");
+      }
+      at[0]++;
+   }
+
+   /**
+    * @param record
+    *           a JSON object
+    * @param at
+    *           the position of a string in the object, which is moved past it
+    * @return the string, with its escapes undone
+    */
+   private static String readString(final String record, final int[] at)
+   {
+      expect(record, at, '"');
+      final StringBuilder value = new StringBuilder();
+      while (at[0] < record.length())
+      {
+         final char c = record.charAt(at[0]++);
+         if (c == '"')
+         {
+            return value.toString();
+         }
+         if (c != '\\')
+         {
+            value.append(c);
+            continue;
+         }
+         if (at[0] >= record.length())
+         {
+            break;
+         }
+         final char escaped = record.charAt(at[0]++);
+         switch (escaped)
+         {
+            case 'b':
+               value.append('\b');
+               break;
+            case 'f':
+               value.append('\f');
+               break;
+            case 'n':
+               value.append('\n');
+               break;
+            case 'r':
+               value.append('\r');
+               break;
+            case 't':
+               value.append('\t');
+               break;
+            case 'u':
+               if (at[0] + 4 > record.length())
+               {
+                  throw new IllegalArgumentException("The JSON object ends early");
+               }
+               try
+               {
+                  value.append((char) Integer.parseInt(record.substring(at[0], at[0] + 4), 16));
+               }
+               catch (final NumberFormatException e)
+               {
+                  throw new IllegalArgumentException("Bad escape at " + at[0] + " of the JSON object");
+               }
+               at[0] += 4;
+               break;
+            default:
+               value.append(escaped);
+         }
+      }
+      throw new IllegalArgumentException("The JSON object ends early");
+   }
+
+   /**
+    * @param record
+    *           a JSON object
+    * @param at
+    *           the position of an object or an array in the object, which is moved past it
+    */
+   private static void skipNested(final String record, final int[] at)
+   {
+      int depth = 0;
+      while (at[0] < record.length())
+      {
+         final char c = record.charAt(at[0]);
+         if (c == '"')
+         {
+            readString(record, at);
+            continue;
+         }
+         at[0]++;
+         if (c == '{' || c == '[')
+         {
+            depth++;
+         }
+         else if ((c == '}' || c == ']') && --depth == 0)
+         {
+            return;
+         }
+      }
+      throw new IllegalArgumentException("The JSON object ends early");
+   }
+
+   /**
+    * @param record
+    *           a JSON object
+    * @param at
+    *           a position in the object
+    * @return the position of the next character that is not space
+    */
+   private static int skipSpace(final String record, final int at)
+   {
+      int i = at;
+      while (i < record.length() && isSpace(record.charAt(i)))
+      {
+         i++;
+      }
+      return i;
+   }
+}
@@ -0,0 +1,287 @@
+/**
+ *
+ */
+package web30;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import web30.model.TwitterStream;
+
+/**
+ * The columns of the tweets a request wants. Anything less than every column is read from the database as a list of
+ * columns instead of as entities, so the unused columns are never read or hydrated, and the tweets that come back only
+ * have the wanted fields set. The fields left null are not written to the response. The time and the tweet id are
+ * always included, since the cursor for the next page is made from them.
+ */
+public class TweetProjection
+{
+   /**
+    * A column of the tweet table.
+    */
+   public enum Field
+   {
+      /** the tweet id */
+      TWEETID,
+      /** the time of the tweet */
+      TIME,
+      /** the lat column */
+      LAT,
+      /** the lon column */
+      LON,
+      /** the text of the tweet */
+      TEXT,
+      /** the user that tweeted */
+      USERID,
+      /** the bounding box */
+      BOUNDINGBOX;
+
+      /**
+       * @return the name of the field in requests, responses and queries
+       */
+      public String getName()
+      {
+         return name().toLowerCase();
+      }
+   }
+
+   /** every column */
+   public static final TweetProjection ALL = new TweetProjection(EnumSet.allOf(Field.class));
+
+   /** the columns needed to draw the tweets on the map */
+   public static final TweetProjection LITE = new TweetProjection(EnumSet.of(Field.TWEETID, Field.TIME, Field.LAT,
+         Field.LON));
+
+   /** the number of different projections there can be */
+   public static final int COUNT = 1 << Field.values().length;
+
+   /** the wanted columns, in the order they are selected */
+   private final EnumSet<Field> fields;
+
+   /** a number from 0 to {@link #COUNT} that is different for each set of wanted columns */
+   private final int index;
+
+   /**
+    * @param fields
+    *           the wanted columns
+    */
+   private TweetProjection(final EnumSet<Field> fields)
+   {
+      this.fields = fields;
+      fields.add(Field.TWEETID);
+      fields.add(Field.TIME);
+
+      int bits = 0;
+      for (final Field field : fields)
+      {
+         bits |= 1 << field.ordinal();
+      }
+      index = bits;
+   }
+
+   /**
+    * @param fields
+    *           a comma separated list of field names, or null for every field
+    * @param mode
+    *           lite for the fields needed to draw the map, full or null for every field; ignored if fields is given
+    * @return the projection
+    * @throws IllegalArgumentException
+    *            if a field name or the mode is unknown
+    */
+   public static TweetProjection parse(final String fields, final String mode)
+   {
+      if (fields == null || fields.trim().isEmpty())
+      {
+         if (mode == null || mode.equalsIgnoreCase("full"))
+         {
+            return ALL;
+         }
+         if (mode.equalsIgnoreCase("lite"))
+         {
+            return LITE;
+         }
+         throw new IllegalArgumentException("Unknown mode " + mode);
+      }
+
+      final EnumSet<Field> wanted = EnumSet.noneOf(Field.class);
+      for (final String name : fields.split(","))
+      {
+         try
+         {
+            wanted.add(Field.valueOf(name.trim().toUpperCase()));
+         }
+         catch (final IllegalArgumentException e)
+         {
+            throw new IllegalArgumentException("Unknown field " + name.trim(), e);
+         }
+      }
+      return wanted.containsAll(ALL.fields) ? ALL : new TweetProjection(wanted);
+   }
+
+   /**
+    * @return the wanted columns, in the order they are selected
+    */
+   public Set<Field> getFields()
+   {
+      return Collections.unmodifiableSet(fields);
+   }
+
+   /**
+    * @return a number from 0 to {@link #COUNT} that is different for each set of wanted columns
+    */
+   public int getIndex()
+   {
+      return index;
+   }
+
+   /**
+    * @return the select clause for the wanted columns of the tweet t
+    */
+   public String getSelect()
+   {
+      if (isAll())
+      {
+         return "select t";
+      }
+      final StringBuilder select = new StringBuilder("select ");
+      for (final Field field : fields)
+      {
+         if (field != Field.TWEETID)
+         {
+            select.append(", ");
+         }
+         select.append("t.").append(field.getName());
+      }
+      return select.toString();
+   }
+
+   /**
+    * @return true if every column is wanted
+    */
+   public boolean isAll()
+   {
+      return fields.size() == Field.values().length;
+   }
+
+   /**
+    * @param tweet
+    *           a whole tweet
+    * @return the tweet itself if every column is wanted, otherwise a copy with only the wanted fields set
+    */
+   public TwitterStream project(final TwitterStream tweet)
+   {
+      if (isAll())
+      {
+         return tweet;
+      }
+      final TwitterStream result = new TwitterStream();
+      for (final Field field : fields)
+      {
+         switch (field)
+         {
+            case TWEETID:
+               result.setTweetid(tweet.getTweetid());
+               break;
+            case TIME:
+               result.setTime(tweet.getTime());
+               break;
+            case LAT:
+               result.setLat(tweet.getLat());
+               break;
+            case LON:
+               result.setLon(tweet.getLon());
+               break;
+            case TEXT:
+               result.setText(tweet.getText());
+               break;
+            case USERID:
+               result.setUserid(tweet.getUserid());
+               break;
+            case BOUNDINGBOX:
+               result.setBoundingbox(tweet.getBoundingbox());
+               break;
+         }
+      }
+      return result;
+   }
+
+   /**
+    * @param row
+    *           a row from the query made with {@link #getSelect()}: the tweet if every column is wanted, otherwise the
+    *           array of wanted columns
+    * @return the tweet
+    */
+   public TwitterStream toTweet(final Object row)
+   {
+      if (isAll())
+      {
+         return (TwitterStream) row;
+      }
+      final Object[] columns = (Object[]) row;
+      final TwitterStream result = new TwitterStream();
+      int i = 0;
+      for (final Field field : fields)
+      {
+         final Object value = columns[i++];
+         switch (field)
+         {
+            case TWEETID:
+               result.setTweetid((String) value);
+               break;
+            case TIME:
+               result.setTime((Date) value);
+               break;
+            case LAT:
+               result.setLat((Double) value);
+               break;
+            case LON:
+               result.setLon((Double) value);
+               break;
+            case TEXT:
+               result.setText((String) value);
+               break;
+            case USERID:
+               result.setUserid((String) value);
+               break;
+            case BOUNDINGBOX:
+               result.setBoundingbox((String) value);
+               break;
+         }
+      }
+      return result;
+   }
+
+   /**
+    * @param more
+    *           columns that are needed as well
+    * @return this projection if it already has them, otherwise one with them added
+    */
+   public TweetProjection with(final Field... more)
+   {
+      final EnumSet<Field> wanted = EnumSet.copyOf(fields);
+      Collections.addAll(wanted, more);
+      if (wanted.size() == fields.size())
+      {
+         return this;
+      }
+      return wanted.containsAll(ALL.fields) ? ALL : new TweetProjection(wanted);
+   }
+
+   /**
+    * @return the names of the wanted fields
+    */
+   @Override
+   public String toString()
+   {
+      final List<String> names = new ArrayList<>();
+      for (final Field field : fields)
+      {
+         names.add(field.getName());
+      }
+      return names.toString();
+   }
+}
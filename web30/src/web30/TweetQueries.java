@@ -0,0 +1,715 @@
+/**
+ *
+ */
+package web30;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Query;
+import javax.persistence.TemporalType;
+import javax.persistence.TypedQuery;
+
+import org.apache.log4j.Logger;
+import org.hibernate.Filter;
+import org.hibernate.SQLQuery;
+import org.hibernate.Session;
+import org.hibernate.engine.query.spi.HQLQueryPlan;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.hql.spi.ParameterTranslations;
+import org.hibernate.hql.spi.QueryTranslator;
+import org.hibernate.transform.Transformers;
+
+import web30.util.GeoHash;
+
+/**
+ * The database queries for tweets. A query can bound the tweets north and south, east and west, and in time, and a page
+ * can continue after a cursor, so there are only a few shapes of query. Each shape is made into a named query the
+ * first time it is needed and kept here, so that Hibernate parses it once, and after that a request only looks its
+ * name up and binds its parameters, without building any strings or maps.
+ * <p>
+ * Once the geohash column is turned on with {@link #setGeohash(boolean)}, a query bounded on all four sides also looks
+ * for its box in a few ranges of {@link GeoHash}es, which MySQL reads from the index on that column with one range
+ * scan. The ranges cover more than the box, so the coordinates are still checked, and the rows whose geohash has not
+ * been filled in yet are read as well.
+ */
+public class TweetQueries
+{
+   /**
+    * What a query reads.
+    */
+   public enum Kind
+   {
+      /** the number of matching tweets */
+      COUNT("select count(1) from TwitterStream t ", ""),
+      /**
+       * the number of matching tweets up to the count limit of the query, after which the database stops reading.
+       * HQL has no subqueries in the from clause, so this is only ever run as the SQL Hibernate makes of the select
+       * of each match, wrapped in a count.
+       */
+      BOUNDED_COUNT("select 1 from TwitterStream t ", ""),
+      /** the ids of the matching tweets, to count them up to a limit */
+      IDS("select t.tweetid from TwitterStream t ", ""),
+      /** the coordinates of the matching tweets that have them */
+      POINTS("select t.lat, t.lon from TwitterStream t ", "and t.lat is not null and t.lon is not null "),
+      /** the times of the matching tweets that have them */
+      TIMES("select t.time from TwitterStream t ", "and t.time is not null "),
+      /** the wanted columns of the matching tweets, in (time, tweetid) order, after the cursor if there is one */
+      PAGE(null, "order by t.time, t.tweetid");
+
+      /** the select clause, or null if it depends on the projection */
+      private final String select;
+      /** the end of the query after the where clause */
+      private final String end;
+
+      /**
+       * @param select
+       *           the select clause, or null if it depends on the projection
+       * @param end
+       *           the end of the query after the where clause
+       */
+      private Kind(final String select, final String end)
+      {
+         this.select = select;
+         this.end = end;
+      }
+   }
+
+   /** the shape bit for a query bounded north and south */
+   private static final int NORTH_SOUTH = 1;
+
+   /** the shape bit for a query bounded east and west */
+   private static final int EAST_WEST = 2;
+
+   /** the shape bit for a query bounded in time */
+   private static final int TIME_RANGE = 4;
+
+   /** the shape bit for a box that is also looked for by geohash */
+   private static final int GEOHASH = 8;
+
+   /** the shape bit for a page that continues after a cursor */
+   private static final int AFTER_CURSOR = 16;
+
+   /** the number of where clauses, one for each combination of bounds */
+   private static final int WHERE_SHAPES = 16;
+
+   /** the number of shapes, one for each combination of bounds and cursor */
+   private static final int SHAPES = 32;
+
+   /** the number of geohash ranges a box is looked for in */
+   static final int GEOHASH_RANGES = 8;
+
+   /** the names of the parameters for the first geohash of each range */
+   private static final String[] GEOHASH_FIRST = new String[GEOHASH_RANGES];
+
+   /** the names of the parameters for the last geohash of each range */
+   private static final String[] GEOHASH_LAST = new String[GEOHASH_RANGES];
+
+   /** the where clauses, by the bounds bits of the shape. NOTE the db has lat and lon backwards */
+   private static final String[] WHERE = new String[WHERE_SHAPES];
+
+   /** the table the tweets are in, named the way Hibernate names it */
+   static final String TABLE = "TwitterStream";
+
+   /** true to look for boxes by geohash */
+   private static volatile boolean geohash;
+
+   /** the logger */
+   private static Logger log = Logger.getLogger(TweetQueries.class);
+
+   /** the names of the queries that have been registered, by slot */
+   private static final AtomicReferenceArray<String> names = new AtomicReferenceArray<>(Kind.values().length * SHAPES
+         + TweetProjection.COUNT * SHAPES);
+
+   /** the SQL the queries are translated into, by slot, which is made once for each factory */
+   private static final AtomicReferenceArray<String> sqls = new AtomicReferenceArray<>(names.length());
+
+   /** the factory the queries are registered with */
+   private static volatile EntityManagerFactory factory;
+
+   static
+   {
+      for (int i = 0; i < GEOHASH_RANGES; i++)
+      {
+         GEOHASH_FIRST[i] = "geohashFirst" + i;
+         GEOHASH_LAST[i] = "geohashLast" + i;
+      }
+      for (int shape = 0; shape < WHERE_SHAPES; shape++)
+      {
+         final StringBuilder where = new StringBuilder("where 1=1 ");
+         if ((shape & NORTH_SOUTH) != 0)
+         {
+            where.append("and t.lon between :south and :north ");
+         }
+         if ((shape & EAST_WEST) != 0)
+         {
+            where.append("and t.lat between :west and :east ");
+         }
+         if ((shape & TIME_RANGE) != 0)
+         {
+            where.append("and t.time between :minTime and :maxTime ");
+         }
+         if ((shape & GEOHASH) != 0)
+         {
+            where.append("and (t.geohash is null");
+            for (int i = 0; i < GEOHASH_RANGES; i++)
+            {
+               where.append(" or t.geohash between :").append(GEOHASH_FIRST[i]).append(" and :")
+                     .append(GEOHASH_LAST[i]);
+            }
+            where.append(") ");
+         }
+         WHERE[shape] = where.toString();
+      }
+   }
+
+   /**
+    * set the parameters of a query for its shape
+    *
+    * @param q
+    *           the query
+    * @param query
+    *           the tweets to select
+    * @param shape
+    *           the shape of the query
+    */
+   private static void bind(final org.hibernate.Query q, final TweetQuery query, final int shape)
+   {
+      if ((shape & NORTH_SOUTH) != 0)
+      {
+         q.setDouble("south", query.getSouth());
+         q.setDouble("north", query.getNorth());
+      }
+      if ((shape & EAST_WEST) != 0)
+      {
+         q.setDouble("west", query.getWest());
+         q.setDouble("east", query.getEast());
+      }
+      if ((shape & TIME_RANGE) != 0)
+      {
+         q.setTimestamp("minTime", query.getMinTime());
+         q.setTimestamp("maxTime", query.getMaxTime());
+      }
+      if ((shape & GEOHASH) != 0)
+      {
+         final long[] ranges = geohashRanges(query);
+         for (int i = 0; i < GEOHASH_RANGES; i++)
+         {
+            q.setLong(GEOHASH_FIRST[i], ranges[2 * i]);
+            q.setLong(GEOHASH_LAST[i], ranges[2 * i + 1]);
+         }
+      }
+      if ((shape & AFTER_CURSOR) != 0)
+      {
+         q.setTimestamp("afterTime", query.getCursor().getTime());
+         q.setString("afterId", query.getCursor().getTweetid());
+      }
+   }
+
+   /**
+    * set the parameters of a query for its shape
+    *
+    * @param q
+    *           the query
+    * @param query
+    *           the tweets to select
+    * @param shape
+    *           the shape of the query
+    */
+   private static void bind(final Query q, final TweetQuery query, final int shape)
+   {
+      if ((shape & NORTH_SOUTH) != 0)
+      {
+         q.setParameter("south", Double.valueOf(query.getSouth()));
+         q.setParameter("north", Double.valueOf(query.getNorth()));
+      }
+      if ((shape & EAST_WEST) != 0)
+      {
+         q.setParameter("west", Double.valueOf(query.getWest()));
+         q.setParameter("east", Double.valueOf(query.getEast()));
+      }
+      if ((shape & TIME_RANGE) != 0)
+      {
+         q.setParameter("minTime", query.getMinTime(), TemporalType.TIMESTAMP);
+         q.setParameter("maxTime", query.getMaxTime(), TemporalType.TIMESTAMP);
+      }
+      if ((shape & GEOHASH) != 0)
+      {
+         final long[] ranges = geohashRanges(query);
+         for (int i = 0; i < GEOHASH_RANGES; i++)
+         {
+            q.setParameter(GEOHASH_FIRST[i], Long.valueOf(ranges[2 * i]));
+            q.setParameter(GEOHASH_LAST[i], Long.valueOf(ranges[2 * i + 1]));
+         }
+      }
+      if ((shape & AFTER_CURSOR) != 0)
+      {
+         q.setParameter("afterTime", query.getCursor().getTime(), TemporalType.TIMESTAMP);
+         q.setParameter("afterId", query.getCursor().getTweetid());
+      }
+   }
+
+   /**
+    * bind the parameters of the where clause from {@link #getWhere(TweetQuery)}
+    *
+    * @param q
+    *           the query
+    * @param query
+    *           the tweets to select
+    */
+   public static void bindWhere(final Query q, final TweetQuery query)
+   {
+      bind(q, query, shapeOf(query, false));
+   }
+
+   /**
+    * @param em
+    *           the entity manager
+    * @param query
+    *           the tweets to count, and the count limit to stop at
+    * @return the SQL query for the number of matching tweets, up to the count limit, with its parameters set; its
+    *         single result is a number
+    */
+   public static SQLQuery createBoundedCount(final EntityManager em, final TweetQuery query)
+   {
+      final int shape = shapeOf(query, false);
+      final SQLQuery q = em.unwrap(Session.class).createSQLQuery(sqlOf(em, Kind.BOUNDED_COUNT, null, shape));
+      bind(q, query, shape);
+      q.setLong("countLimit", query.getCountLimit());
+      return q;
+   }
+
+   /**
+    * @param em
+    *           the entity manager
+    * @param query
+    *           the tweets to count
+    * @return the query for the number of matching tweets, with its parameters set
+    */
+   public static TypedQuery<Long> createCount(final EntityManager em, final TweetQuery query)
+   {
+      final int shape = shapeOf(query, false);
+      final TypedQuery<Long> q = em.createNamedQuery(nameOf(em, Kind.COUNT, null, shape), Long.class);
+      bind(q, query, shape);
+      return q;
+   }
+
+   /**
+    * @param em
+    *           the entity manager
+    * @param query
+    *           the tweets to count
+    * @return the query for the ids of the matching tweets, with its parameters set
+    */
+   public static TypedQuery<String> createIds(final EntityManager em, final TweetQuery query)
+   {
+      final int shape = shapeOf(query, false);
+      final TypedQuery<String> q = em.createNamedQuery(nameOf(em, Kind.IDS, null, shape), String.class);
+      bind(q, query, shape);
+      return q;
+   }
+
+   /**
+    * @param em
+    *           the entity manager
+    * @param query
+    *           the tweets to select, and the cursor to continue after
+    * @param projection
+    *           the columns to read
+    * @return the query for a page of tweets, with its parameters set; each row is read by
+    *         {@link TweetProjection#toTweet(Object)}
+    */
+   public static Query createPage(final EntityManager em, final TweetQuery query, final TweetProjection projection)
+   {
+      final int shape = shapeOf(query, true);
+      final Query q = em.createNamedQuery(nameOf(em, Kind.PAGE, projection, shape));
+      bind(q, query, shape);
+      return q;
+   }
+
+   /**
+    * create a Hibernate query, for reading through a cursor
+    *
+    * @param em
+    *           the entity manager
+    * @param kind
+    *           what to read
+    * @param query
+    *           the tweets to select, and for a page the cursor to continue after
+    * @param projection
+    *           the columns to read for a page, or null for any other kind
+    * @return the query, with its parameters set
+    */
+   public static org.hibernate.Query createScroll(final EntityManager em, final Kind kind, final TweetQuery query,
+         final TweetProjection projection)
+   {
+      final int shape = shapeOf(query, kind == Kind.PAGE);
+      final org.hibernate.Query q = em.unwrap(Session.class).getNamedQuery(nameOf(em, kind, projection, shape));
+      bind(q, query, shape);
+      return q;
+   }
+
+   /**
+    * ask the database how it would run a query, without running it. The SQL explained is the one from
+    * {@link #getSql(EntityManager, Kind, TweetQuery, TweetProjection)}, so a page is explained with its limit.
+    *
+    * @param em
+    *           the entity manager
+    * @param kind
+    *           what the query reads
+    * @param query
+    *           the tweets to select, and for a page the cursor to continue after
+    * @param projection
+    *           the columns to read for a page, or null for any other kind
+    * @return the rows of the plan, each a map from the name of a column of the plan to its value
+    */
+   @SuppressWarnings("unchecked")
+   public static List<Map<String, Object>> explain(final EntityManager em, final Kind kind, final TweetQuery query,
+         final TweetProjection projection)
+   {
+      final int shape = shapeOf(query, kind == Kind.PAGE);
+      final SQLQuery q = em.unwrap(Session.class).createSQLQuery("explain " + getSql(em, kind, query, projection));
+      q.setResultTransformer(Transformers.ALIAS_TO_ENTITY_MAP);
+      bind(q, query, shape);
+      if (kind == Kind.BOUNDED_COUNT)
+      {
+         q.setLong("countLimit", query.getCountLimit());
+      }
+      return q.list();
+   }
+
+   /**
+    * @param query
+    *           the tweets to select, bounded on all four sides
+    * @return exactly {@link #GEOHASH_RANGES} ranges of geohashes that cover the box, as pairs of first and last. If the
+    *         box needs fewer, the last is repeated, and if it needs none, the ranges are empty.
+    */
+   static long[] geohashRanges(final TweetQuery query)
+   {
+      // NOTE the db has lat and lon backwards, so the lon column is the latitude
+      final long[] ranges = GeoHash.ranges(query.getSouth(), query.getNorth(), query.getWest(), query.getEast(),
+            GEOHASH_RANGES);
+      final long[] result = new long[GEOHASH_RANGES * 2];
+      for (int i = 0; i < GEOHASH_RANGES; i++)
+      {
+         if (ranges.length == 0)
+         {
+            result[2 * i] = 1;
+            result[2 * i + 1] = 0;
+         }
+         else
+         {
+            final int range = Math.min(i, ranges.length / 2 - 1);
+            result[2 * i] = ranges[2 * range];
+            result[2 * i + 1] = ranges[2 * range + 1];
+         }
+      }
+      return result;
+   }
+
+   /**
+    * @param em
+    *           the entity manager
+    * @param kind
+    *           what the query reads
+    * @param query
+    *           the tweets to select, and for a page the cursor to continue after and the number of tweets on it
+    * @param projection
+    *           the columns to read for a page, or null for any other kind
+    * @return the SQL the database is sent for the query, with its named parameters, and for a page the limit that
+    *         Hibernate adds for the maximum number of results
+    */
+   public static String getSql(final EntityManager em, final Kind kind, final TweetQuery query,
+         final TweetProjection projection)
+   {
+      final String sql = sqlOf(em, kind, projection, shapeOf(query, kind == Kind.PAGE));
+      if (kind == Kind.PAGE && query.getMaxResults() < Integer.MAX_VALUE)
+      {
+         return sql + " limit " + query.getMaxResults();
+      }
+      return sql;
+   }
+
+   /**
+    * @param query
+    *           the tweets to select
+    * @return the where clause for the bounds of the query, for queries that are not made here
+    */
+   public static String getWhere(final TweetQuery query)
+   {
+      return WHERE[shapeOf(query, false)];
+   }
+
+   /**
+    * @param em
+    *           the entity manager
+    * @param kind
+    *           what the query reads
+    * @param projection
+    *           the columns a page reads, or null for any other kind
+    * @param shape
+    *           the shape of the query
+    * @return the name of the query, which is registered if it has not been
+    */
+   private static String nameOf(final EntityManager em, final Kind kind, final TweetProjection projection,
+         final int shape)
+   {
+      final int slot = slotOf(kind, projection, shape);
+      final String name = names.get(slot);
+      if (name != null && factory == em.getEntityManagerFactory())
+      {
+         return name;
+      }
+      return register(em, slot, kind, projection, shape);
+   }
+
+   /**
+    * make a shape into a named query, once for each entity manager factory
+    *
+    * @param em
+    *           the entity manager
+    * @param slot
+    *           where the name is kept
+    * @param kind
+    *           what the query reads
+    * @param projection
+    *           the columns a page reads, or null for any other kind
+    * @param shape
+    *           the shape of the query
+    * @return the name of the query
+    */
+   private static synchronized String register(final EntityManager em, final int slot, final Kind kind,
+         final TweetProjection projection, final int shape)
+   {
+      useFactory(em);
+      String name = names.get(slot);
+      if (name == null)
+      {
+         final String hql = toHql(kind, projection, shape);
+         name = "TwitterStream." + kind.name().toLowerCase() + "." + slot;
+         factory.addNamedQuery(name, em.createQuery(hql));
+         names.set(slot, name);
+         log.debug("registered " + name + ": " + hql);
+      }
+      return name;
+   }
+
+   /**
+    * @param kind
+    *           what the query reads
+    * @param projection
+    *           the columns a page reads, or null for any other kind
+    * @param shape
+    *           the shape of the query
+    * @return where the name and the SQL of the query are kept
+    */
+   private static int slotOf(final Kind kind, final TweetProjection projection, final int shape)
+   {
+      return kind == Kind.PAGE ? (Kind.values().length + projection.getIndex()) * SHAPES + shape
+            : kind.ordinal() * SHAPES + shape;
+   }
+
+   /**
+    * @param em
+    *           the entity manager
+    * @param kind
+    *           what the query reads
+    * @param projection
+    *           the columns a page reads, or null for any other kind
+    * @param shape
+    *           the shape of the query
+    * @return the SQL of the query, which is translated if it has not been
+    */
+   private static String sqlOf(final EntityManager em, final Kind kind, final TweetProjection projection,
+         final int shape)
+   {
+      final int slot = slotOf(kind, projection, shape);
+      final String sql = sqls.get(slot);
+      if (sql != null && factory == em.getEntityManagerFactory())
+      {
+         return sql;
+      }
+      return translate(em, slot, kind, projection, shape);
+   }
+
+   /**
+    * translate a shape into SQL, once for each entity manager factory
+    *
+    * @param em
+    *           the entity manager
+    * @param slot
+    *           where the SQL is kept
+    * @param kind
+    *           what the query reads
+    * @param projection
+    *           the columns a page reads, or null for any other kind
+    * @param shape
+    *           the shape of the query
+    * @return the SQL of the query
+    */
+   private static synchronized String translate(final EntityManager em, final int slot, final Kind kind,
+         final TweetProjection projection, final int shape)
+   {
+      useFactory(em);
+      String sql = sqls.get(slot);
+      if (sql == null)
+      {
+         sql = toSql(em, kind, projection, shape);
+         sqls.set(slot, sql);
+         log.debug("translated " + kind.name().toLowerCase() + "." + slot + ": " + sql);
+      }
+      return sql;
+   }
+
+   /**
+    * forget the queries registered with and translated for another entity manager factory than the one of an entity
+    * manager. This is only called while holding the lock of the class.
+    *
+    * @param em
+    *           the entity manager
+    */
+   private static void useFactory(final EntityManager em)
+   {
+      if (factory != em.getEntityManagerFactory())
+      {
+         // a new factory knows none of the queries
+         for (int i = 0; i < names.length(); i++)
+         {
+            names.set(i, null);
+            sqls.set(i, null);
+         }
+         factory = em.getEntityManagerFactory();
+      }
+   }
+
+   /**
+    * @param on
+    *           true to look for boxes by geohash as well, once the migration that adds the geohash column and its
+    *           index has been applied
+    */
+   public static void setGeohash(final boolean on)
+   {
+      geohash = on;
+   }
+
+   /**
+    * @param query
+    *           the tweets to select
+    * @param page
+    *           true if the query continues after the cursor of the query, if it has one
+    * @return the shape of the query
+    */
+   private static int shapeOf(final TweetQuery query, final boolean page)
+   {
+      int shape = 0;
+      if (query.hasNorthSouth())
+      {
+         shape |= NORTH_SOUTH;
+      }
+      if (query.hasEastWest())
+      {
+         shape |= EAST_WEST;
+      }
+      if (query.hasTimeRange())
+      {
+         shape |= TIME_RANGE;
+      }
+      if (geohash && query.hasNorthSouth() && query.hasEastWest())
+      {
+         shape |= GEOHASH;
+      }
+      if (page && query.getCursor() != null)
+      {
+         shape |= AFTER_CURSOR;
+      }
+      return shape;
+   }
+
+   /**
+    * @param kind
+    *           what the query reads
+    * @param projection
+    *           the columns a page reads, or null for any other kind
+    * @param shape
+    *           the shape of the query
+    * @return the HQL of the query
+    */
+   private static String toHql(final Kind kind, final TweetProjection projection, final int shape)
+   {
+      final StringBuilder hql = new StringBuilder();
+      if (kind == Kind.PAGE)
+      {
+         hql.append(projection.getSelect()).append(" from TwitterStream t ");
+      }
+      else
+      {
+         hql.append(kind.select);
+      }
+      hql.append(WHERE[shape & (WHERE_SHAPES - 1)]);
+      if ((shape & AFTER_CURSOR) != 0)
+      {
+         hql.append("and (t.time > :afterTime or (t.time = :afterTime and t.tweetid > :afterId)) ");
+      }
+      hql.append(kind.end);
+      return hql.toString();
+   }
+
+   /**
+    * @param em
+    *           the entity manager
+    * @param kind
+    *           what the query reads
+    * @param projection
+    *           the columns a page reads, or null for any other kind
+    * @param shape
+    *           the shape of the query
+    * @return the SQL Hibernate translates the HQL of the query into, with its positional parameters named again as
+    *         they are in the HQL, and a bounded count's :countLimit
+    */
+   private static String toSql(final EntityManager em, final Kind kind, final TweetProjection projection,
+         final int shape)
+   {
+      final SessionFactoryImplementor sessionFactory = (SessionFactoryImplementor) em.unwrap(Session.class)
+            .getSessionFactory();
+      final HQLQueryPlan plan = sessionFactory.getQueryPlanCache().getHQLQueryPlan(toHql(kind, projection, shape),
+            false, Collections.<String, Filter> emptyMap());
+      final QueryTranslator translator = plan.getTranslators()[0];
+
+      final ParameterTranslations parameters = translator.getParameterTranslations();
+      final Map<Integer, String> names = new HashMap<>();
+      for (final Object name : parameters.getNamedParameterNames())
+      {
+         for (final int location : parameters.getNamedParameterSqlLocations((String) name))
+         {
+            names.put(Integer.valueOf(location), (String) name);
+         }
+      }
+
+      // the SQL of these queries has no string literals, so every question mark is a parameter
+      final String translated = translator.getSQLString();
+      final StringBuilder sql = new StringBuilder(translated.length() + names.size() * 8);
+      int location = 0;
+      for (int i = 0; i < translated.length(); i++)
+      {
+         final char c = translated.charAt(i);
+         if (c == '?')
+         {
+            sql.append(':').append(names.get(Integer.valueOf(location++)));
+         }
+         else
+         {
+            sql.append(c);
+         }
+      }
+      if (kind == Kind.BOUNDED_COUNT)
+      {
+         return "select count(1) from (" + sql + " limit :countLimit) bounded";
+      }
+      return sql.toString();
+   }
+}
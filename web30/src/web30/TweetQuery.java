@@ -0,0 +1,310 @@
+/**
+ *
+ */
+package web30;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import web30.index.TextIndex;
+import web30.model.TweetRecord;
+import web30.model.TwitterStream;
+
+/**
+ * The filter for a tweet request. The bounds of each pair are optional; if either side of a pair is given, the missing
+ * side defaults to the edge of the world (or the epoch and now, for times) the same way the database query does.
+ */
+public class TweetQuery
+{
+   /** the default maximum number of tweets returned by one request */
+   public static final int DEFAULT_MAX_RESULTS = 1000;
+
+   /** the top of the box */
+   private final Double north;
+   /** the bottom of the box */
+   private final Double south;
+   /** the right side of the box */
+   private final Double east;
+   /** the left side of the box */
+   private final Double west;
+   /** the earliest time */
+   private final Date minDate;
+   /** the latest time */
+   private final Date maxDate;
+   /** the maximum number of tweets to return */
+   private int maxResults = DEFAULT_MAX_RESULTS;
+   /** where the page starts, or null for the first page */
+   private TweetCursor cursor;
+   /** the number of matches after which counting can stop */
+   private long countLimit = Long.MAX_VALUE;
+   /** true for a sample of the matches spread over the box, instead of the first of them */
+   private boolean sample;
+   /** the text the words come from, or null */
+   private String text;
+   /** the words every tweet must use, or none */
+   private List<String> terms = Collections.emptyList();
+
+   /**
+    * @param north
+    *           the top of the box, or null
+    * @param south
+    *           the bottom of the box, or null
+    * @param east
+    *           the right side of the box, or null
+    * @param west
+    *           the left side of the box, or null
+    * @param minDate
+    *           the earliest time, or null
+    * @param maxDate
+    *           the latest time, or null
+    */
+   public TweetQuery(final Double north, final Double south, final Double east, final Double west, final Date minDate,
+         final Date maxDate)
+   {
+      this.north = north;
+      this.south = south;
+      this.east = east;
+      this.west = west;
+      this.minDate = minDate;
+      this.maxDate = maxDate;
+   }
+
+   /**
+    * @return the number of matches after which counting can stop
+    */
+   public long getCountLimit()
+   {
+      return countLimit;
+   }
+
+   /**
+    * @return where the page starts, or null for the first page
+    */
+   public TweetCursor getCursor()
+   {
+      return cursor;
+   }
+
+   /**
+    * @return the right side of the box, defaulting to 180
+    */
+   public double getEast()
+   {
+      return east == null ? 180.0 : east.doubleValue();
+   }
+
+   /**
+    * @return the maximum number of tweets to return
+    */
+   public int getMaxResults()
+   {
+      return maxResults;
+   }
+
+   /**
+    * @return the latest time, defaulting to now
+    */
+   public Date getMaxTime()
+   {
+      return maxDate == null ? new Date() : maxDate;
+   }
+
+   /**
+    * @return the earliest time, defaulting to the epoch
+    */
+   public Date getMinTime()
+   {
+      return minDate == null ? new Date(0) : minDate;
+   }
+
+   /**
+    * @return the words every tweet must use, as cut by {@link TextIndex#tokenize(String)}, or an empty list
+    */
+   public List<String> getTerms()
+   {
+      return terms;
+   }
+
+   /**
+    * @return the text the words come from, or null
+    */
+   public String getText()
+   {
+      return text;
+   }
+
+   /**
+    * @return the top of the box, defaulting to 90
+    */
+   public double getNorth()
+   {
+      return north == null ? 90.0 : north.doubleValue();
+   }
+
+   /**
+    * @return the bottom of the box, defaulting to -90
+    */
+   public double getSouth()
+   {
+      return south == null ? -90.0 : south.doubleValue();
+   }
+
+   /**
+    * @return the left side of the box, defaulting to -180
+    */
+   public double getWest()
+   {
+      return west == null ? -180.0 : west.doubleValue();
+   }
+
+   /**
+    * @return true if the east or west side of the box was given
+    */
+   public boolean hasEastWest()
+   {
+      return east != null || west != null;
+   }
+
+   /**
+    * @return true if the north or south side of the box was given
+    */
+   public boolean hasNorthSouth()
+   {
+      return north != null || south != null;
+   }
+
+   /**
+    * @return true if there are words the tweets must use
+    */
+   public boolean hasText()
+   {
+      return !terms.isEmpty();
+   }
+
+   /**
+    * @return true if either end of the time range was given
+    */
+   public boolean hasTimeRange()
+   {
+      return minDate != null || maxDate != null;
+   }
+
+   /**
+    * @return true for a sample of the matches spread over the box, instead of the first of them
+    */
+   public boolean isSample()
+   {
+      return sample;
+   }
+
+   /**
+    * @param tweet
+    *           a tweet
+    * @return true if the tweet is in the box and the time range, the same way the database query decides, and uses
+    *         every word
+    */
+   public boolean matches(final TwitterStream tweet)
+   {
+      // NOTE the db has lat and lon backwards
+      if (hasNorthSouth() && (tweet.getLon() == null || tweet.getLon().doubleValue() < getSouth()
+            || tweet.getLon().doubleValue() > getNorth()))
+      {
+         return false;
+      }
+      if (hasEastWest() && (tweet.getLat() == null || tweet.getLat().doubleValue() < getWest()
+            || tweet.getLat().doubleValue() > getEast()))
+      {
+         return false;
+      }
+      if (hasTimeRange() && (tweet.getTime() == null || tweet.getTime().before(getMinTime())
+            || tweet.getTime().after(getMaxTime())))
+      {
+         return false;
+      }
+      return !hasText() || TextIndex.tokenize(tweet.getText()).containsAll(terms);
+   }
+
+   /**
+    * @param tweet
+    *           a tweet held as a record
+    * @return true if the tweet matches, the same way {@link #matches(TwitterStream)} decides
+    */
+   public boolean matches(final TweetRecord tweet)
+   {
+      // NOTE the db has lat and lon backwards; NaN coordinates fail every comparison
+      if (hasNorthSouth() && !(tweet.getLon() >= getSouth() && tweet.getLon() <= getNorth()))
+      {
+         return false;
+      }
+      if (hasEastWest() && !(tweet.getLat() >= getWest() && tweet.getLat() <= getEast()))
+      {
+         return false;
+      }
+      if (hasTimeRange() && (tweet.getTime() == TweetRecord.NO_TIME || tweet.getTime() < getMinTime().getTime()
+            || tweet.getTime() > getMaxTime().getTime()))
+      {
+         return false;
+      }
+      return !hasText() || TextIndex.tokenize(tweet.getText()).containsAll(terms);
+   }
+
+   /**
+    * @param countLimit
+    *           the number of matches after which counting can stop
+    */
+   public void setCountLimit(final long countLimit)
+   {
+      this.countLimit = countLimit;
+   }
+
+   /**
+    * @param cursor
+    *           where the page starts, or null for the first page
+    */
+   public void setCursor(final TweetCursor cursor)
+   {
+      this.cursor = cursor;
+   }
+
+   /**
+    * @param maxResults
+    *           the maximum number of tweets to return
+    */
+   public void setMaxResults(final int maxResults)
+   {
+      this.maxResults = maxResults;
+   }
+
+   /**
+    * @param sample
+    *           true for a sample of the matches spread over the box, instead of the first of them
+    */
+   public void setSample(final boolean sample)
+   {
+      this.sample = sample;
+   }
+
+   /**
+    * @param text
+    *           the words every tweet must use, or null for none
+    */
+   public void setText(final String text)
+   {
+      this.text = text;
+      final List<String> words = TextIndex.tokenize(text);
+      terms = words.isEmpty() ? Collections.<String> emptyList() : Collections.unmodifiableList(words);
+   }
+
+   /*
+    * (non-Javadoc)
+    * @see java.lang.Object#toString()
+    */
+   @Override
+   public String toString()
+   {
+      return "TweetQuery [north=" + north + ", south=" + south + ", east=" + east + ", west=" + west + ", minDate="
+            + minDate + ", maxDate=" + maxDate + ", maxResults=" + maxResults + ", cursor=" + cursor + ", text=" + text
+            + ", sample=" + sample + "]";
+   }
+}
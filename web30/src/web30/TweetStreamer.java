@@ -0,0 +1,452 @@
+/**
+ *
+ */
+package web30;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.apache.log4j.Logger;
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+
+import web30.index.TweetIndex;
+import web30.index.TweetRecordVisitor;
+import web30.model.TweetRecord;
+import web30.persistence.EntityManagerPool;
+import web30.persistence.PooledEntityManager;
+
+/**
+ * Streams the tweets that match a query to the response as they are read, instead of collecting them into a list
+ * first. The tweets come from the index if there is one, otherwise from a forward-only database cursor. Either way the
+ * memory used does not depend on the number of tweets, and the total is written after the tweets because it is not
+ * known until the last one has been read.
+ * <p>
+ * An export writes the tweets as a dump instead, in a {@link DumpFormat}, with nothing around them. Exports are
+ * written through buffers from a small pool, and an export can only start writing when it gets one, so that exports of
+ * millions of tweets cannot hold more than a few database connections away from the interactive queries. The buffer is
+ * taken when the export starts writing and given back when it is done, so an export that is never written holds
+ * none, and an export that finds none free answers 503 before anything is sent.
+ * <p>
+ * A stream from the database holds a database connection for as long as it is written, so only
+ * {@value #DATABASE_STREAMS} of them can be written at once, and another one answers 503 the same way. A stream from
+ * the index needs no connection and is not limited.
+ */
+public class TweetStreamer implements StreamingOutput
+{
+   /**
+    * Buffers the bytes of an export in a buffer from the pool.
+    */
+   private static class PooledBufferStream extends OutputStream
+   {
+      /** where the bytes go */
+      private final OutputStream out;
+      /** the buffer */
+      private final byte[] buffer;
+      /** the number of bytes in the buffer */
+      private int count;
+
+      /**
+       * @param out
+       *           where the bytes go
+       * @param buffer
+       *           the buffer
+       */
+      PooledBufferStream(final OutputStream out, final byte[] buffer)
+      {
+         this.out = out;
+         this.buffer = buffer;
+      }
+
+      /*
+       * (non-Javadoc)
+       * @see java.io.OutputStream#flush()
+       */
+      @Override
+      public void flush() throws IOException
+      {
+         out.write(buffer, 0, count);
+         count = 0;
+         out.flush();
+      }
+
+      /*
+       * (non-Javadoc)
+       * @see java.io.OutputStream#write(byte[], int, int)
+       */
+      @Override
+      public void write(final byte[] bytes, final int offset, final int length) throws IOException
+      {
+         if (length > buffer.length - count)
+         {
+            out.write(buffer, 0, count);
+            count = 0;
+         }
+         if (length >= buffer.length)
+         {
+            out.write(bytes, offset, length);
+            return;
+         }
+         System.arraycopy(bytes, offset, buffer, count, length);
+         count += length;
+      }
+
+      /*
+       * (non-Javadoc)
+       * @see java.io.OutputStream#write(int)
+       */
+      @Override
+      public void write(final int b) throws IOException
+      {
+         if (count == buffer.length)
+         {
+            out.write(buffer, 0, count);
+            count = 0;
+         }
+         buffer[count++] = (byte) b;
+      }
+   }
+
+   /** the number of exports that can run at once, which is the number of buffers in the pool */
+   static final int EXPORT_BUFFERS = 2;
+
+   /** the number of streams of JSON from the database that can be written at once */
+   static final int DATABASE_STREAMS = 4;
+
+   /** the size of each buffer in the pool */
+   private static final int EXPORT_BUFFER_SIZE = 64 * 1024;
+
+   /**
+    * MySQL only streams a result set, instead of reading all of it into memory, when the fetch size is
+    * Integer.MIN_VALUE
+    */
+   static final int STREAMING_FETCH_SIZE = Integer.MIN_VALUE;
+
+   /** the number of tweets read from the database between clearing the session */
+   static final int CLEAR_INTERVAL = 1000;
+
+   /** the logger */
+   private static Logger log = Logger.getLogger(TweetStreamer.class);
+
+   /** the buffers that are not in use by an export */
+   private static final BlockingQueue<byte[]> buffers = createBuffers();
+
+   /** the permits of the streams of JSON from the database that are not being written */
+   private static final Semaphore databaseStreams = new Semaphore(DATABASE_STREAMS);
+
+   /** the query that selects the tweets */
+   private final TweetQuery query;
+   /** the index to read from, or null to read from the database */
+   private final TweetIndex index;
+   /** the fields of the tweets to write */
+   private final TweetProjection projection;
+   /** the format of an export, or null for a page of JSON */
+   private final DumpFormat format;
+
+   /**
+    * @param query
+    *           the query that selects the tweets
+    * @param index
+    *           the index to read from, or null to read from the database
+    * @param projection
+    *           the fields of the tweets to write
+    */
+   public TweetStreamer(final TweetQuery query, final TweetIndex index, final TweetProjection projection)
+   {
+      this(query, index, projection, null);
+   }
+
+   /**
+    * @param query
+    *           the query that selects the tweets
+    * @param index
+    *           the index to read from, or null to read from the database
+    * @param projection
+    *           the fields of the tweets to write
+    * @param format
+    *           the format of an export, or null for a page of JSON
+    */
+   private TweetStreamer(final TweetQuery query, final TweetIndex index, final TweetProjection projection,
+         final DumpFormat format)
+   {
+      this.query = query;
+      this.index = index;
+      this.projection = projection;
+      this.format = format;
+   }
+
+   /**
+    * @return the pool of buffers, all free
+    */
+   private static BlockingQueue<byte[]> createBuffers()
+   {
+      final BlockingQueue<byte[]> result = new ArrayBlockingQueue<>(EXPORT_BUFFERS);
+      for (int i = 0; i < EXPORT_BUFFERS; i++)
+      {
+         result.add(new byte[EXPORT_BUFFER_SIZE]);
+      }
+      return result;
+   }
+
+   /**
+    * create an export of every tweet that matches a query. It takes a buffer from the pool when it is written, and
+    * gives it back when it is done.
+    *
+    * @param query
+    *           the query that selects the tweets, whose maximum number of results is ignored
+    * @param index
+    *           the index to read from, or null to read from the database
+    * @param projection
+    *           the fields of the tweets to write
+    * @param format
+    *           the format of the export
+    * @return the export
+    */
+   public static TweetStreamer export(final TweetQuery query, final TweetIndex index,
+         final TweetProjection projection, final DumpFormat format)
+   {
+      query.setMaxResults(Integer.MAX_VALUE);
+      return new TweetStreamer(query, index, projection, format);
+   }
+
+   /**
+    * read every tweet, from the index if there is one and otherwise from the database
+    *
+    * @param visitor
+    *           receives each tweet
+    * @return the number of tweets read
+    * @throws IOException
+    *            if a tweet cannot be written
+    */
+   private long read(final TweetRecordVisitor visitor) throws IOException
+   {
+      try
+      {
+         return index != null ? index.scanRecords(query, visitor) : scroll(visitor);
+      }
+      catch (final IOException | RuntimeException e)
+      {
+         // the status has already been sent, so all that can be done is to cut the response short
+         log.error("Cannot stream the tweets", e);
+         throw e;
+      }
+   }
+
+   /**
+    * read the tweets from the database through a forward-only cursor, clearing the session as it goes so that the
+    * tweets already written can be collected
+    *
+    * @param visitor
+    *           receives each tweet
+    * @return the number of tweets read
+    * @throws IOException
+    *            if a tweet cannot be written
+    */
+   private long scroll(final TweetRecordVisitor visitor) throws IOException
+   {
+      try (PooledEntityManager em = EntityManagerPool.borrowEntityManager())
+      {
+         final Session session = em.unwrap(Session.class);
+         final Query q = TweetQueries.createScroll(em, TweetQueries.Kind.PAGE, query, projection);
+         if (query.getMaxResults() < Integer.MAX_VALUE)
+         {
+            q.setMaxResults(query.getMaxResults());
+         }
+         q.setReadOnly(true);
+         q.setFetchSize(STREAMING_FETCH_SIZE);
+
+         final ScrollableResults results = q.scroll(ScrollMode.FORWARD_ONLY);
+         try
+         {
+            long count = 0;
+            while (results.next())
+            {
+               visitor.visit(TweetRecord.of(projection.toTweet(projection.isAll() ? results.get(0) : results.get())));
+               if (++count % CLEAR_INTERVAL == 0)
+               {
+                  session.clear();
+               }
+            }
+            return count;
+         }
+         finally
+         {
+            results.close();
+         }
+      }
+   }
+
+   /*
+    * (non-Javadoc)
+    * @see javax.ws.rs.core.StreamingOutput#write(java.io.OutputStream)
+    */
+   @Override
+   public void write(final OutputStream output) throws IOException, WebApplicationException
+   {
+      if (format == null && index != null)
+      {
+         writePage(output);
+         return;
+      }
+      if (format == null)
+      {
+         if (!databaseStreams.tryAcquire())
+         {
+            throw unavailable("Only " + DATABASE_STREAMS + " streams from the database can run at once");
+         }
+         try
+         {
+            writePage(output);
+         }
+         finally
+         {
+            databaseStreams.release();
+         }
+         return;
+      }
+      final byte[] buffer = buffers.poll();
+      if (buffer == null)
+      {
+         throw unavailable("Only " + EXPORT_BUFFERS + " exports can run at once");
+      }
+      try
+      {
+         writeDump(output, buffer);
+      }
+      finally
+      {
+         buffers.add(buffer);
+      }
+   }
+
+   /**
+    * @param message
+    *           why the response cannot be written now
+    * @return the exception that answers 503, which can only be thrown before anything has been written so that the
+    *         status can still be sent
+    */
+   private static WebApplicationException unavailable(final String message)
+   {
+      return new WebApplicationException(Response.status(Response.Status.SERVICE_UNAVAILABLE).entity(message)
+            .header("Retry-After", "60").build());
+   }
+
+   /**
+    * write every tweet as a dump, one line each
+    *
+    * @param output
+    *           the response
+    * @param buffer
+    *           the buffer from the pool
+    * @throws IOException
+    *            if a tweet cannot be read or written
+    */
+   private void writeDump(final OutputStream output, final byte[] buffer) throws IOException
+   {
+      final long startTime = System.currentTimeMillis();
+      // the encoder buffers a little itself, and the rest is in the buffer from the pool
+      final Writer writer = new OutputStreamWriter(new PooledBufferStream(output, buffer), StandardCharsets.UTF_8);
+      final TweetRecordVisitor visitor;
+      if (format == DumpFormat.CSV)
+      {
+         final TweetCsvWriter csv = new TweetCsvWriter(writer, projection);
+         csv.header();
+         visitor = new TweetRecordVisitor()
+         {
+            @Override
+            public void visit(final TweetRecord tweet) throws IOException
+            {
+               csv.tweet(tweet);
+            }
+         };
+      }
+      else
+      {
+         final TweetJsonWriter json = new TweetJsonWriter(writer);
+         visitor = new TweetRecordVisitor()
+         {
+            @Override
+            public void visit(final TweetRecord tweet) throws IOException
+            {
+               json.tweet(tweet, projection);
+               writer.write('\n');
+            }
+         };
+      }
+      // send the start of the response right away
+      writer.flush();
+
+      final long count = read(visitor);
+      writer.flush();
+
+      if (log.isDebugEnabled())
+      {
+         final double seconds = (System.currentTimeMillis() - startTime) / 1000.0;
+         log.debug(String.format("exported %,d tweets as %s in %.2f seconds", Long.valueOf(count), format,
+               Double.valueOf(seconds)));
+      }
+   }
+
+   /**
+    * write the tweets as a page of JSON, with the total after them
+    *
+    * @param output
+    *           the response
+    * @throws IOException
+    *            if a tweet cannot be read or written
+    */
+   private void writePage(final OutputStream output) throws IOException
+   {
+      final long startTime = System.currentTimeMillis();
+      final Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+      final TweetJsonWriter json = new TweetJsonWriter(writer);
+
+      json.startObject();
+      json.name("tweet");
+      json.startArray();
+      // send the start of the response right away
+      writer.flush();
+
+      final TweetRecordVisitor visitor = new TweetRecordVisitor()
+      {
+         /** true until the first tweet is written */
+         private boolean first = true;
+
+         @Override
+         public void visit(final TweetRecord tweet) throws IOException
+         {
+            json.separator(first);
+            json.tweet(tweet, projection);
+            first = false;
+         }
+      };
+
+      final long count = read(visitor);
+
+      final long offset = query.getCursor() == null ? 0 : query.getCursor().getOffset();
+      json.endArray();
+      json.field("offset", offset);
+      json.field("total", offset + count);
+      json.endObject();
+      writer.flush();
+
+      if (log.isDebugEnabled())
+      {
+         final double seconds = (System.currentTimeMillis() - startTime) / 1000.0;
+         log.debug(String.format("streamed %,d tweets in %.2f seconds", Long.valueOf(count), Double.valueOf(seconds)));
+      }
+   }
+}
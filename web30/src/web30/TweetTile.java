@@ -0,0 +1,145 @@
+/**
+ *
+ */
+package web30;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * The tweets in one XYZ map tile, in a compact form. Each point is three numbers in the point array: its x and y
+ * position in the tile, from 0 to extent - 1 with y growing down, and the number of tweets at that position. At lower
+ * zooms, tweets that are close together on the map are thinned into one point.
+ */
+@XmlRootElement
+public class TweetTile
+{
+   /** the zoom level */
+   private int z;
+   /** the column of the tile */
+   private int x;
+   /** the row of the tile, counted down from the north */
+   private int y;
+   /** the size of the tile in point coordinates */
+   private int extent;
+   /** the total number of tweets in the tile, including those dropped when the tile was full */
+   private long total;
+   /** the points, as x, y, count triples */
+   private int[] point;
+
+   /**
+    * @return the size of the tile in point coordinates
+    */
+   public int getExtent()
+   {
+      return extent;
+   }
+
+   /**
+    * @return the points, as x, y, count triples
+    */
+   public int[] getPoint()
+   {
+      if (point == null)
+      {
+         point = new int[0];
+      }
+      return point;
+   }
+
+   /**
+    * @return the total number of tweets in the tile, including those dropped when the tile was full
+    */
+   public long getTotal()
+   {
+      return total;
+   }
+
+   /**
+    * @return the column of the tile
+    */
+   public int getX()
+   {
+      return x;
+   }
+
+   /**
+    * @return the row of the tile, counted down from the north
+    */
+   public int getY()
+   {
+      return y;
+   }
+
+   /**
+    * @return the zoom level
+    */
+   public int getZ()
+   {
+      return z;
+   }
+
+   /**
+    * @param extent
+    *           the size of the tile in point coordinates
+    */
+   public void setExtent(final int extent)
+   {
+      this.extent = extent;
+   }
+
+   /**
+    * @param point
+    *           the points, as x, y, count triples
+    */
+   public void setPoint(final int[] point)
+   {
+      this.point = point;
+   }
+
+   /**
+    * @param total
+    *           the total number of tweets in the tile, including those dropped when the tile was full
+    */
+   public void setTotal(final long total)
+   {
+      this.total = total;
+   }
+
+   /**
+    * @param x
+    *           the column of the tile
+    */
+   public void setX(final int x)
+   {
+      this.x = x;
+   }
+
+   /**
+    * @param y
+    *           the row of the tile, counted down from the north
+    */
+   public void setY(final int y)
+   {
+      this.y = y;
+   }
+
+   /**
+    * @param z
+    *           the zoom level
+    */
+   public void setZ(final int z)
+   {
+      this.z = z;
+   }
+
+   /*
+    * (non-Javadoc)
+    * @see java.lang.Object#toString()
+    */
+   @Override
+   public String toString()
+   {
+      return "TweetTile [z=" + z + ", x=" + x + ", y=" + y + ", total=" + total + ", points=" + getPoint().length / 3
+            + "]";
+   }
+}
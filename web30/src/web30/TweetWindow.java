@@ -0,0 +1,171 @@
+/**
+ *
+ */
+package web30;
+
+import java.util.Date;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * One box and time window of a batch request, like the query parameters of a single request for tweets. A side or an
+ * end that is not given is not limited.
+ */
+@XmlRootElement
+public class TweetWindow
+{
+   /** the top of the box */
+   private Double north;
+   /** the bottom of the box */
+   private Double south;
+   /** the right side of the box */
+   private Double east;
+   /** the left side of the box */
+   private Double west;
+   /** the earliest time */
+   private Date minDate;
+   /** the latest time */
+   private Date maxDate;
+   /** words every tweet must use */
+   private String text;
+
+   /**
+    * @return the right side of the box, or null
+    */
+   public Double getEast()
+   {
+      return east;
+   }
+
+   /**
+    * @return the latest time, or null
+    */
+   public Date getMaxDate()
+   {
+      return maxDate;
+   }
+
+   /**
+    * @return the earliest time, or null
+    */
+   public Date getMinDate()
+   {
+      return minDate;
+   }
+
+   /**
+    * @return the top of the box, or null
+    */
+   public Double getNorth()
+   {
+      return north;
+   }
+
+   /**
+    * @return the bottom of the box, or null
+    */
+   public Double getSouth()
+   {
+      return south;
+   }
+
+   /**
+    * @return words every tweet must use, or null for any tweet
+    */
+   public String getText()
+   {
+      return text;
+   }
+
+   /**
+    * @return the left side of the box, or null
+    */
+   public Double getWest()
+   {
+      return west;
+   }
+
+   /**
+    * @param east
+    *           the right side of the box, or null
+    */
+   public void setEast(final Double east)
+   {
+      this.east = east;
+   }
+
+   /**
+    * @param maxDate
+    *           the latest time, or null
+    */
+   public void setMaxDate(final Date maxDate)
+   {
+      this.maxDate = maxDate;
+   }
+
+   /**
+    * @param minDate
+    *           the earliest time, or null
+    */
+   public void setMinDate(final Date minDate)
+   {
+      this.minDate = minDate;
+   }
+
+   /**
+    * @param north
+    *           the top of the box, or null
+    */
+   public void setNorth(final Double north)
+   {
+      this.north = north;
+   }
+
+   /**
+    * @param south
+    *           the bottom of the box, or null
+    */
+   public void setSouth(final Double south)
+   {
+      this.south = south;
+   }
+
+   /**
+    * @param text
+    *           words every tweet must use, or null for any tweet
+    */
+   public void setText(final String text)
+   {
+      this.text = text;
+   }
+
+   /**
+    * @param west
+    *           the left side of the box, or null
+    */
+   public void setWest(final Double west)
+   {
+      this.west = west;
+   }
+
+   /**
+    * @return a query for the tweets in the window
+    */
+   public TweetQuery toQuery()
+   {
+      final TweetQuery query = new TweetQuery(north, south, east, west, minDate, maxDate);
+      query.setText(text);
+      return query;
+   }
+
+   /*
+    * (non-Javadoc)
+    * @see java.lang.Object#toString()
+    */
+   @Override
+   public String toString()
+   {
+      return "TweetWindow [north=" + north + ", south=" + south + ", east=" + east + ", west=" + west + ", minDate="
+            + minDate + ", maxDate=" + maxDate + ", text=" + text + "]";
+   }
+}
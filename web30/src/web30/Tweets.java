@@ -20,8 +20,20 @@ public class Tweets
    private long offset;
    /** the total number of tweets that could be returned */
    private long total;
+   /** how the total was counted */
+   private String totalMode = CountMode.EXACT.getLabel();
    /** the tweets in the set of results */
    private List<TwitterStream> tweet;
+   /** the token for the next page of results, or null if this is the last page */
+   private String next;
+
+   /**
+    * @return the token for the next page of results, or null if this is the last page
+    */
+   public String getNext()
+   {
+      return next;
+   }
 
    /**
     * @return the offset
@@ -39,6 +51,14 @@ public class Tweets
       return total;
    }
 
+   /**
+    * @return how the total was counted: exact, atleast if the total is a lower bound, or estimate
+    */
+   public String getTotalMode()
+   {
+      return totalMode;
+   }
+
    /**
     * @return the tweet
     */
@@ -51,6 +71,15 @@ public class Tweets
       return tweet;
    }
 
+   /**
+    * @param next
+    *           the token for the next page of results, or null if this is the last page
+    */
+   public void setNext(final String next)
+   {
+      this.next = next;
+   }
+
    /**
     * @param offset
     *           the offset to set
@@ -69,6 +98,15 @@ public class Tweets
       this.total = total;
    }
 
+   /**
+    * @param totalMode
+    *           how the total was counted
+    */
+   public void setTotalMode(final String totalMode)
+   {
+      this.totalMode = totalMode;
+   }
+
    /**
     * @param tweet
     *           the tweet to set
@@ -85,7 +123,8 @@ public class Tweets
    @Override
    public String toString()
    {
-      final StringBuilder b = new StringBuilder("Tweets [total=" + total + ", offset=" + offset + ", tweets = ");
+      final StringBuilder b = new StringBuilder("Tweets [total=" + total + ", totalMode=" + totalMode + ", offset="
+            + offset + ", next=" + next + ", tweets = ");
       for (final TwitterStream curTweet : getTweet())
       {
          b.append("\n");
@@ -1,18 +1,65 @@
 /**
- * 
+ *
  */
 package web30;
 
+import java.io.File;
+
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+
+import web30.index.TweetIndexLoader;
 import web30.util.FileServer;
 import web30.util.IConfiguration;
 import web30.util.JerseyService;
 import web30.util.VersionHandler;
 
 /**
- * 
+ *
  */
 public class Web30Service extends JerseyService implements IConfiguration
 {
+   /** the size of the buckets that the tweet cache rounds time windows out to, in minutes */
+   private long cacheBucket = TweetCache.DEFAULT_BUCKET / 60000;
+
+   /** the size of the grid that the tweet cache rounds boxes out to, in degrees */
+   private double cacheGrid = TweetCache.DEFAULT_GRID;
+
+   /** the size of the tweet cache, in megabytes */
+   private long cacheSize = TweetCache.DEFAULT_MAX_BYTES / (1024 * 1024);
+
+   /** the time a page stays in the tweet cache, in seconds */
+   private long cacheTtl = TweetCache.DEFAULT_TTL / 1000;
+
+   /** the number of seconds between reading the tweet extents from the database, or 0 to read them once */
+   private long extentRefresh = 60;
+
+   /**
+    * the number of seconds between filling in the geohashes of new tweets, 0 to fill them in once, or less than 0 to
+    * leave the geohash column unused
+    */
+   private long geohashFill = -1;
+
+   /**
+    * true if the tweet histogram and time rollups should be loaded even without the index, which reads every tweet at
+    * startup
+    */
+   private boolean histogram;
+
+   /** true if the tweets should be indexed in memory */
+   private boolean index = true;
+
+   /** the number of seconds between reading the tweets added to the database into the index, or 0 to never read them */
+   private long indexRefresh = 60;
+
+   /** true if tweet dumps can be posted to the service to load them into the database */
+   private boolean ingest;
+
+   /** the command line options for this service */
+   private Options options;
+
+   /** the directory of the tweet snapshot, or null to load every tweet from the database */
+   private String snapshot;
 
    /*
     * (non-Javadoc)
@@ -22,7 +69,305 @@ public class Web30Service extends JerseyService implements IConfiguration
    protected Class<?>[] getClassesToRegister()
    {
       final Class<?>[] classes =
-      { TweetHandler.class, FileServer.class, VersionHandler.class };
+      { TweetHandler.class, TweetColumnsWriter.class, IngestHandler.class, FileServer.class, VersionHandler.class };
       return classes;
    }
+
+   /**
+    * @return the size of the buckets that the tweet cache rounds time windows out to, in minutes
+    */
+   public long getCacheBucket()
+   {
+      return cacheBucket;
+   }
+
+   /**
+    * @return the size of the grid that the tweet cache rounds boxes out to, in degrees
+    */
+   public double getCacheGrid()
+   {
+      return cacheGrid;
+   }
+
+   /**
+    * @return the size of the tweet cache, in megabytes
+    */
+   public long getCacheSize()
+   {
+      return cacheSize;
+   }
+
+   /**
+    * @return the time a page stays in the tweet cache, in seconds
+    */
+   public long getCacheTtl()
+   {
+      return cacheTtl;
+   }
+
+   /**
+    * @return the number of seconds between reading the tweet extents from the database, or 0 to read them once
+    */
+   public long getExtentRefresh()
+   {
+      return extentRefresh;
+   }
+
+   /**
+    * @return the number of seconds between filling in the geohashes of new tweets, 0 to fill them in once, or less than
+    *         0 to leave the geohash column unused
+    */
+   public long getGeohashFill()
+   {
+      return geohashFill;
+   }
+
+   /**
+    * @return the number of seconds between reading the tweets added to the database into the index, or 0 to never read
+    *         them
+    */
+   public long getIndexRefresh()
+   {
+      return indexRefresh;
+   }
+
+   /**
+    * get the options for this service. This adds the tweet options to the options of the Jersey service.
+    *
+    * @see web30.util.JerseyService#getOptions()
+    */
+   @Override
+   public Options getOptions()
+   {
+      if (options == null)
+      {
+         options = super.getOptions();
+
+         Option option = new Option("index", true, "Index the tweets in memory (true or false). Defaults to "
+               + isIndex());
+         option.setArgName("true|false");
+         options.addOption(option);
+
+         option = new Option("histogram", true, "Load the tweet histogram and time rollups at startup even without "
+               + "the index, which reads every tweet, so that count=estimate and histograms do not go to the database "
+               + "(true or false). Defaults to " + isHistogram());
+         option.setArgName("true|false");
+         options.addOption(option);
+
+         option = new Option("indexRefresh", true, "The seconds between reading the tweets added to the database "
+               + "since the index was loaded into it, or 0 to never read them. Defaults to " + getIndexRefresh());
+         option.setArgName("seconds");
+         options.addOption(option);
+
+         option = new Option("cacheGrid", true, "The grid the tweet cache rounds boxes out to, in degrees. Defaults to "
+               + getCacheGrid());
+         option.setArgName("degrees");
+         options.addOption(option);
+
+         option = new Option("cacheBucket", true,
+               "The buckets the tweet cache rounds time windows out to, in minutes. Defaults to " + getCacheBucket());
+         option.setArgName("minutes");
+         options.addOption(option);
+
+         option = new Option("cacheTtl", true, "The time a page stays in the tweet cache, in seconds. Without the "
+               + "index, tweets added to the database by other programs are only seen once their pages expire. "
+               + "Defaults to " + getCacheTtl());
+         option.setArgName("seconds");
+         options.addOption(option);
+
+         option = new Option("cacheSize", true, "The size of the tweet cache, in megabytes, or 0 for no cache. "
+               + "Defaults to " + getCacheSize());
+         option.setArgName("megabytes");
+         options.addOption(option);
+
+         option = new Option("extentRefresh", true, "The seconds between reading the map and time ranges from the "
+               + "database, or 0 to read them once. Defaults to " + getExtentRefresh());
+         option.setArgName("seconds");
+         options.addOption(option);
+
+         option = new Option("geohashFill", true, "The seconds between filling in the geohashes of new tweets, which "
+               + "also has the database look for boxes by geohash once " + GeohashFiller.MIGRATION + " has been "
+               + "applied, 0 to fill them in once, or -1 to leave the geohashes unused. Defaults to "
+               + getGeohashFill());
+         option.setArgName("seconds");
+         options.addOption(option);
+
+         option = new Option("ingest", true, "Let tweet dumps be posted to admin/ingest from the local host, or by "
+               + "an admin, to load them into the database (true or false). Defaults to " + isIngest());
+         option.setArgName("true|false");
+         options.addOption(option);
+
+         option = new Option("snapshot", true, "The directory of a snapshot of the tweets, which is read at startup "
+               + "instead of loading every tweet from the database, and written again once the index is loaded. "
+               + "Defaults to none");
+         option.setArgName("directory");
+         options.addOption(option);
+      }
+      return options;
+   }
+
+   /**
+    * @return the directory of the tweet snapshot, or null to load every tweet from the database
+    */
+   public String getSnapshot()
+   {
+      return snapshot;
+   }
+
+   /**
+    * @return true if the tweet histogram and time rollups should be loaded even without the index
+    */
+   public boolean isHistogram()
+   {
+      return histogram;
+   }
+
+   /**
+    * @return true if the tweets should be indexed in memory
+    */
+   public boolean isIndex()
+   {
+      return index;
+   }
+
+   /**
+    * @return true if tweet dumps can be posted to the service to load them into the database
+    */
+   public boolean isIngest()
+   {
+      return ingest;
+   }
+
+   /**
+    * @param cacheBucket
+    *           the size of the buckets that the tweet cache rounds time windows out to, in minutes
+    */
+   public void setCacheBucket(final long cacheBucket)
+   {
+      this.cacheBucket = cacheBucket;
+   }
+
+   /**
+    * @param cacheGrid
+    *           the size of the grid that the tweet cache rounds boxes out to, in degrees
+    */
+   public void setCacheGrid(final double cacheGrid)
+   {
+      this.cacheGrid = cacheGrid;
+   }
+
+   /**
+    * @param cacheSize
+    *           the size of the tweet cache, in megabytes
+    */
+   public void setCacheSize(final long cacheSize)
+   {
+      this.cacheSize = cacheSize;
+   }
+
+   /**
+    * @param cacheTtl
+    *           the time a page stays in the tweet cache, in seconds
+    */
+   public void setCacheTtl(final long cacheTtl)
+   {
+      this.cacheTtl = cacheTtl;
+   }
+
+   /**
+    * @param extentRefresh
+    *           the number of seconds between reading the tweet extents from the database, or 0 to read them once
+    */
+   public void setExtentRefresh(final long extentRefresh)
+   {
+      this.extentRefresh = extentRefresh;
+   }
+
+   /**
+    * @param geohashFill
+    *           the number of seconds between filling in the geohashes of new tweets, 0 to fill them in once, or less
+    *           than 0 to leave the geohash column unused
+    */
+   public void setGeohashFill(final long geohashFill)
+   {
+      this.geohashFill = geohashFill;
+   }
+
+   /**
+    * @param histogram
+    *           true if the tweet histogram and time rollups should be loaded even without the index
+    */
+   public void setHistogram(final boolean histogram)
+   {
+      this.histogram = histogram;
+   }
+
+   /**
+    * @param index
+    *           true if the tweets should be indexed in memory
+    */
+   public void setIndex(final boolean index)
+   {
+      this.index = index;
+   }
+
+   /**
+    * @param indexRefresh
+    *           the number of seconds between reading the tweets added to the database into the index, or 0 to never
+    *           read them
+    */
+   public void setIndexRefresh(final long indexRefresh)
+   {
+      this.indexRefresh = indexRefresh;
+   }
+
+   /**
+    * @param ingest
+    *           true if tweet dumps can be posted to the service to load them into the database
+    */
+   public void setIngest(final boolean ingest)
+   {
+      this.ingest = ingest;
+   }
+
+   /**
+    * @param snapshot
+    *           the directory of the tweet snapshot, or null to load every tweet from the database
+    */
+   public void setSnapshot(final String snapshot)
+   {
+      this.snapshot = snapshot;
+   }
+
+   /**
+    * set up the tweet cache, start reading the tweet extents, filling in the geohashes if they are used, and loading
+    * the tweet index, which is then refreshed from the database, and the tweet histogram, if either is enabled, and
+    * then start the service. Tweets come from the database until the index is loaded.
+    *
+    * @throws IllegalStateException
+    *            if the tweet table has no geohash column, since every read of a whole tweet would fail
+    * @see web30.util.JerseyService#start()
+    */
+   @Override
+   public synchronized void start()
+   {
+      if (!GeohashFiller.hasColumn())
+      {
+         throw new IllegalStateException("The TwitterStream table has no geohash column; apply "
+               + GeohashFiller.MIGRATION + " to the database before starting this version");
+      }
+      TweetCache.configure(cacheGrid, cacheBucket * 60 * 1000L, cacheTtl * 1000L, cacheSize * 1024 * 1024);
+      ExtentCache.start(extentRefresh);
+      if (geohashFill >= 0)
+      {
+         GeohashFiller.start(geohashFill);
+      }
+      IngestHandler.setEnabled(ingest);
+      if (index || histogram)
+      {
+         TweetIndexLoader.start(index, snapshot == null || snapshot.isEmpty() ? null : new File(snapshot),
+               indexRefresh);
+      }
+      super.start();
+   }
 }
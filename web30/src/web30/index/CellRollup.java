@@ -0,0 +1,350 @@
+/**
+ *
+ */
+package web30.index;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import web30.TweetQuery;
+import web30.model.TwitterStream;
+
+/**
+ * The number of tweets in each hour in each grid cell of the {@link TweetHistogram}, so that the time histogram of a
+ * box can be added up from the cells it covers instead of reading its tweets again. Only the tweets in the cells on the
+ * edges of the box, which the box covers in part, are read again, from a {@link TweetSource}; a box that covers no
+ * whole cell is not helped, and is read the usual way.
+ * <p>
+ * Each cell only keeps the hours that have tweets, so the rollups take about as much memory as the histogram takes for
+ * its cells for each hour they have tweets in. They are updated as tweets are added, so all of the methods are
+ * synchronized.
+ * <p>
+ * NOTE the db has lat and lon backwards, so north and south apply to the lon column and east and west apply to the lat
+ * column, just like the database queries.
+ */
+public class CellRollup
+{
+   /**
+    * The number of tweets in each hour that has any, in one cell.
+    */
+   private static class Cell
+   {
+      /** the hours that have tweets, in hours since the epoch, sorted */
+      private long[] hours = new long[4];
+      /** the number of tweets in each hour */
+      private int[] counts = new int[4];
+      /** the number of hours that have tweets */
+      private int size;
+
+      /**
+       * @param hour
+       *           the hour of a tweet, in hours since the epoch
+       */
+      void add(final long hour)
+      {
+         // tweets mostly come in time order
+         int i = size;
+         if (size > 0 && hours[size - 1] >= hour)
+         {
+            i = lowerBound(hour);
+            if (hours[i] == hour)
+            {
+               counts[i]++;
+               return;
+            }
+         }
+         if (size == hours.length)
+         {
+            hours = Arrays.copyOf(hours, size * 2);
+            counts = Arrays.copyOf(counts, size * 2);
+         }
+         System.arraycopy(hours, i, hours, i + 1, size - i);
+         System.arraycopy(counts, i, counts, i + 1, size - i);
+         hours[i] = hour;
+         counts[i] = 1;
+         size++;
+      }
+
+      /**
+       * @param rollup
+       *           the rollup to count the tweets of the cell in
+       * @param from
+       *           the first hour, in hours since the epoch
+       * @param to
+       *           one past the last hour
+       */
+      void addTo(final TimeRollup rollup, final long from, final long to)
+      {
+         for (int i = lowerBound(from); i < size && hours[i] < to; i++)
+         {
+            rollup.add(hours[i] * TimeRollup.HOUR, counts[i]);
+         }
+      }
+
+      /**
+       * @param hour
+       *           an hour, in hours since the epoch
+       * @return the position of the first hour at or after it
+       */
+      private int lowerBound(final long hour)
+      {
+         int low = 0;
+         int high = size;
+         while (low < high)
+         {
+            final int mid = low + high >>> 1;
+            if (hours[mid] < hour)
+            {
+               low = mid + 1;
+            }
+            else
+            {
+               high = mid;
+            }
+         }
+         return low;
+      }
+   }
+
+   /**
+    * Counts the tweets read for one strip along an edge of a box that are in the cells of the strip, so that a tweet
+    * read for two strips that overlap is only counted once.
+    */
+   private static class StripCounter implements TweetVisitor
+   {
+      /** the rollup the tweets are counted in */
+      private final TimeRollup rollup;
+      /** the first lat cell of the strip */
+      private final long fromLat;
+      /** the last lat cell of the strip */
+      private final long toLat;
+      /** the first lon cell of the strip */
+      private final long fromLon;
+      /** the last lon cell of the strip */
+      private final long toLon;
+
+      /**
+       * @param rollup
+       *           the rollup the tweets are counted in
+       * @param fromLat
+       *           the first lat cell of the strip
+       * @param toLat
+       *           the last lat cell of the strip
+       * @param fromLon
+       *           the first lon cell of the strip
+       * @param toLon
+       *           the last lon cell of the strip
+       */
+      StripCounter(final TimeRollup rollup, final long fromLat, final long toLat, final long fromLon,
+            final long toLon)
+      {
+         this.rollup = rollup;
+         this.fromLat = fromLat;
+         this.toLat = toLat;
+         this.fromLon = fromLon;
+         this.toLon = toLon;
+      }
+
+      /*
+       * (non-Javadoc)
+       * @see web30.index.TweetVisitor#visit(web30.model.TwitterStream)
+       */
+      @Override
+      public void visit(final TwitterStream tweet)
+      {
+         if (tweet.getTime() == null || tweet.getLat() == null || tweet.getLon() == null)
+         {
+            return;
+         }
+         final long lat = cell(tweet.getLat().doubleValue());
+         final long lon = cell(tweet.getLon().doubleValue());
+         if (lat >= fromLat && lat <= toLat && lon >= fromLon && lon <= toLon)
+         {
+            rollup.add(tweet.getTime().getTime());
+         }
+      }
+   }
+
+   /** the cells that have tweets, by the key of {@link TweetHistogram#cellKey(double, double)} */
+   private final Map<Long, Cell> cells = new HashMap<>();
+
+   /**
+    * @param coordinate
+    *           a coordinate
+    * @return the number of the cell that holds it, the same way {@link TweetHistogram#cellKey(double, double)} finds it
+    */
+   private static long cell(final double coordinate)
+   {
+      return (long) Math.floor(coordinate / TweetHistogram.CELL_SIZE);
+   }
+
+   /**
+    * @param query
+    *           the box
+    * @param west
+    *           the left side of the strip
+    * @param east
+    *           the right side of the strip
+    * @param south
+    *           the bottom of the strip
+    * @param north
+    *           the top of the strip
+    * @param from
+    *           the start of the time range, in milliseconds since the epoch
+    * @param to
+    *           the end of the time range, exclusive
+    * @return the query for the tweets of a strip of the box, which is cut to the box
+    */
+   private static TweetQuery strip(final TweetQuery query, final double west, final double east, final double south,
+         final double north, final long from, final long to)
+   {
+      final TweetQuery strip = new TweetQuery(Double.valueOf(Math.min(north, query.getNorth())),
+            Double.valueOf(Math.max(south, query.getSouth())), Double.valueOf(Math.min(east, query.getEast())),
+            Double.valueOf(Math.max(west, query.getWest())), new Date(from), new Date(to - 1));
+      strip.setMaxResults(Integer.MAX_VALUE);
+      return strip;
+   }
+
+   /**
+    * count a tweet, unless it has no time or no coordinates
+    *
+    * @param tweet
+    *           the tweet
+    */
+   public synchronized void add(final TwitterStream tweet)
+   {
+      if (tweet.getTime() == null || tweet.getLat() == null || tweet.getLon() == null)
+      {
+         return;
+      }
+      final Long key = TweetHistogram.cellKey(tweet.getLat().doubleValue(), tweet.getLon().doubleValue());
+      Cell cell = cells.get(key);
+      if (cell == null)
+      {
+         cell = new Cell();
+         cells.put(key, cell);
+      }
+      cell.add(TimeRollup.floor(tweet.getTime().getTime(), TimeRollup.HOUR));
+   }
+
+   /**
+    * count the tweets of a box in a time range that is widened to whole buckets, the same way
+    * {@link TimeRollup#histogram(long, long, long)} widens it. The hours of the cells entirely inside the box are added
+    * up, and the tweets of the cells along its edges are read again from the source. The strips along the edges are
+    * read one cell wider than they are, so that a tweet on the line between two cells is never missed, and a tweet is
+    * only counted for the strip its cell is in, so that no tweet is counted twice.
+    *
+    * @param query
+    *           the box, which must be bounded on all four sides; only the box is used
+    * @param from
+    *           the start of the time range, in milliseconds since the epoch
+    * @param to
+    *           the end of the time range, exclusive
+    * @param bucket
+    *           the size of a bucket, a whole number of hours
+    * @param rollup
+    *           the rollup the tweets are counted in
+    * @param source
+    *           where the tweets along the edges are read from
+    * @return true if the tweets were counted, or false if the box covers no whole cell or the buckets are not whole
+    *         hours, and nothing was counted
+    * @throws IOException
+    *            if the tweets along the edges cannot be read
+    */
+   public boolean rollup(final TweetQuery query, final long from, final long to, final long bucket,
+         final TimeRollup rollup, final TweetSource source) throws IOException
+   {
+      if (!query.hasNorthSouth() || !query.hasEastWest() || bucket % TimeRollup.HOUR != 0)
+      {
+         return false;
+      }
+      // only cells strictly inside the box hold nothing but tweets in the box, whatever the rounding
+      final long fromLat = cell(query.getWest()) + 1;
+      final long toLat = cell(query.getEast()) - 1;
+      final long fromLon = cell(query.getSouth()) + 1;
+      final long toLon = cell(query.getNorth()) - 1;
+      if (fromLat > toLat || fromLon > toLon)
+      {
+         return false;
+      }
+
+      final long start = TimeRollup.floor(from, bucket) * bucket;
+      final long end = to <= start ? start : start + (to - start + bucket - 1) / bucket * bucket;
+      addInside(rollup, fromLat, toLat, fromLon, toLon, start / TimeRollup.HOUR, end / TimeRollup.HOUR);
+
+      final double size = TweetHistogram.CELL_SIZE;
+      // the west and east strips run the height of the box, and the south and north strips fit between them
+      source.scan(strip(query, query.getWest(), (fromLat + 1) * size, query.getSouth(), query.getNorth(), start, end),
+            new StripCounter(rollup, Long.MIN_VALUE, fromLat - 1, Long.MIN_VALUE, Long.MAX_VALUE));
+      source.scan(strip(query, toLat * size, query.getEast(), query.getSouth(), query.getNorth(), start, end),
+            new StripCounter(rollup, toLat + 1, Long.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE));
+      source.scan(strip(query, query.getWest(), query.getEast(), query.getSouth(), (fromLon + 1) * size, start, end),
+            new StripCounter(rollup, fromLat, toLat, Long.MIN_VALUE, fromLon - 1));
+      source.scan(strip(query, query.getWest(), query.getEast(), toLon * size, query.getNorth(), start, end),
+            new StripCounter(rollup, fromLat, toLat, toLon + 1, Long.MAX_VALUE));
+      return true;
+   }
+
+   /**
+    * add up the hours of the cells in a range of cells
+    *
+    * @param rollup
+    *           the rollup the tweets are counted in
+    * @param fromLat
+    *           the first lat cell
+    * @param toLat
+    *           the last lat cell
+    * @param fromLon
+    *           the first lon cell
+    * @param toLon
+    *           the last lon cell
+    * @param fromHour
+    *           the first hour, in hours since the epoch
+    * @param toHour
+    *           one past the last hour
+    */
+   private synchronized void addInside(final TimeRollup rollup, final long fromLat, final long toLat,
+         final long fromLon, final long toLon, final long fromHour, final long toHour)
+   {
+      // look up the cells of the range, or go through the cells that have tweets, whichever is fewer
+      final double range = (double) (toLat - fromLat + 1) * (toLon - fromLon + 1);
+      if (range <= cells.size())
+      {
+         for (long lat = fromLat; lat <= toLat; lat++)
+         {
+            for (long lon = fromLon; lon <= toLon; lon++)
+            {
+               final Cell cell = cells.get(Long.valueOf(lat << 32 | lon & 0xffffffffL));
+               if (cell != null)
+               {
+                  cell.addTo(rollup, fromHour, toHour);
+               }
+            }
+         }
+         return;
+      }
+      for (final Map.Entry<Long, Cell> entry : cells.entrySet())
+      {
+         final long key = entry.getKey().longValue();
+         final long lat = key >> 32;
+         final long lon = (int) key;
+         if (lat >= fromLat && lat <= toLat && lon >= fromLon && lon <= toLon)
+         {
+            entry.getValue().addTo(rollup, fromHour, toHour);
+         }
+      }
+   }
+
+   /*
+    * (non-Javadoc)
+    * @see java.lang.Object#toString()
+    */
+   @Override
+   public synchronized String toString()
+   {
+      return "CellRollup [cells=" + cells.size() + "]";
+   }
+}
@@ -0,0 +1,97 @@
+/**
+ *
+ */
+package web30.index;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import web30.GridCell;
+import web30.TweetGrid;
+import web30.model.TwitterStream;
+
+/**
+ * Counts tweets into the cells of a square grid anchored at 0,0, in a single pass. Cells are numbered by rounding the
+ * coordinates down to a multiple of the cell size, which is the same thing the database does with floor() when it
+ * groups them, so both produce the same grid.
+ */
+public class GridCounter implements TweetVisitor
+{
+   /** the size of each cell, in degrees */
+   private final double cellSize;
+   /** the number of tweets in each cell, by cell key */
+   private final Map<Long, long[]> cells = new HashMap<>();
+   /** the total number of tweets counted */
+   private long total;
+
+   /**
+    * @param cellSize
+    *           the size of each cell, in degrees
+    */
+   public GridCounter(final double cellSize)
+   {
+      this.cellSize = cellSize;
+   }
+
+   /**
+    * add tweets to a cell
+    *
+    * @param latCell
+    *           the cell number along the lat column, floor(lat / cellSize)
+    * @param lonCell
+    *           the cell number along the lon column, floor(lon / cellSize)
+    * @param count
+    *           the number of tweets to add
+    */
+   public void add(final long latCell, final long lonCell, final long count)
+   {
+      final Long key = Long.valueOf(latCell << 32 | lonCell & 0xffffffffL);
+      final long[] current = cells.get(key);
+      if (current == null)
+      {
+         cells.put(key, new long[] { count });
+      }
+      else
+      {
+         current[0] += count;
+      }
+      total += count;
+   }
+
+   /**
+    * @return the grid of the cells counted so far
+    */
+   public TweetGrid toGrid()
+   {
+      final List<GridCell> list = new ArrayList<>(cells.size());
+      for (final Map.Entry<Long, long[]> cell : cells.entrySet())
+      {
+         final long key = cell.getKey().longValue();
+         final double lat = ((key >> 32) + 0.5) * cellSize;
+         final double lon = ((int) key + 0.5) * cellSize;
+         list.add(new GridCell(lat, lon, cell.getValue()[0]));
+      }
+
+      final TweetGrid grid = new TweetGrid();
+      grid.setCellSize(cellSize);
+      grid.setTotal(total);
+      grid.setCell(list);
+      return grid;
+   }
+
+   /*
+    * (non-Javadoc)
+    * @see web30.index.TweetVisitor#visit(web30.model.TwitterStream)
+    */
+   @Override
+   public void visit(final TwitterStream tweet)
+   {
+      if (tweet.getLat() != null && tweet.getLon() != null)
+      {
+         add((long) Math.floor(tweet.getLat().doubleValue() / cellSize),
+               (long) Math.floor(tweet.getLon().doubleValue() / cellSize), 1);
+      }
+   }
+}
@@ -0,0 +1,232 @@
+/**
+ *
+ */
+package web30.index;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import web30.TweetQuery;
+import web30.model.TwitterStream;
+
+/**
+ * Picks a sample of the tweets in a box that is spread over the box, in a single pass. The box is cut into a grid of
+ * {@link #GRID} by {@link #GRID} cells, and each cell keeps the tweets with the smallest hashes of their tweet ids. The
+ * sample then takes the first tweet of every cell, then the second of every cell, and so on until it is full, so a
+ * sparse part of the map keeps its tweets while a dense part gives up most of its own. Since the hashes only depend on
+ * the tweet ids, the same tweets always give the same sample.
+ * <p>
+ * NOTE the db has lat and lon backwards, so rows of the grid follow the lon column and columns follow the lat column.
+ */
+public class SpatialSampler implements TweetVisitor
+{
+   /** the number of cells on each side of the grid */
+   static final int GRID = 16;
+
+   /** the cell for the tweets without coordinates */
+   private static final int NO_PLACE = GRID * GRID;
+
+   /**
+    * A tweet and its hash.
+    */
+   private static class Sample
+   {
+      /** the hash of the tweet id */
+      private final long hash;
+      /** the tweet */
+      private final TwitterStream tweet;
+
+      /**
+       * @param hash
+       *           the hash of the tweet id
+       * @param tweet
+       *           the tweet
+       */
+      Sample(final long hash, final TwitterStream tweet)
+      {
+         this.hash = hash;
+         this.tweet = tweet;
+      }
+   }
+
+   /** orders samples by hash, and by tweet id if the hashes are the same */
+   private static final Comparator<Sample> HASH_ORDER = new Comparator<Sample>()
+   {
+      @Override
+      public int compare(final Sample a, final Sample b)
+      {
+         final int result = Long.compare(a.hash, b.hash);
+         return result != 0 ? result : TweetIndexBuilder.TIME_ORDER.compare(a.tweet, b.tweet);
+      }
+   };
+
+   /** the largest hash first, so the head of a cell is the one to drop */
+   private static final Comparator<Sample> REVERSE_HASH_ORDER = Collections.reverseOrder(HASH_ORDER);
+
+   /** the number of tweets in the sample */
+   private final int size;
+   /** the bottom of the box, along the lon column */
+   private final double south;
+   /** the height of a cell, in degrees */
+   private final double cellHeight;
+   /** the left side of the box, along the lat column */
+   private final double west;
+   /** the width of a cell, in degrees */
+   private final double cellWidth;
+   /** the tweets kept in each cell, largest hash first */
+   private final List<PriorityQueue<Sample>> cells = new ArrayList<>(NO_PLACE + 1);
+   /** the number of tweets visited */
+   private long total;
+
+   /**
+    * @param query
+    *           the query, whose box is cut into cells; a side that is not given is the edge of the world
+    * @param size
+    *           the number of tweets in the sample
+    */
+   public SpatialSampler(final TweetQuery query, final int size)
+   {
+      this.size = Math.max(0, size);
+      south = query.getSouth();
+      cellHeight = (query.getNorth() - south) / GRID;
+      west = query.getWest();
+      cellWidth = (query.getEast() - west) / GRID;
+      for (int i = 0; i <= NO_PLACE; i++)
+      {
+         cells.add(null);
+      }
+   }
+
+   /**
+    * @param tweetid
+    *           a tweet id, or null
+    * @return a well mixed hash of the tweet id
+    */
+   static long hash(final String tweetid)
+   {
+      long h = tweetid == null ? 0 : tweetid.hashCode();
+      h ^= h >>> 33;
+      h *= 0xff51afd7ed558ccdL;
+      h ^= h >>> 33;
+      h *= 0xc4ceb9fe1a85ec53L;
+      h ^= h >>> 33;
+      return h;
+   }
+
+   /**
+    * @param value
+    *           a coordinate
+    * @param start
+    *           the edge of the box
+    * @param cell
+    *           the size of a cell
+    * @return the number of the cell along one side, kept inside the grid
+    */
+   private static int cellOf(final double value, final double start, final double cell)
+   {
+      if (!(cell > 0))
+      {
+         return 0;
+      }
+      return (int) Math.max(0, Math.min(GRID - 1, Math.floor((value - start) / cell)));
+   }
+
+   /**
+    * @return the number of tweets visited
+    */
+   public long getTotal()
+   {
+      return total;
+   }
+
+   /**
+    * @return the sample, in time order
+    */
+   public List<TwitterStream> toList()
+   {
+      // each cell smallest hash first
+      final List<List<Sample>> ranked = new ArrayList<>();
+      for (final PriorityQueue<Sample> cell : cells)
+      {
+         if (cell != null)
+         {
+            final List<Sample> list = new ArrayList<>(cell);
+            Collections.sort(list, HASH_ORDER);
+            ranked.add(list);
+         }
+      }
+
+      // the first of every cell, then the second of every cell, and so on
+      final List<TwitterStream> result = new ArrayList<>(size);
+      final List<Sample> round = new ArrayList<>(ranked.size());
+      for (int rank = 0; result.size() < size; rank++)
+      {
+         round.clear();
+         for (final List<Sample> list : ranked)
+         {
+            if (rank < list.size())
+            {
+               round.add(list.get(rank));
+            }
+         }
+         if (round.isEmpty())
+         {
+            break;
+         }
+         if (result.size() + round.size() > size)
+         {
+            // the last round is cut by hash, which is as good as at random
+            Collections.sort(round, HASH_ORDER);
+         }
+         for (int i = 0; i < round.size() && result.size() < size; i++)
+         {
+            result.add(round.get(i).tweet);
+         }
+      }
+
+      Collections.sort(result, TweetIndexBuilder.TIME_ORDER);
+      return result;
+   }
+
+   /*
+    * (non-Javadoc)
+    * @see web30.index.TweetVisitor#visit(web30.model.TwitterStream)
+    */
+   @Override
+   public void visit(final TwitterStream tweet)
+   {
+      total++;
+      if (size == 0)
+      {
+         return;
+      }
+
+      int index = NO_PLACE;
+      if (tweet.getLat() != null && tweet.getLon() != null)
+      {
+         // NOTE the db has lat and lon backwards
+         index = cellOf(tweet.getLon().doubleValue(), south, cellHeight) * GRID
+               + cellOf(tweet.getLat().doubleValue(), west, cellWidth);
+      }
+      PriorityQueue<Sample> cell = cells.get(index);
+      if (cell == null)
+      {
+         cell = new PriorityQueue<>(16, REVERSE_HASH_ORDER);
+         cells.set(index, cell);
+      }
+
+      final Sample sample = new Sample(hash(tweet.getTweetid()), tweet);
+      if (cell.size() < size)
+      {
+         cell.add(sample);
+      }
+      else if (HASH_ORDER.compare(sample, cell.peek()) < 0)
+      {
+         cell.poll();
+         cell.add(sample);
+      }
+   }
+}
@@ -0,0 +1,323 @@
+/**
+ *
+ */
+package web30.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * An inverted index of the words in the text of the tweets in a {@link TweetIndex}. Each word has the positions of the
+ * tweets that use it. The positions are in the order of the tweet index, which is time order, so a time window is a
+ * range of positions. The positions are stored as the differences between them, in as few bytes as they fit, with a
+ * skip entry every {@link #SKIP_INTERVAL} positions so that a search can jump ahead without reading every byte.
+ * <p>
+ * Words are runs of letters, digits and underscores, lower cased, so a hashtag or a mention matches the bare word.
+ */
+public class TextIndex
+{
+   /** the number of positions between skip entries */
+   static final int SKIP_INTERVAL = 128;
+
+   /** the shortest word that is indexed */
+   private static final int MIN_WORD = 2;
+
+   /** the longest word that is indexed */
+   private static final int MAX_WORD = 40;
+
+   /** returned by a postings iterator after its last position */
+   private static final int NO_MORE = Integer.MAX_VALUE;
+
+   /**
+    * The positions of the tweets that use one word.
+    */
+   private static class Postings
+   {
+      /** the number of positions */
+      private int count;
+      /** the differences between the positions, as variable length ints */
+      private byte[] data = new byte[8];
+      /** the number of bytes used */
+      private int length;
+      /** the last position added */
+      private int last = -1;
+      /** the number of skip entries */
+      private int skips;
+      /** for each skip entry, the position before it */
+      private int[] skipBase = new int[0];
+      /** for each skip entry, the offset in the data of the position after the base */
+      private int[] skipOffset = new int[0];
+
+      /**
+       * @param position
+       *           the next position, larger than the last one
+       */
+      void add(final int position)
+      {
+         if (count > 0 && count % SKIP_INTERVAL == 0)
+         {
+            if (skips == skipBase.length)
+            {
+               skipBase = Arrays.copyOf(skipBase, skips * 2 + 1);
+               skipOffset = Arrays.copyOf(skipOffset, skips * 2 + 1);
+            }
+            skipBase[skips] = last;
+            skipOffset[skips] = length;
+            skips++;
+         }
+         if (length + 5 > data.length)
+         {
+            data = Arrays.copyOf(data, data.length * 2);
+         }
+         int delta = position - last;
+         while ((delta & ~0x7f) != 0)
+         {
+            data[length++] = (byte) (delta & 0x7f | 0x80);
+            delta >>>= 7;
+         }
+         data[length++] = (byte) delta;
+         last = position;
+         count++;
+      }
+
+      /**
+       * drop the unused ends of the arrays
+       */
+      void trim()
+      {
+         data = Arrays.copyOf(data, length);
+         skipBase = Arrays.copyOf(skipBase, skips);
+         skipOffset = Arrays.copyOf(skipOffset, skips);
+      }
+   }
+
+   /**
+    * Reads the positions of one word in order.
+    */
+   private static class PostingsIterator
+   {
+      /** the postings */
+      private final Postings postings;
+      /** the offset of the next position in the data */
+      private int offset;
+      /** the current position, -1 before the first */
+      private int current = -1;
+      /** the next skip entry that has not been passed */
+      private int skip;
+
+      /**
+       * @param postings
+       *           the postings to read
+       */
+      PostingsIterator(final Postings postings)
+      {
+         this.postings = postings;
+      }
+
+      /**
+       * @param target
+       *           the smallest position wanted
+       * @return the first position at or after the target, or {@link TextIndex#NO_MORE}
+       */
+      int advance(final int target)
+      {
+         // every position before a skip entry is at most its base, so a base below the target can be jumped to
+         while (skip < postings.skipBase.length && postings.skipBase[skip] < target)
+         {
+            if (postings.skipOffset[skip] > offset)
+            {
+               offset = postings.skipOffset[skip];
+               current = postings.skipBase[skip];
+            }
+            skip++;
+         }
+         while (current < target)
+         {
+            if (next() == NO_MORE)
+            {
+               return NO_MORE;
+            }
+         }
+         return current;
+      }
+
+      /**
+       * @return the next position, or {@link TextIndex#NO_MORE}
+       */
+      int next()
+      {
+         if (offset >= postings.length)
+         {
+            current = NO_MORE;
+            return current;
+         }
+         int delta = 0;
+         int shift = 0;
+         byte b;
+         do
+         {
+            b = postings.data[offset++];
+            delta |= (b & 0x7f) << shift;
+            shift += 7;
+         }
+         while (b < 0);
+         current += delta;
+         return current;
+      }
+   }
+
+   /** the postings of each word */
+   private final Map<String, Postings> words;
+
+   /**
+    * @param words
+    *           the postings of each word
+    */
+   private TextIndex(final Map<String, Postings> words)
+   {
+      this.words = words;
+   }
+
+   /**
+    * index the text of tweets
+    *
+    * @param rows
+    *           the tweets, in the order of their positions
+    * @param size
+    *           the number of tweets
+    * @return the index of the words in their text
+    */
+   static TextIndex build(final TweetRows rows, final int size)
+   {
+      final Map<String, Postings> words = new HashMap<>();
+      for (int i = 0; i < size; i++)
+      {
+         for (final String word : tokenize(rows.get(i).getText()))
+         {
+            Postings postings = words.get(word);
+            if (postings == null)
+            {
+               postings = new Postings();
+               words.put(word, postings);
+            }
+            postings.add(i);
+         }
+      }
+      for (final Postings postings : words.values())
+      {
+         postings.trim();
+      }
+      return new TextIndex(words);
+   }
+
+   /**
+    * cut text into the words that are indexed, each only once
+    *
+    * @param text
+    *           the text, or null
+    * @return the words of the text, in the order they first appear
+    */
+   public static List<String> tokenize(final String text)
+   {
+      if (text == null)
+      {
+         return new ArrayList<>(0);
+      }
+      final Set<String> result = new LinkedHashSet<>();
+      final int length = text.length();
+      int start = -1;
+      for (int i = 0; i <= length; i++)
+      {
+         final boolean wordChar = i < length
+               && (Character.isLetterOrDigit(text.charAt(i)) || text.charAt(i) == '_');
+         if (wordChar && start < 0)
+         {
+            start = i;
+         }
+         else if (!wordChar && start >= 0)
+         {
+            if (i - start >= MIN_WORD && i - start <= MAX_WORD)
+            {
+               result.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+            }
+            start = -1;
+         }
+      }
+      return new ArrayList<>(result);
+   }
+
+   /**
+    * find the tweets that use every word, by walking the postings of the rarest word and jumping ahead in the others
+    *
+    * @param terms
+    *           the words, as cut by {@link #tokenize(String)}
+    * @param from
+    *           the first position wanted
+    * @param to
+    *           one past the last position wanted
+    * @return the positions of the tweets that use every word, in order
+    */
+   public int[] find(final List<String> terms, final int from, final int to)
+   {
+      final PostingsIterator[] iterators = new PostingsIterator[terms.size()];
+      for (int t = 0; t < iterators.length; t++)
+      {
+         final Postings postings = words.get(terms.get(t));
+         if (postings == null)
+         {
+            return new int[0];
+         }
+         iterators[t] = new PostingsIterator(postings);
+      }
+      Arrays.sort(iterators, new Comparator<PostingsIterator>()
+      {
+         @Override
+         public int compare(final PostingsIterator a, final PostingsIterator b)
+         {
+            return Integer.compare(a.postings.count, b.postings.count);
+         }
+      });
+
+      int[] result = new int[16];
+      int count = 0;
+      int candidate = iterators.length == 0 ? NO_MORE : iterators[0].advance(from);
+      while (candidate < to)
+      {
+         int next = candidate;
+         for (int t = 1; t < iterators.length && next == candidate; t++)
+         {
+            next = iterators[t].advance(candidate);
+         }
+         if (next == candidate)
+         {
+            if (count == result.length)
+            {
+               result = Arrays.copyOf(result, count * 2);
+            }
+            result[count++] = candidate;
+            candidate = iterators[0].next();
+         }
+         else
+         {
+            candidate = iterators[0].advance(next);
+         }
+      }
+      return Arrays.copyOf(result, count);
+   }
+
+   /**
+    * @return the number of different words
+    */
+   public int getWordCount()
+   {
+      return words.size();
+   }
+}
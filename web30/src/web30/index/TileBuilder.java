@@ -0,0 +1,215 @@
+/**
+ *
+ */
+package web30.index;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import web30.TweetQuery;
+import web30.TweetTile;
+import web30.model.TwitterStream;
+
+/**
+ * Cuts the tweets in one XYZ tile of the Web Mercator map into points, in a single pass. Below
+ * {@link #FULL_DETAIL_ZOOM} the tile is divided into thinning cells, coarser at lower zooms, and all the tweets in a
+ * cell become one point at its center with their count. At and above it every tweet keeps its own position. A tile
+ * holds at most {@link #MAX_POINTS} points; tweets that would add more are only counted in the total.
+ */
+public class TileBuilder implements TweetVisitor
+{
+   /** the size of a tile in point coordinates */
+   public static final int EXTENT = 4096;
+
+   /** the deepest zoom level a tile can have */
+   public static final int MAX_ZOOM = 22;
+
+   /** the zoom level at and above which tweets are not thinned */
+   static final int FULL_DETAIL_ZOOM = 16;
+
+   /** the largest number of points in a tile */
+   static final int MAX_POINTS = 4096;
+
+   /** the number of point coordinates in one pixel of a 256 pixel tile */
+   private static final int PIXEL = EXTENT / 256;
+
+   /** the zoom level */
+   private final int z;
+   /** the column of the tile */
+   private final int x;
+   /** the row of the tile */
+   private final int y;
+   /** the size of a thinning cell in point coordinates, or 0 to keep every tweet */
+   private final int thinning;
+   /** the index into points of the point for each thinning cell */
+   private final Map<Integer, Integer> cells = new HashMap<>();
+   /** the points so far, as x, y, count triples */
+   private int[] points = new int[3 * 64];
+   /** the number of points so far */
+   private int size;
+   /** the number of tweets in the tile */
+   private long total;
+
+   /**
+    * @param z
+    *           the zoom level, from 0 to {@link #MAX_ZOOM}
+    * @param x
+    *           the column of the tile, from 0 to 2^z - 1
+    * @param y
+    *           the row of the tile, from 0 to 2^z - 1, counted down from the north
+    */
+   public TileBuilder(final int z, final int x, final int y)
+   {
+      if (!isTile(z, x, y))
+      {
+         throw new IllegalArgumentException("There is no tile " + z + "/" + x + "/" + y);
+      }
+      this.z = z;
+      this.x = x;
+      this.y = y;
+      // one pixel at middle zooms, up to four pixels when zoomed out
+      thinning = z >= FULL_DETAIL_ZOOM ? 0 : PIXEL << Math.min(2, (FULL_DETAIL_ZOOM - 1 - z) / 4);
+   }
+
+   /**
+    * @param z
+    *           the zoom level
+    * @param x
+    *           the column of the tile
+    * @param y
+    *           the row of the tile
+    * @return true if there is such a tile
+    */
+   public static boolean isTile(final int z, final int x, final int y)
+   {
+      return z >= 0 && z <= MAX_ZOOM && x >= 0 && x < 1 << z && y >= 0 && y < 1 << z;
+   }
+
+   /**
+    * @param row
+    *           the row of a tile edge, possibly fractional, at the given number of tiles across
+    * @param tiles
+    *           the number of tiles across the map
+    * @return the latitude of the edge, in degrees
+    */
+   private static double latitude(final double row, final int tiles)
+   {
+      return Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2 * row / tiles))));
+   }
+
+   /**
+    * @param column
+    *           the column of a tile edge at the given number of tiles across
+    * @param tiles
+    *           the number of tiles across the map
+    * @return the longitude of the edge, in degrees
+    */
+   private static double longitude(final double column, final int tiles)
+   {
+      return column / tiles * 360.0 - 180.0;
+   }
+
+   /**
+    * add the tweets at a location
+    *
+    * @param lat
+    *           the lat column, which is east/west
+    * @param lon
+    *           the lon column, which is north/south
+    * @param count
+    *           the number of tweets
+    */
+   public void add(final double lat, final double lon, final int count)
+   {
+      // NOTE the db has lat and lon backwards
+      final int tiles = 1 << z;
+      final double latitude = Math.toRadians(lon);
+      final double column = (lat + 180.0) / 360.0 * tiles - x;
+      final double row = (1 - Math.log(Math.tan(latitude) + 1 / Math.cos(latitude)) / Math.PI) / 2 * tiles - y;
+      if (Double.isNaN(column) || Double.isNaN(row))
+      {
+         return;
+      }
+      int px = Math.max(0, Math.min(EXTENT - 1, (int) Math.floor(column * EXTENT)));
+      int py = Math.max(0, Math.min(EXTENT - 1, (int) Math.floor(row * EXTENT)));
+      total += count;
+
+      Integer cell = null;
+      if (thinning > 0)
+      {
+         px = px / thinning * thinning + thinning / 2;
+         py = py / thinning * thinning + thinning / 2;
+         cell = Integer.valueOf(py * EXTENT + px);
+         final Integer point = cells.get(cell);
+         if (point != null)
+         {
+            points[point.intValue() + 2] += count;
+            return;
+         }
+      }
+
+      if (size >= MAX_POINTS)
+      {
+         return;
+      }
+      if (3 * size == points.length)
+      {
+         points = Arrays.copyOf(points, points.length * 2);
+      }
+      if (cell != null)
+      {
+         cells.put(cell, Integer.valueOf(3 * size));
+      }
+      points[3 * size] = px;
+      points[3 * size + 1] = py;
+      points[3 * size + 2] = count;
+      size++;
+   }
+
+   /**
+    * @param minDate
+    *           the start of the time window, or null for none
+    * @param maxDate
+    *           the end of the time window, or null for none
+    * @return a query for every tweet in the tile and the time window
+    */
+   public TweetQuery createQuery(final Date minDate, final Date maxDate)
+   {
+      final int tiles = 1 << z;
+      final TweetQuery query = new TweetQuery(Double.valueOf(latitude(y, tiles)),
+            Double.valueOf(latitude(y + 1, tiles)), Double.valueOf(longitude(x + 1, tiles)),
+            Double.valueOf(longitude(x, tiles)), minDate, maxDate);
+      query.setMaxResults(Integer.MAX_VALUE);
+      return query;
+   }
+
+   /**
+    * @return the tile of the points added so far
+    */
+   public TweetTile toTile()
+   {
+      final TweetTile tile = new TweetTile();
+      tile.setZ(z);
+      tile.setX(x);
+      tile.setY(y);
+      tile.setExtent(EXTENT);
+      tile.setTotal(total);
+      tile.setPoint(Arrays.copyOf(points, 3 * size));
+      return tile;
+   }
+
+   /*
+    * (non-Javadoc)
+    * @see web30.index.TweetVisitor#visit(web30.model.TwitterStream)
+    */
+   @Override
+   public void visit(final TwitterStream tweet)
+   {
+      if (tweet.getLat() != null && tweet.getLon() != null)
+      {
+         add(tweet.getLat().doubleValue(), tweet.getLon().doubleValue(), 1);
+      }
+   }
+}
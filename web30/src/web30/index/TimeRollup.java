@@ -0,0 +1,302 @@
+/**
+ *
+ */
+package web30.index;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import web30.TimeHistogram;
+import web30.model.TwitterStream;
+
+/**
+ * The number of tweets in each minute, hour and day, kept as they are added so that a histogram of any bucket size can
+ * be read without looking at the tweets again. Each bucket of a histogram is covered with whole days where it can be,
+ * then whole hours, then minutes, so a day bucket is one read and a 15 minute bucket is fifteen. Days are UTC days.
+ * <p>
+ * The rollups are updated as tweets are added, so all of its methods are synchronized.
+ */
+public class TimeRollup implements TweetVisitor
+{
+   /** one minute, in milliseconds */
+   public static final long MINUTE = 60 * 1000L;
+
+   /** one hour, in milliseconds */
+   public static final long HOUR = 60 * MINUTE;
+
+   /** one day, in milliseconds */
+   public static final long DAY = 24 * HOUR;
+
+   /**
+    * The number of tweets in each unit of time, from the first unit that has any to the last.
+    */
+   private static class Level
+   {
+      /** the length of a unit, in milliseconds */
+      private final long unit;
+      /** the number of the first unit in counts, in units since the epoch */
+      private long first;
+      /** the number of tweets in each unit */
+      private int[] counts = new int[0];
+
+      /**
+       * @param unit
+       *           the length of a unit, in milliseconds
+       */
+      Level(final long unit)
+      {
+         this.unit = unit;
+      }
+
+      /**
+       * @param time
+       *           the time of the tweets, in milliseconds since the epoch
+       * @param count
+       *           the number of tweets
+       */
+      void add(final long time, final int count)
+      {
+         final long number = floor(time, unit);
+         if (counts.length == 0)
+         {
+            first = number;
+         }
+         if (number < first)
+         {
+            final int grow = (int) (first - number);
+            final int[] grown = new int[counts.length + grow];
+            System.arraycopy(counts, 0, grown, grow, counts.length);
+            counts = grown;
+            first = number;
+         }
+         else if (number - first >= counts.length)
+         {
+            counts = Arrays.copyOf(counts, (int) (number - first + 1));
+         }
+         counts[(int) (number - first)] += count;
+      }
+
+      /**
+       * @param start
+       *           the start of a unit, in milliseconds since the epoch
+       * @return the number of tweets in the unit
+       */
+      int get(final long start)
+      {
+         final long i = floor(start, unit) - first;
+         return i < 0 || i >= counts.length ? 0 : counts[(int) i];
+      }
+   }
+
+   /** the number of tweets in each minute */
+   private final Level minutes = new Level(MINUTE);
+   /** the number of tweets in each hour */
+   private final Level hours = new Level(HOUR);
+   /** the number of tweets in each day */
+   private final Level days = new Level(DAY);
+   /** the number of tweets */
+   private long total;
+
+   /**
+    * @param time
+    *           milliseconds since the epoch
+    * @param unit
+    *           the length of a unit, in milliseconds
+    * @return the number of whole units since the epoch, rounded down even before the epoch
+    */
+   static long floor(final long time, final long unit)
+   {
+      final long number = time / unit;
+      return time % unit < 0 ? number - 1 : number;
+   }
+
+   /**
+    * @param bucket
+    *           a bucket size: minute, hour or day, or a number of them such as 15m, 6h or 7d
+    * @return the bucket size, in milliseconds
+    */
+   public static long parseBucket(final String bucket)
+   {
+      switch (bucket.toLowerCase())
+      {
+         case "minute":
+            return MINUTE;
+         case "hour":
+            return HOUR;
+         case "day":
+            return DAY;
+         default:
+            break;
+      }
+
+      final long unit;
+      switch (bucket.isEmpty() ? ' ' : Character.toLowerCase(bucket.charAt(bucket.length() - 1)))
+      {
+         case 'm':
+            unit = MINUTE;
+            break;
+         case 'h':
+            unit = HOUR;
+            break;
+         case 'd':
+            unit = DAY;
+            break;
+         default:
+            throw new IllegalArgumentException("Invalid bucket " + bucket);
+      }
+      try
+      {
+         final long count = Long.parseLong(bucket.substring(0, bucket.length() - 1));
+         if (count <= 0 || count > Long.MAX_VALUE / unit)
+         {
+            throw new IllegalArgumentException("Invalid bucket " + bucket);
+         }
+         return count * unit;
+      }
+      catch (final NumberFormatException e)
+      {
+         throw new IllegalArgumentException("Invalid bucket " + bucket, e);
+      }
+   }
+
+   /**
+    * count a tweet
+    *
+    * @param time
+    *           the time of the tweet, in milliseconds since the epoch
+    */
+   public void add(final long time)
+   {
+      add(time, 1);
+   }
+
+   /**
+    * count tweets that were all in the same minute
+    *
+    * @param time
+    *           the time of the tweets, in milliseconds since the epoch
+    * @param count
+    *           the number of tweets
+    */
+   public synchronized void add(final long time, final int count)
+   {
+      minutes.add(time, count);
+      hours.add(time, count);
+      days.add(time, count);
+      total += count;
+   }
+
+   /**
+    * @param from
+    *           the start of the range, on a minute
+    * @param to
+    *           the end of the range, on a minute, exclusive
+    * @return the number of tweets in the range, read from the coarsest rollups that fit
+    */
+   private long count(final long from, final long to)
+   {
+      long count = 0;
+      long time = from;
+      while (time < to)
+      {
+         if (time % DAY == 0 && time + DAY <= to)
+         {
+            count += days.get(time);
+            time += DAY;
+         }
+         else if (time % HOUR == 0 && time + HOUR <= to)
+         {
+            count += hours.get(time);
+            time += HOUR;
+         }
+         else
+         {
+            count += minutes.get(time);
+            time += MINUTE;
+         }
+      }
+      return count;
+   }
+
+   /**
+    * @return the start of the first minute that has a tweet, or 0 if there are none
+    */
+   public synchronized long getFirstTime()
+   {
+      return minutes.first * MINUTE;
+   }
+
+   /**
+    * @return the end of the last minute that has a tweet, or 0 if there are none
+    */
+   public synchronized long getLastTime()
+   {
+      return minutes.counts.length == 0 ? 0 : (minutes.first + minutes.counts.length) * MINUTE;
+   }
+
+   /**
+    * @return the number of tweets counted
+    */
+   public synchronized long getTotal()
+   {
+      return total;
+   }
+
+   /**
+    * count the tweets in each bucket of a time range. The buckets are aligned to the epoch, so days start at midnight
+    * UTC, and the range is widened to whole buckets.
+    *
+    * @param from
+    *           the start of the range, in milliseconds since the epoch
+    * @param to
+    *           the end of the range, in milliseconds since the epoch, exclusive
+    * @param bucket
+    *           the size of a bucket, a whole number of minutes
+    * @return the histogram
+    */
+   public synchronized TimeHistogram histogram(final long from, final long to, final long bucket)
+   {
+      final long start = floor(from, bucket) * bucket;
+      final int size = to <= start ? 0 : (int) ((to - start + bucket - 1) / bucket);
+
+      final long[] count = new long[size];
+      long inRange = 0;
+      for (int i = 0; i < size; i++)
+      {
+         count[i] = count(start + i * bucket, start + (i + 1) * bucket);
+         inRange += count[i];
+      }
+
+      final TimeHistogram histogram = new TimeHistogram();
+      histogram.setStart(new Date(start));
+      histogram.setBucket(bucket);
+      histogram.setCount(count);
+      histogram.setTotal(inRange);
+      return histogram;
+   }
+
+   /*
+    * (non-Javadoc)
+    * @see java.lang.Object#toString()
+    */
+   @Override
+   public synchronized String toString()
+   {
+      return "TimeRollup [total=" + total + ", minutes=" + minutes.counts.length + ", hours=" + hours.counts.length
+            + ", days=" + days.counts.length + "]";
+   }
+
+   /**
+    * count a tweet, unless it has no time
+    *
+    * @see web30.index.TweetVisitor#visit(web30.model.TwitterStream)
+    */
+   @Override
+   public void visit(final TwitterStream tweet)
+   {
+      if (tweet.getTime() != null)
+      {
+         add(tweet.getTime().getTime());
+      }
+   }
+}
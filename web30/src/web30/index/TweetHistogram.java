@@ -0,0 +1,228 @@
+/**
+ *
+ */
+package web30.index;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import web30.TweetQuery;
+import web30.model.TwitterStream;
+
+/**
+ * A small summary of where and when the tweets are, used to estimate how many tweets match a query without counting
+ * them. It keeps the number of tweets in each hour and the number of tweets in each grid cell of {@link #CELL_SIZE}
+ * degrees, and assumes that time and place are independent, so an estimate is the total times the fraction of tweets
+ * in the time window times the fraction of tweets in the box. Partial hours and cells count in proportion to how much
+ * of them is covered.
+ * <p>
+ * The histogram is updated as tweets are added, so all of its methods are synchronized.
+ */
+public class TweetHistogram
+{
+   /** the length of one time bucket, in milliseconds */
+   static final long HOUR = 60 * 60 * 1000L;
+
+   /** the size of one grid cell, in degrees */
+   static final double CELL_SIZE = 0.01;
+
+   /** the number of tweets in each hour, starting at firstHour */
+   private int[] hours = new int[0];
+   /** the hour of the first bucket, in hours since the epoch */
+   private long firstHour;
+   /** the number of tweets in each grid cell that has any */
+   private final Map<Long, int[]> cells = new HashMap<>();
+   /** the number of tweets */
+   private long total;
+
+   /**
+    * @param lat
+    *           the lat column (east/west)
+    * @param lon
+    *           the lon column (north/south)
+    * @return the key of the grid cell that holds the coordinates
+    */
+   static Long cellKey(final double lat, final double lon)
+   {
+      final long latCell = (long) Math.floor(lat / CELL_SIZE);
+      final long lonCell = (long) Math.floor(lon / CELL_SIZE);
+      return Long.valueOf(latCell << 32 | lonCell & 0xffffffffL);
+   }
+
+   /**
+    * @param key
+    *           the key of a grid cell
+    * @param query
+    *           the box
+    * @return the fraction of the cell that is in the box
+    */
+   private static double fractionInBox(final long key, final TweetQuery query)
+   {
+      // NOTE the db has lat and lon backwards
+      final double lat = (key >> 32) * CELL_SIZE;
+      final double lon = (int) key * CELL_SIZE;
+      double fraction = 1.0;
+      if (query.hasEastWest())
+      {
+         fraction *= overlap(lat, lat + CELL_SIZE, query.getWest(), query.getEast());
+      }
+      if (query.hasNorthSouth())
+      {
+         fraction *= overlap(lon, lon + CELL_SIZE, query.getSouth(), query.getNorth());
+      }
+      return fraction;
+   }
+
+   /**
+    * @param low
+    *           the bottom of the cell
+    * @param high
+    *           the top of the cell
+    * @param from
+    *           the bottom of the range
+    * @param to
+    *           the top of the range
+    * @return the fraction of the cell that is in the range
+    */
+   private static double overlap(final double low, final double high, final double from, final double to)
+   {
+      final double covered = Math.min(high, to) - Math.max(low, from);
+      return covered <= 0 ? 0 : Math.min(1.0, covered / (high - low));
+   }
+
+   /**
+    * count a tweet, unless it has no time
+    *
+    * @param tweet
+    *           the tweet
+    */
+   public synchronized void add(final TwitterStream tweet)
+   {
+      if (tweet.getTime() == null)
+      {
+         return;
+      }
+      total++;
+
+      final long hour = TimeRollup.floor(tweet.getTime().getTime(), HOUR);
+      if (hours.length == 0)
+      {
+         firstHour = hour;
+      }
+      if (hour < firstHour)
+      {
+         final int grow = (int) (firstHour - hour);
+         final int[] grown = new int[hours.length + grow];
+         System.arraycopy(hours, 0, grown, grow, hours.length);
+         hours = grown;
+         firstHour = hour;
+      }
+      else if (hour - firstHour >= hours.length)
+      {
+         hours = Arrays.copyOf(hours, (int) (hour - firstHour + 1));
+      }
+      hours[(int) (hour - firstHour)]++;
+
+      if (tweet.getLat() != null && tweet.getLon() != null)
+      {
+         final Long key = cellKey(tweet.getLat().doubleValue(), tweet.getLon().doubleValue());
+         final int[] count = cells.get(key);
+         if (count == null)
+         {
+            cells.put(key, new int[] { 1 });
+         }
+         else
+         {
+            count[0]++;
+         }
+      }
+   }
+
+   /**
+    * estimate the number of tweets that match the query. Only the box and the time window are used.
+    *
+    * @param query
+    *           the filter
+    * @return the estimated number of matching tweets
+    */
+   public synchronized long estimate(final TweetQuery query)
+   {
+      if (total == 0)
+      {
+         return 0;
+      }
+
+      double timeFraction = 1.0;
+      if (query.hasTimeRange())
+      {
+         final long from = query.getMinTime().getTime();
+         final long to = query.getMaxTime().getTime();
+         final long first = Math.max(firstHour, TimeRollup.floor(from, HOUR));
+         final long last = Math.min(firstHour + hours.length - 1, TimeRollup.floor(to, HOUR));
+         double inWindow = 0;
+         for (long hour = first; hour <= last; hour++)
+         {
+            final double start = hour * HOUR;
+            inWindow += hours[(int) (hour - firstHour)] * overlap(start, start + HOUR, from, to + 1);
+         }
+         timeFraction = inWindow / total;
+      }
+
+      double spaceFraction = 1.0;
+      if (query.hasNorthSouth() || query.hasEastWest())
+      {
+         // NOTE the db has lat and lon backwards
+         double inBox = 0;
+         // look up the cells of a bounded box, or go through the cells that have tweets, whichever is fewer
+         final long fromLat = (long) Math.floor(query.getWest() / CELL_SIZE);
+         final long toLat = (long) Math.floor(query.getEast() / CELL_SIZE);
+         final long fromLon = (long) Math.floor(query.getSouth() / CELL_SIZE);
+         final long toLon = (long) Math.floor(query.getNorth() / CELL_SIZE);
+         if (query.hasNorthSouth() && query.hasEastWest()
+               && (double) (toLat - fromLat + 1) * (toLon - fromLon + 1) <= cells.size())
+         {
+            for (long lat = fromLat; lat <= toLat; lat++)
+            {
+               for (long lon = fromLon; lon <= toLon; lon++)
+               {
+                  final long key = lat << 32 | lon & 0xffffffffL;
+                  final int[] count = cells.get(Long.valueOf(key));
+                  if (count != null)
+                  {
+                     inBox += count[0] * fractionInBox(key, query);
+                  }
+               }
+            }
+         }
+         else
+         {
+            for (final Map.Entry<Long, int[]> cell : cells.entrySet())
+            {
+               inBox += cell.getValue()[0] * fractionInBox(cell.getKey().longValue(), query);
+            }
+         }
+         spaceFraction = inBox / total;
+      }
+
+      return Math.round(total * timeFraction * spaceFraction);
+   }
+
+   /**
+    * @return the number of tweets counted
+    */
+   public synchronized long getTotal()
+   {
+      return total;
+   }
+
+   /*
+    * (non-Javadoc)
+    * @see java.lang.Object#toString()
+    */
+   @Override
+   public synchronized String toString()
+   {
+      return "TweetHistogram [total=" + total + ", hours=" + hours.length + ", cells=" + cells.size() + "]";
+   }
+}
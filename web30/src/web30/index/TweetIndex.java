@@ -0,0 +1,870 @@
+/**
+ *
+ */
+package web30.index;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import web30.TweetCursor;
+import web30.TweetQuery;
+import web30.model.TweetRecord;
+import web30.model.TwitterStream;
+import web30.util.GeoHash;
+
+/**
+ * A read-only, in-memory spatio-temporal index of the tweets. The tweets are stored in columns sorted by time (and
+ * tweet id, to break ties), and the columns are cut into fixed size blocks that each remember the extent of their
+ * coordinates. A query finds its time window with two binary searches and then visits only the blocks in that window,
+ * skipping the blocks that fall outside the box and counting the blocks that fall entirely inside the box without
+ * looking at their tweets.
+ * <p>
+ * A query with words goes to the {@link TextIndex} first, for the positions of the tweets in its time window that use
+ * every word, and then only those tweets are checked against the box.
+ * <p>
+ * The tweets are also sorted by {@link GeoHash}, so a small box can be found with a few binary searches. A query whose
+ * box holds far fewer tweets than its time window, such as a neighborhood over the whole time range, reads the
+ * positions of the tweets in the box that way, and only checks those.
+ * <p>
+ * NOTE the db has lat and lon backwards, so north and south apply to the lon column and east and west apply to the lat
+ * column, just like the database queries.
+ * <p>
+ * Tweets added after the index was built are held in a few small indexes of their own, the tails, which
+ * {@link #append(List)} adds to and merges as they grow, the way a log-structured merge tree does, so that adding a
+ * batch never copies the columns the index was built with. Queries read the columns and every tail and merge the
+ * results in time order.
+ */
+public class TweetIndex implements TweetSource
+{
+   /** the number of tweets in each block */
+   public static final int BLOCK_SIZE = 256;
+
+   /** the number of geohash ranges a box is looked for in */
+   private static final int GEOHASH_RANGES = 8;
+
+   /** how many times fewer tweets the geohash ranges must hold than the time window for them to be used */
+   private static final int GEOHASH_SHARE = 8;
+
+   /** the tails of an index that has none */
+   private static final TweetIndex[] NO_TAILS = {};
+
+   /** the number of tweets in the index */
+   private final int size;
+   /** the time of each tweet, in milliseconds since the epoch, sorted */
+   private final long[] times;
+   /** the lat column of each tweet (east/west) */
+   private final double[] lats;
+   /** the lon column of each tweet (north/south) */
+   private final double[] lons;
+   /** the tweets themselves */
+   private final TweetRows rows;
+   /** the smallest lat in each block */
+   private final double[] blockMinLat;
+   /** the largest lat in each block */
+   private final double[] blockMaxLat;
+   /** the smallest lon in each block */
+   private final double[] blockMinLon;
+   /** the largest lon in each block */
+   private final double[] blockMaxLon;
+   /** the words in the text of the tweets */
+   private final TextIndex text;
+   /** the geohash of each tweet with coordinates, shifted above its position, sorted */
+   private final long[] hashes;
+   /** the indexes of the tweets appended since the index was built, largest first, or none */
+   private final TweetIndex[] tails;
+
+   /**
+    * create an index over columns that are already sorted by time. Use the {@link TweetIndexBuilder} to get them that
+    * way.
+    *
+    * @param size
+    *           the number of tweets
+    * @param times
+    *           the sorted times
+    * @param lats
+    *           the lat column
+    * @param lons
+    *           the lon column
+    * @param rows
+    *           the tweets
+    */
+   TweetIndex(final int size, final long[] times, final double[] lats, final double[] lons, final TweetRows rows)
+   {
+      this.size = size;
+      this.times = times;
+      this.lats = lats;
+      this.lons = lons;
+      this.rows = rows;
+
+      final int blocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+      blockMinLat = new double[blocks];
+      blockMaxLat = new double[blocks];
+      blockMinLon = new double[blocks];
+      blockMaxLon = new double[blocks];
+      for (int b = 0; b < blocks; b++)
+      {
+         final int start = b * BLOCK_SIZE;
+         final int end = Math.min(size, start + BLOCK_SIZE);
+         blockMinLat[b] = min(lats, start, end);
+         blockMaxLat[b] = max(lats, start, end);
+         blockMinLon[b] = min(lons, start, end);
+         blockMaxLon[b] = max(lons, start, end);
+      }
+      text = TextIndex.build(rows, size);
+
+      int located = 0;
+      final long[] keys = new long[size];
+      for (int i = 0; i < size; i++)
+      {
+         if (!Double.isNaN(lats[i]) && !Double.isNaN(lons[i]))
+         {
+            // NOTE the db has lat and lon backwards, so the lon column is the latitude
+            keys[located++] = GeoHash.encode(lons[i], lats[i]) << 31 | i;
+         }
+      }
+      hashes = Arrays.copyOf(keys, located);
+      Arrays.sort(hashes);
+      tails = NO_TAILS;
+   }
+
+   /**
+    * create an index over the same columns as another, with other tails
+    *
+    * @param index
+    *           the index whose columns are shared
+    * @param tails
+    *           the indexes of the tweets appended since, largest first
+    */
+   private TweetIndex(final TweetIndex index, final TweetIndex[] tails)
+   {
+      size = index.size;
+      times = index.times;
+      lats = index.lats;
+      lons = index.lons;
+      rows = index.rows;
+      blockMinLat = index.blockMinLat;
+      blockMaxLat = index.blockMaxLat;
+      blockMinLon = index.blockMinLon;
+      blockMaxLon = index.blockMaxLon;
+      text = index.text;
+      hashes = index.hashes;
+      this.tails = tails;
+   }
+
+   /**
+    * the largest value in the range. If any value is missing (NaN), the answer is NaN so that the block is never
+    * considered to be entirely inside a box.
+    *
+    * @param values
+    *           the column
+    * @param start
+    *           the first position
+    * @param end
+    *           one past the last position
+    * @return the largest value
+    */
+   private static double max(final double[] values, final int start, final int end)
+   {
+      double result = Double.NEGATIVE_INFINITY;
+      for (int i = start; i < end; i++)
+      {
+         if (Double.isNaN(values[i]))
+         {
+            return Double.NaN;
+         }
+         result = Math.max(result, values[i]);
+      }
+      return result;
+   }
+
+   /**
+    * the smallest value in the range. If any value is missing (NaN), the answer is NaN.
+    *
+    * @param values
+    *           the column
+    * @param start
+    *           the first position
+    * @param end
+    *           one past the last position
+    * @return the smallest value
+    */
+   private static double min(final double[] values, final int start, final int end)
+   {
+      double result = Double.POSITIVE_INFINITY;
+      for (int i = start; i < end; i++)
+      {
+         if (Double.isNaN(values[i]))
+         {
+            return Double.NaN;
+         }
+         result = Math.min(result, values[i]);
+      }
+      return result;
+   }
+
+   /**
+    * @param a
+    *           an index without tails
+    * @param b
+    *           another index without tails
+    * @return an index of the tweets of both
+    */
+   private static TweetIndex merge(final TweetIndex a, final TweetIndex b)
+   {
+      final TweetIndexBuilder builder = new TweetIndexBuilder(a.size + b.size);
+      for (int i = 0; i < a.size; i++)
+      {
+         builder.add(a.rows.get(i));
+      }
+      for (int i = 0; i < b.size; i++)
+      {
+         builder.add(b.rows.get(i));
+      }
+      return builder.build();
+   }
+
+   /**
+    * add tweets to the index. The index itself does not change, so queries already running on it are not disturbed;
+    * the answer is a new index that shares its columns and has the tweets in a new tail. The newest tails are merged
+    * while the one before is no more than twice the size of the new one, so there are never more than a few tails and
+    * each tweet is copied only a few times.
+    *
+    * @param tweets
+    *           the tweets, which the index must not already hold, in any order
+    * @return an index of the tweets of this one and the new ones
+    */
+   public TweetIndex append(final List<TwitterStream> tweets)
+   {
+      if (tweets.isEmpty())
+      {
+         return this;
+      }
+      final TweetIndexBuilder builder = new TweetIndexBuilder(tweets.size());
+      for (final TwitterStream tweet : tweets)
+      {
+         builder.add(tweet);
+      }
+      TweetIndex tail = builder.build();
+      final List<TweetIndex> newTails = new ArrayList<>(Arrays.asList(tails));
+      while (!newTails.isEmpty() && newTails.get(newTails.size() - 1).size <= 2 * tail.size)
+      {
+         tail = merge(newTails.remove(newTails.size() - 1), tail);
+      }
+      newTails.add(tail);
+      return new TweetIndex(this, newTails.toArray(new TweetIndex[newTails.size()]));
+   }
+
+   /**
+    * @param tweet
+    *           a tweet
+    * @return true if the index already holds a tweet with the same time and tweet id, which is the key of the table
+    */
+   public boolean contains(final TwitterStream tweet)
+   {
+      final TweetRecord record = TweetRecord.of(tweet);
+      if (holds(record))
+      {
+         return true;
+      }
+      for (final TweetIndex tail : tails)
+      {
+         if (tail.holds(record))
+         {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * find the tweets that match the query. The tweets are returned in time order, starting after the query's cursor
+    * and up to the query's maximum number of results. Every match in the window is counted, unless the query has a
+    * count limit, in which case the search stops once the results are full and at least that many tweets have been
+    * counted.
+    *
+    * @param query
+    *           the filter
+    * @param results
+    *           the list to which the matching tweets are added
+    * @return the total number of matching tweets
+    */
+   public long find(final TweetQuery query, final List<TwitterStream> results)
+   {
+      if (tails.length == 0)
+      {
+         return findOwn(query, results);
+      }
+      // each part finds its own first page, and the first page of all of them is among those
+      final List<TwitterStream> found = new ArrayList<>();
+      long total = findOwn(query, found);
+      for (final TweetIndex tail : tails)
+      {
+         final List<TwitterStream> page = new ArrayList<>();
+         total += tail.findOwn(query, page);
+         found.addAll(page);
+      }
+      Collections.sort(found, TweetIndexBuilder.TIME_ORDER);
+      results.addAll(found.subList(0, Math.min(found.size(), query.getMaxResults())));
+      return total;
+   }
+
+   /**
+    * find the tweets in the columns the index was built with, without the tails, the way {@link #find} does
+    *
+    * @param query
+    *           the filter
+    * @param results
+    *           the empty list to which the matching tweets are added
+    * @return the total number of matching tweets
+    */
+   private long findOwn(final TweetQuery query, final List<TwitterStream> results)
+   {
+      final boolean filterLon = query.hasNorthSouth();
+      final boolean filterLat = query.hasEastWest();
+      final double south = query.getSouth();
+      final double north = query.getNorth();
+      final double west = query.getWest();
+      final double east = query.getEast();
+      final int maxResults = query.getMaxResults();
+      final long countLimit = query.getCountLimit();
+
+      int from = 0;
+      int to = size;
+      if (query.hasTimeRange())
+      {
+         from = lowerBound(query.getMinTime().getTime());
+         to = upperBound(query.getMaxTime().getTime());
+      }
+
+      // the tweets before the cursor are counted but not returned
+      int first = from;
+      if (query.getCursor() != null)
+      {
+         first = Math.max(from, positionAfter(query.getCursor()));
+      }
+
+      final int[] positions = query.hasText() ? text.find(query.getTerms(), from, to) : inBoxByGeohash(query, from, to);
+      if (positions != null)
+      {
+         long total = 0;
+         for (final int i : positions)
+         {
+            if (total >= countLimit && results.size() >= maxResults)
+            {
+               break;
+            }
+            if (inBox(i, query))
+            {
+               total++;
+               if (i >= first && results.size() < maxResults)
+               {
+                  results.add(rows.get(i).toTweet());
+               }
+            }
+         }
+         return total;
+      }
+
+      long total = 0;
+      for (int b = from / BLOCK_SIZE; from < to && b <= (to - 1) / BLOCK_SIZE; b++)
+      {
+         if (total >= countLimit && results.size() >= maxResults)
+         {
+            break;
+         }
+         // skip the blocks that cannot have anything in the box
+         if (filterLon && (blockMaxLon[b] < south || blockMinLon[b] > north))
+         {
+            continue;
+         }
+         if (filterLat && (blockMaxLat[b] < west || blockMinLat[b] > east))
+         {
+            continue;
+         }
+
+         final int start = Math.max(from, b * BLOCK_SIZE);
+         final int end = Math.min(to, (b + 1) * BLOCK_SIZE);
+
+         // once the results are full, or before they start, a block entirely inside the box only needs to be counted
+         if ((results.size() >= maxResults || end <= first)
+               && (!filterLon || blockMinLon[b] >= south && blockMaxLon[b] <= north)
+               && (!filterLat || blockMinLat[b] >= west && blockMaxLat[b] <= east))
+         {
+            total += end - start;
+            continue;
+         }
+
+         for (int i = start; i < end; i++)
+         {
+            if (filterLon && !(lons[i] >= south && lons[i] <= north))
+            {
+               continue;
+            }
+            if (filterLat && !(lats[i] >= west && lats[i] <= east))
+            {
+               continue;
+            }
+            total++;
+            if (i >= first && results.size() < maxResults)
+            {
+               results.add(rows.get(i).toTweet());
+            }
+         }
+      }
+      return total;
+   }
+
+   /**
+    * visit every tweet that matches the query, in time order, starting after the query's cursor and stopping after the
+    * query's maximum number of results.
+    *
+    * @see web30.index.TweetSource#scan(web30.TweetQuery, web30.index.TweetVisitor)
+    */
+   @Override
+   public long scan(final TweetQuery query, final TweetVisitor visitor) throws IOException
+   {
+      return scanRecords(query, new TweetRecordVisitor()
+      {
+         @Override
+         public void visit(final TweetRecord tweet) throws IOException
+         {
+            visitor.visit(tweet.toTweet());
+         }
+      });
+   }
+
+   /**
+    * visit every tweet that matches the query as the record the index holds, in time order, starting after the query's
+    * cursor and stopping after the query's maximum number of results.
+    *
+    * @param query
+    *           the filter
+    * @param visitor
+    *           receives each matching tweet
+    * @return the number of tweets visited
+    * @throws IOException
+    *            if the visitor fails
+    */
+   public long scanRecords(final TweetQuery query, final TweetRecordVisitor visitor) throws IOException
+   {
+      if (tails.length == 0)
+      {
+         return scanOwn(query, visitor);
+      }
+      // the tails are small, so their matches are held and merged into the matches of the columns as they come
+      final List<TweetRecord> pending = new ArrayList<>();
+      for (final TweetIndex tail : tails)
+      {
+         tail.scanOwn(query, new TweetRecordVisitor()
+         {
+            @Override
+            public void visit(final TweetRecord tweet)
+            {
+               pending.add(tweet);
+            }
+         });
+      }
+      Collections.sort(pending, TweetIndexBuilder.RECORD_ORDER);
+      final MergingVisitor merging = new MergingVisitor(pending, query.getMaxResults(), visitor);
+      scanOwn(query, merging);
+      return merging.finish();
+   }
+
+   /**
+    * visit the tweets in the columns the index was built with, without the tails, the way {@link #scan} does
+    *
+    * @param query
+    *           the filter
+    * @param visitor
+    *           receives each matching tweet
+    * @return the number of tweets visited
+    * @throws IOException
+    *            if the visitor fails
+    */
+   private long scanOwn(final TweetQuery query, final TweetRecordVisitor visitor) throws IOException
+   {
+      final boolean filterLon = query.hasNorthSouth();
+      final boolean filterLat = query.hasEastWest();
+      final double south = query.getSouth();
+      final double north = query.getNorth();
+      final double west = query.getWest();
+      final double east = query.getEast();
+      final int maxResults = query.getMaxResults();
+
+      int from = 0;
+      int to = size;
+      if (query.hasTimeRange())
+      {
+         from = lowerBound(query.getMinTime().getTime());
+         to = upperBound(query.getMaxTime().getTime());
+      }
+      if (query.getCursor() != null)
+      {
+         from = Math.max(from, positionAfter(query.getCursor()));
+      }
+
+      final int[] positions = query.hasText() ? text.find(query.getTerms(), from, to) : inBoxByGeohash(query, from, to);
+      if (positions != null)
+      {
+         long visited = 0;
+         for (final int i : positions)
+         {
+            if (visited >= maxResults)
+            {
+               break;
+            }
+            if (inBox(i, query))
+            {
+               visitor.visit(rows.get(i));
+               visited++;
+            }
+         }
+         return visited;
+      }
+
+      long visited = 0;
+      for (int b = from / BLOCK_SIZE; from < to && b <= (to - 1) / BLOCK_SIZE && visited < maxResults; b++)
+      {
+         if (filterLon && (blockMaxLon[b] < south || blockMinLon[b] > north))
+         {
+            continue;
+         }
+         if (filterLat && (blockMaxLat[b] < west || blockMinLat[b] > east))
+         {
+            continue;
+         }
+
+         final int start = Math.max(from, b * BLOCK_SIZE);
+         final int end = Math.min(to, (b + 1) * BLOCK_SIZE);
+         for (int i = start; i < end && visited < maxResults; i++)
+         {
+            if (filterLon && !(lons[i] >= south && lons[i] <= north))
+            {
+               continue;
+            }
+            if (filterLat && !(lats[i] >= west && lats[i] <= east))
+            {
+               continue;
+            }
+            visitor.visit(rows.get(i));
+            visited++;
+         }
+      }
+      return visited;
+   }
+
+   /**
+    * @param position
+    *           the position of a tweet, in time order
+    * @return the tweet
+    */
+   TwitterStream getRow(final int position)
+   {
+      return rows.get(position).toTweet();
+   }
+
+   /**
+    * @param position
+    *           the position of a tweet, in time order
+    * @return the tweet, as the index holds it
+    */
+   TweetRecord getRecord(final int position)
+   {
+      return rows.get(position);
+   }
+
+   /**
+    * @return the number of tweets the index was built with, not counting the tweets appended since; the positions of
+    *         {@link #getRecord(int)} and {@link #lowerBound(long)} are positions among these
+    */
+   int getBaseSize()
+   {
+      return size;
+   }
+
+   /**
+    * @return the number of tweets in the index
+    */
+   public int getSize()
+   {
+      int total = size;
+      for (final TweetIndex tail : tails)
+      {
+         total += tail.size;
+      }
+      return total;
+   }
+
+   /**
+    * @return the words in the text of the tweets the index was built with
+    */
+   public TextIndex getText()
+   {
+      return text;
+   }
+
+   /**
+    * @param tweet
+    *           a tweet
+    * @return true if the columns the index was built with hold a tweet with the same time and tweet id
+    */
+   private boolean holds(final TweetRecord tweet)
+   {
+      final long time = TweetIndexBuilder.time(tweet);
+      for (int i = lowerBound(time); i < size && times[i] == time; i++)
+      {
+         if (rows.get(i).compareTweetid(tweet) == 0)
+         {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * @param i
+    *           the position of a tweet
+    * @param query
+    *           the filter
+    * @return true if the tweet is in the box of the query
+    */
+   private boolean inBox(final int i, final TweetQuery query)
+   {
+      if (query.hasNorthSouth() && !(lons[i] >= query.getSouth() && lons[i] <= query.getNorth()))
+      {
+         return false;
+      }
+      return !query.hasEastWest() || lats[i] >= query.getWest() && lats[i] <= query.getEast();
+   }
+
+   /**
+    * find the tweets in the box of a query by their geohashes, if the box holds few enough tweets for that to be faster
+    * than reading the time window
+    *
+    * @param query
+    *           the filter
+    * @param from
+    *           the first position in the time window
+    * @param to
+    *           one past the last position in the time window
+    * @return the positions in the time window of the tweets in the geohash ranges of the box, in order, which still
+    *         have to be checked against the box, or null if the time window should be read instead
+    */
+   private int[] inBoxByGeohash(final TweetQuery query, final int from, final int to)
+   {
+      if (!query.hasNorthSouth() || !query.hasEastWest() || from >= to)
+      {
+         return null;
+      }
+
+      // NOTE the db has lat and lon backwards, so the lon column is the latitude
+      final long[] ranges = GeoHash.ranges(query.getSouth(), query.getNorth(), query.getWest(), query.getEast(),
+            GEOHASH_RANGES);
+      final int[] starts = new int[ranges.length / 2];
+      final int[] ends = new int[ranges.length / 2];
+      long candidates = 0;
+      for (int r = 0; r < starts.length; r++)
+      {
+         starts[r] = firstAbove(ranges[2 * r] << 31, false);
+         ends[r] = firstAbove(ranges[2 * r + 1] << 31 | Integer.MAX_VALUE, true);
+         candidates += ends[r] - starts[r];
+      }
+      if (candidates * GEOHASH_SHARE > to - from)
+      {
+         return null;
+      }
+
+      int[] result = new int[(int) candidates];
+      int count = 0;
+      for (int r = 0; r < starts.length; r++)
+      {
+         for (int k = starts[r]; k < ends[r]; k++)
+         {
+            final int i = (int) (hashes[k] & Integer.MAX_VALUE);
+            if (i >= from && i < to)
+            {
+               result[count++] = i;
+            }
+         }
+      }
+      result = Arrays.copyOf(result, count);
+      Arrays.sort(result);
+      return result;
+   }
+
+   /**
+    * @param key
+    *           a geohash shifted above a position
+    * @param after
+    *           true to pass the keys equal to the key
+    * @return the position in the sorted geohashes of the first key at or after the key, or after it if asked
+    */
+   private int firstAbove(final long key, final boolean after)
+   {
+      int low = 0;
+      int high = hashes.length;
+      while (low < high)
+      {
+         final int mid = low + high >>> 1;
+         if (hashes[mid] < key || after && hashes[mid] == key)
+         {
+            low = mid + 1;
+         }
+         else
+         {
+            high = mid;
+         }
+      }
+      return low;
+   }
+
+   /**
+    * @param time
+    *           the earliest time
+    * @return the position of the first tweet at or after the time
+    */
+   int lowerBound(final long time)
+   {
+      int low = 0;
+      int high = size;
+      while (low < high)
+      {
+         final int mid = low + high >>> 1;
+         if (times[mid] < time)
+         {
+            low = mid + 1;
+         }
+         else
+         {
+            high = mid;
+         }
+      }
+      return low;
+   }
+
+   /**
+    * @param time
+    *           the latest time
+    * @return the position one past the last tweet at or before the time
+    */
+   int upperBound(final long time)
+   {
+      int low = 0;
+      int high = size;
+      while (low < high)
+      {
+         final int mid = low + high >>> 1;
+         if (times[mid] <= time)
+         {
+            low = mid + 1;
+         }
+         else
+         {
+            high = mid;
+         }
+      }
+      return low;
+   }
+
+   /**
+    * @param cursor
+    *           the last tweet of the previous page
+    * @return the position of the first tweet after the cursor, in (time, tweetid) order
+    */
+   int positionAfter(final TweetCursor cursor)
+   {
+      final String tweetid = cursor.getTweetid();
+      final long time = cursor.getTime().getTime();
+      int position = lowerBound(time);
+      while (position < size && times[position] == time && rows.get(position).getTweetid() != null
+            && rows.get(position).getTweetid().compareTo(tweetid) <= 0)
+      {
+         position++;
+      }
+      return position;
+   }
+
+   /*
+    * (non-Javadoc)
+    * @see java.lang.Object#toString()
+    */
+   @Override
+   public String toString()
+   {
+      return "TweetIndex [size=" + size + ", blocks=" + blockMinLat.length + ", words=" + text.getWordCount()
+            + ", tails=" + tails.length + "]";
+   }
+
+   /**
+    * Visits the matches of the columns in order with the held matches of the tails merged in, up to the maximum number
+    * of results.
+    */
+   private static class MergingVisitor implements TweetRecordVisitor
+   {
+      /** the matches of the tails, in order */
+      private final List<TweetRecord> pending;
+      /** the maximum number of tweets to visit */
+      private final int maxResults;
+      /** receives each tweet */
+      private final TweetRecordVisitor visitor;
+      /** the position in the matches of the tails of the next one to visit */
+      private int next;
+      /** the number of tweets visited so far */
+      private long visited;
+
+      /**
+       * @param pending
+       *           the matches of the tails, in order
+       * @param maxResults
+       *           the maximum number of tweets to visit
+       * @param visitor
+       *           receives each tweet
+       */
+      MergingVisitor(final List<TweetRecord> pending, final int maxResults, final TweetRecordVisitor visitor)
+      {
+         this.pending = pending;
+         this.maxResults = maxResults;
+         this.visitor = visitor;
+      }
+
+      /**
+       * visit the matches of the tails that are left
+       *
+       * @return the number of tweets visited
+       * @throws IOException
+       *            if the visitor fails
+       */
+      long finish() throws IOException
+      {
+         while (next < pending.size() && visited < maxResults)
+         {
+            visitor.visit(pending.get(next++));
+            visited++;
+         }
+         return visited;
+      }
+
+      /*
+       * (non-Javadoc)
+       * @see web30.index.TweetRecordVisitor#visit(web30.model.TweetRecord)
+       */
+      @Override
+      public void visit(final TweetRecord tweet) throws IOException
+      {
+         while (next < pending.size() && visited < maxResults
+               && TweetIndexBuilder.RECORD_ORDER.compare(pending.get(next), tweet) < 0)
+         {
+            visitor.visit(pending.get(next++));
+            visited++;
+         }
+         if (visited < maxResults)
+         {
+            visitor.visit(tweet);
+            visited++;
+         }
+      }
+   }
+}
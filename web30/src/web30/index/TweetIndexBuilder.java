@@ -0,0 +1,173 @@
+/**
+ *
+ */
+package web30.index;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import web30.model.TweetRecord;
+import web30.model.TwitterStream;
+
+/**
+ * Collects tweets and builds a {@link TweetIndex} from them. Tweets may be added in any order, but adding them already
+ * sorted by time and tweet id (the way the loader reads them) avoids a sort when the index is built. Each tweet is
+ * held as a {@link TweetRecord} from the moment it is added.
+ */
+public class TweetIndexBuilder
+{
+   /** orders tweets by time and then by tweet id */
+   static final Comparator<TwitterStream> TIME_ORDER = new Comparator<TwitterStream>()
+   {
+      @Override
+      public int compare(final TwitterStream a, final TwitterStream b)
+      {
+         final int result = Long.compare(time(a), time(b));
+         if (result != 0)
+         {
+            return result;
+         }
+         if (a.getTweetid() == null)
+         {
+            return b.getTweetid() == null ? 0 : -1;
+         }
+         return b.getTweetid() == null ? 1 : a.getTweetid().compareTo(b.getTweetid());
+      }
+   };
+
+   /** orders records by time and then by tweet id, the same as {@link #TIME_ORDER} */
+   static final Comparator<TweetRecord> RECORD_ORDER = new Comparator<TweetRecord>()
+   {
+      @Override
+      public int compare(final TweetRecord a, final TweetRecord b)
+      {
+         final int result = Long.compare(time(a), time(b));
+         return result != 0 ? result : a.compareTweetid(b);
+      }
+   };
+
+   /** the tweets added so far */
+   private TweetRecord[] rows;
+   /** the number of tweets added so far */
+   private int size;
+   /** true while every tweet added so far is in time order */
+   private boolean sorted = true;
+
+   /**
+    * create a builder
+    */
+   public TweetIndexBuilder()
+   {
+      this(1024);
+   }
+
+   /**
+    * @param capacity
+    *           the number of tweets expected
+    */
+   public TweetIndexBuilder(final int capacity)
+   {
+      rows = new TweetRecord[Math.max(16, capacity)];
+   }
+
+   /**
+    * @param tweet
+    *           the tweet
+    * @return the time of the tweet in milliseconds, or 0 if it has none
+    */
+   static long time(final TwitterStream tweet)
+   {
+      return tweet.getTime() == null ? 0 : tweet.getTime().getTime();
+   }
+
+   /**
+    * @param tweet
+    *           the tweet
+    * @return the time of the tweet in milliseconds, or 0 if it has none
+    */
+   static long time(final TweetRecord tweet)
+   {
+      return tweet.getTime() == TweetRecord.NO_TIME ? 0 : tweet.getTime();
+   }
+
+   /**
+    * @param tweet
+    *           the tweet to add to the index
+    * @return this builder
+    */
+   public TweetIndexBuilder add(final TwitterStream tweet)
+   {
+      return add(TweetRecord.of(tweet));
+   }
+
+   /**
+    * @param tweet
+    *           the tweet to add to the index
+    * @return this builder
+    */
+   public TweetIndexBuilder add(final TweetRecord tweet)
+   {
+      if (size == rows.length)
+      {
+         rows = Arrays.copyOf(rows, size + (size >> 1));
+      }
+      if (sorted && size > 0 && RECORD_ORDER.compare(rows[size - 1], tweet) > 0)
+      {
+         sorted = false;
+      }
+      rows[size++] = tweet;
+      return this;
+   }
+
+   /**
+    * @return the index of all the tweets added so far
+    */
+   public TweetIndex build()
+   {
+      return build(null);
+   }
+
+   /**
+    * build an index of the tweets of a snapshot followed by the tweets added so far, which must all come after the
+    * last tweet of the snapshot. The tweets of the snapshot stay in its files; only their times and coordinates are
+    * copied.
+    *
+    * @param snapshot
+    *           the snapshot, or null for only the tweets added so far
+    * @return the index
+    */
+   public TweetIndex build(final TweetSnapshot snapshot)
+   {
+      final TweetRecord[] sortedRows = Arrays.copyOf(rows, size);
+      if (!sorted)
+      {
+         Arrays.sort(sortedRows, RECORD_ORDER);
+      }
+
+      final int base = snapshot == null ? 0 : snapshot.getSize();
+      final long[] times = new long[base + size];
+      final double[] lats = new double[base + size];
+      final double[] lons = new double[base + size];
+      if (snapshot != null)
+      {
+         snapshot.copyColumns(times, lats, lons);
+      }
+      for (int i = 0; i < size; i++)
+      {
+         final TweetRecord tweet = sortedRows[i];
+         times[base + i] = time(tweet);
+         lats[base + i] = tweet.getLat();
+         lons[base + i] = tweet.getLon();
+      }
+      return new TweetIndex(base + size, times, lats, lons,
+            snapshot == null ? TweetRows.of(sortedRows) : snapshot.rows(sortedRows));
+   }
+
+   /**
+    * @return the number of tweets added so far
+    */
+   public int getSize()
+   {
+      return size;
+   }
+}
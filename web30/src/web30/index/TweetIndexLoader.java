@@ -0,0 +1,539 @@
+/**
+ *
+ */
+package web30.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.TemporalType;
+import javax.persistence.TypedQuery;
+
+import org.apache.log4j.Logger;
+
+import web30.model.TwitterStream;
+import web30.persistence.EntityManagerPool;
+import web30.persistence.PooledEntityManager;
+
+/**
+ * Loads the {@link TweetIndex}, the {@link TweetHistogram}, the {@link TimeRollup} and the {@link CellRollup} from the
+ * database in the background and holds on to them. Until the load completes, the getters return null and callers
+ * should go to the database instead. The histogram and the rollups are always loaded, but the index is only kept if it
+ * is wanted, since it holds every tweet. The load reads every tweet either way, so it is only started when the index
+ * or the histogram is wanted; until it is, the getters return null and callers keep going to the database.
+ * <p>
+ * With a {@link TweetSnapshot}, the load starts from the tweets in the snapshot and only reads the tweets added since
+ * from the database, and then writes the snapshot again for the next start. The number of tweets on each day of the
+ * snapshot is counted in the database first, and if any day differs, because tweets were deleted or added before the
+ * end of the snapshot, the snapshot is not used and every tweet is read from the database.
+ * <p>
+ * Once the index is loaded, it can be refreshed: every so often the tweets from a while before the last one read, in
+ * (time, tweet id) order, are read from the database the same way and the ones the index does not hold yet are
+ * appended to it, so that tweets added to the database by something else than this service are found too. The table
+ * has no insertion order, so the refresh starts {@link #REFRESH_OVERLAP} before the last tweet read to find tweets that
+ * were added late with an older time; a tweet added with a time older than that is only found on the next start.
+ */
+public class TweetIndexLoader
+{
+   /** the number of tweets read from the database at one time */
+   private static final int BATCH_SIZE = 10000;
+
+   /** the first batch of tweets */
+   private static final String FIRST_BATCH = "select t from TwitterStream t order by t.time, t.tweetid";
+
+   /** every batch after the first continues after the last tweet of the previous batch */
+   private static final String NEXT_BATCH = "select t from TwitterStream t "
+         + "where t.time > :time or (t.time = :time and t.tweetid > :tweetid) order by t.time, t.tweetid";
+
+   /** how far before the last tweet read a refresh starts reading again */
+   private static final long REFRESH_OVERLAP = TimeUnit.HOURS.toMillis(1);
+
+   /** the number of tweets in the database on a day of the snapshot */
+   private static final String COUNT_DAY = "select count(t) from TwitterStream t "
+         + "where t.time >= :from and t.time < :to";
+
+   /** the number of tweets in the database on the last day of the snapshot, up to its last tweet */
+   private static final String COUNT_LAST_DAY = "select count(t) from TwitterStream t where t.time >= :from "
+         + "and (t.time < :time or (t.time = :time and t.tweetid <= :tweetid))";
+
+   /** the current index, or null if it has not been loaded */
+   private static volatile TweetIndex index;
+
+   /** the current histogram, or null if it has not been loaded */
+   private static volatile TweetHistogram histogram;
+
+   /** the current time rollups, or null if they have not been loaded */
+   private static volatile TimeRollup rollup;
+
+   /** the current time rollups of each grid cell, or null if they have not been loaded */
+   private static volatile CellRollup cellRollup;
+
+   /** held while reading from the database, so that a load and a refresh never read at once, and guards last */
+   private static final Object readLock = new Object();
+
+   /** the last tweet read from the database, in (time, tweet id) order, or null if none has been */
+   private static TwitterStream last;
+
+   /** true once the load has been started */
+   private static boolean started;
+
+   /** the listeners told about tweets added after the load */
+   private static final List<TweetListener> listeners = new CopyOnWriteArrayList<>();
+
+   /**
+    * @param listener
+    *           the listener to tell about tweets added after the load
+    */
+   public static void addListener(final TweetListener listener)
+   {
+      listeners.add(listener);
+   }
+
+   /**
+    * add tweets to the index, if there is one, leaving out the ones it already holds and the repeats of a tweet in the
+    * list, and count the rest in the histogram and the rollups. Without an index every tweet is counted, so a tweet
+    * that was already in the database is counted again.
+    *
+    * @param tweets
+    *           the tweets read from or added to the database
+    * @return the tweets that were new
+    */
+   private static synchronized List<TwitterStream> append(final List<TwitterStream> tweets)
+   {
+      final TweetIndex currentIndex = index;
+      List<TwitterStream> fresh = tweets;
+      if (currentIndex != null)
+      {
+         fresh = new ArrayList<>(tweets.size());
+         final Set<String> keys = new HashSet<>();
+         for (final TwitterStream tweet : tweets)
+         {
+            final String key = (tweet.getTime() == null ? "" : tweet.getTime().getTime()) + "/" + tweet.getTweetid();
+            if (!currentIndex.contains(tweet) && keys.add(key))
+            {
+               fresh.add(tweet);
+            }
+         }
+         index = currentIndex.append(fresh);
+      }
+
+      final TweetHistogram currentHistogram = histogram;
+      final TimeRollup currentRollup = rollup;
+      final CellRollup currentCells = cellRollup;
+      for (final TwitterStream tweet : fresh)
+      {
+         if (currentHistogram != null)
+         {
+            currentHistogram.add(tweet);
+         }
+         if (currentRollup != null)
+         {
+            currentRollup.visit(tweet);
+         }
+         if (currentCells != null)
+         {
+            currentCells.add(tweet);
+         }
+      }
+      return fresh;
+   }
+
+   /**
+    * @return the current time rollups of each grid cell, or null if they are not loaded yet
+    */
+   public static CellRollup getCellRollup()
+   {
+      return cellRollup;
+   }
+
+   /**
+    * @return the current histogram, or null if the histogram is not loaded yet
+    */
+   public static TweetHistogram getHistogram()
+   {
+      return histogram;
+   }
+
+   /**
+    * @return the current index, or null if the index is not loaded yet
+    */
+   public static TweetIndex getIndex()
+   {
+      return index;
+   }
+
+   /**
+    * @return the current time rollups, or null if the rollups are not loaded yet
+    */
+   public static TimeRollup getRollup()
+   {
+      return rollup;
+   }
+
+   /**
+    * read every tweet from the snapshot, if there is one, and every tweet after it from the database, in time order, a
+    * batch at a time so that the entity manager never holds more than one batch.
+    *
+    * @param keepIndex
+    *           true to build the index, false to only build the histogram and the rollups
+    * @param snapshotDirectory
+    *           the directory of the snapshot, or null to read every tweet from the database
+    */
+   static void load(final boolean keepIndex, final File snapshotDirectory)
+   {
+      final Logger log = Logger.getLogger(TweetIndexLoader.class);
+      final long startTime = System.currentTimeMillis();
+      final TweetIndexBuilder builder = new TweetIndexBuilder();
+      final TweetHistogram newHistogram = new TweetHistogram();
+      final TimeRollup newRollup = new TimeRollup();
+      final CellRollup newCells = new CellRollup();
+
+      TweetSnapshot snapshot = null;
+      if (snapshotDirectory != null)
+      {
+         try
+         {
+            snapshot = TweetSnapshot.open(snapshotDirectory);
+         }
+         catch (final IOException e)
+         {
+            log.warn("Cannot read the tweet snapshot; loading every tweet from the database", e);
+         }
+      }
+      if (snapshot != null && !matchesDatabase(snapshot, log))
+      {
+         snapshot = null;
+      }
+      if (snapshot != null)
+      {
+         for (int i = 0; i < snapshot.getSize(); i++)
+         {
+            final TwitterStream point = snapshot.getPoint(i);
+            newHistogram.add(point);
+            newRollup.visit(point);
+            newCells.add(point);
+         }
+         log.debug(String.format("read %,d tweets from the snapshot", Integer.valueOf(snapshot.getSize())));
+      }
+
+      synchronized (readLock)
+      {
+         try (PooledEntityManager em = EntityManagerPool.borrowEntityManager())
+         {
+            last = snapshot == null ? null : snapshot.getLast();
+            List<TwitterStream> batch;
+            do
+            {
+               batch = readBatch(em, last);
+               if (!batch.isEmpty())
+               {
+                  last = batch.get(batch.size() - 1);
+               }
+               for (final TwitterStream tweet : batch)
+               {
+                  newHistogram.add(tweet);
+                  newRollup.visit(tweet);
+                  newCells.add(tweet);
+                  if (keepIndex)
+                  {
+                     builder.add(tweet);
+                  }
+               }
+               // the tweets are immutable, so the index can keep them after the entity manager lets them go
+               em.clear();
+
+               log.trace(String.format("loaded %,d tweets", Long.valueOf(newHistogram.getTotal())));
+            }
+            while (batch.size() == BATCH_SIZE);
+         }
+      }
+
+      histogram = newHistogram;
+      rollup = newRollup;
+      cellRollup = newCells;
+      if (keepIndex)
+      {
+         index = builder.build(snapshot);
+      }
+      final double seconds = (System.currentTimeMillis() - startTime) / 1000.0;
+      log.info(String.format("loaded %,d tweets in %.2f seconds", Long.valueOf(newHistogram.getTotal()),
+            Double.valueOf(seconds)));
+
+      // the snapshot is written from the index, so without one it stays as it is
+      if (keepIndex && snapshotDirectory != null)
+      {
+         try
+         {
+            final int written = TweetSnapshot.write(snapshotDirectory, index);
+            log.debug("wrote " + written + " days of the tweet snapshot");
+         }
+         catch (final IOException e)
+         {
+            log.warn("Cannot write the tweet snapshot; the next start will read more from the database", e);
+         }
+      }
+   }
+
+   /**
+    * count the tweets in the database on each day of a snapshot, up to its last tweet, and compare them with the
+    * snapshot
+    *
+    * @param snapshot
+    *           the snapshot
+    * @param log
+    *           where a day that differs is logged
+    * @return true if every day has as many tweets in the database as in the snapshot
+    */
+   private static boolean matchesDatabase(final TweetSnapshot snapshot, final Logger log)
+   {
+      final TwitterStream end = snapshot.getLast();
+      try (PooledEntityManager em = EntityManagerPool.borrowEntityManager())
+      {
+         for (int day = 0; day < snapshot.getDays(); day++)
+         {
+            if (snapshot.getDaySize(day) == 0)
+            {
+               continue;
+            }
+            final Date from = new Date(snapshot.getDayStart(day));
+            final TypedQuery<Long> q;
+            if (day == snapshot.getDays() - 1)
+            {
+               q = em.createQuery(COUNT_LAST_DAY, Long.class);
+               q.setParameter("time", end.getTime(), TemporalType.TIMESTAMP);
+               q.setParameter("tweetid", end.getTweetid());
+            }
+            else
+            {
+               q = em.createQuery(COUNT_DAY, Long.class);
+               q.setParameter("to", new Date(from.getTime() + TimeUnit.DAYS.toMillis(1)), TemporalType.TIMESTAMP);
+            }
+            q.setParameter("from", from, TemporalType.TIMESTAMP);
+            final long count = q.getSingleResult().longValue();
+            if (count != snapshot.getDaySize(day))
+            {
+               log.warn(String.format("The tweet snapshot has %,d tweets on %tF and the database has %,d; loading "
+                     + "every tweet from the database", Integer.valueOf(snapshot.getDaySize(day)), from,
+                     Long.valueOf(count)));
+               return false;
+            }
+         }
+      }
+      return true;
+   }
+
+   /**
+    * read the next batch of tweets after a tweet
+    *
+    * @param em
+    *           the entity manager
+    * @param after
+    *           the tweet to read after, in (time, tweet id) order, or null to read from the first
+    * @return the tweets, in (time, tweet id) order
+    */
+   private static List<TwitterStream> readBatch(final PooledEntityManager em, final TwitterStream after)
+   {
+      final TypedQuery<TwitterStream> q;
+      if (after == null)
+      {
+         q = em.createQuery(FIRST_BATCH, TwitterStream.class);
+      }
+      else
+      {
+         q = em.createQuery(NEXT_BATCH, TwitterStream.class);
+         q.setParameter("time", after.getTime());
+         q.setParameter("tweetid", after.getTweetid());
+      }
+      q.setMaxResults(BATCH_SIZE);
+      return q.getResultList();
+   }
+
+   /**
+    * read the tweets in the database from {@link #REFRESH_OVERLAP} before the last one read, append the ones the index
+    * does not hold yet, and tell the listeners about them. This does nothing until the index is loaded.
+    */
+   static void refresh()
+   {
+      if (index == null)
+      {
+         return;
+      }
+      long added = 0;
+      synchronized (readLock)
+      {
+         try (PooledEntityManager em = EntityManagerPool.borrowEntityManager())
+         {
+            TwitterStream after = null;
+            if (last != null)
+            {
+               after = new TwitterStream();
+               after.setTime(new Date(last.getTime().getTime() - REFRESH_OVERLAP));
+               after.setTweetid("");
+            }
+            List<TwitterStream> batch;
+            do
+            {
+               batch = readBatch(em, after);
+               em.clear();
+               if (!batch.isEmpty())
+               {
+                  after = batch.get(batch.size() - 1);
+                  if (last == null || TweetIndexBuilder.TIME_ORDER.compare(after, last) > 0)
+                  {
+                     last = after;
+                  }
+               }
+               final List<TwitterStream> fresh = append(batch);
+               added += fresh.size();
+               tell(fresh);
+            }
+            while (batch.size() == BATCH_SIZE);
+         }
+      }
+      if (added > 0)
+      {
+         Logger.getLogger(TweetIndexLoader.class).debug(String.format("refreshed %,d tweets", Long.valueOf(added)));
+      }
+   }
+
+   /**
+    * @param listener
+    *           the listener to stop telling about added tweets
+    */
+   public static void removeListener(final TweetListener listener)
+   {
+      listeners.remove(listener);
+   }
+
+   /**
+    * replace the current index. This is mostly useful for testing.
+    *
+    * @param newIndex
+    *           the index to use, or null to go back to the database
+    */
+   public static void setIndex(final TweetIndex newIndex)
+   {
+      index = newIndex;
+   }
+
+   /**
+    * start loading in the background. This only starts the load once.
+    *
+    * @param keepIndex
+    *           true to build the index, false to only build the histogram and the rollups
+    */
+   public static void start(final boolean keepIndex)
+   {
+      start(keepIndex, null, 0);
+   }
+
+   /**
+    * start loading in the background, from a snapshot and then the database, and then, if the index is kept and there
+    * is an interval, refreshing it after every interval. This only starts the load once.
+    *
+    * @param keepIndex
+    *           true to build the index, false to only build the histogram and the rollups
+    * @param snapshotDirectory
+    *           the directory of the snapshot, or null to read every tweet from the database
+    * @param interval
+    *           the number of seconds between reading the tweets added to the database since, or 0 to never read them
+    */
+   public static synchronized void start(final boolean keepIndex, final File snapshotDirectory, final long interval)
+   {
+      if (started)
+      {
+         return;
+      }
+      started = true;
+
+      final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+      {
+         @Override
+         public Thread newThread(final Runnable r)
+         {
+            final Thread t = new Thread(r);
+            t.setName("TweetIndexLoader");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      executor.execute(new Runnable()
+      {
+         @Override
+         public void run()
+         {
+            final Logger log = Logger.getLogger(TweetIndexLoader.class);
+            log.debug("loading the tweet index");
+            try
+            {
+               load(keepIndex, snapshotDirectory);
+            }
+            catch (final Throwable t)
+            {
+               log.error("Cannot load the tweet index; tweets will come from the database", t);
+            }
+         }
+      });
+      if (!keepIndex || interval <= 0)
+      {
+         executor.shutdown();
+         return;
+      }
+      // the refresh runs on the same thread, so it never starts before the load is done
+      executor.scheduleWithFixedDelay(new Runnable()
+      {
+         @Override
+         public void run()
+         {
+            try
+            {
+               refresh();
+            }
+            catch (final Throwable t)
+            {
+               // keep the index there is, and try again next time
+               Logger.getLogger(TweetIndexLoader.class).error("Cannot refresh the tweet index", t);
+            }
+         }
+      }, interval, interval, TimeUnit.SECONDS);
+   }
+
+   /**
+    * @param tweets
+    *           tweets that were added, possibly none
+    */
+   private static void tell(final List<TwitterStream> tweets)
+   {
+      if (tweets.isEmpty())
+      {
+         return;
+      }
+      for (final TweetListener listener : listeners)
+      {
+         listener.tweetsAdded(tweets);
+      }
+   }
+
+   /**
+    * add tweets that were added to the database after the load to the index, leaving out the ones it already holds,
+    * count them in the histogram and the rollups, and then tell the listeners about them, so that a listener that
+    * reads the index finds them there.
+    *
+    * @param tweets
+    *           the tweets that were added, in any order
+    */
+   public static void tweetsAdded(final List<TwitterStream> tweets)
+   {
+      tell(append(tweets));
+   }
+}
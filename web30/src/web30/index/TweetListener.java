@@ -0,0 +1,21 @@
+/**
+ *
+ */
+package web30.index;
+
+import java.util.List;
+
+import web30.model.TwitterStream;
+
+/**
+ * Is told about tweets that are added after the tweets were loaded, so that anything kept about the old tweets, such
+ * as cached results, can be brought up to date.
+ */
+public interface TweetListener
+{
+   /**
+    * @param tweets
+    *           the tweets that were added
+    */
+   void tweetsAdded(List<TwitterStream> tweets);
+}
@@ -0,0 +1,328 @@
+/**
+ *
+ */
+package web30.index;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import web30.model.TweetRecord;
+import web30.model.TwitterStream;
+
+/**
+ * One file of a {@link TweetSnapshot}: the tweets of one day, in time order, stored by column and read through a memory
+ * map. The times and coordinates are arrays of primitives, and each string column is a dictionary of the distinct
+ * values, in UTF-8, and the number of the value of each tweet, so that a user who tweets all day, or a bounding box
+ * shared by a city, is stored once. Nothing is read until it is asked for, so opening a partition costs the same
+ * however many tweets it holds, and the pages that are read stay in the page cache rather than on the heap.
+ * <p>
+ * The file is, in big-endian order: {@link #MAGIC}, the number of tweets, the first and last time, the times, the
+ * lat column and the lon column, and then for each string column the number of distinct values, the number of bytes
+ * they take, the number of the value of each tweet (or -1 for none), the offset of each value and one past the last,
+ * and the values. NOTE the db has lat and lon backwards, and the columns keep the names of the db.
+ */
+class TweetPartition
+{
+   /** the first 8 bytes of every partition, which also name the version of the layout */
+   static final long MAGIC = 0x5457454554533031L;
+
+   /** the size of the header */
+   private static final int HEADER = 8 + 4 + 8 + 8;
+
+   /** the number of string columns */
+   private static final int STRINGS = 4;
+
+   /** the string columns */
+   private static final int TWEETID = 0, USERID = 1, TEXT = 2, BOUNDINGBOX = 3;
+
+   /** the encoding of the string values */
+   private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+   /** the file */
+   private final MappedByteBuffer buffer;
+   /** the number of tweets */
+   private final int size;
+   /** the offset of each string column */
+   private final int[] stringStarts = new int[STRINGS];
+   /** the number of distinct values in each string column */
+   private final int[] dictionarySizes = new int[STRINGS];
+
+   /**
+    * @param buffer
+    *           the file
+    * @throws IOException
+    *            if the file is not a partition
+    */
+   private TweetPartition(final MappedByteBuffer buffer) throws IOException
+   {
+      this.buffer = buffer;
+      if (buffer.capacity() < HEADER || buffer.getLong(0) != MAGIC)
+      {
+         throw new IOException("not a tweet partition");
+      }
+      size = buffer.getInt(8);
+      int start = HEADER + 3 * 8 * size;
+      for (int column = 0; column < STRINGS; column++)
+      {
+         stringStarts[column] = start;
+         dictionarySizes[column] = buffer.getInt(start);
+         start += 8 + 4 * size + 4 * (dictionarySizes[column] + 1) + buffer.getInt(start + 4);
+      }
+      if (start != buffer.capacity())
+      {
+         throw new IOException("truncated tweet partition");
+      }
+   }
+
+   /**
+    * @param file
+    *           a partition
+    * @return the partition, mapped
+    * @throws IOException
+    *            if the file cannot be read or is not a partition
+    */
+   static TweetPartition open(final File file) throws IOException
+   {
+      try (RandomAccessFile in = new RandomAccessFile(file, "r"))
+      {
+         // the map outlives the channel
+         final FileChannel channel = in.getChannel();
+         if (channel.size() > Integer.MAX_VALUE)
+         {
+            throw new IOException(file + " is too large to map");
+         }
+         return new TweetPartition(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+      }
+   }
+
+   /**
+    * @param value
+    *           a coordinate, or NaN if it is missing
+    * @return the coordinate, or null
+    */
+   private static Double coordinate(final double value)
+   {
+      return Double.isNaN(value) ? null : Double.valueOf(value);
+   }
+
+   /**
+    * @param tweet
+    *           a tweet
+    * @param column
+    *           a string column
+    * @return the value of the column for the tweet
+    */
+   private static String stringOf(final TweetRecord tweet, final int column)
+   {
+      switch (column)
+      {
+         case TWEETID:
+            return tweet.getTweetid();
+         case USERID:
+            return tweet.getUserid();
+         case TEXT:
+            return tweet.getText();
+         default:
+            return tweet.getBoundingbox();
+      }
+   }
+
+   /**
+    * write tweets to a new partition
+    *
+    * @param file
+    *           the file to write
+    * @param tweets
+    *           the tweets, in time order
+    * @throws IOException
+    *            if the file cannot be written
+    */
+   static void write(final File file, final List<TweetRecord> tweets) throws IOException
+   {
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16)))
+      {
+         out.writeLong(MAGIC);
+         out.writeInt(tweets.size());
+         out.writeLong(tweets.isEmpty() ? 0 : TweetIndexBuilder.time(tweets.get(0)));
+         out.writeLong(tweets.isEmpty() ? 0 : TweetIndexBuilder.time(tweets.get(tweets.size() - 1)));
+         for (final TweetRecord tweet : tweets)
+         {
+            out.writeLong(TweetIndexBuilder.time(tweet));
+         }
+         for (final TweetRecord tweet : tweets)
+         {
+            out.writeDouble(tweet.getLat());
+         }
+         for (final TweetRecord tweet : tweets)
+         {
+            out.writeDouble(tweet.getLon());
+         }
+
+         for (int column = 0; column < STRINGS; column++)
+         {
+            final Map<String, Integer> numbers = new HashMap<>();
+            final List<byte[]> values = new ArrayList<>();
+            final int[] codes = new int[tweets.size()];
+            int bytes = 0;
+            for (int i = 0; i < codes.length; i++)
+            {
+               final String value = stringOf(tweets.get(i), column);
+               if (value == null)
+               {
+                  codes[i] = -1;
+                  continue;
+               }
+               Integer number = numbers.get(value);
+               if (number == null)
+               {
+                  number = Integer.valueOf(values.size());
+                  numbers.put(value, number);
+                  final byte[] encoded = value.getBytes(UTF_8);
+                  values.add(encoded);
+                  bytes += encoded.length;
+               }
+               codes[i] = number.intValue();
+            }
+
+            out.writeInt(values.size());
+            out.writeInt(bytes);
+            for (final int code : codes)
+            {
+               out.writeInt(code);
+            }
+            int offset = 0;
+            for (final byte[] value : values)
+            {
+               out.writeInt(offset);
+               offset += value.length;
+            }
+            out.writeInt(offset);
+            for (final byte[] value : values)
+            {
+               out.write(value);
+            }
+         }
+      }
+   }
+
+   /**
+    * copy the times and the coordinates of the tweets
+    *
+    * @param times
+    *           the array to copy the times into
+    * @param lats
+    *           the array to copy the lat column into
+    * @param lons
+    *           the array to copy the lon column into
+    * @param offset
+    *           the position in the arrays of the first tweet
+    */
+   void copyColumns(final long[] times, final double[] lats, final double[] lons, final int offset)
+   {
+      final ByteBuffer columns = buffer.duplicate();
+      columns.position(HEADER);
+      columns.asLongBuffer().get(times, offset, size);
+      columns.position(HEADER + 8 * size);
+      columns.asDoubleBuffer().get(lats, offset, size);
+      columns.position(HEADER + 16 * size);
+      columns.asDoubleBuffer().get(lons, offset, size);
+   }
+
+   /**
+    * @param position
+    *           the position of a tweet in the partition
+    * @return the tweet, read from the file
+    */
+   TweetRecord get(final int position)
+   {
+      return new TweetRecord(getString(TWEETID, position), buffer.getLong(HEADER + 8 * position),
+            buffer.getDouble(HEADER + 8 * (size + position)), buffer.getDouble(HEADER + 8 * (2 * size + position)),
+            getString(USERID, position), getString(TEXT, position), getString(BOUNDINGBOX, position));
+   }
+
+   /**
+    * @return the time of the last tweet, in milliseconds
+    */
+   long getMaxTime()
+   {
+      return buffer.getLong(20);
+   }
+
+   /**
+    * @return the time of the first tweet, in milliseconds
+    */
+   long getMinTime()
+   {
+      return buffer.getLong(12);
+   }
+
+   /**
+    * @param position
+    *           the position of a tweet in the partition
+    * @return the time and the coordinates of the tweet, which is all the histogram and the rollups need
+    */
+   TwitterStream getPoint(final int position)
+   {
+      final TwitterStream tweet = new TwitterStream();
+      tweet.setTime(new Date(buffer.getLong(HEADER + 8 * position)));
+      tweet.setLat(coordinate(buffer.getDouble(HEADER + 8 * (size + position))));
+      tweet.setLon(coordinate(buffer.getDouble(HEADER + 8 * (2 * size + position))));
+      return tweet;
+   }
+
+   /**
+    * @return the number of tweets
+    */
+   int getSize()
+   {
+      return size;
+   }
+
+   /**
+    * @param column
+    *           a string column
+    * @param position
+    *           the position of a tweet in the partition
+    * @return the value of the column for the tweet, or null
+    */
+   private String getString(final int column, final int position)
+   {
+      final int start = stringStarts[column];
+      final int code = buffer.getInt(start + 8 + 4 * position);
+      if (code < 0)
+      {
+         return null;
+      }
+      final int offsets = start + 8 + 4 * size;
+      final int from = buffer.getInt(offsets + 4 * code);
+      final int to = buffer.getInt(offsets + 4 * (code + 1));
+      final byte[] bytes = new byte[to - from];
+      final ByteBuffer values = buffer.duplicate();
+      values.position(offsets + 4 * (dictionarySizes[column] + 1) + from);
+      values.get(bytes);
+      return new String(bytes, UTF_8);
+   }
+
+   /**
+    * @param position
+    *           the position of a tweet in the partition
+    * @return the tweet id of the tweet, or null
+    */
+   String getTweetid(final int position)
+   {
+      return getString(TWEETID, position);
+   }
+}
@@ -0,0 +1,23 @@
+/**
+ *
+ */
+package web30.index;
+
+import java.io.IOException;
+
+import web30.model.TweetRecord;
+
+/**
+ * Receives the tweets found by {@link TweetIndex#scanRecords} as the records the index holds, so that a tweet that is
+ * only written out never has to be made into a {@link web30.model.TwitterStream}.
+ */
+public interface TweetRecordVisitor
+{
+   /**
+    * @param tweet
+    *           the next matching tweet
+    * @throws IOException
+    *            if the tweet cannot be handled; this stops the scan
+    */
+   void visit(TweetRecord tweet) throws IOException;
+}
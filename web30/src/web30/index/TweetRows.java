@@ -0,0 +1,37 @@
+/**
+ *
+ */
+package web30.index;
+
+import web30.model.TweetRecord;
+
+/**
+ * The tweets of a {@link TweetIndex}, by position in time order, whether they are on the heap or in a
+ * {@link TweetSnapshot}.
+ */
+abstract class TweetRows
+{
+   /**
+    * @param rows
+    *           the tweets, in time order
+    * @return the rows of the tweets
+    */
+   static TweetRows of(final TweetRecord[] rows)
+   {
+      return new TweetRows()
+      {
+         @Override
+         TweetRecord get(final int position)
+         {
+            return rows[position];
+         }
+      };
+   }
+
+   /**
+    * @param position
+    *           the position of a tweet
+    * @return the tweet
+    */
+   abstract TweetRecord get(int position);
+}
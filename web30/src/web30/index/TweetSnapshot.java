@@ -0,0 +1,390 @@
+/**
+ *
+ */
+package web30.index;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+
+import web30.model.TweetRecord;
+import web30.model.TwitterStream;
+
+/**
+ * A copy of the tweet table on disk, kept so that a restart does not have to read every tweet through the database
+ * again. The snapshot is a directory with a {@link TweetPartition} for each day, by UTC, which is read through a memory
+ * map. When the index is built from a snapshot, only its times and coordinates are copied to the heap, for the scans;
+ * the ids, the text and the bounding boxes of a tweet are read from the file when the tweet is returned, so they live
+ * in the page cache instead of the heap. Only the tweets added since the snapshot was written are read from the
+ * database.
+ */
+public class TweetSnapshot
+{
+   /** the milliseconds in a day */
+   private static final long DAY = 24 * 60 * 60 * 1000L;
+
+   /** the start of the name of every partition */
+   private static final String PREFIX = "tweets-";
+
+   /** the end of the name of every partition */
+   private static final String SUFFIX = ".snap";
+
+   /** the partitions, in time order */
+   private final TweetPartition[] partitions;
+   /** the position of the first tweet of each partition, and the number of tweets */
+   private final int[] starts;
+
+   /**
+    * @param partitions
+    *           the partitions, in time order
+    */
+   private TweetSnapshot(final TweetPartition[] partitions)
+   {
+      this.partitions = partitions;
+      starts = new int[partitions.length + 1];
+      for (int i = 0; i < partitions.length; i++)
+      {
+         starts[i + 1] = starts[i] + partitions[i].getSize();
+      }
+   }
+
+   /**
+    * @param time
+    *           a time in milliseconds
+    * @return the name of the partition of the day of the time
+    */
+   private static String fileName(final long time)
+   {
+      final SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd");
+      format.setTimeZone(TimeZone.getTimeZone("UTC"));
+      return PREFIX + format.format(new Date(time)) + SUFFIX;
+   }
+
+   /**
+    * @param directory
+    *           a directory of partitions
+    * @return the partitions in the directory, in time order
+    */
+   private static File[] listPartitions(final File directory)
+   {
+      final File[] files = directory.listFiles(new FileFilter()
+      {
+         @Override
+         public boolean accept(final File file)
+         {
+            return file.isFile() && file.getName().startsWith(PREFIX) && file.getName().endsWith(SUFFIX);
+         }
+      });
+      if (files == null)
+      {
+         return new File[0];
+      }
+      // the names sort by day
+      Arrays.sort(files);
+      return files;
+   }
+
+   /**
+    * open the snapshot in a directory. A directory that does not exist yet holds an empty snapshot.
+    *
+    * @param directory
+    *           the directory of the snapshot
+    * @return the snapshot
+    * @throws IOException
+    *            if a partition cannot be read
+    */
+   public static TweetSnapshot open(final File directory) throws IOException
+   {
+      final File[] files = listPartitions(directory);
+      final TweetPartition[] partitions = new TweetPartition[files.length];
+      for (int i = 0; i < files.length; i++)
+      {
+         try
+         {
+            partitions[i] = TweetPartition.open(files[i]);
+         }
+         catch (final IOException e)
+         {
+            throw new IOException("Cannot read " + files[i], e);
+         }
+      }
+      return new TweetSnapshot(partitions);
+   }
+
+   /**
+    * @param time
+    *           a time in milliseconds
+    * @return the start of the next day, by UTC
+    */
+   private static long nextDay(final long time)
+   {
+      final long day = time >= 0 ? time / DAY : (time + 1) / DAY - 1;
+      return (day + 1) * DAY;
+   }
+
+   /**
+    * @param partition
+    *           a partition on disk
+    * @param index
+    *           the index
+    * @param from
+    *           the position in the index of the first tweet of the day of the partition
+    * @param to
+    *           one past the position of the last
+    * @return true if the partition holds the same tweets as the index. Tweets are only ever added, so the first and
+    *         last tweets and the number of tweets are enough to tell.
+    */
+   private static boolean sameTweets(final TweetPartition partition, final TweetIndex index, final int from,
+         final int to)
+   {
+      final int size = to - from;
+      if (partition.getSize() != size)
+      {
+         return false;
+      }
+      final TweetRecord first = index.getRecord(from);
+      final TweetRecord last = index.getRecord(to - 1);
+      return partition.getMinTime() == TweetIndexBuilder.time(first)
+            && partition.getMaxTime() == TweetIndexBuilder.time(last)
+            && same(partition.getTweetid(0), first.getTweetid())
+            && same(partition.getTweetid(size - 1), last.getTweetid());
+   }
+
+   /**
+    * @param a
+    *           a string, possibly null
+    * @param b
+    *           another string, possibly null
+    * @return true if they are equal
+    */
+   private static boolean same(final String a, final String b)
+   {
+      return a == null ? b == null : a.equals(b);
+   }
+
+   /**
+    * write the tweets of an index to the snapshot in a directory. Only the days whose tweets changed are written, each
+    * to a new file that then replaces the old one, so that a snapshot that is open, or a crash while writing, never
+    * sees a partition that is half written.
+    *
+    * @param directory
+    *           the directory of the snapshot
+    * @param index
+    *           the index of every tweet; the tweets appended to it since it was built are not written
+    * @return the number of partitions written
+    * @throws IOException
+    *            if a partition cannot be written
+    */
+   public static int write(final File directory, final TweetIndex index) throws IOException
+   {
+      if (!directory.isDirectory() && !directory.mkdirs())
+      {
+         throw new IOException("Cannot create " + directory);
+      }
+
+      int written = 0;
+      final Set<String> names = new HashSet<>();
+      int from = 0;
+      while (from < index.getBaseSize())
+      {
+         final long time = TweetIndexBuilder.time(index.getRecord(from));
+         final int to = index.lowerBound(nextDay(time));
+         final String name = fileName(time);
+         names.add(name);
+
+         final File file = new File(directory, name);
+         boolean same = false;
+         if (file.isFile())
+         {
+            try
+            {
+               same = sameTweets(TweetPartition.open(file), index, from, to);
+            }
+            catch (final IOException e)
+            {
+               // a partition that cannot be read is written again
+            }
+         }
+         if (!same)
+         {
+            final List<TweetRecord> tweets = new ArrayList<>(to - from);
+            for (int i = from; i < to; i++)
+            {
+               tweets.add(index.getRecord(i));
+            }
+            final File temp = new File(directory, name + ".tmp");
+            TweetPartition.write(temp, tweets);
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                  StandardCopyOption.ATOMIC_MOVE);
+            written++;
+         }
+         from = to;
+      }
+
+      // the days that no longer have tweets
+      for (final File file : listPartitions(directory))
+      {
+         if (!names.contains(file.getName()))
+         {
+            Files.delete(file.toPath());
+         }
+      }
+      return written;
+   }
+
+   /**
+    * copy the times and the coordinates of every tweet in the snapshot
+    *
+    * @param times
+    *           the array to copy the times into, from the start
+    * @param lats
+    *           the array to copy the lat column into
+    * @param lons
+    *           the array to copy the lon column into
+    */
+   void copyColumns(final long[] times, final double[] lats, final double[] lons)
+   {
+      for (int i = 0; i < partitions.length; i++)
+      {
+         partitions[i].copyColumns(times, lats, lons, starts[i]);
+      }
+   }
+
+   /**
+    * @param position
+    *           the position of a tweet in the snapshot
+    * @return the tweet, read from its partition
+    */
+   public TwitterStream get(final int position)
+   {
+      return getRecord(position).toTweet();
+   }
+
+   /**
+    * @param day
+    *           the number of a day in the snapshot, from 0 to {@link #getDays()}
+    * @return the number of tweets in the snapshot on the day
+    */
+   int getDaySize(final int day)
+   {
+      return partitions[day].getSize();
+   }
+
+   /**
+    * @param day
+    *           the number of a day in the snapshot that has tweets, from 0 to {@link #getDays()}
+    * @return the start of the day, by UTC, in milliseconds since the epoch
+    */
+   long getDayStart(final int day)
+   {
+      return nextDay(partitions[day].getMinTime()) - DAY;
+   }
+
+   /**
+    * @return the number of days in the snapshot, one for each partition
+    */
+   int getDays()
+   {
+      return partitions.length;
+   }
+
+   /**
+    * @return the last tweet in the snapshot, after which the tweets added since are read, or null if it is empty
+    */
+   public TwitterStream getLast()
+   {
+      return getSize() == 0 ? null : get(getSize() - 1);
+   }
+
+   /**
+    * @param position
+    *           the position of a tweet in the snapshot
+    * @return the time and the coordinates of the tweet, which is all the histogram and the rollups need
+    */
+   public TwitterStream getPoint(final int position)
+   {
+      final int partition = partitionOf(position);
+      return partitions[partition].getPoint(position - starts[partition]);
+   }
+
+   /**
+    * @param position
+    *           the position of a tweet in the snapshot
+    * @return the tweet, read from its partition as a record
+    */
+   TweetRecord getRecord(final int position)
+   {
+      final int partition = partitionOf(position);
+      return partitions[partition].get(position - starts[partition]);
+   }
+
+   /**
+    * @return the number of tweets in the snapshot
+    */
+   public int getSize()
+   {
+      return starts[partitions.length];
+   }
+
+   /**
+    * @param position
+    *           the position of a tweet in the snapshot
+    * @return the number of the partition that holds it
+    */
+   private int partitionOf(final int position)
+   {
+      if (position < 0 || position >= getSize())
+      {
+         throw new IndexOutOfBoundsException("no tweet " + position + " in a snapshot of " + getSize());
+      }
+      int partition = Arrays.binarySearch(starts, 0, partitions.length, position);
+      if (partition < 0)
+      {
+         partition = -partition - 2;
+      }
+      // skip any empty partitions that start at the same position
+      while (partition + 1 < partitions.length && starts[partition + 1] <= position)
+      {
+         partition++;
+      }
+      return partition;
+   }
+
+   /**
+    * @param tail
+    *           the tweets that come after the snapshot, in time order
+    * @return the rows of the tweets of the snapshot followed by the tail
+    */
+   TweetRows rows(final TweetRecord[] tail)
+   {
+      final int size = getSize();
+      return new TweetRows()
+      {
+         @Override
+         TweetRecord get(final int position)
+         {
+            return position < size ? getRecord(position) : tail[position - size];
+         }
+      };
+   }
+
+   /*
+    * (non-Javadoc)
+    * @see java.lang.Object#toString()
+    */
+   @Override
+   public String toString()
+   {
+      return "TweetSnapshot [partitions=" + partitions.length + ", size=" + getSize() + "]";
+   }
+}
@@ -0,0 +1,28 @@
+/**
+ *
+ */
+package web30.index;
+
+import java.io.IOException;
+
+import web30.TweetQuery;
+
+/**
+ * Somewhere the tweets that match a query can be read from: the {@link TweetIndex}, or the database when the index is
+ * not loaded.
+ */
+public interface TweetSource
+{
+   /**
+    * visit every tweet that matches the query, in time order, stopping after the query's maximum number of results
+    *
+    * @param query
+    *           the filter
+    * @param visitor
+    *           receives each matching tweet
+    * @return the number of tweets visited
+    * @throws IOException
+    *            if the tweets cannot be read, or the visitor fails
+    */
+   long scan(TweetQuery query, TweetVisitor visitor) throws IOException;
+}
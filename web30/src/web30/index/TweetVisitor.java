@@ -0,0 +1,23 @@
+/**
+ *
+ */
+package web30.index;
+
+import java.io.IOException;
+
+import web30.model.TwitterStream;
+
+/**
+ * Receives the tweets found by a scan of the {@link TweetIndex}, one at a time, so that they never have to be collected
+ * into a list.
+ */
+public interface TweetVisitor
+{
+   /**
+    * @param tweet
+    *           the next matching tweet
+    * @throws IOException
+    *            if the tweet cannot be handled; this stops the scan
+    */
+   void visit(TwitterStream tweet) throws IOException;
+}
@@ -0,0 +1,148 @@
+/**
+ *
+ */
+package web30.model;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The bounding box of the place a tweet was sent from, as the text stored in the database and as the four sides parsed
+ * from it. A city is the place of many tweets, so places are shared: {@link #of(String)} gives every tweet with the
+ * same text the same object, and the text and the sides are held once however many tweets are cached. The text is
+ * kept as it is, so that it is sent exactly as it was stored.
+ */
+public final class TweetPlace
+{
+   /** the most places shared; after that new places are not remembered, so odd data cannot fill the heap */
+   static final int MAX_PLACES = 1 << 16;
+
+   /** a number in the text of a bounding box */
+   private static final Pattern NUMBER = Pattern.compile("-?\\d+(\\.\\d+)?([eE][-+]?\\d+)?");
+
+   /** the places seen so far, by their text */
+   private static final ConcurrentMap<String, TweetPlace> places = new ConcurrentHashMap<>();
+
+   /** the text of the bounding box */
+   private final String text;
+   /** the left side of the box, or NaN if the text has no box */
+   private final double west;
+   /** the bottom of the box, or NaN if the text has no box */
+   private final double south;
+   /** the right side of the box, or NaN if the text has no box */
+   private final double east;
+   /** the top of the box, or NaN if the text has no box */
+   private final double north;
+
+   /**
+    * @param text
+    *           the text of the bounding box, a list of (longitude, latitude) corners
+    */
+   private TweetPlace(final String text)
+   {
+      this.text = text;
+      double minX = Double.POSITIVE_INFINITY;
+      double minY = Double.POSITIVE_INFINITY;
+      double maxX = Double.NEGATIVE_INFINITY;
+      double maxY = Double.NEGATIVE_INFINITY;
+      int count = 0;
+      final Matcher matcher = NUMBER.matcher(text);
+      while (matcher.find())
+      {
+         final double value = Double.parseDouble(matcher.group());
+         if (count++ % 2 == 0)
+         {
+            minX = Math.min(minX, value);
+            maxX = Math.max(maxX, value);
+         }
+         else
+         {
+            minY = Math.min(minY, value);
+            maxY = Math.max(maxY, value);
+         }
+      }
+      // a box needs at least two corners
+      final boolean box = count >= 4 && count % 2 == 0;
+      west = box ? minX : Double.NaN;
+      south = box ? minY : Double.NaN;
+      east = box ? maxX : Double.NaN;
+      north = box ? maxY : Double.NaN;
+   }
+
+   /**
+    * @param text
+    *           the text of a bounding box, possibly null
+    * @return the shared place with the text, or null if the text is null
+    */
+   public static TweetPlace of(final String text)
+   {
+      if (text == null)
+      {
+         return null;
+      }
+      final TweetPlace place = places.get(text);
+      if (place != null)
+      {
+         return place;
+      }
+      final TweetPlace created = new TweetPlace(text);
+      if (places.size() >= MAX_PLACES)
+      {
+         return created;
+      }
+      final TweetPlace raced = places.putIfAbsent(text, created);
+      return raced != null ? raced : created;
+   }
+
+   /**
+    * @return the right side of the box, or NaN if the text has no box
+    */
+   public double getEast()
+   {
+      return east;
+   }
+
+   /**
+    * @return the top of the box, or NaN if the text has no box
+    */
+   public double getNorth()
+   {
+      return north;
+   }
+
+   /**
+    * @return the bottom of the box, or NaN if the text has no box
+    */
+   public double getSouth()
+   {
+      return south;
+   }
+
+   /**
+    * @return the text of the bounding box, as it was stored
+    */
+   public String getText()
+   {
+      return text;
+   }
+
+   /**
+    * @return the left side of the box, or NaN if the text has no box
+    */
+   public double getWest()
+   {
+      return west;
+   }
+
+   /*
+    * (non-Javadoc)
+    * @see java.lang.Object#toString()
+    */
+   @Override
+   public String toString()
+   {
+      return "TweetPlace [west=" + west + ", south=" + south + ", east=" + east + ", north=" + north + "]";
+   }
+}
@@ -0,0 +1,267 @@
+/**
+ *
+ */
+package web30.model;
+
+import java.util.Date;
+
+/**
+ * A tweet as it is held in memory for reading: the time is milliseconds since the epoch, the coordinates are
+ * primitives, a numeric tweet id is a long, and the bounding box is a shared {@link TweetPlace}. A
+ * {@link TwitterStream} holds a {@link Date}, two {@link Double}s and the strings of the id and the box for each tweet;
+ * a record is one object and the strings of the user and the text, so the indexes and caches that hold many tweets
+ * hold them as records. Tweets are converted when they are read from the database, with {@link #of(TwitterStream)},
+ * and back only when they are sent, with {@link #toTweet()}. Records are immutable.
+ */
+public final class TweetRecord
+{
+   /** the id of a tweet whose id is not a number */
+   public static final long NO_ID = -1;
+
+   /** the time of a tweet that has none */
+   public static final long NO_TIME = Long.MIN_VALUE;
+
+   /** the longest tweet id held as a number, in digits */
+   private static final int MAX_DIGITS = 18;
+
+   /** the id of the tweet, or {@link #NO_ID} if it is not a number */
+   private final long id;
+   /** the id of the tweet if it is not a number, or null */
+   private final String tweetid;
+   /** the time of the tweet, in milliseconds since the epoch, or {@link #NO_TIME} */
+   private final long time;
+   /** the latitude, or NaN if there is none */
+   private final double lat;
+   /** the longitude, or NaN if there is none */
+   private final double lon;
+   /** the user that tweeted */
+   private final String userid;
+   /** the tweet */
+   private final String text;
+   /** the bounding box of the place, or null */
+   private final TweetPlace place;
+
+   /**
+    * @param tweetid
+    *           the id of the tweet
+    * @param time
+    *           the time of the tweet, in milliseconds since the epoch, or {@link #NO_TIME}
+    * @param lat
+    *           the latitude, or NaN if there is none
+    * @param lon
+    *           the longitude, or NaN if there is none
+    * @param userid
+    *           the user that tweeted
+    * @param text
+    *           the tweet
+    * @param boundingbox
+    *           the text of the bounding box, or null
+    */
+   public TweetRecord(final String tweetid, final long time, final double lat, final double lon, final String userid,
+         final String text, final String boundingbox)
+   {
+      this.id = idOf(tweetid);
+      this.tweetid = id == NO_ID ? tweetid : null;
+      this.time = time;
+      this.lat = lat;
+      this.lon = lon;
+      this.userid = userid;
+      this.text = text;
+      this.place = TweetPlace.of(boundingbox);
+   }
+
+   /**
+    * @param value
+    *           a coordinate, or NaN
+    * @return the coordinate, or null if it is NaN
+    */
+   private static Double coordinate(final double value)
+   {
+      return Double.isNaN(value) ? null : Double.valueOf(value);
+   }
+
+   /**
+    * @param value
+    *           a coordinate, possibly null
+    * @return the coordinate, or NaN if it is missing
+    */
+   private static double coordinate(final Double value)
+   {
+      return value == null ? Double.NaN : value.doubleValue();
+   }
+
+   /**
+    * @param value
+    *           a number that is not negative
+    * @return the number of digits in it
+    */
+   private static int digits(final long value)
+   {
+      int digits = 1;
+      for (long rest = value / 10; rest > 0; rest /= 10)
+      {
+         digits++;
+      }
+      return digits;
+   }
+
+   /**
+    * @param tweetid
+    *           a tweet id, possibly null
+    * @return the id as a number, or {@link #NO_ID} if it is not written exactly as {@link Long#toString(long)} would
+    *         write it, so that the string can always be made again from the number
+    */
+   private static long idOf(final String tweetid)
+   {
+      if (tweetid == null || tweetid.isEmpty() || tweetid.length() > MAX_DIGITS
+            || tweetid.charAt(0) == '0' && tweetid.length() > 1)
+      {
+         return NO_ID;
+      }
+      long id = 0;
+      for (int i = 0; i < tweetid.length(); i++)
+      {
+         final char c = tweetid.charAt(i);
+         if (c < '0' || c > '9')
+         {
+            return NO_ID;
+         }
+         id = id * 10 + c - '0';
+      }
+      return id;
+   }
+
+   /**
+    * @param tweet
+    *           a tweet read from the database
+    * @return the tweet as a record
+    */
+   public static TweetRecord of(final TwitterStream tweet)
+   {
+      return new TweetRecord(tweet.getTweetid(), tweet.getTime() == null ? NO_TIME : tweet.getTime().getTime(),
+            coordinate(tweet.getLat()), coordinate(tweet.getLon()), tweet.getUserid(), tweet.getText(),
+            tweet.getBoundingbox());
+   }
+
+   /**
+    * compare the tweet ids of two records the way the database orders the strings, without making the strings when
+    * both ids are numbers of the same length
+    *
+    * @param other
+    *           another record
+    * @return less than, equal to or greater than 0 as the id of this record sorts before, with or after the other
+    */
+   public int compareTweetid(final TweetRecord other)
+   {
+      if (id != NO_ID && other.id != NO_ID && digits(id) == digits(other.id))
+      {
+         return Long.compare(id, other.id);
+      }
+      final String a = getTweetid();
+      final String b = other.getTweetid();
+      if (a == null)
+      {
+         return b == null ? 0 : -1;
+      }
+      return b == null ? 1 : a.compareTo(b);
+   }
+
+   /**
+    * @return the text of the bounding box, or null
+    */
+   public String getBoundingbox()
+   {
+      return place == null ? null : place.getText();
+   }
+
+   /**
+    * @return the id of the tweet, or {@link #NO_ID} if it is not a number
+    */
+   public long getId()
+   {
+      return id;
+   }
+
+   /**
+    * @return the latitude, or NaN if there is none
+    */
+   public double getLat()
+   {
+      return lat;
+   }
+
+   /**
+    * @return the longitude, or NaN if there is none
+    */
+   public double getLon()
+   {
+      return lon;
+   }
+
+   /**
+    * @return the bounding box of the place, or null
+    */
+   public TweetPlace getPlace()
+   {
+      return place;
+   }
+
+   /**
+    * @return the message text
+    */
+   public String getText()
+   {
+      return text;
+   }
+
+   /**
+    * @return the time of the tweet, in milliseconds since the epoch, or {@link #NO_TIME} if it has none
+    */
+   public long getTime()
+   {
+      return time;
+   }
+
+   /**
+    * @return the id of the tweet, made from the number if it is one
+    */
+   public String getTweetid()
+   {
+      return id == NO_ID ? tweetid : Long.toString(id);
+   }
+
+   /**
+    * @return the user
+    */
+   public String getUserid()
+   {
+      return userid;
+   }
+
+   /**
+    * @return the record as a tweet that can be sent
+    */
+   public TwitterStream toTweet()
+   {
+      final TwitterStream tweet = new TwitterStream();
+      tweet.setTweetid(getTweetid());
+      tweet.setTime(time == NO_TIME ? null : new Date(time));
+      tweet.setLat(coordinate(lat));
+      tweet.setLon(coordinate(lon));
+      tweet.setUserid(userid);
+      tweet.setText(text);
+      tweet.setBoundingbox(getBoundingbox());
+      return tweet;
+   }
+
+   /*
+    * (non-Javadoc)
+    * @see java.lang.Object#toString()
+    */
+   @Override
+   public String toString()
+   {
+      return "TweetRecord [userid=" + userid + ", lat=" + lat + ", lon=" + lon + ", time=" + time + ", text=" + text
+            + ", tweetid=" + getTweetid() + ", boundingbox=" + getBoundingbox() + "]";
+   }
+}
@@ -6,7 +6,10 @@ import java.util.Date;
 import javax.persistence.Entity;
 import javax.persistence.Id;
 import javax.persistence.IdClass;
+import javax.persistence.Index;
 import javax.persistence.NamedQuery;
+import javax.persistence.Table;
+import javax.xml.bind.annotation.XmlTransient;
 
 import org.hibernate.annotations.Immutable;
 
@@ -17,6 +20,7 @@ import org.hibernate.annotations.Immutable;
 @IdClass(TweetId.class)
 @Immutable
 @NamedQuery(name = "TwitterStream.findAll", query = "SELECT t FROM TwitterStream t")
+@Table(indexes = @Index(name = "twitterstream_geohash", columnList = "geohash"))
 public class TwitterStream implements Serializable
 {
    /** the serial id */
@@ -25,6 +29,12 @@ public class TwitterStream implements Serializable
    /** the bounding box */
    private String boundingbox;
 
+   /**
+    * the geohash of the coordinates, from {@link web30.util.GeoHash}, or null until it has been filled in. The column
+    * and its index are added by web30/sql/twitterstream-geohash.sql, which must be applied before the upgrade.
+    */
+   private Long geohash;
+
    /** the latitude */
    private Double lat;
 
@@ -60,6 +70,16 @@ public class TwitterStream implements Serializable
       return this.boundingbox;
    }
 
+   /**
+    * @return the geohash of the coordinates, or null until it has been filled in. It is only for finding the tweets in
+    *         the database, so it is never sent.
+    */
+   @XmlTransient
+   public Long getGeohash()
+   {
+      return this.geohash;
+   }
+
    /**
     * @return the latitude
     */
@@ -116,6 +136,15 @@ public class TwitterStream implements Serializable
       this.boundingbox = boundingbox;
    }
 
+   /**
+    * @param geohash
+    *           the geohash of the coordinates
+    */
+   public void setGeohash(final Long geohash)
+   {
+      this.geohash = geohash;
+   }
+
    /**
     * @param lat
     */
@@ -0,0 +1,63 @@
+/**
+ *
+ */
+package web30.persistence;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of threads for running database queries alongside the request thread. Each query should borrow its
+ * own entity manager, since entity managers are not thread safe. When every thread is busy and the queue is full, the
+ * query runs on the thread that submitted it, so a busy server slows down instead of failing.
+ */
+public class QueryExecutor
+{
+   /** the number of threads that run queries */
+   static final int THREADS = 8;
+
+   /** the number of queries that can wait for a thread */
+   static final int QUEUE_SIZE = 64;
+
+   /** the pool of query threads */
+   private static final ThreadPoolExecutor executor = createExecutor();
+
+   /**
+    * @return a newly created executor
+    */
+   private static ThreadPoolExecutor createExecutor()
+   {
+      final AtomicInteger count = new AtomicInteger();
+      final ThreadPoolExecutor result = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadFactory()
+            {
+               @Override
+               public Thread newThread(final Runnable r)
+               {
+                  final Thread t = new Thread(r);
+                  t.setName("QueryExecutor-" + count.incrementAndGet());
+                  t.setDaemon(true);
+                  return t;
+               }
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+      result.allowCoreThreadTimeOut(true);
+      return result;
+   }
+
+   /**
+    * run a query on a query thread
+    *
+    * @param query
+    *           the query, which should borrow its own entity manager
+    * @return the future result of the query
+    */
+   public static <T> Future<T> submit(final Callable<T> query)
+   {
+      return executor.submit(query);
+   }
+}
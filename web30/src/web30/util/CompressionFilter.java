@@ -0,0 +1,352 @@
+/**
+ *
+ */
+package web30.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+/**
+ * Compresses response bodies with gzip or deflate, whichever the Accept-Encoding header of the request prefers. A body
+ * is held back until it is larger than the threshold, and sent as it is if it ends before that, since compressing
+ * small bodies costs more than it saves. Streamed bodies are compressed as they are written, and every flush of the
+ * stream sends what has been compressed so far, so a stream never waits for the whole body.
+ * <p>
+ * The filter half picks the encoding for each request, and the interceptor half compresses the body.
+ */
+public class CompressionFilter implements ContainerResponseFilter, WriterInterceptor
+{
+   /** the request property that holds the encoding picked for the response */
+   private static final String ENCODING_PROPERTY = CompressionFilter.class.getName() + ".encoding";
+
+   /** the size of the compression buffers */
+   private static final int BUFFER_SIZE = 8192;
+
+   /**
+    * Holds the start of a body until it is larger than the threshold, then compresses all of it.
+    */
+   private class ThresholdOutputStream extends OutputStream
+   {
+      /** the interceptor context, for the headers */
+      private final WriterInterceptorContext context;
+      /** the stream to the client */
+      private final OutputStream raw;
+      /** the encoding to use */
+      private final String encoding;
+      /** true to compress on the first flush, because the body is streamed */
+      private final boolean streamed;
+      /** the start of the body, until it is compressed or ends */
+      private final byte[] held;
+      /** the number of bytes held */
+      private int count;
+      /** the compressing stream, or null until the body is known to be large enough */
+      private DeflaterOutputStream out;
+      /** the deflater of the compressing stream, ended once the body is finished */
+      private Deflater deflater;
+      /** true once the body has been finished */
+      private boolean finished;
+
+      /**
+       * @param context
+       *           the interceptor context, for the headers
+       * @param raw
+       *           the stream to the client
+       * @param encoding
+       *           the encoding to use
+       * @param streamed
+       *           true to compress on the first flush, because the body is streamed
+       */
+      ThresholdOutputStream(final WriterInterceptorContext context, final OutputStream raw, final String encoding,
+            final boolean streamed)
+      {
+         this.context = context;
+         this.raw = raw;
+         this.encoding = encoding;
+         this.streamed = streamed;
+         held = new byte[threshold];
+      }
+
+      /*
+       * (non-Javadoc)
+       * @see java.io.OutputStream#close()
+       */
+      @Override
+      public void close() throws IOException
+      {
+         finish();
+         raw.close();
+      }
+
+      /**
+       * start compressing. The headers can still change, since nothing has been written to the client yet.
+       *
+       * @throws IOException
+       *            if the held bytes cannot be written
+       */
+      private void compress() throws IOException
+      {
+         final MultivaluedMap<String, Object> headers = context.getHeaders();
+         headers.putSingle(HttpHeaders.CONTENT_ENCODING, encoding);
+         headers.remove(HttpHeaders.CONTENT_LENGTH);
+
+         if (encoding.equals(GZIP))
+         {
+            out = new GZIPOutputStream(raw, BUFFER_SIZE, true)
+            {
+               {
+                  def.setLevel(level);
+                  deflater = def;
+               }
+            };
+         }
+         else
+         {
+            deflater = new Deflater(level);
+            out = new DeflaterOutputStream(raw, deflater, BUFFER_SIZE, true);
+         }
+         out.write(held, 0, count);
+      }
+
+      /**
+       * write whatever is held or compressed, without closing the stream to the client
+       *
+       * @throws IOException
+       *            if the body cannot be written
+       */
+      void finish() throws IOException
+      {
+         if (finished)
+         {
+            return;
+         }
+         finished = true;
+         if (out == null)
+         {
+            // too small to be worth compressing
+            raw.write(held, 0, count);
+         }
+         else
+         {
+            try
+            {
+               out.finish();
+            }
+            finally
+            {
+               if (deflater != null)
+               {
+                  deflater.end();
+               }
+            }
+         }
+         raw.flush();
+      }
+
+      /*
+       * (non-Javadoc)
+       * @see java.io.OutputStream#flush()
+       */
+      @Override
+      public void flush() throws IOException
+      {
+         if (out == null && streamed)
+         {
+            compress();
+         }
+         if (out != null)
+         {
+            out.flush();
+         }
+      }
+
+      /*
+       * (non-Javadoc)
+       * @see java.io.OutputStream#write(byte[], int, int)
+       */
+      @Override
+      public void write(final byte[] b, final int off, final int len) throws IOException
+      {
+         if (out == null)
+         {
+            if (count + len <= held.length)
+            {
+               System.arraycopy(b, off, held, count, len);
+               count += len;
+               return;
+            }
+            compress();
+         }
+         out.write(b, off, len);
+      }
+
+      /*
+       * (non-Javadoc)
+       * @see java.io.OutputStream#write(int)
+       */
+      @Override
+      public void write(final int b) throws IOException
+      {
+         write(new byte[] { (byte) b }, 0, 1);
+      }
+   }
+
+   /** the gzip content encoding */
+   public static final String GZIP = "gzip";
+
+   /** the deflate content encoding */
+   public static final String DEFLATE = "deflate";
+
+   /** the compression level, from 1 (fastest) to 9 (smallest) */
+   private final int level;
+
+   /** the size in bytes above which bodies are compressed */
+   private final int threshold;
+
+   /**
+    * @param level
+    *           the compression level, from 1 (fastest) to 9 (smallest)
+    * @param threshold
+    *           the size in bytes above which bodies are compressed
+    */
+   public CompressionFilter(final int level, final int threshold)
+   {
+      if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)
+      {
+         throw new IllegalArgumentException("The compression level must be from 1 to 9");
+      }
+      this.level = level;
+      this.threshold = Math.max(0, threshold);
+   }
+
+   /**
+    * pick the encoding the client likes best, from the q values of its Accept-Encoding header. gzip wins a tie.
+    *
+    * @param acceptEncoding
+    *           the Accept-Encoding header, or null
+    * @return gzip, deflate, or null for neither
+    */
+   static String negotiate(final String acceptEncoding)
+   {
+      if (acceptEncoding == null)
+      {
+         return null;
+      }
+
+      double gzip = -1;
+      double deflate = -1;
+      double any = -1;
+      for (final String part : acceptEncoding.split(","))
+      {
+         final String[] pieces = part.split(";");
+         final String coding = pieces[0].trim().toLowerCase();
+         double q = 1.0;
+         for (int i = 1; i < pieces.length; i++)
+         {
+            final String param = pieces[i].trim();
+            if (param.startsWith("q="))
+            {
+               try
+               {
+                  q = Double.parseDouble(param.substring(2));
+               }
+               catch (final NumberFormatException e)
+               {
+                  q = 0;
+               }
+            }
+         }
+
+         if (coding.equals(GZIP) || coding.equals("x-gzip"))
+         {
+            gzip = q;
+         }
+         else if (coding.equals(DEFLATE))
+         {
+            deflate = q;
+         }
+         else if (coding.equals("*"))
+         {
+            any = q;
+         }
+      }
+
+      // a coding that is not named gets the q value of *, if there is one
+      gzip = gzip < 0 ? any : gzip;
+      deflate = deflate < 0 ? any : deflate;
+      if (gzip <= 0 && deflate <= 0)
+      {
+         return null;
+      }
+      return gzip >= deflate ? GZIP : DEFLATE;
+   }
+
+   /**
+    * pick the encoding for the response, unless it has one already or is media that is compressed already
+    *
+    * @see javax.ws.rs.container.ContainerResponseFilter#filter(javax.ws.rs.container.ContainerRequestContext,
+    *      javax.ws.rs.container.ContainerResponseContext)
+    */
+   @Override
+   public void filter(final ContainerRequestContext requestContext, final ContainerResponseContext responseContext)
+   {
+      if (!responseContext.hasEntity() || responseContext.getHeaders().containsKey(HttpHeaders.CONTENT_ENCODING))
+      {
+         return;
+      }
+      final MediaType type = responseContext.getMediaType();
+      if (type != null && (type.getType().equals("image") || type.getType().equals("audio")
+            || type.getType().equals("video")))
+      {
+         return;
+      }
+
+      responseContext.getHeaders().add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+      final String encoding = negotiate(requestContext.getHeaderString(HttpHeaders.ACCEPT_ENCODING));
+      if (encoding != null)
+      {
+         requestContext.setProperty(ENCODING_PROPERTY, encoding);
+      }
+   }
+
+   /**
+    * compress the body with the encoding picked by the filter, if it is large enough
+    *
+    * @see javax.ws.rs.ext.WriterInterceptor#aroundWriteTo(javax.ws.rs.ext.WriterInterceptorContext)
+    */
+   @Override
+   public void aroundWriteTo(final WriterInterceptorContext context) throws IOException
+   {
+      final Object encoding = context.getProperty(ENCODING_PROPERTY);
+      if (encoding == null)
+      {
+         context.proceed();
+         return;
+      }
+
+      final ThresholdOutputStream out = new ThresholdOutputStream(context, context.getOutputStream(),
+            (String) encoding, context.getEntity() instanceof StreamingOutput);
+      context.setOutputStream(out);
+      try
+      {
+         context.proceed();
+      }
+      finally
+      {
+         // the container closes the stream to the client itself
+         out.finish();
+      }
+   }
+}
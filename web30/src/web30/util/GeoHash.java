@@ -0,0 +1,216 @@
+/**
+ *
+ */
+package web30.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Geohashes of {@link #BITS} bits. The world is cut into a grid of 2^16 by 2^16 cells, and the number of a cell
+ * interleaves the bits of its column and row, a longitude bit first, so that the cells sharing a prefix make up a
+ * rectangle and every rectangle of cells sharing a prefix is one range of numbers. A box on the map is then covered by
+ * a few ranges, which a B-tree or a sorted array can find with one seek each.
+ * <p>
+ * These take real latitudes and longitudes. NOTE the db has lat and lon backwards, so the latitude is the lon column
+ * and the longitude is the lat column.
+ */
+public class GeoHash
+{
+   /** the number of bits in a geohash */
+   public static final int BITS = 32;
+
+   /** the number of bits for each axis */
+   private static final int AXIS_BITS = BITS / 2;
+
+   /** the number of cells along each axis */
+   private static final int AXIS_CELLS = 1 << AXIS_BITS;
+
+   /** the digits of the text form, which are those of the usual geohash strings */
+   private static final char[] BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+
+   /**
+    * @param value
+    *           a coordinate
+    * @param min
+    *           the smallest value of the axis
+    * @param max
+    *           the largest value of the axis
+    * @return the number of the cell along the axis, with values off the map in the cells at its edges
+    */
+   private static int cellOf(final double value, final double min, final double max)
+   {
+      final double cell = Math.floor((value - min) / (max - min) * AXIS_CELLS);
+      return (int) Math.max(0, Math.min(AXIS_CELLS - 1, cell));
+   }
+
+   /**
+    * @param latitude
+    *           the latitude, north positive
+    * @param longitude
+    *           the longitude, east positive
+    * @return the geohash of the point, from 0 to 2^{@link #BITS} - 1
+    */
+   public static long encode(final double latitude, final double longitude)
+   {
+      return interleave(cellOf(longitude, -180, 180), cellOf(latitude, -90, 90), AXIS_BITS);
+   }
+
+   /**
+    * @param column
+    *           the bits of the column, along the longitude
+    * @param row
+    *           the bits of the row, along the latitude
+    * @param axisBits
+    *           the number of bits of each
+    * @return the bits interleaved, a column bit first
+    */
+   private static long interleave(final int column, final int row, final int axisBits)
+   {
+      long hash = 0;
+      for (int bit = axisBits - 1; bit >= 0; bit--)
+      {
+         hash = hash << 2 | (column >>> bit & 1) << 1 | row >>> bit & 1;
+      }
+      return hash;
+   }
+
+   /**
+    * cover a box with ranges of geohashes. The box is cut into the largest cells that fit, as finely as the number of
+    * ranges allows, and ranges that touch are joined. The ranges cover every point in the box, and some points around
+    * it, so the points they find still have to be checked against the box.
+    *
+    * @param south
+    *           the bottom of the box
+    * @param north
+    *           the top of the box
+    * @param west
+    *           the left side of the box
+    * @param east
+    *           the right side of the box
+    * @param maxRanges
+    *           the most ranges wanted, at least 1
+    * @return the first and last geohash of each range, in pairs, in order
+    */
+   public static long[] ranges(final double south, final double north, final double west, final double east,
+         final int maxRanges)
+   {
+      final int minColumn = cellOf(west, -180, 180);
+      final int maxColumn = cellOf(east, -180, 180);
+      final int minRow = cellOf(south, -90, 90);
+      final int maxRow = cellOf(north, -90, 90);
+      if (minColumn > maxColumn || minRow > maxRow)
+      {
+         return new long[0];
+      }
+
+      // the cells inside the box, and the ones on its edge that could be cut finer
+      List<long[]> inside = new ArrayList<>();
+      List<long[]> edge = new ArrayList<>();
+      edge.add(new long[] { 0, 0, 0 });
+      for (int depth = 0; depth < AXIS_BITS && !edge.isEmpty(); depth++)
+      {
+         final int shift = AXIS_BITS - depth - 1;
+         final List<long[]> nextInside = new ArrayList<>(inside);
+         final List<long[]> nextEdge = new ArrayList<>();
+         for (final long[] cell : edge)
+         {
+            for (int quarter = 0; quarter < 4; quarter++)
+            {
+               final int column = (int) (cell[0] << 1 | quarter >>> 1);
+               final int row = (int) (cell[1] << 1 | quarter & 1);
+               final int columnStart = column << shift;
+               final int columnEnd = columnStart + (1 << shift) - 1;
+               final int rowStart = row << shift;
+               final int rowEnd = rowStart + (1 << shift) - 1;
+               if (columnEnd < minColumn || columnStart > maxColumn || rowEnd < minRow || rowStart > maxRow)
+               {
+                  continue;
+               }
+               final long[] child = { column, row, depth + 1 };
+               if (columnStart >= minColumn && columnEnd <= maxColumn && rowStart >= minRow && rowEnd <= maxRow)
+               {
+                  nextInside.add(child);
+               }
+               else
+               {
+                  nextEdge.add(child);
+               }
+            }
+         }
+         if (toRanges(nextInside, nextEdge).length / 2 > Math.max(1, maxRanges))
+         {
+            break;
+         }
+         inside = nextInside;
+         edge = nextEdge;
+      }
+      return toRanges(inside, edge);
+   }
+
+   /**
+    * @param hash
+    *           a geohash
+    * @param length
+    *           the number of characters wanted, at most 6
+    * @return the start of the usual text form of the geohash, which has 5 bits in each character
+    */
+   public static String toString(final long hash, final int length)
+   {
+      final char[] text = new char[Math.min(length, BITS / 5)];
+      for (int i = 0; i < text.length; i++)
+      {
+         text[i] = BASE32[(int) (hash >>> BITS - 5 * (i + 1) & 0x1f)];
+      }
+      return new String(text);
+   }
+
+   /**
+    * @param inside
+    *           cells, as column, row and depth
+    * @param edge
+    *           more cells
+    * @return the ranges of geohashes of the cells, joined where they touch, as pairs of first and last
+    */
+   private static long[] toRanges(final List<long[]> inside, final List<long[]> edge)
+   {
+      final List<long[]> cells = new ArrayList<>(inside);
+      cells.addAll(edge);
+      final long[] ranges = new long[cells.size() * 2];
+      int count = 0;
+      for (final long[] cell : cells)
+      {
+         final int depth = (int) cell[2];
+         final int shift = (AXIS_BITS - depth) * 2;
+         final long prefix = interleave((int) cell[0], (int) cell[1], depth);
+         ranges[count++] = prefix << shift;
+         ranges[count++] = (prefix + 1 << shift) - 1;
+      }
+
+      // sort the ranges by their starts, which never overlap, then join the ones that touch. A start has BITS bits,
+      // so the number of the range fits below it
+      final long[] starts = new long[count / 2];
+      for (int i = 0; i < starts.length; i++)
+      {
+         starts[i] = ranges[2 * i] << 31 | i;
+      }
+      Arrays.sort(starts);
+      final long[] result = new long[count];
+      int length = 0;
+      for (final long start : starts)
+      {
+         final int i = (int) (start & Integer.MAX_VALUE);
+         if (length > 0 && result[length - 1] + 1 == ranges[2 * i])
+         {
+            result[length - 1] = ranges[2 * i + 1];
+         }
+         else
+         {
+            result[length++] = ranges[2 * i];
+            result[length++] = ranges[2 * i + 1];
+         }
+      }
+      return Arrays.copyOf(result, length);
+   }
+}
@@ -56,6 +56,10 @@ public abstract class JerseyService
    /** URI scheme for HTTPS */
    public static String URI_SCHEME_HTTPS = "https";
 
+   /** the compression level of responses, from 1 (fastest) to 9 (smallest), or 0 to not compress them */
+   private int compressionLevel = 6;
+   /** the size in bytes above which responses are compressed */
+   private int compressionThreshold = 1024;
    /** hostname */
    private String host = "0.0.0.0";
 
@@ -81,6 +85,22 @@ public abstract class JerseyService
     */
    protected abstract Class<?>[] getClassesToRegister();
 
+   /**
+    * @return the compression level of responses, from 1 (fastest) to 9 (smallest), or 0 to not compress them
+    */
+   public int getCompressionLevel()
+   {
+      return compressionLevel;
+   }
+
+   /**
+    * @return the size in bytes above which responses are compressed
+    */
+   public int getCompressionThreshold()
+   {
+      return compressionThreshold;
+   }
+
    /**
     * @return the hostname
     */
@@ -90,8 +110,8 @@ public abstract class JerseyService
    }
 
    /**
-    * get the options for this service. This implementation includes the host, port, and properties options. This will
-    * only create the options once.
+    * get the options for this service. This implementation includes the host, port, properties and compression options.
+    * This will only create the options once.
     * 
     * @return the options for this service.
     */
@@ -110,6 +130,16 @@ public abstract class JerseyService
          options.addOption(option);
 
          options.addOption(getPropertiesOption());
+
+         option = new Option("compressionLevel", true, "The gzip or deflate level of responses, from 1 (fastest) to 9 "
+               + "(smallest), or 0 to not compress them. Defaults to " + getCompressionLevel());
+         option.setArgName("level");
+         options.addOption(option);
+
+         option = new Option("compressionThreshold", true, "The size in bytes above which responses are compressed. "
+               + "Defaults to " + getCompressionThreshold());
+         option.setArgName("bytes");
+         options.addOption(option);
       }
       return options;
    }
@@ -197,6 +227,24 @@ public abstract class JerseyService
       // do nothing, but allow children to override if needed
    }
 
+   /**
+    * @param compressionLevel
+    *           the compression level of responses, from 1 (fastest) to 9 (smallest), or 0 to not compress them
+    */
+   public void setCompressionLevel(final int compressionLevel)
+   {
+      this.compressionLevel = compressionLevel;
+   }
+
+   /**
+    * @param compressionThreshold
+    *           the size in bytes above which responses are compressed
+    */
+   public void setCompressionThreshold(final int compressionThreshold)
+   {
+      this.compressionThreshold = compressionThreshold;
+   }
+
    /**
     * @param hostname
     *           the hostname to set
@@ -254,6 +302,10 @@ public abstract class JerseyService
       final ResourceConfig config = new ResourceConfig();
       config.registerClasses(classesToRegister);
       config.property(ServerProperties.WADL_GENERATOR_CONFIG, WadlGeneratorConfig.class);
+      if (compressionLevel > 0)
+      {
+         config.register(new CompressionFilter(compressionLevel, compressionThreshold));
+      }
 
       // allow custom instances of filters, etc.
       modifyConfig(config);
@@ -0,0 +1,137 @@
+/**
+ *
+ */
+package web30.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A map that holds at most a fixed number of entries, dropping the one that was used least recently to make room for a
+ * new one. It is shared between request threads, so all of its methods are synchronized.
+ *
+ * @param <K>
+ *           the type of the keys
+ * @param <V>
+ *           the type of the values
+ */
+public class LruCache<K, V>
+{
+   /** the largest number of entries the cache holds */
+   private final int maxEntries;
+
+   /** the entries, from least to most recently used */
+   private final LinkedHashMap<K, V> entries;
+
+   /**
+    * @param maxEntries
+    *           the largest number of entries the cache holds
+    */
+   public LruCache(final int maxEntries)
+   {
+      this.maxEntries = maxEntries;
+      entries = new LinkedHashMap<K, V>(16, 0.75f, true)
+      {
+         private static final long serialVersionUID = 1L;
+
+         @Override
+         protected boolean removeEldestEntry(final Map.Entry<K, V> eldest)
+         {
+            return size() > LruCache.this.maxEntries;
+         }
+      };
+   }
+
+   /**
+    * remove every entry
+    */
+   public synchronized void clear()
+   {
+      entries.clear();
+   }
+
+   /**
+    * @param key
+    *           the key
+    * @return the value for the key, or null if it is not in the cache
+    */
+   public synchronized V get(final K key)
+   {
+      return entries.get(key);
+   }
+
+   /**
+    * @return the largest number of entries the cache holds
+    */
+   public int getMaxEntries()
+   {
+      return maxEntries;
+   }
+
+   /**
+    * @param key
+    *           the key
+    * @param value
+    *           the value to cache
+    * @return the value that was in the cache for the key, or null if there was none
+    */
+   public synchronized V put(final K key, final V value)
+   {
+      return entries.put(key, value);
+   }
+
+   /**
+    * add a value unless the cache already has one for the key, so that threads that miss at the same time agree on a
+    * single value
+    *
+    * @param key
+    *           the key
+    * @param value
+    *           the value to cache
+    * @return the value that was already in the cache, or null if the new value was added
+    */
+   public synchronized V putIfAbsent(final K key, final V value)
+   {
+      final V current = entries.get(key);
+      if (current == null)
+      {
+         entries.put(key, value);
+      }
+      return current;
+   }
+
+   /**
+    * @param key
+    *           the key
+    * @param value
+    *           the value expected for the key
+    * @return true if the key held the value and was removed
+    */
+   public synchronized boolean remove(final K key, final V value)
+   {
+      if (value != null && value.equals(entries.get(key)))
+      {
+         entries.remove(key);
+         return true;
+      }
+      return false;
+   }
+
+   /**
+    * @return the number of entries in the cache
+    */
+   public synchronized int size()
+   {
+      return entries.size();
+   }
+
+   /*
+    * (non-Javadoc)
+    * @see java.lang.Object#toString()
+    */
+   @Override
+   public synchronized String toString()
+   {
+      return "LruCache [size=" + entries.size() + ", maxEntries=" + maxEntries + "]";
+   }
+}